@@ -51,7 +51,12 @@ import org.geoserver.gwc.layer.GeoServerTileLayer;
 import org.geoserver.gwc.layer.GeoServerTileLayerInfo;
 import org.geoserver.gwc.layer.GeoServerTileLayerInfoImpl;
 import org.geoserver.ows.Dispatcher;
+import org.geoserver.ows.KvpRequestReader;
+import org.geoserver.ows.LocalWorkspace;
+import org.geoserver.ows.Request;
 import org.geoserver.ows.Response;
+import org.geoserver.ows.util.KvpMap;
+import org.geoserver.ows.util.KvpUtils;
 import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.platform.Operation;
 import org.geoserver.security.CoverageAccessLimits;
@@ -62,9 +67,13 @@ import org.geoserver.security.WMSAccessLimits;
 import org.geoserver.security.WrapperPolicy;
 import org.geoserver.security.decorators.SecuredLayerInfo;
 import org.geoserver.wms.GetMapRequest;
+import org.geoserver.wms.RasterCleaner;
 import org.geoserver.wms.WMS;
+import org.geoserver.wms.WebMap;
+import org.geoserver.wms.WebMapService;
 import org.geoserver.wms.map.RenderedImageMap;
 import org.opengis.filter.Filter;
+import org.geotools.filter.function.EnvFunction;
 import org.geotools.filter.visitor.ExtractBoundsFilterVisitor;
 import org.geotools.geometry.GeneralEnvelope;
 import org.geotools.geometry.jts.JTS;
@@ -72,6 +81,7 @@ import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.ows.ServiceException;
 import org.geotools.referencing.CRS;
 import org.geotools.referencing.CRS.AxisOrder;
+import org.geotools.renderer.lite.MetaBufferEstimator;
 import org.geotools.util.logging.Logging;
 import org.geowebcache.GeoWebCacheException;
 import org.geowebcache.GeoWebCacheExtensions;
@@ -111,6 +121,7 @@ import org.geowebcache.seed.SeedRequest;
 import org.geowebcache.seed.TileBreeder;
 import org.geowebcache.service.Service;
 import org.geowebcache.storage.DefaultStorageFinder;
+import org.geowebcache.storage.DiscontinuousTileRange;
 import org.geowebcache.storage.StorageBroker;
 import org.geowebcache.storage.StorageException;
 import org.geowebcache.storage.TileRange;
@@ -367,14 +378,7 @@ public class GWC implements DisposableBean, InitializingBean, ApplicationContext
             ReferencedEnvelope bounds) {
         final GridSet gridSet = layerGrid.getGridSet();
         final String gridSetId = gridSet.getName();
-        final SRS srs = gridSet.getSrs();
-        final CoordinateReferenceSystem gridSetCrs;
-        try {
-            gridSetCrs = CRS.decode("EPSG:" + srs.getNumber(), true);
-        } catch (Exception e) {
-            throw new RuntimeException("Can't decode SRS for layer '" + layerName + "': ESPG:"
-                    + srs.getNumber());
-        }
+        final CoordinateReferenceSystem gridSetCrs = getGridSetCrs(layerName, gridSet);
 
         ReferencedEnvelope truncateBoundsInGridsetCrs;
 
@@ -406,6 +410,111 @@ public class GWC implements DisposableBean, InitializingBean, ApplicationContext
         return intersectingBounds;
     }
 
+    private CoordinateReferenceSystem getGridSetCrs(String layerName, GridSet gridSet) {
+        final SRS srs = gridSet.getSrs();
+        try {
+            return CRS.decode("EPSG:" + srs.getNumber(), true);
+        } catch (Exception e) {
+            throw new RuntimeException("Can't decode SRS for layer '" + layerName + "': ESPG:"
+                    + srs.getNumber());
+        }
+    }
+
+    /**
+     * Truncates the tiles of the given layer actually touched by the geometry, plus the layer
+     * gutter and style buffer, for all the cached grid subsets, styles and formats.
+     * <p>
+     * Unlike {@link #truncate(String, ReferencedEnvelope)} the tiles covered by the geometry
+     * envelope but not touched by the geometry are preserved, which makes a big difference for
+     * edits of long diagonal lines or sparse multi geometries.
+     * </p>
+     * 
+     * @param layerName
+     *            name of the tile layer to truncate
+     * @param geometry
+     *            the area to truncate
+     * @param crs
+     *            the geometry CRS
+     * @return the masks of the truncated tiles, one per affected grid subset
+     */
+    public List<GeometryTileRangeMask> truncate(final String layerName, final Geometry geometry,
+            final CoordinateReferenceSystem crs) throws GeoWebCacheException {
+
+        final TileLayer tileLayer = tld.getTileLayer(layerName);
+        final int buffer = getTruncateBuffer(tileLayer);
+        final List<GeometryTileRangeMask> masks = new ArrayList<GeometryTileRangeMask>();
+
+        for (String gridSetId : tileLayer.getGridSubsets()) {
+            GridSubset gridSubset = tileLayer.getGridSubset(gridSetId);
+            Geometry gridSetGeometry;
+            try {
+                CoordinateReferenceSystem gridSetCrs = getGridSetCrs(layerName,
+                        gridSubset.getGridSet());
+                MathTransform tx = CRS.findMathTransform(crs, gridSetCrs, true);
+                gridSetGeometry = tx.isIdentity() ? geometry : JTS.transform(geometry, tx);
+            } catch (Exception e) {
+                log.warning("Can't truncate layer " + layerName
+                        + ": error transforming the truncate area to layer gridset " + gridSetId
+                        + ": " + e.getMessage());
+                continue;
+            }
+
+            GeometryTileRangeMask mask = new GeometryTileRangeMask(gridSubset, gridSetGeometry,
+                    buffer, tileLayer.getMetaTilingFactors());
+            if (mask.isEmpty()) {
+                continue;
+            }
+            masks.add(mask);
+            for (Map<String, String> parameters : getTruncateParameters(tileLayer, null)) {
+                for (MimeType mime : tileLayer.getMimeTypes()) {
+                    TileRange tr = new DiscontinuousTileRange(layerName, gridSetId,
+                            mask.getZoomStart(), mask.getZoomStop(), mask, mime, parameters);
+                    dispatchTruncate(tr);
+                }
+            }
+        }
+        return masks;
+    }
+
+    /**
+     * Returns the buffer, in pixels, around a feature that can be affected by its rendering, that
+     * is, the layer gutter plus the buffer required by the layer styles
+     */
+    int getTruncateBuffer(final TileLayer tileLayer) {
+        if (!(tileLayer instanceof GeoServerTileLayer)) {
+            return 0;
+        }
+        final GeoServerTileLayer layer = (GeoServerTileLayer) tileLayer;
+        final List<StyleInfo> styles = new ArrayList<StyleInfo>();
+        final LayerInfo layerInfo = layer.getLayerInfo();
+        if (layerInfo != null) {
+            styles.add(layerInfo.getDefaultStyle());
+            styles.addAll(layerInfo.getStyles());
+        } else {
+            LayerGroupInfo group = layer.getLayerGroupInfo();
+            List<LayerInfo> layers = group.layers();
+            List<StyleInfo> groupStyles = group.styles();
+            for (int i = 0; i < layers.size(); i++) {
+                StyleInfo style = i < groupStyles.size() ? groupStyles.get(i) : null;
+                styles.add(style != null ? style : layers.get(i).getDefaultStyle());
+            }
+        }
+
+        MetaBufferEstimator estimator = new MetaBufferEstimator();
+        for (StyleInfo style : styles) {
+            if (style == null) {
+                continue;
+            }
+            try {
+                style.getStyle().accept(estimator);
+            } catch (IOException e) {
+                log.log(Level.FINE, "Could not load style " + style.getName()
+                        + " to estimate its buffer", e);
+            }
+        }
+        return layer.getInfo().getGutter() + estimator.getBuffer();
+    }
+
     /**
      * @param layerName
      *            name of the layer to truncate, non {@code null}
@@ -424,17 +533,8 @@ public class GWC implements DisposableBean, InitializingBean, ApplicationContext
         checkNotNull(layerName, "layerName can't be null");
 
         final TileLayer layer = getTileLayerByName(layerName);
-        final Set<String> styleNames;
         final Set<String> gridSetIds;
         final List<MimeType> mimeTypes;
-        if (styleName == null) {
-            styleNames = getCachedStyles(layerName);
-            if (styleNames.size() == 0) {
-                styleNames.add("");
-            }
-        } else {
-            styleNames = Collections.singleton(styleName);
-        }
         if (gridSetName == null) {
             gridSetIds = layer.getGridSubsets();
         } else {
@@ -450,7 +550,7 @@ public class GWC implements DisposableBean, InitializingBean, ApplicationContext
             }
         }
 
-        final String defaultStyle = layer.getStyles();
+        final List<Map<String, String>> styleParameters = getTruncateParameters(layer, styleName);
 
         for (String gridSetId : gridSetIds) {
             GridSubset gridSubset = layer.getGridSubset(gridSetId);
@@ -460,15 +560,7 @@ public class GWC implements DisposableBean, InitializingBean, ApplicationContext
                 GridSet gridSet = gridSetBroker.get(gridSetId);
                 gridSubset = GridSubsetFactory.createGridSubSet(gridSet);
             }
-            for (String style : styleNames) {
-                Map<String, String> parameters;
-                if (style.length() == 0 || style.equals(defaultStyle)) {
-                    log.finer("'" + style + "' is the layer's default style, "
-                            + "not adding a parameter filter");
-                    parameters = null;
-                } else {
-                    parameters = Collections.singletonMap("STYLES", style);
-                }
+            for (Map<String, String> parameters : styleParameters) {
                 for (MimeType mime : mimeTypes) {
                     String formatName = mime.getFormat();
                     truncate(layer, bounds, gridSubset, formatName, parameters);
@@ -477,6 +569,38 @@ public class GWC implements DisposableBean, InitializingBean, ApplicationContext
         }
     }
 
+    /**
+     * Returns the parameters identifying the cached tiles of each style to truncate
+     * 
+     * @param styleName
+     *            style to truncate, or {@code null} for all
+     */
+    private List<Map<String, String>> getTruncateParameters(final TileLayer layer,
+            final String styleName) {
+        final Set<String> styleNames;
+        if (styleName == null) {
+            styleNames = getCachedStyles(layer.getName());
+            if (styleNames.size() == 0) {
+                styleNames.add("");
+            }
+        } else {
+            styleNames = Collections.singleton(styleName);
+        }
+
+        final String defaultStyle = layer.getStyles();
+        final List<Map<String, String>> result = new ArrayList<Map<String, String>>();
+        for (String style : styleNames) {
+            if (style.length() == 0 || style.equals(defaultStyle)) {
+                log.finer("'" + style + "' is the layer's default style, "
+                        + "not adding a parameter filter");
+                result.add(null);
+            } else {
+                result.add(Collections.singletonMap("STYLES", style));
+            }
+        }
+        return result;
+    }
+
     private void truncate(final TileLayer layer, final BoundingBox bounds,
             final GridSubset gridSubset, String formatName, Map<String, String> parameters) {
         final int threadCount = 1;
@@ -488,11 +612,21 @@ public class GWC implements DisposableBean, InitializingBean, ApplicationContext
         SeedRequest req = new SeedRequest(layer.getName(), bounds, gridSubset.getName(),
                 threadCount, zoomStart, zoomStop, formatName, taskType, parameters);
 
+        TileRange tr;
+        try {
+            tr = TileBreeder.createTileRange(req, layer);
+        } catch (GeoWebCacheException e) {
+            throw new RuntimeException(e);
+        }
+        dispatchTruncate(tr);
+    }
+
+    private void dispatchTruncate(final TileRange tr) {
+        final int threadCount = 1;
         GWCTask[] tasks;
         try {
-            TileRange tr = TileBreeder.createTileRange(req, layer);
             boolean filterUpdate = false;
-            tasks = tileBreeder.createTasks(tr, taskType, threadCount, filterUpdate);
+            tasks = tileBreeder.createTasks(tr, TRUNCATE, threadCount, filterUpdate);
         } catch (GeoWebCacheException e) {
             throw new RuntimeException(e);
         }
@@ -1175,6 +1309,65 @@ public class GWC implements DisposableBean, InitializingBean, ApplicationContext
         return new ByteArrayResource(resp.getBytes());
     }
     
+    /**
+     * Executes a WMS GetMap request straight against the {@link WebMapService}, without emulating
+     * a servlet request and going through the OWS {@link Dispatcher}.
+     * <p>
+     * The parameters are parsed with the same KVP parsers and request reader the dispatcher uses,
+     * and the request, local workspace and environment variables thread locals are set up as in a
+     * dispatched request so that the secure catalog and the renderer behave the same way. The
+     * dispatcher callbacks (e.g. monitoring, control flow) are not invoked.
+     * </p>
+     * 
+     * @param params
+     *            the KVP map of the GetMap parameters
+     * @return the map returned by the {@link WebMapService}, or {@code null} if it has been
+     *         intercepted by {@code CacheSeedingWebMapService}
+     * @throws Exception
+     */
+    public WebMap getMap(final Map<String, String> params) throws Exception {
+        final String workspace = params.remove(WORKSPACE_PARAM);
+
+        KvpMap kvp = KvpUtils.normalize(params);
+        KvpMap rawKvp = new KvpMap(kvp);
+        List<Throwable> errors = KvpUtils.parse(kvp);
+        if (!errors.isEmpty()) {
+            throw propagate(errors.get(0));
+        }
+
+        Request request = new Request();
+        request.setKvp(kvp);
+        request.setRawKvp(rawKvp);
+        request.setService("WMS");
+        request.setVersion((String) rawKvp.get("VERSION"));
+        request.setRequest("GetMap");
+
+        Dispatcher.REQUEST.set(request);
+        try {
+            if (workspace != null) {
+                LocalWorkspace.set(rawCatalog.getWorkspaceByName(workspace));
+            }
+            if (kvp.get("ENV") instanceof Map) {
+                EnvFunction.setLocalValues((Map<String, Object>) kvp.get("ENV"));
+            }
+
+            KvpRequestReader reader = Dispatcher.findKvpRequestReader(GetMapRequest.class);
+            GetMapRequest getMap = (GetMapRequest) reader.read(reader.createRequest(), kvp,
+                    rawKvp);
+            WebMapService wms = (WebMapService) GeoServerExtensions.bean("webMapService");
+            return wms.getMap(getMap);
+        } finally {
+            // same cleanups as the dispatcher callbacks
+            EnvFunction.clearLocalValues();
+            LocalWorkspace.remove();
+            RasterCleaner cleaner = GeoServerExtensions.bean(RasterCleaner.class);
+            if (cleaner != null) {
+                cleaner.finished(request);
+            }
+            Dispatcher.REQUEST.remove();
+        }
+    }
+
     public void proxyOwsRequest(ConveyorTile tile) throws Exception {
         HttpServletRequest actualRequest = tile.servletReq;
         
@@ -8,10 +8,17 @@ package org.geoserver.gwc;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -29,12 +36,22 @@ import org.geoserver.wfs.TransactionEventType;
 import org.geoserver.wfs.TransactionPlugin;
 import org.geoserver.wfs.WFSException;
 import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.geometry.jts.JTS;
 import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.CRS;
 import org.geotools.util.logging.Logging;
 import org.geowebcache.GeoWebCacheException;
 import org.opengis.referencing.FactoryException;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.MathTransform;
 import org.opengis.referencing.operation.TransformException;
+import org.springframework.beans.factory.DisposableBean;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
 
 /**
  * Listens to transactions (so far only issued by WFS) and truncates the cache for the affected area
@@ -44,7 +61,18 @@ import org.opengis.referencing.operation.TransformException;
  * pick it up automatically and forward transaction events to it.
  * </p>
  * <p>
- * TODO: upon deletion, only truncate if feature count > 0
+ * The affected area is made of the geometries of the inserted, updated and deleted features
+ * (before and after the update), and only the tiles they actually touch, plus the layer style
+ * buffer, are truncated (see {@link GWC#truncate(String, Geometry, CoordinateReferenceSystem)}).
+ * Transactions with more than {@link #MAX_GEOMETRIES} affected features fall back to their
+ * bounds, and so do the layers accumulating more than {@link #MAX_GEOMETRIES} regions while
+ * waiting to be truncated.
+ * </p>
+ * <p>
+ * The affected areas are batched for the delay set by the {@code org.geoserver.gwc.truncateDelay}
+ * system property (in milliseconds, one second by default) and truncated in a background thread,
+ * so that bursts of small transactions result in a single truncation per layer. A delay of zero
+ * truncates right after each transaction.
  * </p>
  * 
  * @author Arne Kepp
@@ -52,19 +80,57 @@ import org.opengis.referencing.operation.TransformException;
  * @version $Id$
  * 
  */
-public class GWCTransactionListener implements TransactionPlugin {
+public class GWCTransactionListener implements TransactionPlugin, DisposableBean {
 
     private static Logger log = Logging.getLogger(GWCTransactionListener.class);
 
+    /**
+     * System property setting the delay, in milliseconds, transaction affected areas are
+     * accumulated for before truncating the tiles
+     */
+    public static final String TRUNCATE_DELAY = "org.geoserver.gwc.truncateDelay";
+
+    static final long DEFAULT_TRUNCATE_DELAY = 1000;
+
+    /**
+     * Max number of affected geometries tracked per layer, in a transaction and while waiting for
+     * the truncation
+     */
+    static final int MAX_GEOMETRIES = 1000;
+
+    static final GeometryFactory GEOMETRY_FACTORY = new GeometryFactory();
+
     final private GWC gwc;
 
     static final String GWC_TRANSACTION_INFO_PLACEHOLDER = "GWC_TRANSACTION_INFO_PLACEHOLDER";
 
+    final long truncateDelay;
+
+    final ScheduledExecutorService executor;
+
+    /**
+     * The affected areas waiting to be truncated, by tile layer, guarded by {@code this}
+     */
+    private Map<String, List<DirtyRegion>> pending = new HashMap<String, List<DirtyRegion>>();
+
+    private boolean flushScheduled;
+
+    private final AtomicLong truncatedTiles = new AtomicLong();
+
+    private final AtomicLong envelopeTiles = new AtomicLong();
+
     /**
      * @param gwc
      */
     public GWCTransactionListener(final GWC gwc) {
+        this(gwc, Long.getLong(TRUNCATE_DELAY, DEFAULT_TRUNCATE_DELAY));
+    }
+
+    GWCTransactionListener(final GWC gwc, final long truncateDelay) {
         this.gwc = gwc;
+        this.truncateDelay = truncateDelay;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setDaemon(true).setNameFormat("GWC-truncate-%d").build());
     }
 
     /**
@@ -109,15 +175,98 @@ public class GWCTransactionListener implements TransactionPlugin {
 
     private void afterTransactionInternal(final TransactionType transaction, boolean committed) {
 
-        final Map<String, List<ReferencedEnvelope>> byLayerDirtyRegions = getByLayerDirtyRegions(transaction);
+        final Map<String, List<DirtyRegion>> byLayerDirtyRegions = getByLayerDirtyRegions(transaction);
         if (byLayerDirtyRegions.isEmpty()) {
             return;
         }
+        synchronized (this) {
+            for (Map.Entry<String, List<DirtyRegion>> entry : byLayerDirtyRegions.entrySet()) {
+                List<DirtyRegion> layerPending = pending.get(entry.getKey());
+                if (layerPending == null) {
+                    layerPending = new ArrayList<DirtyRegion>();
+                    pending.put(entry.getKey(), layerPending);
+                }
+                addAll(layerPending, entry.getValue());
+            }
+            if (truncateDelay > 0) {
+                if (flushScheduled) {
+                    return;
+                }
+                try {
+                    executor.schedule(new Runnable() {
+                        public void run() {
+                            flush();
+                        }
+                    }, truncateDelay, TimeUnit.MILLISECONDS);
+                    flushScheduled = true;
+                    return;
+                } catch (RejectedExecutionException e) {
+                    // shutting down, truncate right away
+                }
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Truncates the pending areas and stops the background truncation thread
+     */
+    public void destroy() throws Exception {
+        executor.shutdownNow();
+        flush();
+    }
+
+    /**
+     * Adds the regions to the list, collapsing them to their bounds if the list grows past
+     * {@link #MAX_GEOMETRIES}
+     */
+    static void addAll(List<DirtyRegion> target, List<DirtyRegion> regions) {
+        target.addAll(regions);
+        if (target.size() > MAX_GEOMETRIES) {
+            List<DirtyRegion> collapsed = collapse(target);
+            target.clear();
+            target.addAll(collapsed);
+        }
+    }
+
+    /**
+     * Replaces the regions with their bounds, one per CRS
+     */
+    static List<DirtyRegion> collapse(List<DirtyRegion> regions) {
+        Map<CoordinateReferenceSystem, Envelope> bounds = new LinkedHashMap<CoordinateReferenceSystem, Envelope>();
+        for (DirtyRegion region : regions) {
+            Envelope envelope = bounds.get(region.crs);
+            if (envelope == null) {
+                envelope = new Envelope();
+                bounds.put(region.crs, envelope);
+            }
+            envelope.expandToInclude(region.geometry.getEnvelopeInternal());
+        }
+        List<DirtyRegion> result = new ArrayList<DirtyRegion>(bounds.size());
+        for (Map.Entry<CoordinateReferenceSystem, Envelope> entry : bounds.entrySet()) {
+            result.add(new DirtyRegion(JTS.toGeometry(entry.getValue()), entry.getKey()));
+        }
+        return result;
+    }
+
+    /**
+     * Truncates the tiles touched by the transactions accumulated so far
+     */
+    void flush() {
+        final Map<String, List<DirtyRegion>> byLayerDirtyRegions;
+        synchronized (this) {
+            byLayerDirtyRegions = pending;
+            pending = new HashMap<String, List<DirtyRegion>>();
+            flushScheduled = false;
+        }
+
         for (String tileLayerName : byLayerDirtyRegions.keySet()) {
-            List<ReferencedEnvelope> dirtyList = byLayerDirtyRegions.get(tileLayerName);
-            ReferencedEnvelope dirtyRegion;
+            List<DirtyRegion> dirtyList = byLayerDirtyRegions.get(tileLayerName);
+            CoordinateReferenceSystem declaredCrs;
+            Geometry dirtyRegion;
             try {
-                dirtyRegion = merge(tileLayerName, dirtyList);
+                declaredCrs = gwc.getDeclaredCrs(tileLayerName);
+                dirtyRegion = merge(declaredCrs, dirtyList);
             } catch (Exception e) {
                 log.log(Level.WARNING, e.getMessage(), e);
                 continue;
@@ -126,27 +275,55 @@ public class GWCTransactionListener implements TransactionPlugin {
                 continue;
             }
             try {
-                gwc.truncate(tileLayerName, dirtyRegion);
+                List<GeometryTileRangeMask> masks = gwc.truncate(tileLayerName, dirtyRegion,
+                        declaredCrs);
+                if (masks != null) {
+                    for (GeometryTileRangeMask mask : masks) {
+                        truncatedTiles.addAndGet(mask.getTileCount());
+                        envelopeTiles.addAndGet(mask.getEnvelopeTileCount());
+                    }
+                }
             } catch (GeoWebCacheException e) {
                 log.warning("Error truncating tile layer " + tileLayerName
-                        + " for transaction affected bounds " + dirtyRegion);
+                        + " for transaction affected area " + dirtyRegion.getEnvelopeInternal());
+            } catch (RuntimeException e) {
+                log.log(Level.WARNING, "Error truncating tile layer " + tileLayerName, e);
             }
         }
     }
 
-    private ReferencedEnvelope merge(final String tileLayerName,
-            final List<ReferencedEnvelope> dirtyList) throws TransformException, FactoryException {
+    private Geometry merge(final CoordinateReferenceSystem declaredCrs,
+            final List<DirtyRegion> dirtyList) throws TransformException, FactoryException {
         if (dirtyList.size() == 0) {
             return null;
         }
 
-        final CoordinateReferenceSystem declaredCrs = gwc.getDeclaredCrs(tileLayerName);
-        ReferencedEnvelope merged = new ReferencedEnvelope(declaredCrs);
-        for (ReferencedEnvelope env : dirtyList) {
-            ReferencedEnvelope transformedDirtyRegion = env.transform(declaredCrs, true, 1000);
-            merged.expandToInclude(transformedDirtyRegion);
+        List<Geometry> geometries = new ArrayList<Geometry>(dirtyList.size());
+        for (DirtyRegion region : dirtyList) {
+            if (region.crs == null || CRS.equalsIgnoreMetadata(region.crs, declaredCrs)) {
+                geometries.add(region.geometry);
+            } else {
+                MathTransform tx = CRS.findMathTransform(region.crs, declaredCrs, true);
+                geometries.add(JTS.transform(region.geometry, tx));
+            }
         }
-        return merged;
+        return GEOMETRY_FACTORY.buildGeometry(geometries);
+    }
+
+    /**
+     * @return the number of tiles truncated so far (counting each grid position once, regardless
+     *         of the number of cached styles and formats)
+     */
+    public long getTruncatedTiles() {
+        return truncatedTiles.get();
+    }
+
+    /**
+     * @return the number of tiles that would have been truncated so far using the bounds of the
+     *         affected geometries, for comparison with {@link #getTruncatedTiles()}
+     */
+    public long getEnvelopeTiles() {
+        return envelopeTiles.get();
     }
 
     /**
@@ -194,40 +371,110 @@ public class GWCTransactionListener implements TransactionPlugin {
         }
 
         final SimpleFeatureCollection affectedFeatures = event.getAffectedFeatures();
-        final ReferencedEnvelope affectedBounds = affectedFeatures.getBounds();
+        final List<DirtyRegion> affectedRegions = getAffectedRegions(affectedFeatures);
+        if (affectedRegions.isEmpty()) {
+            return;
+        }
 
         final TransactionType transaction = event.getRequest();
 
         for (String tileLayerName : affectedTileLayers) {
-            addLayerDirtyRegion(transaction, tileLayerName, affectedBounds);
+            addLayerDirtyRegion(transaction, tileLayerName, affectedRegions);
         }
     }
 
+    /**
+     * Collects the geometries of the affected features, or the collection bounds if there are too
+     * many
+     */
+    private List<DirtyRegion> getAffectedRegions(final SimpleFeatureCollection affectedFeatures) {
+        final CoordinateReferenceSystem crs = affectedFeatures.getSchema()
+                .getCoordinateReferenceSystem();
+        final List<DirtyRegion> regions = new ArrayList<DirtyRegion>();
+        SimpleFeatureIterator it = affectedFeatures.features();
+        try {
+            while (it.hasNext()) {
+                Object geometry = it.next().getDefaultGeometry();
+                if (!(geometry instanceof Geometry) || ((Geometry) geometry).isEmpty()) {
+                    continue;
+                }
+                regions.add(new DirtyRegion((Geometry) geometry, crs));
+                if (regions.size() > MAX_GEOMETRIES) {
+                    break;
+                }
+            }
+        } finally {
+            it.close();
+        }
+
+        if (regions.size() > MAX_GEOMETRIES) {
+            ReferencedEnvelope bounds = affectedFeatures.getBounds();
+            if (bounds == null || bounds.isNull()) {
+                // the collection cannot tell, compute them out of the features
+                return getBoundsRegion(affectedFeatures, crs);
+            }
+            return Collections.singletonList(new DirtyRegion(JTS.toGeometry((Envelope) bounds),
+                    crs));
+        }
+        return regions;
+    }
+
+    private List<DirtyRegion> getBoundsRegion(final SimpleFeatureCollection affectedFeatures,
+            final CoordinateReferenceSystem crs) {
+        final Envelope bounds = new Envelope();
+        SimpleFeatureIterator it = affectedFeatures.features();
+        try {
+            while (it.hasNext()) {
+                Object geometry = it.next().getDefaultGeometry();
+                if (geometry instanceof Geometry && !((Geometry) geometry).isEmpty()) {
+                    bounds.expandToInclude(((Geometry) geometry).getEnvelopeInternal());
+                }
+            }
+        } finally {
+            it.close();
+        }
+        return Collections.singletonList(new DirtyRegion(JTS.toGeometry(bounds), crs));
+    }
+
     @SuppressWarnings("unchecked")
-    private Map<String, List<ReferencedEnvelope>> getByLayerDirtyRegions(
+    private Map<String, List<DirtyRegion>> getByLayerDirtyRegions(
             final TransactionType transaction) {
 
         final Map<Object, Object> extendedProperties = transaction.getExtendedProperties();
-        Map<String, List<ReferencedEnvelope>> byLayerDirtyRegions;
-        byLayerDirtyRegions = (Map<String, List<ReferencedEnvelope>>) extendedProperties
+        Map<String, List<DirtyRegion>> byLayerDirtyRegions;
+        byLayerDirtyRegions = (Map<String, List<DirtyRegion>>) extendedProperties
                 .get(GWC_TRANSACTION_INFO_PLACEHOLDER);
         if (byLayerDirtyRegions == null) {
-            byLayerDirtyRegions = new HashMap<String, List<ReferencedEnvelope>>();
+            byLayerDirtyRegions = new HashMap<String, List<DirtyRegion>>();
             extendedProperties.put(GWC_TRANSACTION_INFO_PLACEHOLDER, byLayerDirtyRegions);
         }
         return byLayerDirtyRegions;
     }
 
     private void addLayerDirtyRegion(final TransactionType transaction, final String tileLayerName,
-            final ReferencedEnvelope affectedBounds) {
+            final List<DirtyRegion> affectedRegions) {
 
-        Map<String, List<ReferencedEnvelope>> byLayerDirtyRegions = getByLayerDirtyRegions(transaction);
+        Map<String, List<DirtyRegion>> byLayerDirtyRegions = getByLayerDirtyRegions(transaction);
 
-        List<ReferencedEnvelope> layerDirtyRegion = byLayerDirtyRegions.get(tileLayerName);
+        List<DirtyRegion> layerDirtyRegion = byLayerDirtyRegions.get(tileLayerName);
         if (layerDirtyRegion == null) {
-            layerDirtyRegion = new ArrayList<ReferencedEnvelope>(2);
+            layerDirtyRegion = new ArrayList<DirtyRegion>(affectedRegions.size());
             byLayerDirtyRegions.put(tileLayerName, layerDirtyRegion);
         }
-        layerDirtyRegion.add(affectedBounds);
+        addAll(layerDirtyRegion, affectedRegions);
+    }
+
+    /**
+     * A geometry affected by a transaction, along with its CRS
+     */
+    static class DirtyRegion {
+        final Geometry geometry;
+
+        final CoordinateReferenceSystem crs;
+
+        DirtyRegion(Geometry geometry, CoordinateReferenceSystem crs) {
+            this.geometry = geometry;
+            this.crs = crs;
+        }
     }
 }
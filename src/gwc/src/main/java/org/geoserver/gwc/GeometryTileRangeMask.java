@@ -0,0 +1,351 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.gwc;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import org.geowebcache.grid.BoundingBox;
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.storage.TileRangeMask;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryCollection;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+
+/**
+ * A {@link TileRangeMask} holding, for each zoom level of a grid subset, the tiles actually touched
+ * by a geometry, as opposed to all the tiles covered by its envelope.
+ * <p>
+ * A tile is considered touched if the geometry intersects the tile bounds expanded by the given
+ * buffer, in pixels, which should account for the style and gutter of the layer. Since GWC renders
+ * meta tiles as a whole (and labels are placed against the whole meta tile) the mask covers whole
+ * meta tiles.
+ * </p>
+ * <p>
+ * The touched tiles are found by recursively subdividing the candidate area, so the cost is
+ * proportional to the number of touched meta tiles rather than to the size of the envelope. Levels
+ * where the envelope covers more than {@link #MAX_LEVEL_TILES} meta tiles fall back to the
+ * envelope.
+ * </p>
+ */
+public class GeometryTileRangeMask implements TileRangeMask {
+
+    /**
+     * Max number of meta tiles per zoom level tracked in the mask
+     */
+    static final long MAX_LEVEL_TILES = 1 << 24;
+
+    static final GeometryFactory GEOMETRY_FACTORY = new GeometryFactory();
+
+    final int zoomStart;
+
+    final int zoomStop;
+
+    final int metaX;
+
+    final int metaY;
+
+    /**
+     * The touched tiles range per level, as {minx, miny, maxx, maxy, z}
+     */
+    final long[][] coverages;
+
+    /**
+     * The touched meta tiles per level, relative to the meta tile range of the level, or
+     * {@code null} if the whole range is touched
+     */
+    final BitSet[] masks;
+
+    final long[] metaRanges;
+
+    final int firstLevel;
+
+    final int lastLevel;
+
+    long tileCount;
+
+    long envelopeTileCount;
+
+    /**
+     * @param gridSubset the grid subset to compute the mask for
+     * @param geometry the geometry, in the grid subset CRS
+     * @param buffer the buffer around the geometry, in pixels
+     * @param metaTilingFactors the layer meta tiling factors
+     */
+    public GeometryTileRangeMask(GridSubset gridSubset, Geometry geometry, int buffer,
+            int[] metaTilingFactors) {
+        this.zoomStart = gridSubset.getZoomStart();
+        this.zoomStop = gridSubset.getZoomStop();
+        this.metaX = Math.max(1, metaTilingFactors[0]);
+        this.metaY = Math.max(1, metaTilingFactors[1]);
+
+        int levels = zoomStop - zoomStart + 1;
+        this.coverages = new long[levels][];
+        this.masks = new BitSet[levels];
+        this.metaRanges = new long[levels * 4];
+
+        PreparedGeometry prepared = PreparedGeometryFactory.prepare(geometry);
+        // Geometry.contains does not support heterogeneous collections
+        boolean polygonal = geometry.getDimension() == 2
+                && !GeometryCollection.class.equals(geometry.getClass());
+        Envelope envelope = geometry.getEnvelopeInternal();
+        for (int z = zoomStart; z <= zoomStop; z++) {
+            buildLevel(gridSubset, z, prepared, polygonal, envelope, buffer);
+        }
+
+        // restrict the range to the levels actually touched
+        int first = zoomStart;
+        while (first <= zoomStop && isEmpty(coverages[first - zoomStart])) {
+            first++;
+        }
+        int last = zoomStop;
+        while (last > first && isEmpty(coverages[last - zoomStart])) {
+            last--;
+        }
+        this.firstLevel = first;
+        this.lastLevel = last;
+    }
+
+    private static boolean isEmpty(long[] coverage) {
+        return coverage[0] > coverage[2] || coverage[1] > coverage[3];
+    }
+
+    private void buildLevel(GridSubset gridSubset, int z, PreparedGeometry geometry,
+            boolean polygonal, Envelope envelope, int buffer) {
+        final int level = z - zoomStart;
+        final long[] coverage = gridSubset.getCoverage(z);
+        final BoundingBox origin = gridSubset.boundsFromIndex(new long[] { coverage[0],
+                coverage[1], z });
+        final Level grid = new Level(coverage, origin, gridSubset.getTileWidth(),
+                gridSubset.getTileHeight(), buffer);
+
+        long[] envelopeRange = grid.range(envelope, false);
+        if (envelopeRange != null) {
+            envelopeTileCount += (envelopeRange[2] - envelopeRange[0] + 1)
+                    * (envelopeRange[3] - envelopeRange[1] + 1);
+        }
+
+        long[] tileRange = grid.range(envelope, true);
+        if (tileRange == null) {
+            coverages[level] = new long[] { coverage[0], coverage[1], coverage[0] - 1,
+                    coverage[1] - 1, z };
+            masks[level] = new BitSet(0);
+            return;
+        }
+        // work in meta tile units, meta tiles are aligned to the tile index origin
+        final long mminx = tileRange[0] / metaX;
+        final long mminy = tileRange[1] / metaY;
+        final long mmaxx = tileRange[2] / metaX;
+        final long mmaxy = tileRange[3] / metaY;
+        metaRanges[level * 4] = mminx;
+        metaRanges[level * 4 + 1] = mminy;
+        metaRanges[level * 4 + 2] = mmaxx;
+        metaRanges[level * 4 + 3] = mmaxy;
+
+        final long width = mmaxx - mminx + 1;
+        final long height = mmaxy - mminy + 1;
+        if (width * height > MAX_LEVEL_TILES) {
+            coverages[level] = new long[] { tileRange[0], tileRange[1], tileRange[2],
+                    tileRange[3], z };
+            masks[level] = null;
+            tileCount += (tileRange[2] - tileRange[0] + 1) * (tileRange[3] - tileRange[1] + 1);
+            return;
+        }
+
+        BitSet mask = new BitSet((int) (width * height));
+        long[] touched = new long[] { Long.MAX_VALUE, Long.MAX_VALUE, Long.MIN_VALUE,
+                Long.MIN_VALUE };
+        visit(grid, geometry, polygonal, mask, touched, mminx, mminy, width, mminx, mminy,
+                mmaxx, mmaxy);
+        masks[level] = mask;
+        if (touched[0] > touched[2]) {
+            coverages[level] = new long[] { coverage[0], coverage[1], coverage[0] - 1,
+                    coverage[1] - 1, z };
+        } else {
+            coverages[level] = new long[] { touched[0], touched[1], touched[2], touched[3], z };
+        }
+    }
+
+    /**
+     * Recursively marks the meta tiles in the given meta tile range touched by the geometry
+     */
+    private void visit(Level grid, PreparedGeometry geometry, boolean polygonal, BitSet mask,
+            long[] touched, long originX, long originY, long width, long minx, long miny,
+            long maxx, long maxy) {
+        Geometry cell = grid.bounds(minx * metaX, miny * metaY, (maxx + 1) * metaX - 1,
+                (maxy + 1) * metaY - 1);
+        if (cell == null || !geometry.intersects(cell)) {
+            return;
+        }
+        boolean single = minx == maxx && miny == maxy;
+        if (single || (polygonal && geometry.contains(cell))) {
+            for (long y = miny; y <= maxy; y++) {
+                int from = (int) ((y - originY) * width + minx - originX);
+                mask.set(from, from + (int) (maxx - minx + 1));
+                for (long x = minx; x <= maxx; x++) {
+                    touch(grid, touched, x, y);
+                }
+            }
+            return;
+        }
+
+        long midx = minx + (maxx - minx) / 2;
+        long midy = miny + (maxy - miny) / 2;
+        visit(grid, geometry, polygonal, mask, touched, originX, originY, width, minx, miny,
+                midx, midy);
+        if (midx < maxx) {
+            visit(grid, geometry, polygonal, mask, touched, originX, originY, width, midx + 1,
+                    miny, maxx, midy);
+        }
+        if (midy < maxy) {
+            visit(grid, geometry, polygonal, mask, touched, originX, originY, width, minx,
+                    midy + 1, midx, maxy);
+            if (midx < maxx) {
+                visit(grid, geometry, polygonal, mask, touched, originX, originY, width,
+                        midx + 1, midy + 1, maxx, maxy);
+            }
+        }
+    }
+
+    private void touch(Level grid, long[] touched, long metaX, long metaY) {
+        long minx = Math.max(metaX * this.metaX, grid.minx);
+        long miny = Math.max(metaY * this.metaY, grid.miny);
+        long maxx = Math.min((metaX + 1) * this.metaX - 1, grid.maxx);
+        long maxy = Math.min((metaY + 1) * this.metaY - 1, grid.maxy);
+        tileCount += (maxx - minx + 1) * (maxy - miny + 1);
+        touched[0] = Math.min(touched[0], minx);
+        touched[1] = Math.min(touched[1], miny);
+        touched[2] = Math.max(touched[2], maxx);
+        touched[3] = Math.max(touched[3], maxy);
+    }
+
+    public long[][] getGridCoverages() {
+        return Arrays.copyOfRange(coverages, firstLevel - zoomStart, lastLevel - zoomStart + 1);
+    }
+
+    public boolean lookup(long x, long y, int z) {
+        if (z < firstLevel || z > lastLevel) {
+            return false;
+        }
+        final int level = z - zoomStart;
+        final long[] coverage = coverages[level];
+        if (x < coverage[0] || x > coverage[2] || y < coverage[1] || y > coverage[3]) {
+            return false;
+        }
+        final BitSet mask = masks[level];
+        if (mask == null) {
+            return true;
+        }
+        long mminx = metaRanges[level * 4];
+        long mminy = metaRanges[level * 4 + 1];
+        long width = metaRanges[level * 4 + 2] - mminx + 1;
+        return mask.get((int) ((y / metaY - mminy) * width + x / metaX - mminx));
+    }
+
+    /**
+     * @return {@code true} if the geometry does not touch any tile
+     */
+    public boolean isEmpty() {
+        return tileCount == 0;
+    }
+
+    /**
+     * @return the first zoom level with touched tiles
+     */
+    public int getZoomStart() {
+        return firstLevel;
+    }
+
+    /**
+     * @return the last zoom level with touched tiles
+     */
+    public int getZoomStop() {
+        return lastLevel;
+    }
+
+    /**
+     * @return the number of tiles touched by the geometry, over all zoom levels
+     */
+    public long getTileCount() {
+        return tileCount;
+    }
+
+    /**
+     * @return the number of tiles covered by the geometry envelope, over all zoom levels, that is,
+     *         the tiles an envelope based truncation would remove
+     */
+    public long getEnvelopeTileCount() {
+        return envelopeTileCount;
+    }
+
+    /**
+     * Tile index math for a single zoom level
+     */
+    static class Level {
+        final long minx, miny, maxx, maxy;
+
+        final double originX, originY, tileWidth, tileHeight;
+
+        final double bufferX, bufferY;
+
+        Level(long[] coverage, BoundingBox origin, int tileWidthPixels, int tileHeightPixels,
+                int buffer) {
+            this.minx = coverage[0];
+            this.miny = coverage[1];
+            this.maxx = coverage[2];
+            this.maxy = coverage[3];
+            this.originX = origin.getMinX();
+            this.originY = origin.getMinY();
+            this.tileWidth = origin.getWidth();
+            this.tileHeight = origin.getHeight();
+            this.bufferX = buffer * tileWidth / tileWidthPixels;
+            this.bufferY = buffer * tileHeight / tileHeightPixels;
+        }
+
+        /**
+         * The tile range covered by the envelope, optionally expanded by the buffer, or
+         * {@code null} if it falls outside of the level coverage
+         */
+        long[] range(Envelope envelope, boolean buffered) {
+            double bx = buffered ? bufferX : 0;
+            double by = buffered ? bufferY : 0;
+            long x1 = Math.max(minx, index(envelope.getMinX() - bx, originX, tileWidth, minx));
+            long y1 = Math.max(miny, index(envelope.getMinY() - by, originY, tileHeight, miny));
+            long x2 = Math.min(maxx, index(envelope.getMaxX() + bx, originX, tileWidth, minx));
+            long y2 = Math.min(maxy, index(envelope.getMaxY() + by, originY, tileHeight, miny));
+            if (x1 > x2 || y1 > y2) {
+                return null;
+            }
+            return new long[] { x1, y1, x2, y2 };
+        }
+
+        private long index(double ordinate, double origin, double size, long originIndex) {
+            return originIndex + (long) Math.floor((ordinate - origin) / size);
+        }
+
+        /**
+         * The bounds of the given tile range, clipped to the level coverage and expanded by the
+         * buffer, or {@code null} if the range is outside of the coverage
+         */
+        Geometry bounds(long x1, long y1, long x2, long y2) {
+            x1 = Math.max(x1, minx);
+            y1 = Math.max(y1, miny);
+            x2 = Math.min(x2, maxx);
+            y2 = Math.min(y2, maxy);
+            if (x1 > x2 || y1 > y2) {
+                return null;
+            }
+            Envelope env = new Envelope(originX + (x1 - minx) * tileWidth - bufferX, originX
+                    + (x2 - minx + 1) * tileWidth + bufferX, originY + (y1 - miny) * tileHeight
+                    - bufferY, originY + (y2 - miny + 1) * tileHeight + bufferY);
+            return GEOMETRY_FACTORY.toGeometry(env);
+        }
+    }
+}
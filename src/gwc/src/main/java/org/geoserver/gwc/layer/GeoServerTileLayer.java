@@ -88,6 +88,12 @@ public class GeoServerTileLayer extends TileLayer implements ProxyLayer {
 
     public static final ThreadLocal<WebMap> WEB_MAP = new ThreadLocal<WebMap>();
 
+    /**
+     * System property controlling whether seeding requests are executed directly against the WMS
+     * (the default) or dispatched through the OWS dispatcher like user requests
+     */
+    public static final String DIRECT_SEEDING = "org.geoserver.gwc.directSeeding";
+
     private String configErrorMessage;
 
     private Map<String, GridSubset> subSets;
@@ -508,7 +514,7 @@ public class GeoServerTileLayer extends TileLayer implements ProxyLayer {
             metaX = metaY = 1;
         }
 
-        returnTile = getMetatilingReponse(tile, true, metaX, metaY);
+        returnTile = getMetatilingReponse(tile, true, false, metaX, metaY);
 
         sendTileRequestedEvent(returnTile);
 
@@ -532,8 +538,13 @@ public class GeoServerTileLayer extends TileLayer implements ProxyLayer {
         }
     }
 
+    /**
+     * @param seeding whether the tile is being seeded, as opposed to requested by a client, only
+     *        seeding requests skip the dispatcher, see {@link #dispatchGetMap}
+     */
     private ConveyorTile getMetatilingReponse(ConveyorTile tile, final boolean tryCache,
-            final int metaX, final int metaY) throws GeoWebCacheException, IOException {
+            final boolean seeding, final int metaX, final int metaY)
+            throws GeoWebCacheException, IOException {
 
         final GridSubset gridSubset = getGridSubset(tile.getGridSetId());
         final int zLevel = (int) tile.getTileIndex()[2];
@@ -559,7 +570,7 @@ public class GeoServerTileLayer extends TileLayer implements ProxyLayer {
                 RenderedImageMap map;
                 try {
                     long requestTime = System.currentTimeMillis();
-                    map = dispatchGetMap(tile, metaTile);
+                    map = dispatchGetMap(tile, metaTile, seeding);
                     checkNotNull(map, "Did not obtain a WebMap from GeoServer's Dispatcher");
                     metaTile.setWebMap(map);
                     saveTiles(metaTile, tile, requestTime);
@@ -605,17 +616,27 @@ public class GeoServerTileLayer extends TileLayer implements ProxyLayer {
         return metaKey.toString();
     }
 
-    private RenderedImageMap dispatchGetMap(final ConveyorTile tile, final MetaTile metaTile)
-            throws Exception {
+    private RenderedImageMap dispatchGetMap(final ConveyorTile tile, final MetaTile metaTile,
+            final boolean seeding) throws Exception {
 
         Map<String, String> params = buildGetMap(tile, metaTile);
         WebMap map;
         try {
             HttpServletRequest actualRequest = tile.servletReq;
-            Cookie[] cookies = actualRequest == null ? null : actualRequest.getCookies();
+            if (seeding && isDirectSeedingEnabled()) {
+                // seeding, no need to emulate a servlet request and go through the dispatcher.
+                // Client tiles always go through it, including the ones with no servlet request
+                // coming from the direct WMS integration
+                map = GWC.get().getMap(params);
+                if (map == null) {
+                    map = WEB_MAP.get();
+                }
+            } else {
+                Cookie[] cookies = actualRequest == null ? null : actualRequest.getCookies();
 
-            GWC.get().dispatchOwsRequest(params, cookies);
-            map = WEB_MAP.get();
+                GWC.get().dispatchOwsRequest(params, cookies);
+                map = WEB_MAP.get();
+            }
             if (!(map instanceof RenderedImageMap)) {
                 throw new IllegalStateException("Expected: RenderedImageMap, got " + map);
             }
@@ -626,6 +647,10 @@ public class GeoServerTileLayer extends TileLayer implements ProxyLayer {
         return (RenderedImageMap) map;
     }
 
+    static boolean isDirectSeedingEnabled() {
+        return Boolean.valueOf(System.getProperty(DIRECT_SEEDING, "true"));
+    }
+
     private GeoServerMetaTile createMetaTile(ConveyorTile tile, final int metaX, final int metaY) {
         GeoServerMetaTile metaTile;
 
@@ -718,7 +743,7 @@ public class GeoServerTileLayer extends TileLayer implements ProxyLayer {
     @Override
     public ConveyorTile getNoncachedTile(ConveyorTile tile) throws GeoWebCacheException {
         try {
-            return getMetatilingReponse(tile, false, 1, 1);
+            return getMetatilingReponse(tile, false, false, 1, 1);
         } catch (IOException e) {
             throw new GeoWebCacheException(e);
         }
@@ -727,7 +752,7 @@ public class GeoServerTileLayer extends TileLayer implements ProxyLayer {
     @Override
     public ConveyorTile doNonMetatilingRequest(ConveyorTile tile) throws GeoWebCacheException {
         try {
-            return getMetatilingReponse(tile, true, 1, 1);
+            return getMetatilingReponse(tile, true, false, 1, 1);
         } catch (IOException e) {
             throw new GeoWebCacheException(e);
         }
@@ -753,7 +778,7 @@ public class GeoServerTileLayer extends TileLayer implements ProxyLayer {
         if (!tile.getMimeType().supportsTiling()) {
             metaX = metaY = 1;
         }
-        getMetatilingReponse(tile, tryCache, metaX, metaY);
+        getMetatilingReponse(tile, tryCache, true, metaX, metaY);
     }
 
     /**
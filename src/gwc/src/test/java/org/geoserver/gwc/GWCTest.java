@@ -9,6 +9,7 @@ import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertNotNull;
 import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
 import static junit.framework.Assert.assertTrue;
 import static junit.framework.Assert.fail;
 import static org.geoserver.gwc.GWC.tileLayerName;
@@ -44,6 +45,7 @@ import org.geoserver.catalog.Catalog;
 import org.geoserver.catalog.LayerGroupInfo;
 import org.geoserver.catalog.LayerInfo;
 import org.geoserver.catalog.PublishedType;
+import org.geoserver.catalog.WorkspaceInfo;
 import org.geoserver.catalog.event.CatalogListener;
 import org.geoserver.gwc.config.GWCConfig;
 import org.geoserver.gwc.config.GWCConfigPersister;
@@ -53,10 +55,16 @@ import org.geoserver.gwc.layer.GeoServerTileLayer;
 import org.geoserver.gwc.layer.GeoServerTileLayerInfo;
 import org.geoserver.gwc.layer.TileLayerInfoUtil;
 import org.geoserver.ows.Dispatcher;
+import org.geoserver.ows.KvpRequestReader;
+import org.geoserver.ows.LocalWorkspace;
+import org.geoserver.ows.Request;
 import org.geoserver.ows.util.CaseInsensitiveMap;
+import org.geoserver.platform.GeoServerExtensionsHelper;
 import org.geoserver.security.GeoServerSecurityManager;
 import org.geoserver.security.config.SecurityManagerConfig;
 import org.geoserver.wms.GetMapRequest;
+import org.geoserver.wms.WebMap;
+import org.geoserver.wms.WebMapService;
 import org.geoserver.wms.kvp.PaletteManager;
 import org.geotools.filter.identity.FeatureIdImpl;
 import org.geotools.filter.text.cql2.CQL;
@@ -1098,6 +1106,57 @@ public class GWCTest {
 
     }
 
+    @Test
+    public void testGetMap() throws Exception {
+        WorkspaceInfo workspace = mock(WorkspaceInfo.class);
+        when(catalog.getWorkspaceByName("testWorkspace")).thenReturn(workspace);
+
+        // records the thread locals the request is read with
+        final Request[] dispatched = new Request[1];
+        final WorkspaceInfo[] local = new WorkspaceInfo[1];
+        KvpRequestReader reader = new KvpRequestReader(GetMapRequest.class) {
+            @Override
+            public Object read(Object request, Map kvp, Map rawKvp) throws Exception {
+                dispatched[0] = Dispatcher.REQUEST.get();
+                local[0] = LocalWorkspace.get();
+                GetMapRequest getMap = (GetMapRequest) request;
+                getMap.setFormat((String) kvp.get("FORMAT"));
+                return getMap;
+            }
+        };
+        WebMap webMap = mock(WebMap.class);
+        WebMapService wms = mock(WebMapService.class);
+        when(wms.getMap(any(GetMapRequest.class))).thenReturn(webMap);
+        GeoServerExtensionsHelper.singleton("getMapKvpReader", reader, KvpRequestReader.class);
+        GeoServerExtensionsHelper.singleton("webMapService", wms, WebMapService.class);
+        try {
+            Map<String, String> params = new HashMap<String, String>();
+            params.put("service", "WMS");
+            params.put("version", "1.1.1");
+            params.put("request", "GetMap");
+            params.put("format", "image/png");
+            params.put(GWC.WORKSPACE_PARAM, "testWorkspace");
+
+            assertSame(webMap, mediator.getMap(params));
+
+            ArgumentCaptor<GetMapRequest> getMap = ArgumentCaptor.forClass(GetMapRequest.class);
+            verify(wms).getMap(getMap.capture());
+            assertEquals("image/png", getMap.getValue().getFormat());
+
+            assertNotNull(dispatched[0]);
+            assertEquals("WMS", dispatched[0].getService());
+            assertEquals("1.1.1", dispatched[0].getVersion());
+            assertEquals("GetMap", dispatched[0].getRequest());
+            assertSame(workspace, local[0]);
+
+            // the thread locals are cleaned up afterwards
+            assertNull(Dispatcher.REQUEST.get());
+            assertNull(LocalWorkspace.get());
+        } finally {
+            GeoServerExtensionsHelper.clear();
+        }
+    }
+
     private void testParameterFilter(GetMapRequest request, Map<String, String> rawKvp,
             String rawKvpParamName, String rawKvpParamValue) {
 
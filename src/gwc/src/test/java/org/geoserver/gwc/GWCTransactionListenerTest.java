@@ -5,19 +5,23 @@
  */
 package org.geoserver.gwc;
 
+import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertNotNull;
 import static junit.framework.Assert.assertSame;
 import static junit.framework.Assert.assertTrue;
 import static junit.framework.Assert.fail;
 import static org.geotools.referencing.crs.DefaultGeographicCRS.WGS84;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -29,14 +33,24 @@ import net.opengis.wfs.InsertElementType;
 import net.opengis.wfs.TransactionResponseType;
 import net.opengis.wfs.TransactionType;
 
+import org.geoserver.gwc.GWCTransactionListener.DirtyRegion;
 import org.geoserver.wfs.TransactionEvent;
 import org.geoserver.wfs.TransactionEventType;
-import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.geometry.jts.JTS;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
 import com.google.common.collect.ImmutableSet;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.Polygon;
 
 public class GWCTransactionListenerTest {
 
@@ -47,7 +61,8 @@ public class GWCTransactionListenerTest {
     @Before
     public void setUp() throws Exception {
         mediator = mock(GWC.class);
-        listener = new GWCTransactionListener(mediator);
+        // truncate right away
+        listener = new GWCTransactionListener(mediator, 0);
     }
 
     @Test
@@ -151,13 +166,16 @@ public class GWCTransactionListenerTest {
                 .containsKey(GWCTransactionListener.GWC_TRANSACTION_INFO_PLACEHOLDER));
 
         @SuppressWarnings("unchecked")
-        Map<String, List<ReferencedEnvelope>> placeHolder = (Map<String, List<ReferencedEnvelope>>) extendedProperties
+        Map<String, List<DirtyRegion>> placeHolder = (Map<String, List<DirtyRegion>>) extendedProperties
                 .get(GWCTransactionListener.GWC_TRANSACTION_INFO_PLACEHOLDER);
 
         assertNotNull(placeHolder.get("theLayer"));
 
-        assertSame(affectedBounds, placeHolder.get("theLayer").get(0));
-        assertSame(affectedBounds, placeHolder.get("theGroup").get(0));
+        DirtyRegion region = placeHolder.get("theLayer").get(0);
+        assertEquals(affectedBounds, new ReferencedEnvelope(region.geometry
+                .getEnvelopeInternal(), WGS84));
+        assertEquals(WGS84, region.crs);
+        assertSame(region, placeHolder.get("theGroup").get(0));
     }
 
     @Test
@@ -181,9 +199,88 @@ public class GWCTransactionListenerTest {
         ReferencedEnvelope expectedEnv = new ReferencedEnvelope(affectedBounds1);
         expectedEnv.expandToInclude(affectedBounds2);
 
-        verify(mediator, times(1)).truncate(eq("theLayer"), eq(expectedEnv));
-        verify(mediator, times(1)).truncate(eq("theGroup"), eq(expectedEnv));
+        ArgumentCaptor<Geometry> captor = ArgumentCaptor.forClass(Geometry.class);
+        verify(mediator, times(1)).truncate(eq("theLayer"), captor.capture(), eq(WGS84));
+        assertEquals(expectedEnv, new ReferencedEnvelope(captor.getValue().getEnvelopeInternal(),
+                WGS84));
+        verify(mediator, times(1)).truncate(eq("theGroup"), any(Geometry.class), eq(WGS84));
+    }
+
+    @Test
+    public void testAfterTransactionBatched() throws Exception {
+        listener = new GWCTransactionListener(mediator, Long.MAX_VALUE);
+        when(mediator.getDeclaredCrs(anyString())).thenReturn(WGS84);
+
+        // two separate transactions
+        for (int i = 0; i < 2; i++) {
+            Map<Object, Object> extendedProperties = new HashMap<Object, Object>();
+            issueInsert(extendedProperties, new ReferencedEnvelope(i, i + 1, 0, 1, WGS84));
+            TransactionType request = mock(TransactionType.class);
+            when(request.getExtendedProperties()).thenReturn(extendedProperties);
+            listener.afterTransaction(request, mock(TransactionResponseType.class), true);
+        }
+        // nothing truncated until the delay expires
+        verify(mediator, never()).truncate(anyString(), any(Geometry.class),
+                any(CoordinateReferenceSystem.class));
+
+        GeometryTileRangeMask mask = mock(GeometryTileRangeMask.class);
+        when(mask.getTileCount()).thenReturn(10L);
+        when(mask.getEnvelopeTileCount()).thenReturn(100L);
+        when(mediator.truncate(eq("theLayer"), any(Geometry.class), eq(WGS84))).thenReturn(
+                Collections.singletonList(mask));
+
+        listener.flush();
+
+        ArgumentCaptor<Geometry> captor = ArgumentCaptor.forClass(Geometry.class);
+        verify(mediator, times(1)).truncate(eq("theLayer"), captor.capture(), eq(WGS84));
+        assertEquals(2, captor.getValue().getNumGeometries());
+        verify(mediator, times(1)).truncate(eq("theGroup"), any(Geometry.class), eq(WGS84));
+
+        assertEquals(10, listener.getTruncatedTiles());
+        assertEquals(100, listener.getEnvelopeTiles());
+    }
+
+    @Test
+    public void testPendingRegionsCollapsed() throws Exception {
+        List<DirtyRegion> pending = new ArrayList<DirtyRegion>();
+        List<DirtyRegion> regions = new ArrayList<DirtyRegion>();
+        for (int i = 0; i < GWCTransactionListener.MAX_GEOMETRIES; i++) {
+            regions.add(new DirtyRegion(JTS.toGeometry(new Envelope(i, i + 1, 0, 1)), WGS84));
+        }
+        GWCTransactionListener.addAll(pending, regions);
+        assertEquals(GWCTransactionListener.MAX_GEOMETRIES, pending.size());
+
+        // one more, and the list is replaced by its bounds
+        GWCTransactionListener.addAll(pending, Collections.singletonList(new DirtyRegion(JTS
+                .toGeometry(new Envelope(-1, 0, 0, 1)), WGS84)));
+        assertEquals(1, pending.size());
+        assertEquals(new Envelope(-1, GWCTransactionListener.MAX_GEOMETRIES, 0, 1),
+                pending.get(0).geometry.getEnvelopeInternal());
+        assertSame(WGS84, pending.get(0).crs);
+    }
+
+    @Test
+    public void testDestroyFlushes() throws Exception {
+        listener = new GWCTransactionListener(mediator, Long.MAX_VALUE);
+        when(mediator.getDeclaredCrs(anyString())).thenReturn(WGS84);
 
+        Map<Object, Object> extendedProperties = new HashMap<Object, Object>();
+        issueInsert(extendedProperties, new ReferencedEnvelope(0, 1, 0, 1, WGS84));
+        TransactionType request = mock(TransactionType.class);
+        when(request.getExtendedProperties()).thenReturn(extendedProperties);
+        listener.afterTransaction(request, mock(TransactionResponseType.class), true);
+
+        listener.destroy();
+        assertTrue(listener.executor.isShutdown());
+        verify(mediator, times(1)).truncate(eq("theLayer"), any(Geometry.class), eq(WGS84));
+
+        // later transactions are truncated right away
+        extendedProperties = new HashMap<Object, Object>();
+        issueInsert(extendedProperties, new ReferencedEnvelope(0, 1, 0, 1, WGS84));
+        request = mock(TransactionType.class);
+        when(request.getExtendedProperties()).thenReturn(extendedProperties);
+        listener.afterTransaction(request, mock(TransactionResponseType.class), true);
+        verify(mediator, times(2)).truncate(eq("theLayer"), any(Geometry.class), eq(WGS84));
     }
 
     /**
@@ -214,8 +311,13 @@ public class GWCTransactionListenerTest {
 
         ImmutableSet.of("theLayer", "theGroup"));
 
-        SimpleFeatureCollection affectedFeatures = mock(SimpleFeatureCollection.class);
-        when(affectedFeatures.getBounds()).thenReturn(affectedBounds);
+        SimpleFeatureTypeBuilder tb = new SimpleFeatureTypeBuilder();
+        tb.setName("testType");
+        tb.add("geom", Polygon.class, WGS84);
+        SimpleFeatureType type = tb.buildFeatureType();
+        ListFeatureCollection affectedFeatures = new ListFeatureCollection(type);
+        affectedFeatures.add(SimpleFeatureBuilder.build(type,
+                new Object[] { JTS.toGeometry((Envelope) affectedBounds) }, null));
         when(event.getAffectedFeatures()).thenReturn(affectedFeatures);
 
         listener.dataStoreChange(event);
@@ -0,0 +1,102 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.gwc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.geowebcache.grid.BoundingBox;
+import org.geowebcache.grid.GridSetBroker;
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.grid.GridSubsetFactory;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+public class GeometryTileRangeMaskTest {
+
+    static final int[] NO_META_TILING = { 1, 1 };
+
+    GeometryFactory gf = new GeometryFactory();
+
+    GridSubset gridSubset;
+
+    @Before
+    public void setUp() {
+        GridSetBroker gridSetBroker = new GridSetBroker(true, true);
+        gridSubset = GridSubsetFactory.createGridSubSet(gridSetBroker.WORLD_EPSG4326,
+                new BoundingBox(-180, -90, 180, 90), 0, 6);
+    }
+
+    Geometry diagonal() {
+        return gf.createLineString(new Coordinate[] { new Coordinate(-170, -80),
+                new Coordinate(170, 80) });
+    }
+
+    @Test
+    public void testDiagonalLine() {
+        GeometryTileRangeMask mask = new GeometryTileRangeMask(gridSubset, diagonal(), 0,
+                NO_META_TILING);
+        assertFalse(mask.isEmpty());
+        assertEquals(0, mask.getZoomStart());
+        assertEquals(6, mask.getZoomStop());
+        assertEquals(7, mask.getGridCoverages().length);
+        // way less tiles than the envelope
+        assertTrue(mask.getTileCount() * 10 < mask.getEnvelopeTileCount());
+
+        // at level 6 tiles are 2.8125 degrees wide, (85, 40) is on the line
+        assertTrue(mask.lookup(94, 46, 6));
+        // (-168, 82) is in the envelope but far away from the line
+        assertFalse(mask.lookup(4, 61, 6));
+        // out of the zoom levels
+        assertFalse(mask.lookup(94, 46, 7));
+    }
+
+    @Test
+    public void testBuffer() {
+        GeometryTileRangeMask mask = new GeometryTileRangeMask(gridSubset, diagonal(), 0,
+                NO_META_TILING);
+        GeometryTileRangeMask buffered = new GeometryTileRangeMask(gridSubset, diagonal(), 128,
+                NO_META_TILING);
+        assertTrue(buffered.getTileCount() > mask.getTileCount());
+        assertEquals(mask.getEnvelopeTileCount(), buffered.getEnvelopeTileCount());
+    }
+
+    @Test
+    public void testMetaTiling() {
+        GeometryTileRangeMask mask = new GeometryTileRangeMask(gridSubset, diagonal(), 0,
+                new int[] { 4, 4 });
+        // the whole meta tile containing (94, 46) is marked
+        for (long x = 92; x < 96; x++) {
+            for (long y = 44; y < 48; y++) {
+                assertTrue(mask.lookup(x, y, 6));
+            }
+        }
+        assertFalse(mask.lookup(4, 61, 6));
+    }
+
+    @Test
+    public void testRectangle() {
+        Geometry box = gf.toGeometry(new Envelope(-90, 90, -45, 45));
+        GeometryTileRangeMask mask = new GeometryTileRangeMask(gridSubset, box, 0, NO_META_TILING);
+        assertEquals(mask.getEnvelopeTileCount(), mask.getTileCount());
+    }
+
+    @Test
+    public void testOutsideCoverage() {
+        Geometry point = gf.createPoint(new Coordinate(500, 500));
+        GeometryTileRangeMask mask = new GeometryTileRangeMask(gridSubset, point, 0,
+                NO_META_TILING);
+        assertTrue(mask.isEmpty());
+        assertEquals(0, mask.getEnvelopeTileCount());
+        assertEquals(0, mask.getGridCoverages().length);
+    }
+}
@@ -19,6 +19,7 @@ import static org.mockito.Matchers.isA;
 import static org.mockito.Matchers.same;
 import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -548,6 +549,72 @@ public class GeoServerTileLayerTest {
         verify(mockGWC, times(1)).getResponseEncoder(eq(mimeType), isA(RenderedImageMap.class));
     }
 
+    @Test
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public void testSeedTileDirectly() throws Exception {
+        BufferedImage image = new BufferedImage(256, 256, BufferedImage.TYPE_INT_ARGB);
+        RenderedImageMap fakeMap = new RenderedImageMap(new WMSMapContent(), image, "image/png");
+        ArgumentCaptor<Map> argument = ArgumentCaptor.forClass(Map.class);
+        when(mockGWC.getMap(argument.capture())).thenReturn(fakeMap);
+
+        RenderedImageMapResponse fakeResponseEncoder = mock(RenderedImageMapResponse.class);
+        MimeType mimeType = MimeType.createFromFormat("image/png");
+        when(mockGWC.getResponseEncoder(eq(mimeType), (RenderedImageMap) anyObject())).thenReturn(
+                fakeResponseEncoder);
+
+        StorageBroker storageBroker = mock(StorageBroker.class);
+        when(storageBroker.get((TileObject) anyObject())).thenReturn(false);
+
+        layerInfoTileLayer = new GeoServerTileLayer(layerInfo, defaults, gridSetBroker);
+
+        long[] tileIndex = { 0, 0, 0 };
+        ConveyorTile tile = new ConveyorTile(storageBroker, layerInfoTileLayer.getName(),
+                "EPSG:4326", tileIndex, mimeType, null, null, null);
+
+        layerInfoTileLayer.seedTile(tile, false);
+
+        verify(mockGWC, never()).dispatchOwsRequest((Map) anyObject(), (Cookie[]) anyObject());
+        assertEquals(layerInfoTileLayer.getName(), argument.getValue().get("LAYERS"));
+        assertEquals("true", argument.getValue().get(GeoServerTileLayer.GWC_SEED_INTERCEPT_TOKEN));
+    }
+
+    @Test
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public void testGetTileWithoutServletRequestDispatched() throws Exception {
+        Resource mockResult = mock(Resource.class);
+        ArgumentCaptor<Map> argument = ArgumentCaptor.forClass(Map.class);
+        when(mockGWC.dispatchOwsRequest(argument.capture(), (Cookie[]) anyObject())).thenReturn(
+                mockResult);
+
+        BufferedImage image = new BufferedImage(256, 256, BufferedImage.TYPE_INT_ARGB);
+        RenderedImageMap fakeDispatchedMap = new RenderedImageMap(new WMSMapContent(), image,
+                "image/png");
+
+        RenderedImageMapResponse fakeResponseEncoder = mock(RenderedImageMapResponse.class);
+        MimeType mimeType = MimeType.createFromFormat("image/png");
+        when(mockGWC.getResponseEncoder(eq(mimeType), (RenderedImageMap) anyObject())).thenReturn(
+                fakeResponseEncoder);
+
+        StorageBroker storageBroker = mock(StorageBroker.class);
+        when(storageBroker.get((TileObject) anyObject())).thenReturn(false);
+
+        layerInfoTileLayer = new GeoServerTileLayer(layerInfo, defaults, gridSetBroker);
+
+        // a cache miss from the direct WMS integration, no servlet request but not seeding
+        long[] tileIndex = { 0, 0, 0 };
+        ConveyorTile tile = new ConveyorTile(storageBroker, layerInfoTileLayer.getName(),
+                "EPSG:4326", tileIndex, mimeType, null, null, null);
+
+        GeoServerTileLayer.WEB_MAP.set(fakeDispatchedMap);
+        ConveyorTile returned = layerInfoTileLayer.getTile(tile);
+        assertNotNull(returned);
+        assertEquals(200, returned.getStatus());
+
+        verify(mockGWC, times(1)).dispatchOwsRequest((Map) anyObject(), (Cookie[]) anyObject());
+        verify(mockGWC, never()).getMap((Map) anyObject());
+        assertEquals(layerInfoTileLayer.getName(), argument.getValue().get("LAYERS"));
+    }
+
     @Test
     public void testGetMimeTypes() throws Exception {
 
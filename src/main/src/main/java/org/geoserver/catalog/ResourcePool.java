@@ -20,18 +20,22 @@ import java.io.Serializable;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.net.URL;
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.UUID;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -134,6 +138,9 @@ import org.vfny.geoserver.util.DataStoreUtils;
  * <li>{@link #hintCoverageReaderCache} </li>
  * <li>{@link #styleCache} </li>
  * </p>
+ * <p>
+ * Usage statistics for each of the caches are available via {@link #getCacheStatistics()}.
+ * </p>
  * 
  * @author Justin Deoliveira, Boundless
  */
@@ -178,7 +185,17 @@ public class ResourcePool {
      * Default number of hard references
      */
     static int FEATURETYPE_CACHE_SIZE_DEFAULT = 100;
-    
+
+    /**
+     * Max number of entries in the CRS cache
+     */
+    static int MAX_CRS_ENTRIES = 1000;
+
+    /**
+     * Max number of entries in the style cache
+     */
+    static int MAX_STYLE_ENTRIES = 1000;
+
     private static final String IMAGE_PYRAMID = "ImagePyramid";
     private static final String IMAGE_MOSAIC = "ImageMosaic";
 
@@ -270,7 +287,7 @@ public class ResourcePool {
     }
 
     protected Map<String,CoordinateReferenceSystem> createCrsCache() {
-        return new HashMap<String, CoordinateReferenceSystem>();
+        return new CRSCache(MAX_CRS_ENTRIES);
     }
 
     /**
@@ -376,7 +393,7 @@ public class ResourcePool {
     }
 
     protected Map<StyleInfo, Style> createStyleCache() {
-        return new HashMap<StyleInfo, Style>();
+        return new StyleCache(MAX_STYLE_ENTRIES);
     }
 
     /**
@@ -396,6 +413,43 @@ public class ResourcePool {
         return new WMSCache();
     }
 
+    /**
+     * Returns the usage statistics of the resource pool caches, keyed by cache name.
+     * <p>
+     * Only the caches that are {@link CatalogResourceCache} instances collect statistics, caches
+     * replaced by subclasses with other map implementations are not reported.
+     * </p>
+     */
+    public Map<String, CacheStatistics> getCacheStatistics() {
+        Map<String, CacheStatistics> stats = new LinkedHashMap<String, CacheStatistics>();
+        addStatistics(stats, "crs", crsCache);
+        addStatistics(stats, "dataStore", dataStoreCache);
+        addStatistics(stats, "featureType", featureTypeCache);
+        addStatistics(stats, "featureTypeAttribute", featureTypeAttributeCache);
+        addStatistics(stats, "coverageReader", coverageReaderCache);
+        addStatistics(stats, "hintCoverageReader", hintCoverageReaderCache);
+        addStatistics(stats, "wms", wmsCache);
+        addStatistics(stats, "style", styleCache);
+        return stats;
+    }
+
+    void addStatistics(Map<String, CacheStatistics> stats, String name, Map cache) {
+        if (cache instanceof CatalogResourceCache) {
+            stats.put(name, ((CatalogResourceCache) cache).getStatistics());
+        }
+    }
+
+    /**
+     * Looks up the cache again in the double checked lookups, without counting a second miss
+     */
+    @SuppressWarnings("unchecked")
+    static <K, V> V recheck(Map<K, V> cache, Object key) {
+        if (cache instanceof CatalogResourceCache) {
+            return ((CatalogResourceCache<K, V>) cache).recheck(key);
+        }
+        return cache.get(key);
+    }
+
     /**
      * Sets the size of the feature type cache.
      * <p>
@@ -463,7 +517,7 @@ public class ResourcePool {
         CoordinateReferenceSystem crs = crsCache.get( srsName );
         if ( crs == null ) {
             synchronized (crsCache) {
-                crs = crsCache.get( srsName );
+                crs = recheck(crsCache, srsName);
                 if ( crs == null ) {
                     try {
                         crs = CRS.decode( srsName );
@@ -524,7 +578,7 @@ public class ResourcePool {
             dataStore = dataStoreCache.get(id);
             if ( dataStore == null ) {
                 synchronized (dataStoreCache) {
-                    dataStore = dataStoreCache.get( id );
+                    dataStore = recheck(dataStoreCache, id);
                     if ( dataStore == null ) {
                         //create data store
                         Map<String, Serializable> connectionParameters = info.getConnectionParameters();
@@ -706,7 +760,7 @@ public class ResourcePool {
         List<AttributeTypeInfo> atts = featureTypeAttributeCache.get(info.getId());
         if (atts == null) {
             synchronized (featureTypeAttributeCache) {
-                atts = featureTypeAttributeCache.get(info.getId());
+                atts = recheck(featureTypeAttributeCache, info.getId());
                 if (atts == null) {
                     //load from feature type
                     atts = loadAttributes(info);
@@ -884,7 +938,7 @@ public class ResourcePool {
         FeatureType ft = featureTypeCache.get( key );
         if ( ft == null ) {
             synchronized ( featureTypeCache ) {
-                ft = featureTypeCache.get( key );
+                ft = recheck(featureTypeCache, key);
                 if ( ft == null ) {
 
                     //grab the underlying feature type
@@ -1413,9 +1467,9 @@ public class ResourcePool {
             synchronized ( hints != null ? hintCoverageReaderCache : coverageReaderCache ) {
                 if (key != null) {
                     if (hints != null) {
-                        reader = hintCoverageReaderCache.get(key);
+                        reader = recheck(hintCoverageReaderCache, key);
                     } else {
-                        reader = coverageReaderCache.get(key);
+                        reader = recheck(coverageReaderCache, key);
                     }
                 }
                 if (reader == null) {
@@ -1639,7 +1693,7 @@ public class ResourcePool {
             WebMapServer wms = wmsCache.get(id);
             if (wms == null) {
                 synchronized (wmsCache) {
-                    wms = wmsCache.get(id);
+                    wms = recheck(wmsCache, id);
                     if (wms == null) {
                         HTTPClient client = getHTTPClient(info);
                         String capabilitiesURL = info.getCapabilitiesURL();
@@ -1740,7 +1794,7 @@ public class ResourcePool {
         Style style = styleCache.get( info );
         if ( style == null ) {
             synchronized (styleCache) {
-                style = styleCache.get( info );
+                style = recheck(styleCache, info);
                 if ( style == null ) {
                     style = dataDir().parsedStyle(info);
 
@@ -1914,7 +1968,12 @@ public class ResourcePool {
     
     /**
      * Base class for all the resource caches, ensures type safety and provides
-     * an easier way to handle with resource disposal 
+     * an easier way to handle with resource disposal.
+     * <p>
+     * The most recently used values are hard referenced, the others are softly referenced and
+     * reclaimed under memory pressure. Caches built with a max number of entries also evict, and
+     * dispose, the least recently used entries past that limit.
+     * </p>
      * @author Andrea Aime
      *
      * @param <K>
@@ -1922,24 +1981,131 @@ public class ResourcePool {
      */
     abstract class CatalogResourceCache<K, V> extends SoftValueHashMap<K, V> {
 
+        final CacheStatistics statistics = new CacheStatistics(this);
+
+        /**
+         * When the current thread missed the cache, the time it started loading the value
+         */
+        final ThreadLocal<Long> loadStart = new ThreadLocal<Long>();
+
+        /**
+         * The keys in access order, guarded by {@code this}, tracked only for bounded caches
+         */
+        final LinkedHashMap<K, Boolean> accessOrder;
+
+        final int maxEntries;
+
         public CatalogResourceCache() {
             this(100);
         }
 
         public CatalogResourceCache(int hardReferences) {
+            this(hardReferences, -1);
+        }
+
+        /**
+         * @param maxEntries the max number of entries, or a non positive value for no limit
+         */
+        public CatalogResourceCache(int hardReferences, int maxEntries) {
             super(hardReferences);
+            this.maxEntries = maxEntries;
+            this.accessOrder = maxEntries > 0 ? new LinkedHashMap<K, Boolean>(16, 0.75f, true)
+                    : null;
             super.cleaner = new ValueCleaner() {
 
                 @Override
                 public void clean(Object key, Object object) {
+                    statistics.evictions.incrementAndGet();
                     dispose((K) key, (V) object);
                 }
             };
         }
 
+        /**
+         * The usage statistics of this cache
+         */
+        public CacheStatistics getStatistics() {
+            return statistics;
+        }
+
+        @Override
+        public V get(Object key) {
+            V object = peek(key);
+            if (object != null) {
+                statistics.hits.incrementAndGet();
+            } else {
+                statistics.misses.incrementAndGet();
+                loadStart.set(System.nanoTime());
+            }
+            return object;
+        }
+
+        /**
+         * Looks up the value again after a miss, the load is not timed if another thread loaded
+         * the value in the meantime
+         */
+        V recheck(Object key) {
+            V object = peek(key);
+            if (object != null) {
+                loadStart.remove();
+            }
+            return object;
+        }
+
+        /**
+         * Looks up the value without affecting the statistics
+         */
+        V peek(Object key) {
+            V object = super.get(key);
+            if (object != null && accessOrder != null) {
+                synchronized (this) {
+                    accessOrder.get(key);
+                }
+            }
+            return object;
+        }
+
+        @Override
+        public V put(K key, V value) {
+            Long start = loadStart.get();
+            if (start != null) {
+                loadStart.remove();
+                statistics.loads.incrementAndGet();
+                statistics.loadTime.addAndGet(System.nanoTime() - start);
+            }
+            V old = super.put(key, value);
+            if (accessOrder != null) {
+                List<Entry<K, V>> evicted = new ArrayList<Entry<K, V>>();
+                synchronized (this) {
+                    accessOrder.put(key, Boolean.TRUE);
+                    Iterator<K> keys = accessOrder.keySet().iterator();
+                    while (accessOrder.size() > maxEntries && keys.hasNext()) {
+                        K eldest = keys.next();
+                        keys.remove();
+                        // the value might have been reclaimed already
+                        V eldestValue = super.remove(eldest);
+                        if (eldestValue != null) {
+                            evicted.add(new AbstractMap.SimpleEntry<K, V>(eldest,
+                                    eldestValue));
+                        }
+                    }
+                }
+                for (Entry<K, V> entry : evicted) {
+                    statistics.evictions.incrementAndGet();
+                    dispose(entry.getKey(), entry.getValue());
+                }
+            }
+            return old;
+        }
+
         @Override
         public V remove(Object key) {
             V object = super.remove(key);
+            if (accessOrder != null) {
+                synchronized (this) {
+                    accessOrder.remove(key);
+                }
+            }
             if (object != null) {
                 dispose((K) key, object);
             }
@@ -1957,6 +2123,11 @@ public class ResourcePool {
                 }
             }
             super.clear();
+            if (accessOrder != null) {
+                synchronized (this) {
+                    accessOrder.clear();
+                }
+            }
         }
 
         protected abstract void dispose(K key, V object);
@@ -2130,6 +2301,120 @@ public class ResourcePool {
         }
 
     }
+
+    class CRSCache extends CatalogResourceCache<String, CoordinateReferenceSystem> {
+
+        CRSCache(int maxEntries) {
+            super(100, maxEntries);
+        }
+
+        @Override
+        protected void dispose(String key, CoordinateReferenceSystem object) {
+            // nothing to do
+        }
+    }
+
+    class StyleCache extends CatalogResourceCache<StyleInfo, Style> {
+
+        StyleCache(int maxEntries) {
+            super(100, maxEntries);
+        }
+
+        @Override
+        protected void dispose(StyleInfo key, Style object) {
+            // nothing to do
+        }
+    }
+
+    /**
+     * Usage statistics of a {@link CatalogResourceCache}.
+     * <p>
+     * Hits and misses are counted on lookup, evictions when the cache drops an entry on its own,
+     * either because it went past its max number of entries or because the garbage collector
+     * reclaimed its softly referenced value. Entries explicitly removed, for example when the
+     * corresponding catalog object changes, are not evictions.
+     * </p>
+     * <p>
+     * Loads are the values cached after a miss of the same thread, the load time goes from the
+     * miss to the value being cached, so it includes waiting for other threads loading values
+     * into the same cache.
+     * </p>
+     */
+    public static class CacheStatistics {
+
+        final Map<?, ?> cache;
+
+        final AtomicLong hits = new AtomicLong();
+
+        final AtomicLong misses = new AtomicLong();
+
+        final AtomicLong evictions = new AtomicLong();
+
+        final AtomicLong loads = new AtomicLong();
+
+        /**
+         * The total load time, in nanoseconds
+         */
+        final AtomicLong loadTime = new AtomicLong();
+
+        CacheStatistics(Map<?, ?> cache) {
+            this.cache = cache;
+        }
+
+        public long getHits() {
+            return hits.get();
+        }
+
+        public long getMisses() {
+            return misses.get();
+        }
+
+        public long getEvictions() {
+            return evictions.get();
+        }
+
+        public long getLoads() {
+            return loads.get();
+        }
+
+        /**
+         * The total time spent loading values, in milliseconds
+         */
+        public long getTotalLoadTime() {
+            return TimeUnit.NANOSECONDS.toMillis(loadTime.get());
+        }
+
+        /**
+         * The average time spent loading a value, in milliseconds, or 0 if nothing was loaded
+         */
+        public double getAverageLoadTime() {
+            long l = loads.get();
+            return l == 0 ? 0 : loadTime.get() / 1e6 / l;
+        }
+
+        /**
+         * The number of entries currently in the cache
+         */
+        public int getSize() {
+            return cache.size();
+        }
+
+        /**
+         * The ratio between hits and total requests, or 0 if the cache was never used
+         */
+        public double getHitRatio() {
+            long h = hits.get();
+            long total = h + misses.get();
+            return total == 0 ? 0 : (double) h / total;
+        }
+
+        @Override
+        public String toString() {
+            return "CacheStatistics[size=" + getSize() + ", hits=" + getHits() + ", misses="
+                    + getMisses() + ", evictions=" + getEvictions() + ", loads=" + getLoads()
+                    + ", totalLoadTime=" + getTotalLoadTime() + "]";
+        }
+    }
     
     /**
      * Listens to catalog events clearing cache entires when resources are modified.
@@ -15,6 +15,7 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 import javax.annotation.Nullable;
@@ -40,6 +41,7 @@ import org.opengis.filter.Filter;
 import org.opengis.filter.sort.SortBy;
 import org.opengis.filter.sort.SortOrder;
 
+import com.google.common.base.Function;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Ordering;
 
@@ -100,6 +102,26 @@ public class DefaultCatalogFacade extends AbstractCatalogFacade implements Catal
      */
     protected List<StyleInfo> styles = new CopyOnWriteArrayList<StyleInfo>();
 
+    //
+    // id indexes, catalog object ids never change once assigned so lookups by id can be served
+    // from concurrent maps rather than scanning (and locking) the collections above
+    //
+    protected Map<String, StoreInfo> storesById = new ConcurrentHashMap<String, StoreInfo>();
+
+    protected Map<String, ResourceInfo> resourcesById = new ConcurrentHashMap<String, ResourceInfo>();
+
+    protected Map<String, LayerInfo> layersById = new ConcurrentHashMap<String, LayerInfo>();
+
+    protected Map<String, MapInfo> mapsById = new ConcurrentHashMap<String, MapInfo>();
+
+    protected Map<String, LayerGroupInfo> layerGroupsById = new ConcurrentHashMap<String, LayerGroupInfo>();
+
+    protected Map<String, NamespaceInfo> namespacesById = new ConcurrentHashMap<String, NamespaceInfo>();
+
+    protected Map<String, WorkspaceInfo> workspacesById = new ConcurrentHashMap<String, WorkspaceInfo>();
+
+    protected Map<String, StyleInfo> stylesById = new ConcurrentHashMap<String, StyleInfo>();
+
     /**
      * the catalog
      */
@@ -125,6 +147,7 @@ public class DefaultCatalogFacade extends AbstractCatalogFacade implements Catal
         synchronized(stores) {
             stores.put(store.getClass(), store);
         }
+        storesById.put(store.getId(), store);
         return ModificationProxy.create(store, StoreInfo.class);
     }
     
@@ -134,6 +157,7 @@ public class DefaultCatalogFacade extends AbstractCatalogFacade implements Catal
         synchronized(stores) {
             stores.remove(store.getClass(),store);
         }
+        storesById.remove(store.getId());
     }
     
     public void save(StoreInfo store) {
@@ -145,12 +169,9 @@ public class DefaultCatalogFacade extends AbstractCatalogFacade implements Catal
     }
 
     public <T extends StoreInfo> T getStore(String id, Class<T> clazz) {
-        List l = lookup(clazz, stores);
-        for (Iterator i = l.iterator(); i.hasNext();) {
-            StoreInfo store = (StoreInfo) i.next();
-            if (id.equals(store.getId())) {
-                return ModificationProxy.create( (T) store, clazz );
-            }
+        StoreInfo store = storesById.get(id);
+        if (clazz.isInstance(store)) {
+            return ModificationProxy.create( (T) store, clazz );
         }
 
         return null;
@@ -245,6 +266,7 @@ public class DefaultCatalogFacade extends AbstractCatalogFacade implements Catal
         synchronized(resources) {
             resources.put(resource.getClass(), resource);
         }
+        resourcesById.put(resource.getId(), resource);
         return ModificationProxy.create(resource, ResourceInfo.class);
     }
     
@@ -253,6 +275,7 @@ public class DefaultCatalogFacade extends AbstractCatalogFacade implements Catal
         synchronized(resources) {
             resources.remove(resource.getClass(), resource);
         }
+        resourcesById.remove(resource.getId());
     }
     
    
@@ -265,12 +288,9 @@ public class DefaultCatalogFacade extends AbstractCatalogFacade implements Catal
     }
     
     public <T extends ResourceInfo> T getResource(String id, Class<T> clazz) {
-        List l = lookup(clazz, resources);
-        for (Iterator i = l.iterator(); i.hasNext();) {
-            ResourceInfo resource = (ResourceInfo) i.next();
-            if (id.equals(resource.getId())) {
-                return ModificationProxy.create((T) resource, clazz );
-            }
+        ResourceInfo resource = resourcesById.get(id);
+        if (clazz.isInstance(resource)) {
+            return ModificationProxy.create((T) resource, clazz );
         }
 
         return null;
@@ -372,12 +392,14 @@ public class DefaultCatalogFacade extends AbstractCatalogFacade implements Catal
     public LayerInfo add(LayerInfo layer) {
         resolve(layer);
         layers.add(layer);
+        layersById.put(layer.getId(), layer);
         
         return ModificationProxy.create(layer, LayerInfo.class);
     }
     
     public void remove(LayerInfo layer) {
         layers.remove(unwrap(layer));
+        layersById.remove(layer.getId());
     }
     
     public void save(LayerInfo layer) {
@@ -389,13 +411,8 @@ public class DefaultCatalogFacade extends AbstractCatalogFacade implements Catal
     }
     
     public LayerInfo getLayer(String id) {
-        for (LayerInfo layer : layers) {
-            if (id.equals(layer.getId())) {
-                return ModificationProxy.create( layer, LayerInfo.class );
-            }
-        }
-
-        return null;
+        LayerInfo layer = layersById.get(id);
+        return layer != null ? ModificationProxy.create( layer, LayerInfo.class ) : null;
     }
     
     public LayerInfo getLayerByName(String name) {
@@ -442,6 +459,7 @@ public class DefaultCatalogFacade extends AbstractCatalogFacade implements Catal
         synchronized(maps) {
             maps.add(map);
         }
+        mapsById.put(map.getId(), map);
         
         return ModificationProxy.create(map, MapInfo.class);
     }
@@ -450,6 +468,7 @@ public class DefaultCatalogFacade extends AbstractCatalogFacade implements Catal
         synchronized(maps) {
             maps.remove(unwrap(map));
         }
+        mapsById.remove(map.getId());
     }
 
     public void save(MapInfo map) {
@@ -461,13 +480,8 @@ public class DefaultCatalogFacade extends AbstractCatalogFacade implements Catal
     }
     
     public MapInfo getMap(String id) {
-        for (MapInfo map : maps) {
-            if (id.equals(map.getId())) {
-                return ModificationProxy.create(map,MapInfo.class);
-            }
-        }
-
-        return null;
+        MapInfo map = mapsById.get(id);
+        return map != null ? ModificationProxy.create(map,MapInfo.class) : null;
     }
 
     public MapInfo getMapByName(String name) {
@@ -492,6 +506,7 @@ public class DefaultCatalogFacade extends AbstractCatalogFacade implements Catal
         synchronized(layerGroups) {
             layerGroups.add( layerGroup );
         }
+        layerGroupsById.put(layerGroup.getId(), layerGroup);
         return ModificationProxy.create(layerGroup, LayerGroupInfo.class);
     }
     
@@ -502,6 +517,7 @@ public class DefaultCatalogFacade extends AbstractCatalogFacade implements Catal
         synchronized(layerGroups) {
             layerGroups.remove( unwrap(layerGroup) );
         }
+        layerGroupsById.remove(layerGroup.getId());
     }
     
     /* (non-Javadoc)
@@ -549,13 +565,9 @@ public class DefaultCatalogFacade extends AbstractCatalogFacade implements Catal
     }
 
     public LayerGroupInfo getLayerGroup(String id) {
-        for (LayerGroupInfo layerGroup : layerGroups ) {
-            if ( id.equals( layerGroup.getId() ) ) {
-                return ModificationProxy.create(layerGroup,LayerGroupInfo.class);
-            }
-        }
-        
-        return null;
+        LayerGroupInfo layerGroup = layerGroupsById.get(id);
+        return layerGroup != null ? 
+                ModificationProxy.create(layerGroup,LayerGroupInfo.class) : null;
     }
     
     @Override
@@ -601,6 +613,7 @@ public class DefaultCatalogFacade extends AbstractCatalogFacade implements Catal
         synchronized(namespaces) {
             namespaces.put(namespace.getPrefix(),namespace);
         }
+        namespacesById.put(namespace.getId(), namespace);
         
         return ModificationProxy.create(namespace, NamespaceInfo.class);
     }
@@ -615,6 +628,7 @@ public class DefaultCatalogFacade extends AbstractCatalogFacade implements Catal
             
             namespaces.remove(namespace.getPrefix());
         }
+        namespacesById.remove(namespace.getId());
     }
 
     public void save(NamespaceInfo namespace) {
@@ -659,13 +673,9 @@ public class DefaultCatalogFacade extends AbstractCatalogFacade implements Catal
     }
     
     public NamespaceInfo getNamespace(String id) {
-        for (NamespaceInfo namespace : namespaces.values() ) {
-            if (id.equals(namespace.getId())) {
-                return ModificationProxy.create( namespace, NamespaceInfo.class ); 
-            }
-        }
-
-        return null;
+        NamespaceInfo namespace = namespacesById.get(id);
+        return namespace != null ? 
+                ModificationProxy.create( namespace, NamespaceInfo.class ) : null;
     }
 
     public NamespaceInfo getNamespaceByPrefix(String prefix) {
@@ -703,6 +713,7 @@ public class DefaultCatalogFacade extends AbstractCatalogFacade implements Catal
         synchronized (workspaces) {
             workspaces.put( workspace.getName(), workspace );
         }
+        workspacesById.put(workspace.getId(), workspace);
         return ModificationProxy.create(workspace, WorkspaceInfo.class);
     }
     
@@ -710,6 +721,7 @@ public class DefaultCatalogFacade extends AbstractCatalogFacade implements Catal
         synchronized(workspaces) {
             workspaces.remove( workspace.getName() );
         }
+        workspacesById.remove(workspace.getId());
     }
     
     public void save(WorkspaceInfo workspace) {
@@ -773,13 +785,8 @@ public class DefaultCatalogFacade extends AbstractCatalogFacade implements Catal
     }
     
     public WorkspaceInfo getWorkspace(String id) {
-        for ( WorkspaceInfo ws : workspaces.values() ) {
-            if ( id.equals( ws.getId() ) ) {
-                return ModificationProxy.create(ws,WorkspaceInfo.class);
-            }
-        }
-        
-        return null;
+        WorkspaceInfo ws = workspacesById.get(id);
+        return ws != null ? ModificationProxy.create(ws,WorkspaceInfo.class) : null;
     }
     
     public WorkspaceInfo getWorkspaceByName(String name) {
@@ -795,6 +802,7 @@ public class DefaultCatalogFacade extends AbstractCatalogFacade implements Catal
         synchronized(styles) {
             styles.add(style);
         }
+        stylesById.put(style.getId(), style);
         return ModificationProxy.create(style, StyleInfo.class);
     }
 
@@ -802,6 +810,7 @@ public class DefaultCatalogFacade extends AbstractCatalogFacade implements Catal
         synchronized(styles) {
             styles.remove(unwrap(style));
         }
+        stylesById.remove(style.getId());
     }
 
     public void save(StyleInfo style) {
@@ -813,14 +822,8 @@ public class DefaultCatalogFacade extends AbstractCatalogFacade implements Catal
     }
 
     public StyleInfo getStyle(String id) {
-        for (Iterator s = styles.iterator(); s.hasNext();) {
-            StyleInfo style = (StyleInfo) s.next();
-            if (id.equals(style.getId())) {
-                return ModificationProxy.create(style,StyleInfo.class);
-            }
-        }
-
-        return null;
+        StyleInfo style = stylesById.get(id);
+        return style != null ? ModificationProxy.create(style,StyleInfo.class) : null;
     }
 
     public StyleInfo getStyleByName(String name) {
@@ -927,75 +930,154 @@ public class DefaultCatalogFacade extends AbstractCatalogFacade implements Catal
         if ( layerGroups != null ) layerGroups.clear();
         if ( maps != null ) maps.clear();
         if ( styles != null ) styles.clear();
+        clearIdIndexes();
     }
     
     public void resolve() {
         //JD creation checks are done here b/c when xstream depersists 
         // some members may be left null
-        
-        //workspaces
         if ( workspaces == null ) {
             workspaces = new HashMap<String, WorkspaceInfo>();
         }
+        if ( namespaces == null ) {
+            namespaces = new HashMap<String, NamespaceInfo>();
+        }
+        if ( stores == null ) {
+            stores = new MultiHashMap();
+        }
+        if ( styles == null ) {
+            styles = new ArrayList<StyleInfo>();
+        }
+        if ( resources == null ) {
+            resources = new MultiHashMap();    
+        }
+        if ( layers == null ) {
+            layers = new CopyOnWriteArrayList<LayerInfo>();
+        }
+        if ( layerGroups == null ) {
+            layerGroups = new ArrayList<LayerGroupInfo>();    
+        }
+        if ( maps == null ) {
+            maps = new ArrayList<MapInfo>();
+        }
+        
+        // references are resolved by id, make sure the indexes are in synch with the collections
+        rebuildIdIndexes();
+        
+        //workspaces
         for ( WorkspaceInfo ws : workspaces.values() ) {
             resolve(ws);
         }
         
         //namespaces
-        if ( namespaces == null ) {
-            namespaces = new HashMap<String, NamespaceInfo>();
-        }
         for ( NamespaceInfo ns : namespaces.values() ) {
             resolve(ns);
         }
         
         //stores
-        if ( stores == null ) {
-            stores = new MultiHashMap();
-        }
         for ( Object o : stores.values() ) {
             resolve((StoreInfoImpl)o);
         }
         
         //styles
-        if ( styles == null ) {
-            styles = new ArrayList<StyleInfo>();
-        }
         for ( StyleInfo s : styles ) {
             resolve(s);
         }
         
         //resources
-        if ( resources == null ) {
-            resources = new MultiHashMap();    
-        }
         for( Object o : resources.values() ) {
             resolve((ResourceInfo)o);
         }
         
         //layers
-        if ( layers == null ) {
-            layers = new CopyOnWriteArrayList<LayerInfo>();
-        }
         for ( LayerInfo l : layers ) { 
             resolve(l);
         }
         
         //layer groups
-        if ( layerGroups == null ) {
-            layerGroups = new ArrayList<LayerGroupInfo>();    
-        }
         for ( LayerGroupInfo lg : layerGroups ) {
             resolve(lg);
         }
         
         //maps
-        if ( maps == null ) {
-            maps = new ArrayList<MapInfo>();
-        }
         for ( MapInfo m : maps ) {
             resolve(m);
         }
+        
+        // resolution might have assigned missing ids
+        rebuildIdIndexes();
+    }
+
+    /**
+     * Clears the id indexes
+     */
+    void clearIdIndexes() {
+        if ( storesById == null ) {
+            // depersisted instance, the indexes were never created
+            createIdIndexes();
+            return;
+        }
+        storesById.clear();
+        resourcesById.clear();
+        layersById.clear();
+        mapsById.clear();
+        layerGroupsById.clear();
+        namespacesById.clear();
+        workspacesById.clear();
+        stylesById.clear();
+    }
+
+    void createIdIndexes() {
+        storesById = new ConcurrentHashMap<String, StoreInfo>();
+        resourcesById = new ConcurrentHashMap<String, ResourceInfo>();
+        layersById = new ConcurrentHashMap<String, LayerInfo>();
+        mapsById = new ConcurrentHashMap<String, MapInfo>();
+        layerGroupsById = new ConcurrentHashMap<String, LayerGroupInfo>();
+        namespacesById = new ConcurrentHashMap<String, NamespaceInfo>();
+        workspacesById = new ConcurrentHashMap<String, WorkspaceInfo>();
+        stylesById = new ConcurrentHashMap<String, StyleInfo>();
+    }
+
+    /**
+     * Rebuilds the id indexes from the object collections, used after the collections have been
+     * populated without going through the add methods (e.g. by xstream depersistence)
+     */
+    void rebuildIdIndexes() {
+        clearIdIndexes();
+        
+        for ( WorkspaceInfo ws : workspaces.values() ) {
+            index(workspacesById, ws);
+        }
+        for ( NamespaceInfo ns : namespaces.values() ) {
+            index(namespacesById, ns);
+        }
+        for ( Object o : stores.values() ) {
+            StoreInfo s = (StoreInfo) o;
+            index(storesById, s);
+        }
+        for ( Object o : resources.values() ) {
+            ResourceInfo r = (ResourceInfo) o;
+            index(resourcesById, r);
+        }
+        for ( StyleInfo s : styles ) {
+            index(stylesById, s);
+        }
+        for ( LayerInfo l : layers ) {
+            index(layersById, l);
+        }
+        for ( LayerGroupInfo lg : layerGroups ) {
+            index(layerGroupsById, lg);
+        }
+        for ( MapInfo m : maps ) {
+            index(mapsById, m);
+        }
+    }
+
+    <T extends CatalogInfo> void index(Map<String, T> index, T info) {
+        // objects without an id are indexed after resolution assigns one
+        if (info.getId() != null) {
+            index.put(info.getId(), info);
+        }
     }
 
     public void syncTo(CatalogFacade dao) {
@@ -1012,6 +1094,15 @@ public class DefaultCatalogFacade extends AbstractCatalogFacade implements Catal
             other.maps = maps;
             other.layerGroups = layerGroups;
             other.styles = styles;
+            
+            other.storesById = storesById;
+            other.resourcesById = resourcesById;
+            other.layersById = layersById;
+            other.mapsById = mapsById;
+            other.layerGroupsById = layerGroupsById;
+            other.namespacesById = namespacesById;
+            other.workspacesById = workspacesById;
+            other.stylesById = stylesById;
         }
         else {
             //do a manual import
@@ -1066,7 +1157,7 @@ public class DefaultCatalogFacade extends AbstractCatalogFacade implements Catal
 
     @Override
     public <T extends CatalogInfo> int count(final Class<T> of, final Filter filter) {
-        return Iterables.size(iterable(of, filter, null));
+        return Iterables.size(filteredIterable(of, filter));
     }
 
     /**
@@ -1145,44 +1236,66 @@ public class DefaultCatalogFacade extends AbstractCatalogFacade implements Catal
 
     public <T extends CatalogInfo> Iterable<T> iterable(final Class<? super T> of,
             final Filter filter, final SortBy[] sortByList) {
-        List<T> all;
 
-        T t = null;
+        Iterable<T> all = filteredIterable(of, filter);
+
+        if (null != sortByList && sortByList.length > 0) {
+            // only the objects matching the filter get sorted
+            Ordering<Object> ordering = null;
+            for (SortBy sortBy : sortByList) {
+                Ordering<Object> o = Ordering.from(comparator(sortBy));
+                if (SortOrder.DESCENDING.equals(sortBy.getSortOrder())) {
+                    o = o.reverse();
+                }
+                ordering = ordering == null ? o : ordering.compound(o);
+            }
+            all = ordering.sortedCopy(all);
+        }
+
+        // wrap lazily, only the objects actually consumed by the caller get proxied
+        final Class<T> proxyInterface = (Class<T>) of;
+        return Iterables.transform(all, new Function<T, T>() {
+
+            @Override
+            public T apply(T input) {
+                return ModificationProxy.create(input, proxyInterface);
+            }
+        });
+    }
+
+    /**
+     * Returns a lazily filtered view over the raw (non proxied) objects of the specified type.
+     * <p>
+     * The copy on write collections are iterated directly, the others are copied as the public
+     * getters already did.
+     * </p>
+     */
+    <T extends CatalogInfo> Iterable<T> filteredIterable(final Class<? super T> of,
+            final Filter filter) {
+        Iterable<T> all;
+
         if (NamespaceInfo.class.isAssignableFrom(of)) {
-            all = getNamespaces();
+            all = (Iterable<T>) rawValues(namespaces);
         } else if (WorkspaceInfo.class.isAssignableFrom(of)) {
-            all = (List<T>) getWorkspaces();
+            all = (Iterable<T>) rawValues(workspaces);
         } else if (StoreInfo.class.isAssignableFrom(of)) {
-            all = getStores(of);
+            all = lookup((Class<T>) of, stores);
         } else if (ResourceInfo.class.isAssignableFrom(of)) {
-            all = getResources(of);
+            all = lookup((Class<T>) of, resources);
         } else if (LayerInfo.class.isAssignableFrom(of)) {
-            all = (List<T>) getLayers();
+            all = (Iterable<T>) layers;
         } else if (LayerGroupInfo.class.isAssignableFrom(of)) {
-            all = (List<T>) getLayerGroups();
+            all = (Iterable<T>) layerGroups;
         } else if (PublishedInfo.class.isAssignableFrom(of)) {
-            all = new ArrayList<>();
-            all.addAll((List<T>) getLayers());
-            all.addAll((List<T>) getLayerGroups());
+            all = (Iterable<T>) Iterables.concat(layers, layerGroups);
         } else if (StyleInfo.class.isAssignableFrom(of)) {
-            all = (List<T>) getStyles();
+            all = (Iterable<T>) styles;
         } else if (MapInfo.class.isAssignableFrom(of)) {
-            all = (List<T>) getMaps();
+            all = (Iterable<T>) new ArrayList<MapInfo>(maps);
         } else {
             throw new IllegalArgumentException("Unknown type: " + of);
         }
 
-        if (null != sortByList) {
-            for (int i = sortByList.length - 1; i >=0 ; i--) {
-            	SortBy sortBy = sortByList[i];
-	            Ordering<Object> ordering = Ordering.from(comparator(sortBy));
-	            if (SortOrder.DESCENDING.equals(sortBy.getSortOrder())) {
-	                ordering = ordering.reverse();
-	            }
-	            all = ordering.sortedCopy(all);
-            }
-        }
-
         if (Filter.INCLUDE.equals(filter)) {
             return all;
         }
@@ -1198,6 +1311,20 @@ public class DefaultCatalogFacade extends AbstractCatalogFacade implements Catal
         return Iterables.filter(all, filterAdapter);
     }
 
+    /**
+     * Values of a name keyed map, skipping the default entries
+     */
+    <T> List<T> rawValues(Map<String, T> map) {
+        List<T> values = new ArrayList<T>();
+        for (Map.Entry<String, T> e : map.entrySet()) {
+            if (e.getKey() == null || e.getKey().equals(Catalog.DEFAULT)) {
+                continue;
+            }
+            values.add(e.getValue());
+        }
+        return values;
+    }
+
     private Comparator<Object> comparator(final SortBy sortOrder) {
         return new Comparator<Object>() {
             @Override
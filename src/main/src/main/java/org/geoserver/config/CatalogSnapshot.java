@@ -0,0 +1,419 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.config;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.DataStoreInfo;
+import org.geoserver.catalog.LayerGroupInfo;
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.NamespaceInfo;
+import org.geoserver.catalog.ResourceInfo;
+import org.geoserver.catalog.StoreInfo;
+import org.geoserver.catalog.StyleInfo;
+import org.geoserver.catalog.WorkspaceInfo;
+import org.geoserver.catalog.impl.AttributeTypeInfoImpl;
+import org.geoserver.catalog.impl.AttributionInfoImpl;
+import org.geoserver.catalog.impl.CatalogImpl;
+import org.geoserver.catalog.impl.CoverageDimensionImpl;
+import org.geoserver.catalog.impl.CoverageInfoImpl;
+import org.geoserver.catalog.impl.CoverageStoreInfoImpl;
+import org.geoserver.catalog.impl.DataLinkInfoImpl;
+import org.geoserver.catalog.impl.DataStoreInfoImpl;
+import org.geoserver.catalog.impl.DimensionInfoImpl;
+import org.geoserver.catalog.impl.FeatureTypeInfoImpl;
+import org.geoserver.catalog.impl.LayerGroupInfoImpl;
+import org.geoserver.catalog.impl.LayerInfoImpl;
+import org.geoserver.catalog.impl.LegendInfoImpl;
+import org.geoserver.catalog.impl.MetadataLinkInfoImpl;
+import org.geoserver.catalog.impl.NamespaceInfoImpl;
+import org.geoserver.catalog.impl.StyleInfoImpl;
+import org.geoserver.catalog.impl.WMSLayerInfoImpl;
+import org.geoserver.catalog.impl.WMSStoreInfoImpl;
+import org.geoserver.catalog.impl.WorkspaceInfoImpl;
+import org.geoserver.config.util.XStreamPersister;
+import org.geoserver.config.util.XStreamPersisterFactory;
+import org.geoserver.platform.GeoServerResourceLoader;
+import org.geoserver.platform.resource.Resource;
+import org.geoserver.platform.resource.Resource.Type;
+import org.geotools.util.logging.Logging;
+
+import com.thoughtworks.xstream.io.binary.BinaryStreamReader;
+import com.thoughtworks.xstream.io.binary.BinaryStreamWriter;
+
+/**
+ * Binary snapshot of the catalog, used to speed up restarts when the catalog configuration files
+ * did not change since the snapshot was taken.
+ * <p>
+ * The snapshot is a single compressed file holding every catalog object encoded with the same
+ * xstream converters used for the configuration files, but using the xstream binary format. The
+ * objects are stored in the order they were added to the catalog and are added back in the same
+ * order when reading, so references are resolved exactly as when loading the xml files.
+ * </p>
+ * <p>
+ * The snapshot records the path, modification time and size of each catalog configuration file,
+ * if any of them is added, removed or modified the snapshot is ignored and the catalog is loaded
+ * from the configuration files instead. The snapshot is also ignored when the persisted catalog
+ * classes change shape, see {@link #VERSION}, and it is not written at all if any of the
+ * configuration files failed to load.
+ * </p>
+ *
+ * @see GeoServerLoader#readCatalog(XStreamPersister)
+ */
+class CatalogSnapshot {
+
+    static Logger LOGGER = Logging.getLogger("org.geoserver");
+
+    /**
+     * System property enabling the catalog snapshot, disabled by default
+     */
+    public static final String ENABLED = "org.geoserver.catalog.snapshot";
+
+    /**
+     * Path of the snapshot file in the data directory
+     */
+    static final String SNAPSHOT = "catalog.snapshot";
+
+    static final int MAGIC = 0x47534353;
+
+    /**
+     * Version of the snapshot record layout, to be increased when it changes
+     */
+    static final int FORMAT = 2;
+
+    /**
+     * The classes of the objects stored in the snapshot
+     */
+    static final Class<?>[] PERSISTED_CLASSES = { WorkspaceInfoImpl.class,
+            NamespaceInfoImpl.class, StyleInfoImpl.class, DataStoreInfoImpl.class,
+            CoverageStoreInfoImpl.class, WMSStoreInfoImpl.class, FeatureTypeInfoImpl.class,
+            CoverageInfoImpl.class, WMSLayerInfoImpl.class, LayerInfoImpl.class,
+            LayerGroupInfoImpl.class, AttributeTypeInfoImpl.class, AttributionInfoImpl.class,
+            CoverageDimensionImpl.class, DataLinkInfoImpl.class, DimensionInfoImpl.class,
+            LegendInfoImpl.class, MetadataLinkInfoImpl.class };
+
+    /**
+     * Version of the snapshot, derived from the record layout and the fields of the persisted
+     * classes, so that a snapshot written by a different GeoServer version is never read back
+     */
+    static final long VERSION = version(FORMAT, PERSISTED_CLASSES);
+
+    /**
+     * The directories holding the catalog configuration files
+     */
+    static final String[] CATALOG_DIRS = { "workspaces", "styles", "layergroups" };
+
+    // record types
+    static final byte END = 0;
+
+    static final byte WORKSPACE = 1;
+
+    static final byte NAMESPACE = 2;
+
+    static final byte STYLE = 3;
+
+    static final byte STORE = 4;
+
+    static final byte RESOURCE = 5;
+
+    static final byte LAYER = 6;
+
+    static final byte LAYER_GROUP = 7;
+
+    static final byte DEFAULT_WORKSPACE = 8;
+
+    static final byte DEFAULT_NAMESPACE = 9;
+
+    static final byte DEFAULT_DATASTORE = 10;
+
+    GeoServerResourceLoader resourceLoader;
+
+    XStreamPersisterFactory xpf;
+
+    CatalogSnapshot(GeoServerResourceLoader resourceLoader, XStreamPersisterFactory xpf) {
+        this.resourceLoader = resourceLoader;
+        this.xpf = xpf;
+    }
+
+    static boolean isEnabled() {
+        return Boolean.getBoolean(ENABLED);
+    }
+
+    /**
+     * Computes the snapshot version out of the record layout and the non static, non transient
+     * fields of the given classes and their superclasses
+     */
+    static long version(int format, Class<?>... classes) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(format);
+        for (Class<?> clazz : classes) {
+            for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass()) {
+                List<String> fields = new ArrayList<String>();
+                for (Field field : c.getDeclaredFields()) {
+                    int modifiers = field.getModifiers();
+                    if (!Modifier.isStatic(modifiers) && !Modifier.isTransient(modifiers)) {
+                        fields.add(field.getName() + ":" + field.getGenericType());
+                    }
+                }
+                // the declared fields order is not specified
+                Collections.sort(fields);
+                sb.append('|').append(c.getName()).append(fields);
+            }
+        }
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(
+                    sb.toString().getBytes("UTF-8"));
+            return ByteBuffer.wrap(digest).getLong();
+        } catch (Exception e) {
+            // MD5 and UTF-8 are always available
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Collects the modification time and size of the catalog configuration files, by path
+     */
+    SortedMap<String, long[]> fingerprint() {
+        SortedMap<String, long[]> fingerprint = new TreeMap<String, long[]>();
+        for (String dir : CATALOG_DIRS) {
+            fingerprint(resourceLoader.get(dir), fingerprint);
+        }
+        return fingerprint;
+    }
+
+    void fingerprint(Resource resource, SortedMap<String, long[]> fingerprint) {
+        if (resource.getType() == Type.DIRECTORY) {
+            for (Resource child : resource.list()) {
+                fingerprint(child, fingerprint);
+            }
+        } else if (resource.getType() == Type.RESOURCE && resource.name().endsWith(".xml")) {
+            fingerprint.put(resource.path(),
+                    new long[] { resource.lastmodified(), resource.file().length() });
+        }
+    }
+
+    /**
+     * Reads the fingerprint stored in the snapshot and compares it with the current one
+     */
+    boolean matches(DataInputStream in, SortedMap<String, long[]> fingerprint)
+            throws IOException {
+        int size = in.readInt();
+        if (size != fingerprint.size()) {
+            return false;
+        }
+        for (Map.Entry<String, long[]> entry : fingerprint.entrySet()) {
+            if (!entry.getKey().equals(in.readUTF())) {
+                return false;
+            }
+            long[] stored = { in.readLong(), in.readLong() };
+            if (!Arrays.equals(stored, entry.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads the catalog from the snapshot.
+     *
+     * @param fingerprint The current fingerprint of the configuration files
+     *
+     * @return The catalog, or null if the snapshot is missing, out of date or could not be read
+     */
+    CatalogImpl read(SortedMap<String, long[]> fingerprint) {
+        Resource resource = resourceLoader.get(SNAPSHOT);
+        if (resource.getType() != Type.RESOURCE) {
+            LOGGER.info("No catalog snapshot found, loading the catalog configuration files");
+            return null;
+        }
+
+        long start = System.currentTimeMillis();
+        CatalogImpl catalog = new CatalogImpl();
+        catalog.setResourceLoader(resourceLoader);
+        XStreamPersister xp = xpf.createXMLPersister();
+        xp.setCatalog(catalog);
+        xp.setUnwrapNulls(false);
+
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(
+                    resource.in())));
+            try {
+                if (in.readInt() != MAGIC || in.readLong() != VERSION
+                        || !matches(in, fingerprint)) {
+                    LOGGER.info("Catalog snapshot is out of date, loading the catalog "
+                            + "configuration files");
+                    return null;
+                }
+
+                byte type;
+                while ((type = in.readByte()) != END) {
+                    read(type, in, catalog, xp);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Failed to read the catalog snapshot, loading the catalog "
+                    + "configuration files", e);
+            return null;
+        }
+
+        xp.setUnwrapNulls(true);
+        catalog.resolve();
+        LOGGER.info("Loaded the catalog snapshot in " + (System.currentTimeMillis() - start)
+                + " ms");
+        return catalog;
+    }
+
+    void read(byte type, DataInputStream in, Catalog catalog, XStreamPersister xp)
+            throws IOException {
+        switch (type) {
+        case DEFAULT_WORKSPACE:
+            catalog.setDefaultWorkspace(catalog.getWorkspace(in.readUTF()));
+            break;
+        case DEFAULT_NAMESPACE:
+            catalog.setDefaultNamespace(catalog.getNamespace(in.readUTF()));
+            break;
+        case DEFAULT_DATASTORE:
+            WorkspaceInfo ws = catalog.getWorkspace(in.readUTF());
+            catalog.setDefaultDataStore(ws, catalog.getDataStore(in.readUTF()));
+            break;
+        case WORKSPACE:
+            catalog.add((WorkspaceInfo) unmarshal(in, xp));
+            break;
+        case NAMESPACE:
+            catalog.add((NamespaceInfo) unmarshal(in, xp));
+            break;
+        case STYLE:
+            catalog.add((StyleInfo) unmarshal(in, xp));
+            break;
+        case STORE:
+            catalog.add((StoreInfo) unmarshal(in, xp));
+            break;
+        case RESOURCE:
+            catalog.add((ResourceInfo) unmarshal(in, xp));
+            break;
+        case LAYER:
+            catalog.add((LayerInfo) unmarshal(in, xp));
+            break;
+        case LAYER_GROUP:
+            catalog.add((LayerGroupInfo) unmarshal(in, xp));
+            break;
+        default:
+            throw new IOException("Unknown record type " + type + " in catalog snapshot");
+        }
+    }
+
+    Object unmarshal(DataInputStream in, XStreamPersister xp) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return xp.getXStream().unmarshal(new BinaryStreamReader(new ByteArrayInputStream(bytes)));
+    }
+
+    /**
+     * Writes the snapshot of the catalog
+     *
+     * @param catalog The catalog, as just loaded from the configuration files
+     * @param fingerprint The fingerprint of the configuration files the catalog was loaded from
+     */
+    void write(Catalog catalog, SortedMap<String, long[]> fingerprint) {
+        Resource resource = resourceLoader.get(SNAPSHOT);
+        XStreamPersister xp = xpf.createXMLPersister();
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new GZIPOutputStream(resource.out())));
+            try {
+                out.writeInt(MAGIC);
+                out.writeLong(VERSION);
+                out.writeInt(fingerprint.size());
+                for (Map.Entry<String, long[]> entry : fingerprint.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeLong(entry.getValue()[0]);
+                    out.writeLong(entry.getValue()[1]);
+                }
+
+                for (WorkspaceInfo ws : catalog.getWorkspaces()) {
+                    write(WORKSPACE, ws, out, xp);
+                }
+                for (NamespaceInfo ns : catalog.getNamespaces()) {
+                    write(NAMESPACE, ns, out, xp);
+                }
+                for (StyleInfo s : catalog.getStyles()) {
+                    write(STYLE, s, out, xp);
+                }
+                for (StoreInfo s : catalog.getStores(StoreInfo.class)) {
+                    write(STORE, s, out, xp);
+                }
+                for (ResourceInfo r : catalog.getResources(ResourceInfo.class)) {
+                    write(RESOURCE, r, out, xp);
+                }
+                for (LayerInfo l : catalog.getLayers()) {
+                    write(LAYER, l, out, xp);
+                }
+                for (LayerGroupInfo lg : catalog.getLayerGroups()) {
+                    write(LAYER_GROUP, lg, out, xp);
+                }
+
+                if (catalog.getDefaultWorkspace() != null) {
+                    out.writeByte(DEFAULT_WORKSPACE);
+                    out.writeUTF(catalog.getDefaultWorkspace().getId());
+                }
+                if (catalog.getDefaultNamespace() != null) {
+                    out.writeByte(DEFAULT_NAMESPACE);
+                    out.writeUTF(catalog.getDefaultNamespace().getId());
+                }
+                for (WorkspaceInfo ws : catalog.getWorkspaces()) {
+                    DataStoreInfo ds = catalog.getDefaultDataStore(ws);
+                    if (ds != null) {
+                        out.writeByte(DEFAULT_DATASTORE);
+                        out.writeUTF(ws.getId());
+                        out.writeUTF(ds.getId());
+                    }
+                }
+                out.writeByte(END);
+            } finally {
+                out.close();
+            }
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Failed to write the catalog snapshot", e);
+            resource.delete();
+        }
+    }
+
+    void write(byte type, Object info, DataOutputStream out, XStreamPersister xp)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BinaryStreamWriter writer = new BinaryStreamWriter(bytes);
+        xp.getXStream().marshal(XStreamPersister.unwrapProxies(info), writer);
+        writer.flush();
+
+        out.writeByte(type);
+        out.writeInt(bytes.size());
+        bytes.writeTo(out);
+    }
+}
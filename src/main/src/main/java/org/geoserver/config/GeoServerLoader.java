@@ -16,6 +16,15 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -25,21 +34,20 @@ import org.apache.commons.io.filefilter.IOFileFilter;
 import org.apache.commons.io.filefilter.SuffixFileFilter;
 import org.geoserver.catalog.Catalog;
 import org.geoserver.catalog.CatalogFactory;
-import org.geoserver.catalog.CoverageInfo;
 import org.geoserver.catalog.CoverageStoreInfo;
 import org.geoserver.catalog.DataStoreInfo;
-import org.geoserver.catalog.FeatureTypeInfo;
 import org.geoserver.catalog.LayerGroupInfo;
 import org.geoserver.catalog.LayerInfo;
 import org.geoserver.catalog.NamespaceInfo;
+import org.geoserver.catalog.ResourceInfo;
 import org.geoserver.catalog.ResourcePool;
+import org.geoserver.catalog.StoreInfo;
 import org.geoserver.catalog.StyleInfo;
-import org.geoserver.catalog.WMSLayerInfo;
-import org.geoserver.catalog.WMSStoreInfo;
 import org.geoserver.catalog.WorkspaceInfo;
 import org.geoserver.catalog.Wrapper;
 import org.geoserver.catalog.event.CatalogListener;
 import org.geoserver.catalog.impl.CatalogImpl;
+import org.geoserver.catalog.impl.ModificationProxy;
 import org.geoserver.catalog.util.LegacyCatalogImporter;
 import org.geoserver.catalog.util.LegacyCatalogReader;
 import org.geoserver.catalog.util.LegacyFeatureTypeInfoReader;
@@ -66,9 +74,25 @@ public abstract class GeoServerLoader {
 
     static Logger LOGGER = Logging.getLogger( "org.geoserver" );
     
+    /**
+     * System property setting the number of threads used to parse the catalog configuration
+     * files at startup, defaults to the number of available processors
+     */
+    public static final String LOADING_THREADS = "org.geoserver.catalog.loadingThreads";
+    
     protected GeoServerResourceLoader resourceLoader;
     GeoServer geoserver;
     XStreamPersisterFactory xpf = new XStreamPersisterFactory();
+
+    /**
+     * Number of catalog objects that failed to load while reading the configuration files
+     */
+    final AtomicInteger loadErrors = new AtomicInteger();
+
+    /**
+     * Whether the last catalog read came from the catalog snapshot
+     */
+    boolean catalogFromSnapshot;
     
     //JD: this is a hack for the moment, it is used only to maintain tests since the test setup relies
     // on the old data directory structure, once the tests have been ported to the new structure
@@ -238,8 +262,71 @@ public abstract class GeoServerLoader {
     
     /**
      * Reads the catalog from disk.
+     * <p>
+     * When the catalog snapshot is enabled (see {@link CatalogSnapshot#ENABLED}) and up to date
+     * the catalog is read from it, otherwise it is read from the configuration files and the 
+     * snapshot is written for the next startup.
+     * </p>
      */
     Catalog readCatalog( XStreamPersister xp ) throws Exception {
+        CatalogSnapshot snapshot = null;
+        SortedMap<String, long[]> fingerprint = null;
+        CatalogImpl catalog = null;
+        catalogFromSnapshot = false;
+        if (CatalogSnapshot.isEnabled()) {
+            snapshot = new CatalogSnapshot(resourceLoader, xpf);
+            fingerprint = snapshot.fingerprint();
+            catalog = snapshot.read(fingerprint);
+            if (catalog != null) {
+                xp.setCatalog(catalog);
+                catalogFromSnapshot = true;
+            }
+        }
+        
+        if (catalog == null) {
+            loadErrors.set(0);
+            catalog = readCatalogFiles(xp);
+            if (snapshot != null) {
+                if (loadErrors.get() == 0) {
+                    snapshot.write(catalog, fingerprint);
+                } else {
+                    // don't make the errors stick, the next startup has to try again
+                    LOGGER.warning("Not writing the catalog snapshot, " + loadErrors.get()
+                            + " catalog objects failed to load");
+                }
+            }
+        }
+        
+        checkDataStores(catalog);
+        return catalog;
+    }
+
+    /**
+     * Connects to the enabled data stores, disabling the ones that fail to connect
+     */
+    void checkDataStores(Catalog catalog) {
+        for (DataStoreInfo info : catalog.getDataStores()) {
+            // work against the raw object, the state change is not to be persisted
+            DataStoreInfo ds = ModificationProxy.unwrap(info);
+            if (ds.isEnabled()) {
+                try {
+                    ds.getDataStore(null);
+                }
+                catch( Throwable t ) {
+                    LOGGER.warning( "Error connecting to '" + ds.getName() + "'. Disabling." );
+                    LOGGER.log( Level.INFO, "", t );
+                    
+                    ds.setError(t);
+                    ds.setEnabled(false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the catalog from the configuration files in the data directory.
+     */
+    CatalogImpl readCatalogFiles( XStreamPersister xp ) throws Exception {
         CatalogImpl catalog = new CatalogImpl();
         catalog.setResourceLoader(resourceLoader);
         xp.setCatalog( catalog );
@@ -263,6 +350,7 @@ public abstract class GeoServerLoader {
                 }
                 catch( Exception e ) {
                     LOGGER.log(Level.WARNING, "Failed to load default workspace", e);
+                    loadErrors.incrementAndGet();
                 }
             }
             else {
@@ -282,6 +370,7 @@ public abstract class GeoServerLoader {
                 }
                 catch( Exception e ) {
                     LOGGER.log( Level.WARNING, "Failed to load workspace '" + wsd.getName() + "'" , e );
+                    loadErrors.incrementAndGet();
                     continue;
                 }
                 
@@ -297,6 +386,7 @@ public abstract class GeoServerLoader {
                     }
                     catch( Exception e ) {
                         LOGGER.log( Level.WARNING, "Failed to load namespace for '" + wsd.getName() + "'" , e );
+                        loadErrors.incrementAndGet();
                     }
                 }
                 
@@ -332,177 +422,17 @@ public abstract class GeoServerLoader {
                 }
             }
             
-            for ( File wsd : list(workspaces, DirectoryFileFilter.INSTANCE ) ) {
-                
-                //load the stores for this workspace
-                for ( File sd : list(wsd, DirectoryFileFilter.INSTANCE) ) {
-                    File f = new File( sd, "datastore.xml");
-                    if ( f.exists() ) {
-                        //load as a datastore
-                        DataStoreInfo ds = null;
-                        try {    
-                            ds = depersist( xp, f, DataStoreInfo.class );
-                            catalog.add( ds );
-                            
-                            LOGGER.info( "Loaded data store '" + ds.getName() +"'");
-                            
-                            if (ds.isEnabled()) {
-                                //connect to the datastore to determine if we should disable it
-                                try {
-                                    ds.getDataStore(null);
-                                }
-                                catch( Throwable t ) {
-                                    LOGGER.warning( "Error connecting to '" + ds.getName() + "'. Disabling." );
-                                    LOGGER.log( Level.INFO, "", t );
-                                    
-                                    ds.setError(t);
-                                    ds.setEnabled(false);
-                                }
-                            }
-                        }
-                        catch( Exception e ) {
-                            LOGGER.log( Level.WARNING, "Failed to load data store '" + sd.getName() +"'", e);
-                            continue;
-                        }
-                        
-                        //load feature types
-                        for ( File ftd : list(sd,DirectoryFileFilter.INSTANCE) ) {
-                            f = new File( ftd, "featuretype.xml" );
-                            if( f.exists() ) {
-                                FeatureTypeInfo ft = null;
-                                try {
-                                    ft = depersist(xp,f,FeatureTypeInfo.class);
-                                    catalog.add(ft);
-                                }
-                                catch( Exception e ) {
-                                    LOGGER.log( Level.WARNING, "Failed to load feature type '" + ftd.getName() +"'", e);
-                                    continue;
-                                }
-                                
-                                LOGGER.info( "Loaded feature type '" + ds.getName() +"'");
-                                
-                                f = new File( ftd, "layer.xml" );
-                                if ( f.exists() ) {
-                                    try {
-                                        LayerInfo l = depersist(xp, f, LayerInfo.class );
-                                        catalog.add( l );
-                                        
-                                        LOGGER.info( "Loaded layer '" + l.getName() + "'" );
-                                    }
-                                    catch( Exception e ) {
-                                        LOGGER.log( Level.WARNING, "Failed to load layer for feature type '" + ft.getName() +"'", e);
-                                    }
-                                }
-                            }
-                            else {
-                                LOGGER.warning( "Ignoring feature type directory " + ftd.getAbsolutePath() );
-                            }
-                        }
-                    } else {
-                        //look for a coverage store
-                        f = new File( sd, "coveragestore.xml" );
-                        if ( f.exists() ) {
-                            CoverageStoreInfo cs = null;
-                            try {
-                                cs = depersist( xp, f, CoverageStoreInfo.class );
-                                catalog.add( cs );
-                            
-                                LOGGER.info( "Loaded coverage store '" + cs.getName() +"'");
-                            }
-                            catch( Exception e ) {
-                                LOGGER.log( Level.WARNING, "Failed to load coverage store '" + sd.getName() +"'", e);
-                                continue;
-                            }
-                            
-                            //load coverages
-                            for ( File cd : list(sd,DirectoryFileFilter.INSTANCE) ) {
-                                f = new File( cd, "coverage.xml" );
-                                if( f.exists() ) {
-                                    CoverageInfo c = null;
-                                    try {
-                                        c = depersist(xp,f,CoverageInfo.class);
-                                        catalog.add( c );
-                                        
-                                        LOGGER.info( "Loaded coverage '" + cs.getName() +"'");
-                                    }
-                                    catch( Exception e ) {
-                                        LOGGER.log( Level.WARNING, "Failed to load coverage '" + cd.getName() +"'", e);
-                                        continue;
-                                    }
-                                    
-                                    f = new File( cd, "layer.xml" );
-                                    if ( f.exists() ) {
-                                        try {
-                                            LayerInfo l = depersist(xp, f, LayerInfo.class );
-                                            catalog.add( l );
-                                            
-                                            LOGGER.info( "Loaded layer '" + l.getName() + "'" );
-                                        }
-                                        catch( Exception e ) {
-                                            LOGGER.log( Level.WARNING, "Failed to load layer coverage '" + c.getName() +"'", e);
-                                        }
-                                    }
-                                }
-                                else {
-                                    LOGGER.warning( "Ignoring coverage directory " + cd.getAbsolutePath() );
-                                }
-                            }
-                        } else {
-                            f = new File( sd, "wmsstore.xml" );
-                            if(f.exists()) {
-                                WMSStoreInfo wms = null;
-                                try {
-                                    wms = depersist( xp, f, WMSStoreInfo.class );
-                                    catalog.add( wms );
-                                
-                                    LOGGER.info( "Loaded wmsstore '" + wms.getName() +"'");
-                                } catch( Exception e ) {
-                                    LOGGER.log( Level.WARNING, "Failed to load wms store '" + sd.getName() +"'", e);
-                                    continue;
-                                }
-                                
-                                //load wms layers
-                                for ( File cd : list(sd,DirectoryFileFilter.INSTANCE) ) {
-                                    f = new File( cd, "wmslayer.xml" );
-                                    if( f.exists() ) {
-                                        WMSLayerInfo wl = null;
-                                        try {
-                                            wl = depersist(xp,f,WMSLayerInfo.class);
-                                            catalog.add( wl );
-                                            
-                                            LOGGER.info( "Loaded wms layer'" + wl.getName() +"'");
-                                        }
-                                        catch( Exception e ) {
-                                            LOGGER.log( Level.WARNING, "Failed to load wms layer '" + cd.getName() +"'", e);
-                                            continue;
-                                        }
-                                        
-                                        f = new File( cd, "layer.xml" );
-                                        if ( f.exists() ) {
-                                            try {
-                                                LayerInfo l = depersist(xp, f, LayerInfo.class );
-                                                catalog.add( l );
-                                                
-                                                LOGGER.info( "Loaded layer '" + l.getName() + "'" );
-                                            }
-                                            catch( Exception e ) {
-                                                LOGGER.log( Level.WARNING, "Failed to load cascaded wms layer '" + wl.getName() +"'", e);
-                                            }
-                                        }
-                                    }
-                                    else {
-                                        LOGGER.warning( "Ignoring coverage directory " + cd.getAbsolutePath() );
-                                    }
-                                }
-                            } else if(!isConfigDirectory(sd)) {
-                                LOGGER.warning( "Ignoring store directory '" + sd.getName() +  "'");
-                                continue;
-                            }
-                        }
-                    }
+            ExecutorService executor = createLoadingExecutor();
+            try {
+                loadStoresResourcesAndLayers(workspaces, catalog, xp, executor);
+            } finally {
+                if (executor != null) {
+                    executor.shutdownNow();
                 }
+            }
 
-                //load hte layer groups for this workspace
+            //load the layer groups for each workspace
+            for ( File wsd : list(workspaces, DirectoryFileFilter.INSTANCE ) ) {
                 File layergroups = resourceLoader.find(wsd, "layergroups");
                 if (layergroups != null) {
                     loadLayerGroups(layergroups, catalog, xp);
@@ -525,6 +455,216 @@ public abstract class GeoServerLoader {
         return catalog;
     }
     
+    /**
+     * Creates the executor used to parse the store, resource and layer configuration files, or
+     * returns null if loading should happen on the calling thread. The number of threads is
+     * controlled by the {@link #LOADING_THREADS} system property.
+     */
+    ExecutorService createLoadingExecutor() {
+        int threads = Integer.getInteger(LOADING_THREADS, Runtime.getRuntime().availableProcessors());
+        if (threads <= 1) {
+            return null;
+        }
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "GeoServerCatalogLoader-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Loads stores, resources and layers one tier at a time. The configuration files of each tier
+     * are parsed concurrently, the parsed objects are then added to the catalog in data directory
+     * order on the calling thread, so that the references of the next tier can be resolved.
+     */
+    void loadStoresResourcesAndLayers(File workspaces, final Catalog catalog,
+            XStreamPersister xp, ExecutorService executor) throws Exception {
+        //stores
+        long start = System.currentTimeMillis();
+        List<File> storeFiles = new ArrayList<File>();
+        for ( File wsd : list(workspaces, DirectoryFileFilter.INSTANCE ) ) {
+            for ( File sd : list(wsd, DirectoryFileFilter.INSTANCE) ) {
+                File f = storeFile(sd);
+                if (f != null) {
+                    storeFiles.add(f);
+                } else if (!isConfigDirectory(sd)) {
+                    LOGGER.warning( "Ignoring store directory '" + sd.getName() +  "'");
+                }
+            }
+        }
+        
+        List<File> resourceFiles = new ArrayList<File>();
+        List<StoreInfo> stores = depersistAll(storeFiles, StoreInfo.class, xp, executor);
+        for (int i = 0; i < stores.size(); i++) {
+            StoreInfo store = stores.get(i);
+            File sd = storeFiles.get(i).getParentFile();
+            if (store == null) {
+                continue;
+            }
+            try {
+                catalog.add(store);
+                LOGGER.info( "Loaded store '" + store.getName() +"'");
+            }
+            catch( Exception e ) {
+                LOGGER.log( Level.WARNING, "Failed to load store '" + sd.getName() +"'", e);
+                loadErrors.incrementAndGet();
+                continue;
+            }
+
+            
+            String resourceFileName = resourceFileName(store);
+            for ( File rd : list(sd, DirectoryFileFilter.INSTANCE) ) {
+                File f = new File( rd, resourceFileName );
+                if ( f.exists() ) {
+                    resourceFiles.add(f);
+                }
+                else {
+                    LOGGER.warning( "Ignoring resource directory " + rd.getAbsolutePath() );
+                }
+            }
+        }
+        logPhase("stores", stores.size(), start);
+        
+        //resources
+        start = System.currentTimeMillis();
+        List<File> layerFiles = new ArrayList<File>();
+        List<ResourceInfo> resources = depersistAll(resourceFiles, ResourceInfo.class, xp, executor);
+        for (int i = 0; i < resources.size(); i++) {
+            ResourceInfo resource = resources.get(i);
+            File rd = resourceFiles.get(i).getParentFile();
+            if (resource == null) {
+                continue;
+            }
+            try {
+                catalog.add(resource);
+                LOGGER.info( "Loaded resource '" + resource.getName() +"'");
+            }
+            catch( Exception e ) {
+                LOGGER.log( Level.WARNING, "Failed to load resource '" + rd.getName() +"'", e);
+                loadErrors.incrementAndGet();
+                continue;
+            }
+            
+            File f = new File( rd, "layer.xml" );
+            if ( f.exists() ) {
+                layerFiles.add(f);
+            }
+        }
+        logPhase("resources", resources.size(), start);
+        
+        //layers
+        start = System.currentTimeMillis();
+        List<LayerInfo> layers = depersistAll(layerFiles, LayerInfo.class, xp, executor);
+        for (int i = 0; i < layers.size(); i++) {
+            LayerInfo l = layers.get(i);
+            if (l == null) {
+                continue;
+            }
+            try {
+                catalog.add( l );
+                LOGGER.info( "Loaded layer '" + l.getName() + "'" );
+            }
+            catch( Exception e ) {
+                LOGGER.log( Level.WARNING, "Failed to load layer from '" + layerFiles.get(i) + "'", e);
+                loadErrors.incrementAndGet();
+            }
+        }
+        logPhase("layers", layers.size(), start);
+    }
+
+    /**
+     * Returns the store configuration file contained in the directory, or null if the directory
+     * does not contain a store.
+     */
+    File storeFile(File sd) {
+        for (String name : new String[] { "datastore.xml", "coveragestore.xml", "wmsstore.xml" }) {
+            File f = new File(sd, name);
+            if (f.exists()) {
+                return f;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the name of the configuration file of the resources of the specified store
+     */
+    String resourceFileName(StoreInfo store) {
+        if (store instanceof DataStoreInfo) {
+            return "featuretype.xml";
+        } else if (store instanceof CoverageStoreInfo) {
+            return "coverage.xml";
+        } else {
+            return "wmslayer.xml";
+        }
+    }
+
+    void logPhase(String phase, int count, long start) {
+        LOGGER.info("Loaded " + count + " " + phase + " in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Depersists the files concurrently using the executor, or sequentially when the executor
+     * is null. The returned list has the same order as the files, with a null value for each file
+     * that could not be parsed.
+     * <p>
+     * The calling thread uses the persister itself, each loading thread uses its own copy of it,
+     * see {@link XStreamPersister#copySettings(XStreamPersister)}. References to objects already
+     * added to the persister catalog are resolved while parsing.
+     * </p>
+     */
+    <T> List<T> depersistAll(List<File> files, final Class<T> clazz, final XStreamPersister xp,
+            ExecutorService executor) throws InterruptedException {
+        final Thread caller = Thread.currentThread();
+        final ThreadLocal<XStreamPersister> persisters = new ThreadLocal<XStreamPersister>() {
+            @Override
+            protected XStreamPersister initialValue() {
+                if (Thread.currentThread() == caller) {
+                    return xp;
+                }
+                XStreamPersister copy = xpf.createXMLPersister();
+                copy.copySettings(xp);
+                return copy;
+            }
+        };
+        
+        List<Future<T>> futures = new ArrayList<Future<T>>(files.size());
+        for (final File f : files) {
+            Callable<T> task = new Callable<T>() {
+                @Override
+                public T call() throws Exception {
+                    return depersist(persisters.get(), f, clazz);
+                }
+            };
+            if (executor != null) {
+                futures.add(executor.submit(task));
+            } else {
+                FutureTask<T> future = new FutureTask<T>(task);
+                future.run();
+                futures.add(future);
+            }
+        }
+        
+        List<T> result = new ArrayList<T>(files.size());
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                result.add(futures.get(i).get());
+            } catch (ExecutionException e) {
+                LOGGER.log(Level.WARNING, "Failed to load " + clazz.getSimpleName() + " from '"
+                        + files.get(i) + "'", e.getCause());
+                loadErrors.incrementAndGet();
+                result.add(null);
+            }
+        }
+        return result;
+    }
+
     /**
      * Some config directories in GeoServer are used to store workspace specific configurations, 
      * identify them so that we don't log complaints about their existence
@@ -685,6 +825,7 @@ public abstract class GeoServerLoader {
             }
             catch( Exception e ) {
                 LOGGER.log( Level.WARNING, "Failed to load style from file '" + sf.getName() + "'" , e );
+                loadErrors.incrementAndGet();
             }
         }
     }
@@ -703,6 +844,7 @@ public abstract class GeoServerLoader {
             }
             catch( Exception e ) {
                 LOGGER.log( Level.WARNING, "Failed to load layer group '" + lgf.getName() + "'", e );
+                loadErrors.incrementAndGet();
             }
         }
     }
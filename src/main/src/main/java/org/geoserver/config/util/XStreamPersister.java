@@ -354,6 +354,11 @@ public class XStreamPersister {
         xs.omitField(impl(DefaultCatalogFacade.class), "layers");
         xs.omitField(impl(DefaultCatalogFacade.class), "maps");
         xs.omitField(impl(DefaultCatalogFacade.class), "layerGroups");
+        // id indexes are rebuilt on resolve
+        for (String index : new String[] { "storesById", "resourcesById", "layersById",
+                "mapsById", "layerGroupsById", "namespacesById", "workspacesById", "stylesById" }) {
+            xs.omitField(impl(DefaultCatalogFacade.class), index);
+        }
         
         xs.registerLocalConverter(DefaultCatalogFacade.class, "stores",
                 new StoreMultiHashMapConverter());
@@ -522,6 +527,24 @@ public class XStreamPersister {
         return encryptPasswordFields;
     }
 
+    /**
+     * Copies the settings of another persister: the catalog and geoserver used to resolve
+     * references, the callback, the reference, null and password handling and the logging level.
+     * <p>
+     * The aliases, converters and omitted fields of the other persister xstream are not copied,
+     * the persister is expected to come out of the same {@link XStreamPersisterFactory}.
+     * </p>
+     */
+    public void copySettings(XStreamPersister other) {
+        this.catalog = other.catalog;
+        this.geoserver = other.geoserver;
+        this.callback = other.callback;
+        this.referenceByName = other.referenceByName;
+        this.unwrapNulls = other.unwrapNulls;
+        this.encryptPasswordFields = other.encryptPasswordFields;
+        this.forceLevel = other.forceLevel;
+    }
+
     /**
      * Sets the minimum level at which messages should be logged by the persister.
      * <p>
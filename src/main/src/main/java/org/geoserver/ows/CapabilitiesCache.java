@@ -0,0 +1,232 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.ows;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.WorkspaceInfo;
+import org.geoserver.config.GeoServer;
+import org.geoserver.platform.GeoServerExtensions;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+/**
+ * Cache of the encoded GetCapabilities documents, for servers with many layers, where encoding the
+ * capabilities can take seconds.
+ * <p>
+ * Caching is disabled by default, and enabled by setting the {@link #TIME_TO_LIVE} system
+ * property to the number of seconds a document stays valid. Documents are cached by update
+ * sequence, request URL and parameters (service, version, namespace and section filters, and so
+ * on), virtual service, user and roles, and are all dropped as soon as the update sequence
+ * changes, that is, on any catalog or configuration change. The time to live bounds how long
+ * information not tracked by the update sequence, like the time and elevation domains read from
+ * the data, can be out of date.
+ * </p>
+ * <p>
+ * Only GET requests are cached. The cache holds at most {@link #MAX_CACHED_BYTES}, evicting the
+ * least recently used documents first.
+ * </p>
+ */
+public class CapabilitiesCache {
+
+    /**
+     * System property setting how long, in seconds, the capabilities documents are cached, zero
+     * or negative values disable the cache
+     */
+    public static final String TIME_TO_LIVE = "org.geoserver.capabilitiesCacheTTL";
+
+    static final long MAX_CACHED_BYTES = 64 * 1024 * 1024;
+
+    /**
+     * Encodes a capabilities document
+     */
+    public interface Encoder {
+        void encode(OutputStream output) throws IOException;
+    }
+
+    /**
+     * Writes the capabilities document for the current request, from the cache if available,
+     * otherwise using the encoder
+     */
+    public static void write(OutputStream output, Encoder encoder) throws IOException {
+        CapabilitiesCache cache = GeoServerExtensions.bean(CapabilitiesCache.class);
+        if (cache == null) {
+            encoder.encode(output);
+        } else {
+            cache.write(Dispatcher.REQUEST.get(), output, encoder);
+        }
+    }
+
+    GeoServer geoServer;
+
+    final Map<String, CacheEntry> cache = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true);
+
+    long cachedBytes;
+
+    /**
+     * The update sequence the cached documents refer to
+     */
+    long updateSequence = -1;
+
+    AtomicLong hits = new AtomicLong();
+
+    AtomicLong misses = new AtomicLong();
+
+    public CapabilitiesCache(GeoServer geoServer) {
+        this.geoServer = geoServer;
+    }
+
+    void write(Request request, OutputStream output, Encoder encoder) throws IOException {
+        long timeToLive = Integer.getInteger(TIME_TO_LIVE, 0) * 1000l;
+        long sequence = geoServer.getGlobal().getUpdateSequence();
+        String key = timeToLive > 0 ? getKey(request, sequence) : null;
+        if (key == null) {
+            encoder.encode(output);
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        CacheEntry entry;
+        synchronized (cache) {
+            entry = cache.get(key);
+        }
+        if (entry != null && entry.expires > now) {
+            hits.incrementAndGet();
+            output.write(entry.document);
+            return;
+        }
+
+        misses.incrementAndGet();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        encoder.encode(bytes);
+        put(key, new CacheEntry(bytes.toByteArray(), now + timeToLive), sequence);
+        bytes.writeTo(output);
+    }
+
+    /**
+     * Returns the cache key for the request, or null if the request cannot be cached
+     */
+    String getKey(Request request, long sequence) {
+        if (request == null || !request.isGet() || request.isSOAP()
+                || request.getHttpRequest() == null) {
+            return null;
+        }
+        HttpServletRequest http = request.getHttpRequest();
+        StringBuilder sb = new StringBuilder();
+        sb.append(sequence).append('|').append(http.getRequestURL());
+
+        // parameters, sorted so that equivalent requests share the same key
+        if (request.getRawKvp() != null) {
+            Map<String, String> kvp = new TreeMap<String, String>();
+            for (Object o : request.getRawKvp().entrySet()) {
+                Map.Entry e = (Map.Entry) o;
+                Object value = e.getValue();
+                kvp.put(String.valueOf(e.getKey()).toUpperCase(),
+                        value instanceof Object[] ? Arrays.toString((Object[]) value) : String
+                                .valueOf(value));
+            }
+            sb.append('|').append(kvp);
+        }
+
+        WorkspaceInfo workspace = LocalWorkspace.get();
+        sb.append('|').append(workspace != null ? workspace.getName() : null);
+        LayerInfo layer = LocalLayer.get();
+        sb.append('|').append(layer != null ? layer.getName() : null);
+
+        Authentication user = SecurityContextHolder.getContext().getAuthentication();
+        if (user != null) {
+            sb.append('|').append(user.getName());
+            List<String> roles = new ArrayList<String>();
+            for (GrantedAuthority authority : user.getAuthorities()) {
+                roles.add(authority.getAuthority());
+            }
+            Collections.sort(roles);
+            sb.append('|').append(roles);
+        }
+        return sb.toString();
+    }
+
+    void put(String key, CacheEntry entry, long sequence) {
+        if (entry.document.length > MAX_CACHED_BYTES / 4) {
+            return;
+        }
+        synchronized (cache) {
+            if (sequence != updateSequence) {
+                if (sequence < updateSequence) {
+                    // built against an older configuration
+                    return;
+                }
+                // the configuration changed, all the cached documents are out of date
+                clearInternal();
+                updateSequence = sequence;
+            }
+            CacheEntry old = cache.put(key, entry);
+            if (old != null) {
+                cachedBytes -= old.document.length;
+            }
+            cachedBytes += entry.document.length;
+            Iterator<CacheEntry> it = cache.values().iterator();
+            while (cachedBytes > MAX_CACHED_BYTES && it.hasNext()) {
+                cachedBytes -= it.next().document.length;
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Removes all the cached documents
+     */
+    public void clear() {
+        synchronized (cache) {
+            clearInternal();
+        }
+    }
+
+    void clearInternal() {
+        cache.clear();
+        cachedBytes = 0;
+    }
+
+    /**
+     * The number of documents served by the cache
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * The number of documents that had to be encoded
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    static class CacheEntry {
+        byte[] document;
+
+        long expires;
+
+        CacheEntry(byte[] document, long expires) {
+            this.document = document;
+            this.expires = expires;
+        }
+    }
+}
@@ -46,6 +46,10 @@ public class SecuredFeatureTypeInfo extends DecoratingFeatureTypeInfo {
         super(info);
         this.policy = policy;
     }
+
+    public WrapperPolicy getWrapperPolicy() {
+        return policy;
+    }
     
     @Override
     public FeatureType getFeatureType() throws IOException {
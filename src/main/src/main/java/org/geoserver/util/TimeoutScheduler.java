@@ -0,0 +1,268 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geotools.util.logging.Logging;
+
+/**
+ * Runs request timeouts on a single shared thread, instead of a thread (or {@link java.util.Timer})
+ * per request.
+ * <p>
+ * Timeouts are kept in a hashed wheel: a ring of buckets, one per tick, each holding the timeouts
+ * expiring in that tick (possibly some rounds of the wheel later). Scheduling and cancelling cost
+ * constant time regardless of the number of pending timeouts, at the price of running them with
+ * the precision of a tick, which can be set with the {@link #TICK_DURATION} system property.
+ * </p>
+ * <p>
+ * The tasks are run by the wheel thread, so they have to be quick, like asking a renderer to stop.
+ * </p>
+ */
+public class TimeoutScheduler {
+
+    static final Logger LOGGER = Logging.getLogger(TimeoutScheduler.class);
+
+    /**
+     * System property setting the precision, in milliseconds, of the shared scheduler
+     */
+    public static final String TICK_DURATION = "org.geoserver.timeoutSchedulerTick";
+
+    static final int DEFAULT_TICK_DURATION = 100;
+
+    static final int WHEEL_SIZE = 512;
+
+    static final int PENDING = 0;
+
+    static final int CANCELLED = 1;
+
+    static final int EXPIRED = 2;
+
+    static TimeoutScheduler instance;
+
+    /**
+     * Returns the scheduler shared by all the services
+     */
+    public static synchronized TimeoutScheduler get() {
+        if (instance == null) {
+            instance = new TimeoutScheduler(Integer.getInteger(TICK_DURATION,
+                    DEFAULT_TICK_DURATION));
+        }
+        return instance;
+    }
+
+    /**
+     * Handle of a scheduled task
+     */
+    public interface Timeout {
+
+        /**
+         * Cancels the task, returns false if it has already been run
+         */
+        boolean cancel();
+
+        /**
+         * Returns true if the task has been run
+         */
+        boolean isExpired();
+    }
+
+    final long tickNanos;
+
+    final Queue<TimeoutTask> added = new ConcurrentLinkedQueue<TimeoutTask>();
+
+    /**
+     * The wheel buckets, only accessed by the wheel thread
+     */
+    final List<List<TimeoutTask>> wheel = new ArrayList<List<TimeoutTask>>(WHEEL_SIZE);
+
+    final Thread worker;
+
+    final long startTime;
+
+    volatile boolean shutdown;
+
+    AtomicLong scheduled = new AtomicLong();
+
+    AtomicLong fired = new AtomicLong();
+
+    AtomicLong cancelled = new AtomicLong();
+
+    AtomicLong lateCancellations = new AtomicLong();
+
+    TimeoutScheduler(long tickMillis) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(tickMillis, 1));
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel.add(new ArrayList<TimeoutTask>());
+        }
+        this.startTime = System.nanoTime();
+        this.worker = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                turnWheel();
+            }
+        }, "GeoServer timeout scheduler");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * Schedules the task to be run after the specified delay, unless cancelled before
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        if (shutdown) {
+            throw new IllegalStateException("The timeout scheduler has been shut down");
+        }
+        TimeoutTask timeout = new TimeoutTask(task, System.nanoTime() + unit.toNanos(delay));
+        added.add(timeout);
+        scheduled.incrementAndGet();
+        return timeout;
+    }
+
+    void turnWheel() {
+        long tick = 0;
+        while (!shutdown) {
+            // wait for the end of the current tick
+            long sleepNanos = startTime + (tick + 1) * tickNanos - System.nanoTime();
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    if (shutdown) {
+                        return;
+                    }
+                }
+                continue;
+            }
+
+            // place the new timeouts in their buckets
+            for (TimeoutTask timeout = added.poll(); timeout != null; timeout = added.poll()) {
+                if (timeout.state.get() != PENDING) {
+                    continue;
+                }
+                long expiryTick = Math.max((timeout.deadline - startTime) / tickNanos, tick);
+                timeout.rounds = (expiryTick - tick) / WHEEL_SIZE;
+                wheel.get((int) (expiryTick % WHEEL_SIZE)).add(timeout);
+            }
+
+            // and expire the ones in the current bucket
+            Iterator<TimeoutTask> it = wheel.get((int) (tick % WHEEL_SIZE)).iterator();
+            while (it.hasNext()) {
+                TimeoutTask timeout = it.next();
+                if (timeout.state.get() != PENDING) {
+                    it.remove();
+                } else if (timeout.rounds > 0) {
+                    timeout.rounds--;
+                } else {
+                    it.remove();
+                    timeout.expire();
+                }
+            }
+            tick++;
+        }
+    }
+
+    /**
+     * Stops the wheel thread, the pending timeouts will not be run
+     */
+    public void shutdown() {
+        shutdown = true;
+        worker.interrupt();
+    }
+
+    /**
+     * The number of timeouts scheduled and not yet run or cancelled
+     */
+    public long getPending() {
+        return scheduled.get() - fired.get() - cancelled.get();
+    }
+
+    /**
+     * The number of timeouts that have been run
+     */
+    public long getTimeoutsFired() {
+        return fired.get();
+    }
+
+    /**
+     * The number of timeouts cancelled before running
+     */
+    public long getCancelled() {
+        return cancelled.get();
+    }
+
+    /**
+     * The number of cancellations arriving after the timeout was already run, that is, of
+     * operations that did not complete in time
+     */
+    public long getLateCancellations() {
+        return lateCancellations.get();
+    }
+
+    class TimeoutTask implements Timeout {
+
+        final long deadline;
+
+        final AtomicInteger state = new AtomicInteger(PENDING);
+
+        /**
+         * Released on cancel, the task normally references request resources
+         */
+        volatile Runnable task;
+
+        /**
+         * Wheel rounds left before expiring, only accessed by the wheel thread
+         */
+        long rounds;
+
+        TimeoutTask(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public boolean cancel() {
+            if (state.compareAndSet(PENDING, CANCELLED)) {
+                task = null;
+                cancelled.incrementAndGet();
+                return true;
+            }
+            if (state.get() == EXPIRED) {
+                lateCancellations.incrementAndGet();
+            }
+            return false;
+        }
+
+        @Override
+        public boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+
+        void expire() {
+            if (!state.compareAndSet(PENDING, EXPIRED)) {
+                return;
+            }
+            fired.incrementAndGet();
+            Runnable r = task;
+            task = null;
+            try {
+                r.run();
+            } catch (Throwable t) {
+                LOGGER.log(Level.WARNING, "Timeout task failed", t);
+            }
+        }
+    }
+}
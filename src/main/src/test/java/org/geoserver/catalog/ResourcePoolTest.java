@@ -39,6 +39,7 @@ import org.geotools.data.DataAccess;
 import org.geotools.data.DataUtilities;
 import org.geotools.factory.GeoTools;
 import org.geotools.feature.NameImpl;
+import org.geotools.referencing.CRS;
 import org.geotools.resources.image.ImageUtilities;
 import org.geotools.styling.PolygonSymbolizer;
 import org.geotools.styling.Style;
@@ -106,6 +107,54 @@ public class ResourcePoolTest extends GeoServerSystemTestSupport {
         assertSame(ft1, ft3);
     }
     
+    @Test public void testCacheStatistics() throws Exception {
+        ResourcePool pool = ResourcePool.create(getCatalog());
+        FeatureTypeInfo info = getCatalog().getFeatureTypeByName(
+                MockData.LAKES.getNamespaceURI(), MockData.LAKES.getLocalPart());
+        pool.getFeatureType(info);
+        pool.getFeatureType(info);
+        
+        ResourcePool.CacheStatistics stats = pool.getCacheStatistics().get("featureType");
+        assertNotNull(stats);
+        assertEquals(1, stats.getMisses());
+        assertTrue(stats.getHits() >= 1);
+        assertEquals(1, stats.getSize());
+        assertEquals(1, stats.getLoads());
+        assertTrue(stats.getAverageLoadTime() > 0);
+        
+        StyleInfo style = getCatalog().getStyleByName("relative");
+        pool.getStyle(style);
+        pool.getStyle(style);
+        stats = pool.getCacheStatistics().get("style");
+        assertEquals(1, stats.getMisses());
+        assertEquals(1, stats.getHits());
+        assertEquals(1, stats.getLoads());
+    }
+
+    @Test public void testBoundedCache() throws Exception {
+        ResourcePool pool = ResourcePool.create(getCatalog());
+        ResourcePool.CRSCache cache = pool.new CRSCache(2);
+        cache.put("EPSG:4326", CRS.decode("EPSG:4326"));
+        cache.put("EPSG:3857", CRS.decode("EPSG:3857"));
+        assertNotNull(cache.get("EPSG:4326"));
+
+        // the least recently used entry goes
+        cache.put("EPSG:32632", CRS.decode("EPSG:32632"));
+        assertEquals(2, cache.size());
+        assertNull(cache.get("EPSG:3857"));
+        assertNotNull(cache.get("EPSG:4326"));
+        assertNotNull(cache.get("EPSG:32632"));
+
+        ResourcePool.CacheStatistics stats = cache.getStatistics();
+        assertEquals(1, stats.getEvictions());
+        assertEquals(3, stats.getHits());
+        assertEquals(1, stats.getMisses());
+
+        // explicit removals are not evictions
+        cache.remove("EPSG:4326");
+        assertEquals(1, stats.getEvictions());
+    }
+
     @Test public void testAttributeCache() throws Exception {
         final Catalog catalog = getCatalog();
         ResourcePool pool = ResourcePool.create(catalog);
@@ -700,6 +700,14 @@ public class CatalogImplTest {
         assertFalse( ds == ds2 );
         assertEquals( ds, ds2 );
     }
+
+    @Test
+    public void testGetStoreByIdWrongType() {
+        addDataStore();
+        
+        assertNotNull(catalog.getStore(ds.getId(), DataStoreInfo.class));
+        assertNull(catalog.getStore(ds.getId(), CoverageStoreInfo.class));
+    }
     
     @Test
     public void testGetDataStoreByName() {
@@ -1191,6 +1199,15 @@ public class CatalogImplTest {
         assertNotSame(l,l2);
         assertEquals( l, l2 );
     }
+
+    @Test
+    public void testGetLayerByIdAfterRemove() {
+        addLayer();
+        String id = l.getId();
+        
+        catalog.remove(l);
+        assertNull(catalog.getLayer(id));
+    }
     
     @Test
     public void testGetLayerByName() {
@@ -2442,6 +2459,27 @@ public class CatalogImplTest {
         assertEquals(naturalOrder.subList(1, 2),
                 Lists.newArrayList(catalog.list(LayerInfo.class, filter, offset, limit, null)));
     }
+
+    @Test
+    public void testListWrapsInModificationProxy() {
+        addLayer();
+
+        CloseableIterator<LayerInfo> it = catalog.list(LayerInfo.class, acceptAll());
+        try {
+            LayerInfo layer = it.next();
+            assertTrue(Proxy.isProxyClass(layer.getClass()));
+            assertTrue(Proxy.getInvocationHandler(layer) instanceof ModificationProxy);
+
+            // changes not saved must not leak into the catalog
+            layer.setPath("/notSaved");
+            assertNull(catalog.getLayer(l.getId()).getPath());
+        } finally {
+            it.close();
+        }
+
+        assertEquals(1, catalog.count(LayerInfo.class, equal("id", l.getId())));
+        assertEquals(0, catalog.count(LayerInfo.class, equal("id", "notAnId")));
+    }
         
     /**
      * This tests more advanced filters: multi-valued filters, opposite equations, field equations
@@ -12,6 +12,8 @@ import java.net.URL;
 import org.geoserver.catalog.Catalog;
 import org.geoserver.catalog.LayerGroupInfo;
 import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.ResourceInfo;
+import org.geoserver.catalog.StoreInfo;
 import org.geoserver.catalog.StyleInfo;
 import org.geoserver.catalog.impl.CatalogImpl;
 import org.geoserver.config.util.XStreamPersister;
@@ -19,6 +21,7 @@ import org.geoserver.config.util.XStreamPersisterFactory;
 import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.platform.GeoServerExtensionsHelper;
 import org.geoserver.platform.GeoServerResourceLoader;
+import org.geoserver.platform.resource.Resource;
 import org.geotools.data.DataUtilities;
 import org.geotools.styling.SLD;
 import org.geotools.styling.Style;
@@ -76,4 +79,112 @@ public class DefaultGeoServerLoaderTest {
         assertNotNull(((LayerGroupInfo)nestedLayerGroup.getLayers().get(0)).getLayers());
         assertTrue(nestedLayerGroup.getLayers().get(1) instanceof LayerInfo);
     }
+
+    @Test
+    public void testParallelLoadingSameAsSequential() throws Exception {
+        String threads = System.getProperty(GeoServerLoader.LOADING_THREADS);
+        try {
+            System.setProperty(GeoServerLoader.LOADING_THREADS, "1");
+            loader.readCatalog(catalog, xp);
+            
+            Catalog parallel = new CatalogImpl();
+            parallel.setResourceLoader(catalog.getResourceLoader());
+            System.setProperty(GeoServerLoader.LOADING_THREADS, "4");
+            loader.readCatalog(parallel, xp);
+
+            assertFalse(catalog.getLayers().isEmpty());
+            assertEquals(catalog.getStores(StoreInfo.class), parallel.getStores(StoreInfo.class));
+            assertEquals(catalog.getResources(ResourceInfo.class),
+                    parallel.getResources(ResourceInfo.class));
+            assertEquals(catalog.getLayers(), parallel.getLayers());
+            assertEquals(catalog.getLayerGroups(), parallel.getLayerGroups());
+        } finally {
+            if (threads == null) {
+                System.clearProperty(GeoServerLoader.LOADING_THREADS);
+            } else {
+                System.setProperty(GeoServerLoader.LOADING_THREADS, threads);
+            }
+        }
+    }
+
+    @Test
+    public void testSnapshotSameAsConfigurationFiles() throws Exception {
+        String enabled = System.getProperty(CatalogSnapshot.ENABLED);
+        try {
+            System.setProperty(CatalogSnapshot.ENABLED, "true");
+            // first load writes the snapshot, second one reads it back
+            loader.readCatalog(catalog, xp);
+            assertFalse(loader.catalogFromSnapshot);
+            assertTrue(catalog.getResourceLoader().get(CatalogSnapshot.SNAPSHOT).getType() 
+                    == Resource.Type.RESOURCE);
+
+            Catalog snapshot = new CatalogImpl();
+            snapshot.setResourceLoader(catalog.getResourceLoader());
+            loader.readCatalog(snapshot, xp);
+            assertTrue(loader.catalogFromSnapshot);
+
+            assertFalse(catalog.getLayers().isEmpty());
+            assertEquals(catalog.getWorkspaces(), snapshot.getWorkspaces());
+            assertEquals(catalog.getNamespaces(), snapshot.getNamespaces());
+            assertEquals(catalog.getStyles(), snapshot.getStyles());
+            assertEquals(catalog.getStores(StoreInfo.class), snapshot.getStores(StoreInfo.class));
+            assertEquals(catalog.getResources(ResourceInfo.class),
+                    snapshot.getResources(ResourceInfo.class));
+            assertEquals(catalog.getLayers(), snapshot.getLayers());
+            assertEquals(catalog.getLayerGroups(), snapshot.getLayerGroups());
+            assertEquals(catalog.getDefaultWorkspace(), snapshot.getDefaultWorkspace());
+        } finally {
+            catalog.getResourceLoader().get(CatalogSnapshot.SNAPSHOT).delete();
+            if (enabled == null) {
+                System.clearProperty(CatalogSnapshot.ENABLED);
+            } else {
+                System.setProperty(CatalogSnapshot.ENABLED, enabled);
+            }
+        }
+    }
+
+    @Test
+    public void testSnapshotVersionFollowsClassShapes() throws Exception {
+        assertEquals(CatalogSnapshot.VERSION, CatalogSnapshot.version(CatalogSnapshot.FORMAT,
+                CatalogSnapshot.PERSISTED_CLASSES));
+        // a different record layout or a different set of fields gives a different version
+        assertFalse(CatalogSnapshot.VERSION == CatalogSnapshot.version(
+                CatalogSnapshot.FORMAT + 1, CatalogSnapshot.PERSISTED_CLASSES));
+        assertFalse(CatalogSnapshot.version(CatalogSnapshot.FORMAT, SnapshotShape.class) == 
+                CatalogSnapshot.version(CatalogSnapshot.FORMAT, ExtendedSnapshotShape.class));
+    }
+
+    @Test
+    public void testSnapshotNotWrittenOnLoadErrors() throws Exception {
+        String enabled = System.getProperty(CatalogSnapshot.ENABLED);
+        DefaultGeoServerLoader failing = new DefaultGeoServerLoader(catalog.getResourceLoader()) {
+            @Override
+            CatalogImpl readCatalogFiles(XStreamPersister xp) throws Exception {
+                CatalogImpl result = super.readCatalogFiles(xp);
+                loadErrors.incrementAndGet();
+                return result;
+            }
+        };
+        try {
+            System.setProperty(CatalogSnapshot.ENABLED, "true");
+            failing.readCatalog(catalog, xp);
+            assertFalse(catalog.getResourceLoader().get(CatalogSnapshot.SNAPSHOT).getType() 
+                    == Resource.Type.RESOURCE);
+        } finally {
+            catalog.getResourceLoader().get(CatalogSnapshot.SNAPSHOT).delete();
+            if (enabled == null) {
+                System.clearProperty(CatalogSnapshot.ENABLED);
+            } else {
+                System.setProperty(CatalogSnapshot.ENABLED, enabled);
+            }
+        }
+    }
+
+    static class SnapshotShape {
+        String name;
+    }
+
+    static class ExtendedSnapshotShape extends SnapshotShape {
+        String title;
+    }
 }
@@ -81,6 +81,20 @@ public class XStreamPersisterTest {
         persister = new XStreamPersisterFactory().createXMLPersister();
     }
 
+    @Test
+    public void testCopySettings() throws Exception {
+        Catalog catalog = new CatalogImpl();
+        persister.setCatalog(catalog);
+        persister.setReferenceByName(true);
+        persister.setEncryptPasswordFields(false);
+
+        XStreamPersister copy = new XStreamPersisterFactory().createXMLPersister();
+        copy.copySettings(persister);
+        assertSame(catalog, copy.catalog);
+        assertTrue(copy.referenceByName);
+        assertFalse(copy.isEncryptPasswordFields());
+    }
+
     @Test 
     public void testGlobal() throws Exception {
         GeoServerInfo g1 = factory.createGlobal();
@@ -0,0 +1,98 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.geoserver.util.TimeoutScheduler.Timeout;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TimeoutSchedulerTest {
+
+    TimeoutScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        scheduler = new TimeoutScheduler(10);
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void testFire() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        long start = System.nanoTime();
+        Timeout timeout = scheduler.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        }, 50, TimeUnit.MILLISECONDS);
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertTrue(timeout.isExpired());
+        assertEquals(1, scheduler.getTimeoutsFired());
+
+        // cancelling after the fact is tracked
+        assertFalse(timeout.cancel());
+        assertEquals(1, scheduler.getLateCancellations());
+        assertEquals(0, scheduler.getPending());
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        final AtomicInteger runs = new AtomicInteger();
+        Runnable task = new Runnable() {
+
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        };
+        Timeout cancelled = scheduler.schedule(task, 30, TimeUnit.MILLISECONDS);
+        Timeout kept = scheduler.schedule(task, 60, TimeUnit.MILLISECONDS);
+        assertTrue(cancelled.cancel());
+        assertEquals(1, scheduler.getCancelled());
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!kept.isExpired() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(kept.isExpired());
+        assertFalse(cancelled.isExpired());
+        assertEquals(1, runs.get());
+        assertEquals(0, scheduler.getLateCancellations());
+    }
+
+    @Test
+    public void testMultipleRounds() throws Exception {
+        // longer than a full turn of the wheel
+        final CountDownLatch latch = new CountDownLatch(1);
+        long delay = 10 * TimeoutScheduler.WHEEL_SIZE + 50;
+        long start = System.nanoTime();
+        scheduler.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+        assertTrue(latch.await(delay + 5000, TimeUnit.MILLISECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(delay));
+    }
+}
@@ -0,0 +1,48 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.rest;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.ResourcePool;
+
+/**
+ * Class to retrieve the usage statistics of the resource pool caches, see
+ * {@link ResourcePool#getCacheStatistics()}
+ */
+public class ResourcePoolStatisticsResource extends MapResource {
+
+    Catalog catalog;
+
+    public ResourcePoolStatisticsResource(Catalog catalog) {
+        this.catalog = catalog;
+    }
+
+    @Override
+    public Map getMap() throws Exception {
+        Map<String, Object> caches = new LinkedHashMap<String, Object>();
+        for (Map.Entry<String, ResourcePool.CacheStatistics> entry : catalog.getResourcePool()
+                .getCacheStatistics().entrySet()) {
+            ResourcePool.CacheStatistics stats = entry.getValue();
+            Map<String, Object> map = new LinkedHashMap<String, Object>();
+            map.put("size", stats.getSize());
+            map.put("hits", stats.getHits());
+            map.put("misses", stats.getMisses());
+            map.put("hitRatio", stats.getHitRatio());
+            map.put("evictions", stats.getEvictions());
+            map.put("loads", stats.getLoads());
+            map.put("totalLoadTime", stats.getTotalLoadTime());
+            map.put("averageLoadTime", stats.getAverageLoadTime());
+            caches.put(entry.getKey(), map);
+        }
+
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        map.put("caches", caches);
+        return map;
+    }
+}
@@ -0,0 +1,44 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.rest;
+
+import static org.custommonkey.xmlunit.XMLAssert.assertXpathExists;
+import static org.junit.Assert.*;
+import net.sf.json.JSON;
+import net.sf.json.JSONObject;
+
+import org.geoserver.data.test.MockData;
+import org.geoserver.test.GeoServerSystemTestSupport;
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+/**
+ * Class with ResourcePoolStatisticsResource tests
+ */
+public class ResourcePoolStatisticsTest extends GeoServerSystemTestSupport {
+
+    @Test
+    public void testGetAsXML() throws Exception {
+        // make sure the feature type cache got used at least once
+        getCatalog().getFeatureTypeByName(getLayerId(MockData.BUILDINGS)).getFeatureType();
+
+        Document dom = getAsDOM("/rest/resourcepool.xml");
+        assertXpathExists("/root/caches/featureType/hits", dom);
+        assertXpathExists("/root/caches/featureType/loads", dom);
+        assertXpathExists("/root/caches/featureType/averageLoadTime", dom);
+        assertXpathExists("/root/caches/style/misses", dom);
+    }
+
+    @Test
+    public void testGetAsJSON() throws Exception {
+        JSON json = getAsJSON("/rest/resourcepool.json");
+
+        assertTrue(json instanceof JSONObject);
+        JSONObject caches = ((JSONObject) json).getJSONObject("caches");
+        assertTrue(caches.getJSONObject("featureType").containsKey("totalLoadTime"));
+        assertTrue(caches.getJSONObject("crs").containsKey("evictions"));
+    }
+}
@@ -10,6 +10,7 @@ import java.io.OutputStream;
 
 import javax.xml.transform.TransformerException;
 
+import org.geoserver.ows.CapabilitiesCache;
 import org.geoserver.ows.Response;
 import org.geoserver.platform.Operation;
 import org.geotools.xml.transform.TransformerBase;
@@ -39,14 +40,19 @@ public class Wcs10GetCapabilitiesResponse extends Response {
         return "application/xml";
     }
 
-    public void write(Object value, OutputStream output, Operation operation) throws IOException {
-        TransformerBase tx = (TransformerBase) value;
-
-        try {
-            tx.transform(operation.getParameters()[0], output);
-        } catch (TransformerException e) {
-            throw (IOException) new IOException().initCause(e);
-        }
+    public void write(Object value, OutputStream output, final Operation operation)
+            throws IOException {
+        final TransformerBase tx = (TransformerBase) value;
+
+        CapabilitiesCache.write(output, new CapabilitiesCache.Encoder() {
+            public void encode(OutputStream output) throws IOException {
+                try {
+                    tx.transform(operation.getParameters()[0], output);
+                } catch (TransformerException e) {
+                    throw (IOException) new IOException().initCause(e);
+                }
+            }
+        });
     }
 
 }
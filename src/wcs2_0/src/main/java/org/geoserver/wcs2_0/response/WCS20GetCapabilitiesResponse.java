@@ -13,6 +13,7 @@ import javax.xml.transform.TransformerException;
 
 import net.opengis.wcs11.GetCapabilitiesType;
 
+import org.geoserver.ows.CapabilitiesCache;
 import org.geoserver.ows.Response;
 import org.geoserver.ows.util.OwsUtils;
 import org.geoserver.platform.Operation;
@@ -61,15 +62,19 @@ public class WCS20GetCapabilitiesResponse extends Response {
     }
 
     @Override
-    public void write(Object value, OutputStream output, Operation operation)
+    public void write(Object value, OutputStream output, final Operation operation)
         throws IOException {
-        TransformerBase tx = (TransformerBase) value;
+        final TransformerBase tx = (TransformerBase) value;
 
-        try {
-            tx.transform(operation.getParameters()[0], output);
-        } catch (TransformerException e) {
-            throw (IOException) new IOException().initCause(e);
-        }
+        CapabilitiesCache.write(output, new CapabilitiesCache.Encoder() {
+            public void encode(OutputStream output) throws IOException {
+                try {
+                    tx.transform(operation.getParameters()[0], output);
+                } catch (TransformerException e) {
+                    throw (IOException) new IOException().initCause(e);
+                }
+            }
+        });
     }
     
 }
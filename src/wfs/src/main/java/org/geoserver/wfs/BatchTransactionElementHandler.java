@@ -0,0 +1,52 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs;
+
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.namespace.QName;
+
+import org.geoserver.wfs.request.TransactionElement;
+import org.geoserver.wfs.request.TransactionRequest;
+import org.geoserver.wfs.request.TransactionResponse;
+import org.geotools.data.FeatureStore;
+
+/**
+ * A {@link TransactionElementHandler} able to execute a run of consecutive transaction elements
+ * in a single batch, e.g., hitting the store once for many small inserts.
+ * <p>
+ * The transaction groups the consecutive elements handled by the same batch handler as long as
+ * {@link #canBatch(List, TransactionElement, int)} allows it, and then calls
+ * {@link #execute(List, TransactionRequest, Map, TransactionResponse, TransactionListener)}.
+ * Listeners are still notified once per element.
+ * </p>
+ *
+ * @see Transaction#BATCH_SIZE
+ */
+public interface BatchTransactionElementHandler extends TransactionElementHandler {
+
+    /**
+     * Returns true if the element can be executed in the same batch as the elements already
+     * collected
+     *
+     * @param batch the elements collected so far, never empty
+     * @param element the next element of the transaction
+     * @param batchSize the maximum batch size, its meaning (elements, features) is handler
+     *        specific
+     */
+    boolean canBatch(List<TransactionElement> batch, TransactionElement element, int batchSize);
+
+    /**
+     * Executes the elements, in order, as a single batch. See
+     * {@link TransactionElementHandler#execute(TransactionElement, TransactionRequest, Map, TransactionResponse, TransactionListener)}
+     * for the meaning of the parameters
+     */
+    @SuppressWarnings("rawtypes")
+    void execute(List<TransactionElement> elements, TransactionRequest request,
+            Map<QName, FeatureStore> featureStores, TransactionResponse response,
+            TransactionListener listener) throws WFSTransactionException;
+}
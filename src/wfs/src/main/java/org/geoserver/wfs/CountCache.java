@@ -0,0 +1,207 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geotools.data.FeatureSource;
+import org.geotools.data.Query;
+import org.geotools.factory.Hints;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+
+/**
+ * Cache of the feature counts used to compute the WFS 2.0 numberMatched attribute, along with the
+ * statistics about the time saved by the cache and by running the counts in background (see
+ * {@link CountExecutor#submit()}).
+ * <p>
+ * Caching is enabled per feature type by setting the {@link #TIME_TO_LIVE} metadata entry to the
+ * number of seconds a count stays valid: numberMatched will then be an estimate, possibly out of
+ * date by that amount of time, which is usually a good tradeoff for large tables whose counts are
+ * expensive. Counts are cached by feature type, filter, joins, view parameters, user and roles, since
+ * security might restrict the visible features.
+ * </p>
+ */
+public class CountCache {
+
+    /**
+     * Feature type metadata key holding how long, in seconds, the numberMatched counts are cached
+     */
+    public static final String TIME_TO_LIVE = "numberMatchedCacheTTL";
+
+    static final int MAX_ENTRIES = 1024;
+
+    static final CountCache INSTANCE = new CountCache(MAX_ENTRIES);
+
+    /**
+     * Returns the cache shared by all the GetFeature requests
+     */
+    public static CountCache get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the cache time to live configured for the feature type, in milliseconds, or zero if
+     * counts should not be cached
+     */
+    public static long getTimeToLive(FeatureTypeInfo featureType) {
+        if (featureType == null || featureType.getMetadata() == null) {
+            return 0;
+        }
+        Integer seconds = featureType.getMetadata().get(TIME_TO_LIVE, Integer.class);
+        return seconds != null && seconds > 0 ? seconds * 1000l : 0;
+    }
+
+    final Map<String, CacheEntry> cache;
+
+    AtomicLong hits = new AtomicLong();
+
+    AtomicLong misses = new AtomicLong();
+
+    AtomicLong cacheSavedTime = new AtomicLong();
+
+    AtomicLong backgroundSavedTime = new AtomicLong();
+
+    CountCache(final int maxEntries) {
+        this.cache = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns the count of the query, from the cache if available and not expired
+     *
+     * @param timeToLive how long the count can be cached, in milliseconds
+     * @param user the user of the request, which might be running on another thread than the one
+     *        computing the count
+     */
+    int getCount(FeatureSource source, Query query, long timeToLive, Authentication user)
+            throws IOException {
+        final String key = getKey(source, query, user);
+        final long now = System.currentTimeMillis();
+        CacheEntry entry;
+        synchronized (cache) {
+            entry = cache.get(key);
+        }
+        if (entry != null && entry.expires > now) {
+            hits.incrementAndGet();
+            cacheSavedTime.addAndGet(entry.countTime);
+            return entry.count;
+        }
+
+        misses.incrementAndGet();
+        int count = source.getCount(query);
+        long countTime = System.currentTimeMillis() - now;
+        if (count >= 0) {
+            synchronized (cache) {
+                cache.put(key, new CacheEntry(count, now + timeToLive, countTime));
+            }
+        }
+        return count;
+    }
+
+    String getKey(FeatureSource source, Query query, Authentication user) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(source.getName()).append('|').append(query.getFilter());
+        // counts limited to a window of features are not the same as the full ones
+        sb.append('|').append(query.getStartIndex()).append('|').append(query.getMaxFeatures());
+        if (query.getJoins() != null && !query.getJoins().isEmpty()) {
+            sb.append('|').append(query.getJoins());
+        }
+        if (query.getHints() != null) {
+            Object viewParams = query.getHints().get(Hints.VIRTUAL_TABLE_PARAMETERS);
+            if (viewParams != null) {
+                sb.append('|').append(viewParams);
+            }
+        }
+        if (user != null) {
+            sb.append('|').append(user.getName());
+            List<String> roles = new ArrayList<String>();
+            for (GrantedAuthority authority : user.getAuthorities()) {
+                roles.add(authority.getAuthority());
+            }
+            Collections.sort(roles);
+            sb.append('|').append(roles);
+        } else {
+            sb.append("|null");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Records a count run in background
+     *
+     * @param countTime the time taken by the count
+     * @param waited the time the request waited for the count to complete
+     */
+    void recordBackgroundCount(long countTime, long waited) {
+        if (countTime > waited) {
+            backgroundSavedTime.addAndGet(countTime - waited);
+        }
+    }
+
+    /**
+     * Removes all the cached counts
+     */
+    public void clear() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * The number of counts served by the cache
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * The number of counts that had to be computed
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * The time saved by serving counts from the cache, in milliseconds
+     */
+    public long getCacheSavedTime() {
+        return cacheSavedTime.get();
+    }
+
+    /**
+     * The time saved by running counts in background while the features were being retrieved and
+     * encoded, in milliseconds
+     */
+    public long getBackgroundSavedTime() {
+        return backgroundSavedTime.get();
+    }
+
+    static class CacheEntry {
+        int count;
+
+        long expires;
+
+        long countTime;
+
+        CacheEntry(int count, long expires, long countTime) {
+            this.count = count;
+            this.expires = expires;
+            this.countTime = countTime;
+        }
+    }
+}
@@ -6,42 +6,164 @@
 package org.geoserver.wfs;
 
 import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.geotools.data.FeatureSource;
 import org.geotools.data.Query;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
 
 /**
  * A class executing a feature count, but also able to return a pre-computed one. Used as an accessory
  * to compute the numberMatched attribute for WFS 2.0, and running the actual counts only when strictly
- * necessary
- *  
+ * necessary.
+ * <p>
+ * The count can be started in background with {@link #submit()}, so that it runs while the
+ * features are being retrieved, counted and encoded, in that case {@link #getCount()} waits for
+ * it to complete. Counts can also be cached, see {@link CountCache}.
+ * </p>
+ *
  * @author Andrea Aime - GeoSolutions
  */
 class CountExecutor {
 
     private static final int COUNT_UNSET = -1;
 
+    /**
+     * System property setting the number of threads running the counts in background, defaults to
+     * the number of available processors
+     */
+    static final String COUNT_THREADS = "org.geoserver.wfs.countThreads";
+
+    static final ExecutorService EXECUTOR;
+    static {
+        int threads = Integer.getInteger(COUNT_THREADS, Runtime.getRuntime()
+                .availableProcessors());
+        // once the queue is full the counts are run by the requesting thread
+        EXECUTOR = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(threads * 16), new ThreadFactory() {
+                    AtomicInteger counter = new AtomicInteger();
+
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "WFSCount-" + counter.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
     FeatureSource source;
 
     Query query;
 
     int providedCount = COUNT_UNSET;
 
+    /**
+     * How long counts are cached, in milliseconds, zero or less to disable caching
+     */
+    long cacheTimeToLive;
+
+    /**
+     * The user of the request, captured on the request thread since the background counts run on
+     * a pool thread with no security context
+     */
+    Authentication user;
+
+    FutureTask<Integer> future;
+
+    /**
+     * The time spent running the background count, in milliseconds
+     */
+    volatile long countTime;
+
     public CountExecutor(FeatureSource source, Query query) {
+        this(source, query, 0);
+    }
+
+    public CountExecutor(FeatureSource source, Query query, long cacheTimeToLive) {
         this.source = source;
         this.query = query;
+        this.cacheTimeToLive = cacheTimeToLive;
+        this.user = SecurityContextHolder.getContext().getAuthentication();
     }
 
     public CountExecutor(int providedCount) {
         this.providedCount = providedCount;
     }
-    
+
+    /**
+     * Starts computing the count in background, if not already available
+     */
+    public void submit() {
+        if (providedCount != COUNT_UNSET || future != null) {
+            return;
+        }
+        future = new FutureTask<Integer>(new Callable<Integer>() {
+
+            public Integer call() throws Exception {
+                long start = System.currentTimeMillis();
+                SecurityContext previous = SecurityContextHolder.getContext();
+                SecurityContext context = SecurityContextHolder.createEmptyContext();
+                context.setAuthentication(user);
+                SecurityContextHolder.setContext(context);
+                try {
+                    return count();
+                } finally {
+                    SecurityContextHolder.setContext(previous);
+                    countTime = System.currentTimeMillis() - start;
+                }
+            }
+        });
+        EXECUTOR.execute(future);
+    }
+
+    /**
+     * Cancels the background count, if running
+     */
+    public void cancel() {
+        if (future != null) {
+            future.cancel(true);
+        }
+    }
+
     public int getCount() throws IOException {
         if(providedCount != COUNT_UNSET) {
             return providedCount;
+        } else if (future != null) {
+            long start = System.currentTimeMillis();
+            try {
+                int result = future.get();
+                long waited = System.currentTimeMillis() - start;
+                CountCache.get().recordBackgroundCount(countTime, waited);
+                return result;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the features count", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException("Failed to count features", e.getCause());
+            }
         } else {
+            return count();
+        }
+    }
+
+    int count() throws IOException {
+        if (cacheTimeToLive <= 0) {
             return source.getCount(query);
         }
+        return CountCache.get().getCount(source, query, cacheTimeToLive, user);
     }
 
 }
@@ -7,6 +7,7 @@ package org.geoserver.wfs;
 
 import static org.geoserver.ows.util.ResponseUtils.buildURL;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.net.URI;
@@ -15,6 +16,17 @@ import java.util.Calendar;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import javax.xml.namespace.QName;
@@ -32,6 +44,8 @@ import org.geoserver.ows.Dispatcher;
 import org.geoserver.ows.Request;
 import org.geoserver.ows.URLMangler.URLType;
 import org.geoserver.ows.util.KvpMap;
+import org.geoserver.threadlocals.ThreadLocalsTransfer;
+import org.geoserver.wfs.json.JSONType;
 import org.geoserver.wfs.request.FeatureCollectionResponse;
 import org.geoserver.wfs.request.GetFeatureRequest;
 import org.geoserver.wfs.request.Lock;
@@ -44,6 +58,7 @@ import org.geotools.data.Join;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.factory.Hints;
 import org.geotools.feature.FeatureCollection;
+import org.geotools.feature.FeatureIterator;
 import org.geotools.feature.NameImpl;
 import org.geotools.feature.SchemaException;
 import org.geotools.filter.FilterCapabilities;
@@ -162,6 +177,41 @@ public class GetFeature {
         joinFilterCapabilities.addType(And.class);
     }
 
+    /**
+     * System property enabling the parallel execution of the queries of a GetFeature request,
+     * see {@link #run(GetFeatureRequest)}. The queries are counted on the same pool as the
+     * background counts, sized by the org.geoserver.wfs.countThreads system property, and planned
+     * on a pool of their own, see {@link #PLANNING_THREADS}
+     */
+    public static final String PARALLEL_QUERIES = "org.geoserver.wfs.parallelQueries";
+
+    /**
+     * System property setting the number of threads planning the queries of parallel GetFeature
+     * requests, defaults to the number of available processors
+     */
+    static final String PLANNING_THREADS = "org.geoserver.wfs.planningThreads";
+
+    /**
+     * The query planning pool, kept apart from the count one so that slow counts cannot hold up
+     * the planning. Once its queue is full the submissions are rejected, and the queries are
+     * planned by the request thread, see {@link #submitPlanning(ExecutorService, Callable)}
+     */
+    static final ExecutorService PLANNING_EXECUTOR;
+    static {
+        int threads = Integer.getInteger(PLANNING_THREADS, Runtime.getRuntime()
+                .availableProcessors());
+        PLANNING_EXECUTOR = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(threads * 16), new ThreadFactory() {
+                    AtomicInteger counter = new AtomicInteger();
+
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "WFSPlanning-" + counter.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
     /** The catalog */
     protected Catalog catalog;
 
@@ -308,166 +358,63 @@ public class GetFeature {
 
         List results = new ArrayList();
         List<CountExecutor> totalCountExecutors = new ArrayList<CountExecutor>();
+        DeferredTotalCount deferredTotal = null;
+        // the last query run, and the size of its page, to check if more features follow it
+        org.geotools.data.Query lastQuery = null;
+        FeatureSource<? extends FeatureType, ? extends Feature> lastSource = null;
+        int lastSize = 0;
+        boolean moreFeatures = false;
+        KeysetPaging keyset = null;
+        String keysetId = null;
+        String nextCursor = null;
         try {
-            for (int i = 0; (i < queries.size()) && (count < maxFeatures); i++) {
-
-                Query query = queries.get(i);
-                try {
-                //alias sanity check
-                if (!query.getAliases().isEmpty()) {
-                    if (query.getAliases().size() != query.getTypeNames().size()) {
-                        throw new WFSException(request, String.format("Query specifies %d type names and %d " +
-                            "aliases, must be equal", query.getTypeNames().size(), query.getAliases().size()));
+            // when running in parallel all the queries are planned up front, concurrently, and
+            // the features they match are counted in background, up to the largest window the
+            // request could return, so that the stores work on them at the same time. The counts
+            // are then accounted in request order, the same way as the collection sizes would be.
+            // The collections themselves are not prefetched, their offsets depend on the counts
+            // of the previous queries and the encoders stream them lazily
+            List<QueryPlan> plans = null;
+            boolean isVersion10 = "1.0".equals(request.getVersion())
+                    || "1.0.0".equals(request.getVersion());
+            if (queries.size() > 1 && Boolean.getBoolean(PARALLEL_QUERIES)) {
+                long window = totalOffset > 0 ? (long) totalOffset + maxFeatures : maxFeatures;
+                int windowSize = (int) Math.min(window, Integer.MAX_VALUE);
+                boolean countWindow = !(isVersion10 && maxFeatures == Integer.MAX_VALUE)
+                        || totalOffset > 0;
+                plans = planParallel(request, queries);
+                for (int i = 0; i < queries.size(); i++) {
+                    Query query = queries.get(i);
+                    QueryPlan plan = plans.get(i);
+                    if (countWindow) {
+                        Map<String, String> viewParam = viewParams != null ? viewParams.get(i)
+                                : null;
+                        org.geotools.data.Query qWindow = toDataQuery(query, plan.filter, -1,
+                                windowSize, plan.source, request, plan.allPropNames.get(0),
+                                viewParam, plan.joins, plan.primaryTypeName, plan.primaryAlias);
+                        plan.windowSize = windowSize;
+                        plan.windowCount = new CountExecutor(plan.source, qWindow,
+                                CountCache.getTimeToLive(plan.primaryMeta));
+                        plan.windowCount.submit();
                     }
                 }
+            }
 
-                List<FeatureTypeInfo> metas = new ArrayList();
-                for (QName typeName : query.getTypeNames()) {
-                    metas.add(featureTypeInfo(typeName, request));
-                }
+            for (int i = 0; (i < queries.size()) && (count < maxFeatures); i++) {
 
-                //first is the primary feature type
+                Query query = queries.get(i);
+                try {
+                QueryPlan plan = plans != null ? plans.get(i) : plan(request, query);
+                List<FeatureTypeInfo> metas = plan.metas;
                 FeatureTypeInfo meta = metas.get(0);
-
-                // parse the requested property names and distribute among requested types
-                List<List<String>> reqPropertyNames = parsePropertyNames(query, metas);
-
-                NamespaceSupport ns = getNamespaceSupport();
-                
-                List<List<PropertyName>> propNames = new ArrayList();
-                List<List<PropertyName>> allPropNames = new ArrayList();
-                
-                for (int j = 0; j < metas.size(); j++) {
-                    List<String> propertyNames = reqPropertyNames.get(j);
-                    List<PropertyName> metaPropNames = null;
-                    List<PropertyName> metaAllPropNames = null;
-                    if (!propertyNames.isEmpty()){
-                        
-                         metaPropNames = new ArrayList<PropertyName>();
-                        
-                        for (Iterator iter = propertyNames.iterator(); iter.hasNext();) {
-                            PropertyName propName = createPropertyName((String) iter.next(), ns);
-        
-                            if ( propName.evaluate(meta.getFeatureType()) == null) {
-                                String mesg = "Requested property: " + propName + " is " + "not available "
-                                    + "for " + meta.getPrefixedName() + ".  ";
-                                
-                                if (meta.getFeatureType() instanceof SimpleFeatureType) {
-                                    List<AttributeTypeInfo> atts = meta.attributes();
-                                    List attNames = new ArrayList( atts.size() );
-                                    for ( AttributeTypeInfo att : atts ) {
-                                        attNames.add( att.getName() );
-                                    }
-                                    mesg += "The possible propertyName values are: " + attNames;
-                                }
-        
-                                throw new WFSException(request, mesg, "InvalidParameterValue");
-                            }
-                            
-                            metaPropNames.add(propName);
-                        }
-                        
-                        // if we need to force feature bounds computation, we have to load 
-                        // all of the geometries, but we'll have to remove them in the 
-                        // returned feature type
-                        if(wfs.isFeatureBounding()) {
-                            metaAllPropNames = addGeometryProperties(meta, metaPropNames);
-                        } else {
-                            metaAllPropNames = metaPropNames;
-                        }     
-                        
-                        //we must also include any properties that are mandatory ( even if not requested ),
-                        // ie. those with minOccurs > 0
-                        //only do this for simple features, complex mandatory features are handled by app-schema
-                        if (meta.getFeatureType() instanceof SimpleFeatureType) {
-                            metaAllPropNames = 
-                                DataUtilities.addMandatoryProperties((SimpleFeatureType) meta.getFeatureType(), metaAllPropNames);
-                            metaPropNames = 
-                                DataUtilities.addMandatoryProperties((SimpleFeatureType) meta.getFeatureType(), metaPropNames);
-                        }
-                        //for complex features, mandatory properties need to be handled by datastore.
-                    }
-                    allPropNames.add(metaAllPropNames);
-                    propNames.add(metaPropNames);
-                }
-
-                //set up joins (if specified)
-                List<Join> joins = null;
-                String primaryAlias = null;
-                QName primaryTypeName = query.getTypeNames().get(0);
-                    FeatureTypeInfo primaryMeta = metas.get(0);
-                
-                //make sure filters are sane
-                //
-                // Validation of filters on non-simple feature types is not yet supported.
-                // FIXME: Support validation of filters on non-simple feature types:
-                // need to consider xpath properties and how to configure namespace prefixes in
-                // GeoTools app-schema FeaturePropertyAccessorFactory.
-                Filter filter = query.getFilter();
-                
-                if (filter == null && metas.size() > 1) {
-                    throw new WFSException(request, "Join query must specify a filter");
-                }
-
-                if (filter != null) {
-                    if (meta.getFeatureType() instanceof SimpleFeatureType) {                
-                        if (metas.size() > 1) {
-                            //ensure that the filter is allowable
-                            if (!isValidJoinFilter(filter)) {
-                                throw new WFSException(request, 
-                                        "Unable to preform join with specified filter: " + filter);
-                            }
-                                // join, need to separate the joining filter from other filters
-                            JoinExtractingVisitor extractor = 
-                                    new JoinExtractingVisitor(metas, query.getAliases());
-                            filter.accept(extractor, null);
-
-                            primaryAlias = extractor.getPrimaryAlias();
-                            primaryMeta = extractor.getPrimaryFeatureType();
-                            primaryTypeName = new QName(primaryMeta.getNamespace().getURI(),
-                                    primaryMeta.getNativeName());
-                            joins = extractor.getJoins();
-                            if (joins.size() != metas.size()-1) {
-                                throw new WFSException(request, String.format("Query specified %d types but %d " +
-                                        "join filters were found", metas.size(), extractor.getJoins().size()));
-                            }
-
-                            //validate the filter for each join
-                            for (int j = 1; j < metas.size(); j++) {
-                                Join join = joins.get(j-1);
-                                if (join.getFilter() != null) {
-                                    validateFilter(join.getFilter(), query, metas.get(j), request);
-                                }
-                            }
-
-                            filter = extractor.getPrimaryFilter();
-                            if (filter != null) {
-                                validateFilter(filter, query, meta, request);
-                            }
-                        }
-                        else {
-                            validateFilter(filter, query, meta, request);
-                        }
-                    } else {
-                        BBOXNamespaceSettingVisitor filterVisitor = new BBOXNamespaceSettingVisitor(ns);
-                        filter.accept(filterVisitor, null);
-                    }
-                }
-                
-                // validate sortby if present
-                List<SortBy> sortBy = query.getSortBy();
-                if (sortBy != null && !sortBy.isEmpty()
-                        && meta.getFeatureType() instanceof SimpleFeatureType) {
-                    validateSortBy(sortBy, meta, request);
-                }
-
-                // load primary feature source
-                Hints hints = null;
-                if (joins != null) {
-                    hints = new Hints(ResourcePool.JOINS, joins);
-                }
-                FeatureSource<? extends FeatureType, ? extends Feature> source = 
-                    primaryMeta.getFeatureSource(null, hints);
+                List<List<PropertyName>> propNames = plan.propNames;
+                List<List<PropertyName>> allPropNames = plan.allPropNames;
+                List<Join> joins = plan.joins;
+                String primaryAlias = plan.primaryAlias;
+                QName primaryTypeName = plan.primaryTypeName;
+                FeatureTypeInfo primaryMeta = plan.primaryMeta;
+                Filter filter = plan.filter;
+                FeatureSource<? extends FeatureType, ? extends Feature> source = plan.source;
 
                 // handle local maximum
                 int queryMaxFeatures = maxFeatures - count;
@@ -480,10 +427,36 @@ public class GetFeature {
                         queryMaxFeatures, source, request, allPropNames.get(0), viewParam,
                             joins, primaryTypeName, primaryAlias);
 
+                // keyset paging, if enabled and possible
+                if (queries.size() == 1 && joins == null && offset > -1) {
+                    keyset = KeysetPaging.create(primaryMeta, source.getSchema(),
+                            query.getSortBy());
+                    if (keyset != null && !keyset.canRecord(gtQuery)) {
+                        // the page would not carry the sort values of the next cursor
+                        keyset = null;
+                    }
+                    if (keyset != null) {
+                        gtQuery.setSortBy(keyset.getSortBy());
+                        Filter cursorFilter = keyset.getCursorFilter(getCursor(), offset);
+                        if (cursorFilter != null) {
+                            gtQuery.setFilter(filterFactory.and(gtQuery.getFilter(),
+                                    cursorFilter));
+                            int skip = keyset.getSkip();
+                            gtQuery.setStartIndex(skip > 0 ? skip : null);
+                        }
+                    }
+                }
+
                 LOGGER.fine("Query is " + query + "\n To gt2: " + gtQuery);
 
                 FeatureCollection<? extends FeatureType, ? extends Feature> features = getFeatures(request, source, gtQuery);
 
+                // record the sort values of the last feature while encoding, for the next cursor
+                if (keyset != null && features instanceof SimpleFeatureCollection) {
+                    keysetId = KeysetPaging.newId();
+                    features = keyset.record((SimpleFeatureCollection) features, keysetId);
+                }
+
                 // For complex features, we need the targetCrs and version in scenario where we have
                 // a top level feature that does not contain a geometry(therefore no crs) and has a
                 // nested feature that contains geometry as its property.Furthermore it is possible
@@ -502,8 +475,7 @@ public class GetFeature {
                 // we don't want to count the size if there is just one element and number match
                 // skipped is true
                 isNumberMatchedSkipped = meta.getSkipNumberMatched();
-                calculateSize = !(("1.0".equals(request.getVersion()) || "1.0.0".equals(request
-                            .getVersion())) && (queries.size() == 1 || maxFeatures == Integer.MAX_VALUE))
+                calculateSize = !(isVersion10 && (queries.size() == 1 || maxFeatures == Integer.MAX_VALUE))
                             && !(queries.size() == 1 && isNumberMatchedSkipped);
                 
                 if (!calculateSize) {
@@ -512,13 +484,44 @@ public class GetFeature {
                     calculateSize = offset > 0 && i < queries.size() - 1; 
                 }
 
+                // for paged WFS 2.0 requests numberMatched will likely require a count of all the
+                // matching features, start it right away so that it runs along with the data query
+                final long countCacheTTL = CountCache.getTimeToLive(primaryMeta);
+                CountExecutor pendingTotal = null;
+                if (request.getVersion().startsWith("2") && !isNumberMatchedSkipped
+                        && (queryMaxFeatures != Integer.MAX_VALUE || offset > 0)) {
+                    org.geotools.data.Query qTotal = toDataQuery(query, filter, 0,
+                            Integer.MAX_VALUE, source, request, allPropNames.get(0), viewParam,
+                            joins, primaryTypeName, primaryAlias);
+                    pendingTotal = new CountExecutor(source, qTotal, countCacheTTL);
+                    pendingTotal.submit();
+                }
+
+                // the features matched with no offset, if counted in background
+                int matched = -1;
+                if (plan.windowCount != null) {
+                    if (calculateSize || offset > 0) {
+                        matched = Math.min(plan.windowCount.getCount(), plan.windowSize);
+                    } else {
+                        plan.windowCount.cancel();
+                    }
+                }
+
                 int size = 0;
                 if (calculateSize) {
-                    size = features.size();
+                    if (matched >= 0) {
+                        size = Math.min(Math.max(matched - Math.max(offset, 0), 0),
+                                queryMaxFeatures);
+                    } else {
+                        size = features.size();
+                    }
                 }
                 
                 //update the count
                 count += size;
+                lastQuery = gtQuery;
+                lastSource = source;
+                lastSize = size;
                 
                 //if offset is present we need to check the size of this returned feature collection
                 // and adjust the offset for the next feature collection accordingly
@@ -535,7 +538,8 @@ public class GetFeature {
                                     viewParam, joins, primaryTypeName, primaryAlias);
                         
                         //int size2 = getFeatures(request, source, q2).size();
-                        int size2 = source.getCount(q2);
+                        int size2 = matched >= 0 ? Math.min(matched, queryMaxFeatures) : source
+                                .getCount(q2);
                         if (size2 > 0) {
                             //adjust the offset for the next query
                             offset = Math.max(0, offset - size2);
@@ -548,13 +552,20 @@ public class GetFeature {
                 // calculated above
                 if (!isNumberMatchedSkipped) {
                     if (calculateSize && queryMaxFeatures == Integer.MAX_VALUE && offset == 0) {
+                        if (pendingTotal != null) {
+                            pendingTotal.cancel();
+                        }
                         totalCountExecutors.add(new CountExecutor(size));
+                    } else if (pendingTotal != null) {
+                        totalCountExecutors.add(pendingTotal);
                     } else {
                         org.geotools.data.Query qTotal = toDataQuery(query, filter, 0,
                                 Integer.MAX_VALUE, source, request, allPropNames.get(0), viewParam,
                                 joins, primaryTypeName, primaryAlias);
-                        totalCountExecutors.add(new CountExecutor(source, qTotal));
+                        totalCountExecutors.add(new CountExecutor(source, qTotal, countCacheTTL));
                     }
+                } else if (pendingTotal != null) {
+                    pendingTotal.cancel();
                 }
 
                 // we may need to shave off geometries we did load only to make bounds
@@ -585,13 +596,16 @@ public class GetFeature {
                 results.add(features);
                 }
                 catch(WFSException e) {
-                    //intercept and set locator to query handle if one was set, or if it simply set
-                    // to GetFeature, which is the default
-                    if (query.getHandle() != null && 
-                        (e.getLocator() == null || "GetFeature".equalsIgnoreCase(e.getLocator()))) {
-                        e.setLocator(query.getHandle());
+                    throw setQueryLocator(e, query);
+                }
+            }
+
+            // the queries left out by the max features limit do not need to be counted
+            if (plans != null) {
+                for (QueryPlan plan : plans) {
+                    if (plan.windowCount != null) {
+                        plan.windowCount.cancel();
                     }
-                    throw e;
                 }
             }
             
@@ -616,6 +630,20 @@ public class GetFeature {
                     // optimization: if count < max features then total count == count
                     if(count < maxFeatures) {
                         totalCount = count;
+                        for (CountExecutor q : totalCountExecutors) {
+                            q.cancel();
+                        }
+                    } else if (isDeferredCountSupported(request)) {
+                        // the output format can write the total after the features, let the
+                        // counts run while the features are encoded
+                        for (CountExecutor q : totalCountExecutors) {
+                            q.submit();
+                        }
+                        deferredTotal = new DeferredTotalCount(totalCountExecutors);
+                        totalCount = -1;
+                        // the page is full, but it might be the last one
+                        moreFeatures = lastQuery != null
+                                && hasMoreFeatures(lastSource, lastQuery, lastSize);
                     } else {
                         // ok, in this case we're forced to run the queries to discover the actual total count
                         for (CountExecutor q : totalCountExecutors) {
@@ -632,6 +660,12 @@ public class GetFeature {
                 }
             }
             
+
+            // keyset paging, the cursor of the next page refers to the keys of the last feature
+            if (keysetId != null && count > 0 && count >= maxFeatures) {
+                nextCursor = keyset.getCursor(keysetId, totalOffset > 0 ? totalOffset + count
+                        : count, count);
+            }
         } catch (IOException e) {
             throw new WFSException(request, "Error occurred getting features", e, request.getHandle());
         } catch (SchemaException e) {
@@ -669,7 +703,388 @@ public class GetFeature {
             lockId = response.getLockId();
         }
 
-        return buildResults(request, totalOffset, maxFeatures, count, totalCount, results, lockId);
+        FeatureCollectionResponse result;
+        try {
+            result = buildResults(request, totalOffset, maxFeatures, count, totalCount, results,
+                    lockId, nextCursor, moreFeatures);
+        } catch (RuntimeException e) {
+            if (deferredTotal != null) {
+                deferredTotal.close();
+            }
+            throw e;
+        }
+        if (deferredTotal != null) {
+            result.setDeferredTotalNumberOfFeatures(deferredTotal);
+        }
+        return result;
+    }
+
+    /**
+     * Sets the locator of the exception to the query handle, if one was set and the locator is
+     * missing or simply set to GetFeature, which is the default
+     */
+    WFSException setQueryLocator(WFSException e, Query query) {
+        if (query.getHandle() != null && 
+            (e.getLocator() == null || "GetFeature".equalsIgnoreCase(e.getLocator()))) {
+            e.setLocator(query.getHandle());
+        }
+        return e;
+    }
+
+    /**
+     * Resolves the feature types, property names, joins, filter and feature source of a query,
+     * none of which depends on the other queries of the request
+     */
+    QueryPlan plan(GetFeatureRequest request, Query query) throws IOException {
+        //alias sanity check
+        if (!query.getAliases().isEmpty()) {
+            if (query.getAliases().size() != query.getTypeNames().size()) {
+                throw new WFSException(request, String.format("Query specifies %d type names and %d " +
+                    "aliases, must be equal", query.getTypeNames().size(), query.getAliases().size()));
+            }
+        }
+
+        List<FeatureTypeInfo> metas = new ArrayList();
+        for (QName typeName : query.getTypeNames()) {
+            metas.add(featureTypeInfo(typeName, request));
+        }
+
+        //first is the primary feature type
+        FeatureTypeInfo meta = metas.get(0);
+
+        // parse the requested property names and distribute among requested types
+        List<List<String>> reqPropertyNames = parsePropertyNames(query, metas);
+
+        NamespaceSupport ns = getNamespaceSupport();
+        
+        List<List<PropertyName>> propNames = new ArrayList();
+        List<List<PropertyName>> allPropNames = new ArrayList();
+        
+        for (int j = 0; j < metas.size(); j++) {
+            List<String> propertyNames = reqPropertyNames.get(j);
+            List<PropertyName> metaPropNames = null;
+            List<PropertyName> metaAllPropNames = null;
+            if (!propertyNames.isEmpty()){
+                
+                 metaPropNames = new ArrayList<PropertyName>();
+                
+                for (Iterator iter = propertyNames.iterator(); iter.hasNext();) {
+                    PropertyName propName = createPropertyName((String) iter.next(), ns);
+
+                    if ( propName.evaluate(meta.getFeatureType()) == null) {
+                        String mesg = "Requested property: " + propName + " is " + "not available "
+                            + "for " + meta.getPrefixedName() + ".  ";
+                        
+                        if (meta.getFeatureType() instanceof SimpleFeatureType) {
+                            List<AttributeTypeInfo> atts = meta.attributes();
+                            List attNames = new ArrayList( atts.size() );
+                            for ( AttributeTypeInfo att : atts ) {
+                                attNames.add( att.getName() );
+                            }
+                            mesg += "The possible propertyName values are: " + attNames;
+                        }
+
+                        throw new WFSException(request, mesg, "InvalidParameterValue");
+                    }
+                    
+                    metaPropNames.add(propName);
+                }
+                
+                // if we need to force feature bounds computation, we have to load 
+                // all of the geometries, but we'll have to remove them in the 
+                // returned feature type
+                if(wfs.isFeatureBounding()) {
+                    metaAllPropNames = addGeometryProperties(meta, metaPropNames);
+                } else {
+                    metaAllPropNames = metaPropNames;
+                }     
+                
+                //we must also include any properties that are mandatory ( even if not requested ),
+                // ie. those with minOccurs > 0
+                //only do this for simple features, complex mandatory features are handled by app-schema
+                if (meta.getFeatureType() instanceof SimpleFeatureType) {
+                    metaAllPropNames = 
+                        DataUtilities.addMandatoryProperties((SimpleFeatureType) meta.getFeatureType(), metaAllPropNames);
+                    metaPropNames = 
+                        DataUtilities.addMandatoryProperties((SimpleFeatureType) meta.getFeatureType(), metaPropNames);
+                }
+                //for complex features, mandatory properties need to be handled by datastore.
+            }
+            allPropNames.add(metaAllPropNames);
+            propNames.add(metaPropNames);
+        }
+
+        //set up joins (if specified)
+        List<Join> joins = null;
+        String primaryAlias = null;
+        QName primaryTypeName = query.getTypeNames().get(0);
+        FeatureTypeInfo primaryMeta = metas.get(0);
+        
+        //make sure filters are sane
+        //
+        // Validation of filters on non-simple feature types is not yet supported.
+        // FIXME: Support validation of filters on non-simple feature types:
+        // need to consider xpath properties and how to configure namespace prefixes in
+        // GeoTools app-schema FeaturePropertyAccessorFactory.
+        Filter filter = query.getFilter();
+        
+        if (filter == null && metas.size() > 1) {
+            throw new WFSException(request, "Join query must specify a filter");
+        }
+
+        if (filter != null) {
+            if (meta.getFeatureType() instanceof SimpleFeatureType) {                
+                if (metas.size() > 1) {
+                    //ensure that the filter is allowable
+                    if (!isValidJoinFilter(filter)) {
+                        throw new WFSException(request, 
+                                "Unable to preform join with specified filter: " + filter);
+                    }
+                        // join, need to separate the joining filter from other filters
+                    JoinExtractingVisitor extractor = 
+                            new JoinExtractingVisitor(metas, query.getAliases());
+                    filter.accept(extractor, null);
+
+                    primaryAlias = extractor.getPrimaryAlias();
+                    primaryMeta = extractor.getPrimaryFeatureType();
+                    primaryTypeName = new QName(primaryMeta.getNamespace().getURI(),
+                            primaryMeta.getNativeName());
+                    joins = extractor.getJoins();
+                    if (joins.size() != metas.size()-1) {
+                        throw new WFSException(request, String.format("Query specified %d types but %d " +
+                                "join filters were found", metas.size(), extractor.getJoins().size()));
+                    }
+
+                    //validate the filter for each join
+                    for (int j = 1; j < metas.size(); j++) {
+                        Join join = joins.get(j-1);
+                        if (join.getFilter() != null) {
+                            validateFilter(join.getFilter(), query, metas.get(j), request);
+                        }
+                    }
+
+                    filter = extractor.getPrimaryFilter();
+                    if (filter != null) {
+                        validateFilter(filter, query, meta, request);
+                    }
+                }
+                else {
+                    validateFilter(filter, query, meta, request);
+                }
+            } else {
+                BBOXNamespaceSettingVisitor filterVisitor = new BBOXNamespaceSettingVisitor(ns);
+                filter.accept(filterVisitor, null);
+            }
+        }
+        
+        // validate sortby if present
+        List<SortBy> sortBy = query.getSortBy();
+        if (sortBy != null && !sortBy.isEmpty()
+                && meta.getFeatureType() instanceof SimpleFeatureType) {
+            validateSortBy(sortBy, meta, request);
+        }
+
+        // load primary feature source
+        Hints hints = null;
+        if (joins != null) {
+            hints = new Hints(ResourcePool.JOINS, joins);
+        }
+        FeatureSource<? extends FeatureType, ? extends Feature> source = 
+            primaryMeta.getFeatureSource(null, hints);
+
+        QueryPlan plan = new QueryPlan();
+        plan.metas = metas;
+        plan.propNames = propNames;
+        plan.allPropNames = allPropNames;
+        plan.joins = joins;
+        plan.primaryAlias = primaryAlias;
+        plan.primaryTypeName = primaryTypeName;
+        plan.primaryMeta = primaryMeta;
+        plan.filter = filter;
+        plan.source = source;
+        return plan;
+    }
+
+    /**
+     * Plans all the queries at the same time, so that the feature types are looked up and the
+     * feature sources opened concurrently, and returns the plans in request order
+     */
+    List<QueryPlan> planParallel(final GetFeatureRequest request, List<Query> queries)
+            throws IOException {
+        List<Future<QueryPlan>> futures = new ArrayList<Future<QueryPlan>>();
+        boolean done = false;
+        try {
+            for (final Query query : queries) {
+                futures.add(submitPlanning(PLANNING_EXECUTOR, new Callable<QueryPlan>() {
+
+                    public QueryPlan call() throws Exception {
+                        return plan(request, query);
+                    }
+                }));
+            }
+
+            List<QueryPlan> plans = new ArrayList<QueryPlan>();
+            for (int i = 0; i < queries.size(); i++) {
+                try {
+                    plans.add(futures.get(i).get());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while planning the queries", e);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof WFSException) {
+                        throw setQueryLocator((WFSException) cause, queries.get(i));
+                    } else if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    } else if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    throw new IOException("Failed to plan the query", cause);
+                }
+            }
+            done = true;
+            return plans;
+        } finally {
+            if (!done) {
+                for (Future<QueryPlan> future : futures) {
+                    future.cancel(true);
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the task on the executor, with the thread locals of the request thread. If the executor
+     * rejects it the task is run right away by the request thread, whose thread locals are left
+     * untouched, cleaning them up would leave the rest of the request without its security
+     * context, local workspace and layer
+     */
+    static <T> Future<T> submitPlanning(ExecutorService executor, final Callable<T> task) {
+        final ThreadLocalsTransfer threadLocals = new ThreadLocalsTransfer();
+        try {
+            return executor.submit(new Callable<T>() {
+
+                public T call() throws Exception {
+                    threadLocals.apply();
+                    try {
+                        return task.call();
+                    } finally {
+                        threadLocals.cleanup();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            FutureTask<T> future = new FutureTask<T>(task);
+            future.run();
+            return future;
+        }
+    }
+
+    /**
+     * The parts of a query execution that do not depend on the other queries of the request
+     */
+    static class QueryPlan {
+        List<FeatureTypeInfo> metas;
+
+        List<List<PropertyName>> propNames;
+
+        List<List<PropertyName>> allPropNames;
+
+        List<Join> joins;
+
+        String primaryAlias;
+
+        QName primaryTypeName;
+
+        FeatureTypeInfo primaryMeta;
+
+        Filter filter;
+
+        FeatureSource<? extends FeatureType, ? extends Feature> source;
+
+        /**
+         * Background count of the features matching the query, up to the largest window the
+         * request could return, when the queries are run in parallel
+         */
+        CountExecutor windowCount;
+
+        int windowSize;
+    }
+
+    /**
+     * Returns the keyset paging cursor of the current request, if any
+     */
+    String getCursor() {
+        Request req = Dispatcher.REQUEST.get();
+        if (req == null || req.getRawKvp() == null) {
+            return null;
+        }
+        Object cursor = new KvpMap(req.getRawKvp()).get(KeysetPaging.CURSOR);
+        return cursor != null ? cursor.toString() : null;
+    }
+
+    /**
+     * Returns true if the requested output format is able to write numberMatched after the
+     * features, which allows to count the features while encoding them
+     */
+    boolean isDeferredCountSupported(GetFeatureRequest request) {
+        return !request.isResultTypeHits() && JSONType.getJSONType(request.getOutputFormat()) != null;
+    }
+
+    /**
+     * Returns true if the query matches at least one feature after the first ones returned in
+     * the page, looking up only one of them
+     */
+    boolean hasMoreFeatures(FeatureSource<? extends FeatureType, ? extends Feature> source,
+            org.geotools.data.Query query, int size) throws IOException {
+        org.geotools.data.Query probe = new org.geotools.data.Query(query);
+        int start = query.getStartIndex() != null ? query.getStartIndex() : 0;
+        probe.setStartIndex(start + size);
+        probe.setMaxFeatures(1);
+        int matched = source.getCount(probe);
+        if (matched >= 0) {
+            return matched > 0;
+        }
+        FeatureIterator<? extends Feature> it = source.getFeatures(probe).features();
+        try {
+            return it.hasNext();
+        } finally {
+            it.close();
+        }
+    }
+
+    /**
+     * Sums up the counts of the queries once they are done
+     */
+    static class DeferredTotalCount implements Callable<BigInteger>, Closeable {
+
+        List<CountExecutor> executors;
+
+        DeferredTotalCount(List<CountExecutor> executors) {
+            this.executors = executors;
+        }
+
+        /**
+         * Cancels the counts still running, for output formats failing before writing the total
+         */
+        public void close() {
+            for (CountExecutor q : executors) {
+                q.cancel();
+            }
+        }
+
+        public BigInteger call() throws Exception {
+            int total = 0;
+            for (CountExecutor q : executors) {
+                int result = q.getCount();
+                // if the count is unknown for one, we don't know the total, period
+                if (result == -1) {
+                    return BigInteger.valueOf(-1);
+                }
+                total += result;
+            }
+            return BigInteger.valueOf(total);
+        }
     }
 
     protected void processStoredQueries(GetFeatureRequest request) {
@@ -703,6 +1118,30 @@ public class GetFeature {
      */
     protected FeatureCollectionResponse buildResults(GetFeatureRequest request, int offset, int maxFeatures, 
         int count, int total, List results, String lockId) {
+        return buildResults(request, offset, maxFeatures, count, total, results, lockId, null);
+    }
+
+    /**
+     * Allows subclasses to alter the result generation
+     * 
+     * @param nextCursor the keyset paging cursor of the next page, if any
+     */
+    protected FeatureCollectionResponse buildResults(GetFeatureRequest request, int offset, int maxFeatures, 
+        int count, int total, List results, String lockId, String nextCursor) {
+        return buildResults(request, offset, maxFeatures, count, total, results, lockId,
+                nextCursor, false);
+    }
+
+    /**
+     * Allows subclasses to alter the result generation
+     * 
+     * @param nextCursor the keyset paging cursor of the next page, if any
+     * @param moreFeatures true if the total is still being counted, but more features are known
+     *        to follow the page, in which case the page gets a next link
+     */
+    protected FeatureCollectionResponse buildResults(GetFeatureRequest request, int offset, int maxFeatures, 
+        int count, int total, List results, String lockId, String nextCursor,
+        boolean moreFeatures) {
 
         FeatureCollectionResponse result = request.createResponse();
         result.setNumberOfFeatures(BigInteger.valueOf(count));
@@ -732,6 +1171,8 @@ public class GetFeature {
                 //generate kvp map from request object
                 kvp = buildKvpFromRequest(request);
             }
+            // the cursor is valid only for the page it was generated for
+            kvp.remove(KeysetPaging.CURSOR);
 
             if (offset > 0) {
                 //previous
@@ -751,10 +1192,13 @@ public class GetFeature {
 
                 //calculate the count of the next result set 
                 int nextCount = total - (offset + count);
-                if (nextCount > 0) {
+                if (nextCount > 0 || moreFeatures) {
                     kvp.put("startIndex", String.valueOf(offset > 0 ? offset + count : count));
                     //kvp.put("count", String.valueOf(nextCount));
                     kvp.put("count", String.valueOf(maxFeatures));
+                    if (nextCursor != null) {
+                        kvp.put(KeysetPaging.CURSOR, nextCursor);
+                    }
                     result.setNext(buildURL(request.getBaseUrl(), "wfs", kvp, URLType.SERVICE));
                 }
             }
@@ -7,9 +7,11 @@ package org.geoserver.wfs;
 
 import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -34,6 +36,7 @@ import org.geoserver.wfs.request.TransactionRequest;
 import org.geoserver.wfs.request.TransactionResponse;
 import org.geotools.data.DataUtilities;
 import org.geotools.data.FeatureStore;
+import org.geotools.data.collection.ListFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureIterator;
 import org.geotools.data.simple.SimpleFeatureStore;
@@ -57,7 +60,8 @@ import com.vividsolutions.jts.geom.Geometry;
  * @author Andrea Aime - TOPP
  *
  */
-public class InsertElementHandler extends AbstractTransactionElementHandler {
+public class InsertElementHandler extends AbstractTransactionElementHandler implements
+        BatchTransactionElementHandler {
     /**
      * logger
      */
@@ -76,39 +80,67 @@ public class InsertElementHandler extends AbstractTransactionElementHandler {
         }
     }
 
-    @SuppressWarnings("unchecked")
     public void execute(TransactionElement element, TransactionRequest request, Map featureStores, 
         TransactionResponse response, TransactionListener listener) throws WFSTransactionException {
-        
-        Insert insert = (Insert) element;
-        LOGGER.finer("Transasction Insert:" + insert);
+        execute(Collections.singletonList(element), request, featureStores, response, listener);
+    }
 
+    /**
+     * Batches consecutive inserts up to the batch size, counted in features
+     */
+    public boolean canBatch(List<TransactionElement> batch, TransactionElement element,
+            int batchSize) {
+        int features = ((Insert) element).getFeatures().size();
+        for (TransactionElement e : batch) {
+            features += ((Insert) e).getFeatures().size();
+        }
+        return features <= batchSize;
+    }
+
+    /**
+     * Executes the inserts adding all the features of the same type with a single
+     * {@link SimpleFeatureStore#addFeatures(org.geotools.feature.FeatureCollection)} call. The
+     * pre and post insert events are still fired once per element.
+     */
+    @SuppressWarnings("unchecked")
+    public void execute(List<TransactionElement> elements, TransactionRequest request,
+            Map featureStores, TransactionResponse response, TransactionListener listener)
+            throws WFSTransactionException {
         long inserted = response.getTotalInserted().longValue();
 
+        // the element being processed, to report errors
+        Insert insert = (Insert) elements.get(0);
         try {
-            // group features by their schema
-            HashMap /* <SimpleFeatureType,FeatureCollection> */ schema2features = new HashMap();
-
-            
-            List featureList = insert.getFeatures();
-            for (Iterator f = featureList.iterator(); f.hasNext();) {
-                SimpleFeature feature = (SimpleFeature) f.next();
-                SimpleFeatureType schema = feature.getFeatureType();
-                DefaultFeatureCollection collection = 
-                    (DefaultFeatureCollection) schema2features.get(schema);
+            // group features by their schema, and then by element, keeping the element order
+            Map<SimpleFeatureType, Map<Insert, DefaultFeatureCollection>> schema2features = 
+                new LinkedHashMap<SimpleFeatureType, Map<Insert, DefaultFeatureCollection>>();
+            for (TransactionElement element : elements) {
+                insert = (Insert) element;
+                LOGGER.finer("Transasction Insert:" + insert);
+
+                List featureList = insert.getFeatures();
+                for (Iterator f = featureList.iterator(); f.hasNext();) {
+                    SimpleFeature feature = (SimpleFeature) f.next();
+                    SimpleFeatureType schema = feature.getFeatureType();
+                    Map<Insert, DefaultFeatureCollection> element2features = schema2features.get(schema);
+                    if (element2features == null) {
+                        element2features = new LinkedHashMap<Insert, DefaultFeatureCollection>();
+                        schema2features.put(schema, element2features);
+                    }
+                    DefaultFeatureCollection collection = element2features.get(insert);
+                    if (collection == null) {
+                        collection = new DefaultFeatureCollection(null, schema);
+                        element2features.put(insert, collection);
+                    }
 
-                if (collection == null) {
-                    collection = new DefaultFeatureCollection(null, schema);
-                    schema2features.put(schema, collection);
-                }
+                    // do a check for idegen = useExisting, if set try to tell the datastore to use
+                    // the privided fid
+                    if (insert.isIdGenUseExisting()) {
+                        feature.getUserData().put(Hints.USE_PROVIDED_FID, true);
+                    }
 
-                // do a check for idegen = useExisting, if set try to tell the datastore to use
-                // the privided fid
-                if (insert.isIdGenUseExisting()) {
-                    feature.getUserData().put(Hints.USE_PROVIDED_FID, true);
+                    collection.add(feature);
                 }
-
-                collection.add(feature);
             }
 
             // JD: change from set fo list because if inserting
@@ -117,11 +149,12 @@ public class InsertElementHandler extends AbstractTransactionElementHandler {
             // JD: change from list to map so that the map can later be
             // processed and we can report the fids back in the same order
             // as they were supplied
-            Map<String, List<FeatureId>> schema2fids = new HashMap<String, List<FeatureId>>();
+            Map<Insert, Map<String, List<FeatureId>>> element2fids = 
+                new HashMap<Insert, Map<String, List<FeatureId>>>();
 
-            for (Iterator c = schema2features.values().iterator(); c.hasNext();) {
-                SimpleFeatureCollection collection = (SimpleFeatureCollection) c.next();
-                SimpleFeatureType schema = collection.getSchema();
+            for (Map.Entry<SimpleFeatureType, Map<Insert, DefaultFeatureCollection>> entry : schema2features
+                    .entrySet()) {
+                SimpleFeatureType schema = entry.getKey();
 
                 final QName elementName = new QName(schema.getName().getNamespaceURI(), schema.getTypeName());
                 SimpleFeatureStore store;
@@ -132,22 +165,31 @@ public class InsertElementHandler extends AbstractTransactionElementHandler {
                         + "'");
                 }
 
-                if (collection != null) {
+                // reprojection target
+                CoordinateReferenceSystem target = null;
+                final GeometryDescriptor defaultGeometry = store.getSchema().getGeometryDescriptor();
+                if(defaultGeometry != null) {
+                    target = defaultGeometry.getCoordinateReferenceSystem();
+                }
+
+                // prepare the features of each element and fire the pre insert events
+                Map<Insert, SimpleFeatureCollection> element2collection = 
+                    new LinkedHashMap<Insert, SimpleFeatureCollection>();
+                for (Map.Entry<Insert, DefaultFeatureCollection> ec : entry.getValue().entrySet()) {
+                    insert = ec.getKey();
+                    SimpleFeatureCollection collection = ec.getValue();
+
                     // if we really need to, make sure we are inserting coordinates that do
                     // match the CRS area of validity
                     if(getInfo().isCiteCompliant()) {
                         checkFeatureCoordinatesRange(collection);
                     }
-                    
+
                     // reprojection
-                    final GeometryDescriptor defaultGeometry = store.getSchema().getGeometryDescriptor();
-                    if(defaultGeometry != null) {
-                        CoordinateReferenceSystem target = defaultGeometry.getCoordinateReferenceSystem();
-                        if (target != null) {
-                            collection = new ReprojectingFeatureCollection(collection, target);
-                        }
+                    if (target != null) {
+                        collection = new ReprojectingFeatureCollection(collection, target);
                     }
-                    
+
                     // Need to use the namespace here for the
                     // lookup, due to our weird
                     // prefixed internal typenames. see
@@ -172,44 +214,92 @@ public class InsertElementHandler extends AbstractTransactionElementHandler {
                     // featureValidation(
                     // typeInfo.getDataStore().getId(), schema,
                     // collection );
-                    List<FeatureId> fids = schema2fids.get(schema.getTypeName());
-
-                    if (fids == null) {
-                        fids = new LinkedList<FeatureId>();
-                        schema2fids.put(schema.getTypeName(), fids);
-                    }
 
                     //fire pre insert event
                     TransactionEvent event = new TransactionEvent(TransactionEventType.PRE_INSERT,
                             request, elementName, collection);
                     event.setSource(Insert.WFS11.unadapt(insert));
-                    
+
                     listener.dataStoreChange( event );
-                    fids.addAll(store.addFeatures(collection));
-                    
+                    element2collection.put(insert, collection);
+                }
+
+                // add all the features of the batch in one shot
+                SimpleFeatureCollection batch;
+                if (element2collection.size() == 1) {
+                    batch = element2collection.values().iterator().next();
+                } else {
+                    ListFeatureCollection features = null;
+                    for (SimpleFeatureCollection collection : element2collection.values()) {
+                        if (features == null) {
+                            features = new ListFeatureCollection(collection.getSchema());
+                        }
+                        SimpleFeatureIterator fi = collection.features();
+                        try {
+                            while (fi.hasNext()) {
+                                features.add(fi.next());
+                            }
+                        } finally {
+                            fi.close();
+                        }
+                    }
+                    batch = features;
+                }
+                insert = element2collection.keySet().iterator().next();
+                long start = System.currentTimeMillis();
+                List<FeatureId> batchFids = store.addFeatures(batch);
+                long elapsed = System.currentTimeMillis() - start;
+
+                // split the fids among the elements and fire the post insert events
+                int offset = 0;
+                for (Map.Entry<Insert, DefaultFeatureCollection> ec : entry.getValue().entrySet()) {
+                    insert = ec.getKey();
+                    int size = ec.getValue().size();
+                    List<FeatureId> fids = batchFids.subList(offset, offset + size);
+                    offset += size;
+
+                    Map<String, List<FeatureId>> schema2fids = element2fids.get(insert);
+                    if (schema2fids == null) {
+                        schema2fids = new HashMap<String, List<FeatureId>>();
+                        element2fids.put(insert, schema2fids);
+                    }
+                    List<FeatureId> typeFids = schema2fids.get(schema.getTypeName());
+                    if (typeFids == null) {
+                        typeFids = new LinkedList<FeatureId>();
+                        schema2fids.put(schema.getTypeName(), typeFids);
+                    }
+                    typeFids.addAll(fids);
+
                     //fire post insert event
                     SimpleFeatureCollection features = store.getFeatures(filterFactory.id(new HashSet<FeatureId>(fids)));
-                    event = new TransactionEvent(TransactionEventType.POST_INSERT, request, 
+                    TransactionEvent event = new TransactionEvent(TransactionEventType.POST_INSERT, request, 
                         elementName, features, Insert.WFS11.unadapt(insert));
+                    event.setExecutionTime(batchFids.isEmpty() ? elapsed : elapsed * size
+                            / batchFids.size());
                     listener.dataStoreChange( event );
                 }
             }
 
             // report back fids, we need to keep the same order the
             // fids were reported in the original feature collection
-            for (Iterator f = featureList.iterator(); f.hasNext();) {
-                SimpleFeature feature = (SimpleFeature) f.next();
-                SimpleFeatureType schema = feature.getFeatureType();
-
-                // get the next fid
-                LinkedList<FeatureId> fids = (LinkedList<FeatureId>) schema2fids.get(schema.getTypeName());
-                FeatureId fid = fids.removeFirst();
+            for (TransactionElement element : elements) {
+                insert = (Insert) element;
+                List featureList = insert.getFeatures();
+                for (Iterator f = featureList.iterator(); f.hasNext();) {
+                    SimpleFeature feature = (SimpleFeature) f.next();
+                    SimpleFeatureType schema = feature.getFeatureType();
+
+                    // get the next fid
+                    LinkedList<FeatureId> fids = (LinkedList<FeatureId>) element2fids.get(insert)
+                            .get(schema.getTypeName());
+                    FeatureId fid = fids.removeFirst();
+
+                    response.addInsertedFeature(insert.getHandle(), fid);
+                }
 
-                response.addInsertedFeature(insert.getHandle(), fid);
+                // update the insert counter
+                inserted += featureList.size();
             }
-
-            // update the insert counter
-            inserted += featureList.size();
         } catch (Exception e) {
             String msg = "Error performing insert: " + e.getMessage();
             throw new WFSTransactionException(msg, e, insert.getHandle());
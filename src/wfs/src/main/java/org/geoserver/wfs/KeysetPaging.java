@@ -0,0 +1,500 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs;
+
+import java.io.UnsupportedEncodingException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import org.apache.commons.codec.binary.Base64;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geotools.data.Query;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.feature.collection.DecoratingSimpleFeatureCollection;
+import org.geotools.util.logging.Logging;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.FeatureType;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory2;
+import org.opengis.filter.expression.PropertyName;
+import org.opengis.filter.sort.SortBy;
+import org.opengis.filter.sort.SortOrder;
+
+/**
+ * Support for keyset (a.k.a. seek) paging in GetFeature.
+ * <p>
+ * Paging with startIndex makes the stores skip all the features before the requested page, which
+ * gets linearly slower as the page goes deeper. When keyset paging is enabled for a feature type
+ * the features are sorted by the requested sort attributes followed by a unique key attribute,
+ * and the next link carries an opaque cursor referring to the sort values of the last feature
+ * returned. The next page is then retrieved by filtering the features that sort after those
+ * values, which stores can resolve with an index lookup regardless of the page depth.
+ * </p>
+ * <p>
+ * The next link is encoded before the features, so the values of the last feature of the page
+ * cannot be part of it. They are recorded while the page is encoded, with no extra query, and kept
+ * as they are, without any loss of precision, in an in-memory cache holding the last
+ * {@link #MAX_CURSORS} pages, under a random identifier carried by the cursor. The cursor also
+ * carries, encoded losslessly along with their types, the sort values the current page has been
+ * read from, and the number of features to skip after them to reach the next page. When the
+ * recorded values are not available, because the cursor has been evicted, the server restarted,
+ * or the request reached another node of a cluster, the next page is read by seeking to those
+ * values and skipping the features after them, which costs a scan as long as the pages read since
+ * the last recorded cursor was found, instead of one as long as all the previous pages. Only
+ * cursors missing both fall back on offset paging. Every fallback is logged.
+ * </p>
+ * <p>
+ * Keyset paging is enabled by setting the {@link #KEY_ATTRIBUTE} metadata entry of the feature type
+ * to the name of an attribute having unique and non null values, ideally indexed. The cursor is
+ * used only along with the startIndex it has been generated for, so the startIndex values of the
+ * next and previous links keep on working as usual, and clients moving to a different page simply
+ * fall back on offset based paging.
+ * </p>
+ */
+public class KeysetPaging {
+
+    /**
+     * Feature type metadata key holding the name of the unique attribute used for keyset paging
+     */
+    public static final String KEY_ATTRIBUTE = "keysetPagingAttribute";
+
+    /**
+     * The KVP parameter holding the cursor
+     */
+    static final String CURSOR = "CURSOR";
+
+    static final String SEPARATOR = "|";
+
+    static final FilterFactory2 FF = CommonFactoryFinder.getFilterFactory2();
+
+    static final Logger LOGGER = Logging.getLogger(KeysetPaging.class);
+
+    /**
+     * Max number of recorded cursors kept in memory
+     */
+    static final int MAX_CURSORS = 1000;
+
+    /**
+     * The sort values of the last feature of the pages encoded so far, by cursor identifier
+     */
+    static final Map<String, Object[]> CURSORS = Collections
+            .synchronizedMap(new LinkedHashMap<String, Object[]>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Object[]> eldest) {
+                    return size() > MAX_CURSORS;
+                }
+            });
+
+    List<String> names = new ArrayList<String>();
+
+    List<Class<?>> bindings = new ArrayList<Class<?>>();
+
+    List<SortOrder> orders = new ArrayList<SortOrder>();
+
+    /**
+     * The sort values the current page is read after, or null if it is read from the start
+     */
+    Object[] anchor;
+
+    /**
+     * The number of features the current page skips, after the anchor if any
+     */
+    int skip;
+
+    /**
+     * Returns the keyset paging support for the feature type, or null if keyset paging is not
+     * enabled, or cannot be used with the requested sorting
+     */
+    static KeysetPaging create(FeatureTypeInfo featureType, FeatureType schema,
+            List<SortBy> sortBy) {
+        if (featureType.getMetadata() == null || !(schema instanceof SimpleFeatureType)) {
+            return null;
+        }
+        String key = featureType.getMetadata().get(KEY_ATTRIBUTE, String.class);
+        if (key == null || key.trim().isEmpty()) {
+            return null;
+        }
+
+        SimpleFeatureType simpleSchema = (SimpleFeatureType) schema;
+        KeysetPaging paging = new KeysetPaging();
+        if (sortBy != null) {
+            for (SortBy sort : sortBy) {
+                PropertyName property = sort.getPropertyName();
+                // natural order cannot be expressed as a filter
+                if (property == null || !paging.add(simpleSchema, property.getPropertyName(),
+                        sort.getSortOrder())) {
+                    return null;
+                }
+            }
+        }
+        if (!paging.names.contains(key) && !paging.add(simpleSchema, key, SortOrder.ASCENDING)) {
+            return null;
+        }
+        return paging;
+    }
+
+    private boolean add(SimpleFeatureType schema, String name, SortOrder order) {
+        // strip the prefix, if any
+        name = name.substring(name.indexOf(':') + 1);
+        AttributeDescriptor descriptor = schema.getDescriptor(name);
+        if (descriptor == null) {
+            return false;
+        }
+        names.add(name);
+        bindings.add(descriptor.getType().getBinding());
+        orders.add(order);
+        return true;
+    }
+
+    /**
+     * The sort to apply to the query, ending with the key attribute
+     */
+    SortBy[] getSortBy() {
+        SortBy[] result = new SortBy[names.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = FF.sort(names.get(i), orders.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * Returns true if the query loads all the attributes needed to record the cursor
+     */
+    boolean canRecord(Query query) {
+        if (query.retrieveAllProperties()) {
+            return true;
+        }
+        List<String> loaded = new ArrayList<String>();
+        for (String name : query.getPropertyNames()) {
+            loaded.add(name.substring(name.indexOf(':') + 1));
+        }
+        return loaded.containsAll(names);
+    }
+
+    /**
+     * Wraps the page features so that the sort values of the last one are recorded, under the
+     * given identifier, once they have been all read
+     */
+    SimpleFeatureCollection record(SimpleFeatureCollection features, String id) {
+        return new RecordingFeatureCollection(features, id);
+    }
+
+    /**
+     * Returns a new random identifier for the recorded sort values
+     */
+    static String newId() {
+        return UUID.randomUUID().toString();
+    }
+
+    /**
+     * Returns the filter selecting the features after the cursor, or null if the cursor is missing,
+     * not valid for the requested start index and sorting, or carries no values to seek to. In
+     * the first case the page is read skipping {@link #getSkip()} features from the start,
+     * otherwise after the filter.
+     */
+    Filter getCursorFilter(String cursor, int startIndex) {
+        anchor = null;
+        skip = startIndex;
+        if (cursor == null) {
+            return null;
+        }
+        String[] parts;
+        try {
+            String decoded = new String(Base64.decodeBase64(cursor), "UTF-8");
+            parts = decoded.split("\\" + SEPARATOR, -1);
+        } catch (UnsupportedEncodingException e) {
+            return null;
+        }
+        if (parts.length < 4 || !String.valueOf(startIndex).equals(parts[0])
+                || !getSortSignature().equals(parts[1])) {
+            return null;
+        }
+        Object[] values = CURSORS.get(parts[2]);
+        if (values != null && values.length == names.size()) {
+            anchor = values;
+            skip = 0;
+        } else {
+            // not recorded here, seek to the values the previous page was read after
+            values = decode(parts);
+            if (values == null) {
+                LOGGER.info("Keyset paging cursor for start index " + startIndex
+                        + " not found, falling back on offset paging");
+                return null;
+            }
+            anchor = values;
+            skip = Integer.parseInt(parts[3]);
+            LOGGER.fine("Keyset paging cursor for start index " + startIndex
+                    + " not found, skipping " + skip + " features after the previous page");
+        }
+
+        // (k1 > v1) or (k1 = v1 and k2 > v2) or ...
+        List<Filter> alternatives = new ArrayList<Filter>();
+        for (int i = 0; i < values.length; i++) {
+            List<Filter> conditions = new ArrayList<Filter>();
+            for (int j = 0; j < i; j++) {
+                conditions.add(FF.equals(FF.property(names.get(j)), FF.literal(values[j])));
+            }
+            if (orders.get(i) == SortOrder.DESCENDING) {
+                conditions.add(FF.less(FF.property(names.get(i)), FF.literal(values[i])));
+            } else {
+                conditions.add(FF.greater(FF.property(names.get(i)), FF.literal(values[i])));
+            }
+            alternatives.add(conditions.size() == 1 ? conditions.get(0) : FF.and(conditions));
+        }
+        return alternatives.size() == 1 ? alternatives.get(0) : FF.or(alternatives);
+    }
+
+    /**
+     * The number of features to skip, after the cursor filter if any, as set up by the last call
+     * to {@link #getCursorFilter(String, int)}
+     */
+    int getSkip() {
+        return skip;
+    }
+
+    /**
+     * Builds the cursor of the page starting at the given start index, following the current one
+     *
+     * @param id the identifier the sort values of the last feature of the current page are
+     *        recorded under
+     * @param count the number of features in the current page
+     * @return the cursor, or null if it cannot be built
+     */
+    String getCursor(String id, int startIndex, int count) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(startIndex).append(SEPARATOR).append(getSortSignature()).append(SEPARATOR)
+                .append(id).append(SEPARATOR);
+        String encoded = anchor != null ? encode(anchor) : null;
+        if (encoded != null) {
+            sb.append(skip + count).append(encoded);
+        } else {
+            sb.append(startIndex);
+        }
+        try {
+            return Base64.encodeBase64URLSafeString(sb.toString().getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Encodes the values along with their types, each one prefixed by the separator, or returns
+     * null if any of them is of a type that cannot be encoded losslessly
+     */
+    static String encode(Object[] values) {
+        StringBuilder sb = new StringBuilder();
+        for (Object value : values) {
+            String text;
+            char tag;
+            if (value instanceof String) {
+                tag = 'S';
+                text = (String) value;
+            } else if (value instanceof Integer) {
+                tag = 'I';
+                text = value.toString();
+            } else if (value instanceof Long) {
+                tag = 'L';
+                text = value.toString();
+            } else if (value instanceof Short) {
+                tag = 'H';
+                text = value.toString();
+            } else if (value instanceof Byte) {
+                tag = 'B';
+                text = value.toString();
+            } else if (value instanceof Double) {
+                tag = 'D';
+                text = value.toString();
+            } else if (value instanceof Float) {
+                tag = 'F';
+                text = value.toString();
+            } else if (value instanceof BigDecimal) {
+                tag = 'N';
+                text = value.toString();
+            } else if (value instanceof BigInteger) {
+                tag = 'G';
+                text = value.toString();
+            } else if (value instanceof Boolean) {
+                tag = 'Z';
+                text = value.toString();
+            } else if (value instanceof Timestamp) {
+                // the millis include the whole milliseconds of the nanos
+                Timestamp ts = (Timestamp) value;
+                tag = 'T';
+                text = ts.getTime() + ":" + ts.getNanos();
+            } else if (value instanceof java.sql.Date) {
+                tag = 'd';
+                text = String.valueOf(((Date) value).getTime());
+            } else if (value instanceof Time) {
+                tag = 't';
+                text = String.valueOf(((Date) value).getTime());
+            } else if (value != null && value.getClass() == Date.class) {
+                tag = 'U';
+                text = String.valueOf(((Date) value).getTime());
+            } else {
+                return null;
+            }
+            try {
+                sb.append(SEPARATOR).append(tag).append(
+                        Base64.encodeBase64URLSafeString(text.getBytes("UTF-8")));
+            } catch (UnsupportedEncodingException e) {
+                return null;
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Decodes the values following the skip count in the cursor parts, or returns null if there
+     * are none, or they do not match the sorting
+     */
+    Object[] decode(String[] parts) {
+        if (parts.length != 4 + names.size()) {
+            return null;
+        }
+        Object[] values = new Object[names.size()];
+        try {
+            for (int i = 0; i < values.length; i++) {
+                String part = parts[4 + i];
+                if (part.isEmpty()) {
+                    return null;
+                }
+                String text = new String(Base64.decodeBase64(part.substring(1)), "UTF-8");
+                switch (part.charAt(0)) {
+                case 'S':
+                    values[i] = text;
+                    break;
+                case 'I':
+                    values[i] = Integer.valueOf(text);
+                    break;
+                case 'L':
+                    values[i] = Long.valueOf(text);
+                    break;
+                case 'H':
+                    values[i] = Short.valueOf(text);
+                    break;
+                case 'B':
+                    values[i] = Byte.valueOf(text);
+                    break;
+                case 'D':
+                    values[i] = Double.valueOf(text);
+                    break;
+                case 'F':
+                    values[i] = Float.valueOf(text);
+                    break;
+                case 'N':
+                    values[i] = new BigDecimal(text);
+                    break;
+                case 'G':
+                    values[i] = new BigInteger(text);
+                    break;
+                case 'Z':
+                    values[i] = Boolean.valueOf(text);
+                    break;
+                case 'T':
+                    int colon = text.indexOf(':');
+                    Timestamp ts = new Timestamp(Long.parseLong(text.substring(0, colon)));
+                    ts.setNanos(Integer.parseInt(text.substring(colon + 1)));
+                    values[i] = ts;
+                    break;
+                case 'd':
+                    values[i] = new java.sql.Date(Long.parseLong(text));
+                    break;
+                case 't':
+                    values[i] = new Time(Long.parseLong(text));
+                    break;
+                case 'U':
+                    values[i] = new Date(Long.parseLong(text));
+                    break;
+                default:
+                    return null;
+                }
+            }
+            Integer.parseInt(parts[3]);
+        } catch (UnsupportedEncodingException e) {
+            return null;
+        } catch (IllegalArgumentException e) {
+            // also covers malformed numbers
+            return null;
+        } catch (StringIndexOutOfBoundsException e) {
+            return null;
+        }
+        return values;
+    }
+
+    /**
+     * A short signature of the sorting, makes sure cursors are not used with a different sort
+     */
+    String getSortSignature() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < names.size(); i++) {
+            sb.append(names.get(i)).append(orders.get(i) == SortOrder.DESCENDING ? 'D' : 'A');
+        }
+        return Integer.toHexString(sb.toString().hashCode());
+    }
+
+    /**
+     * Records the sort values of the last feature once the page has been read to the end
+     */
+    class RecordingFeatureCollection extends DecoratingSimpleFeatureCollection {
+
+        String id;
+
+        RecordingFeatureCollection(SimpleFeatureCollection delegate, String id) {
+            super(delegate);
+            this.id = id;
+        }
+
+        @Override
+        public SimpleFeatureIterator features() {
+            final SimpleFeatureIterator it = delegate.features();
+            return new SimpleFeatureIterator() {
+                Object[] last;
+
+                public boolean hasNext() {
+                    boolean hasNext = it.hasNext();
+                    if (!hasNext && last != null) {
+                        CURSORS.put(id, last);
+                        last = null;
+                    }
+                    return hasNext;
+                }
+
+                public SimpleFeature next() {
+                    SimpleFeature f = it.next();
+                    Object[] values = new Object[names.size()];
+                    for (int i = 0; i < values.length; i++) {
+                        values[i] = f.getAttribute(names.get(i));
+                        if (values[i] == null) {
+                            // cannot seek past a null, will fall back on offset paging
+                            values = null;
+                            break;
+                        }
+                    }
+                    last = values;
+                    return f;
+                }
+
+                public void close() {
+                    it.close();
+                }
+            };
+        }
+    }
+}
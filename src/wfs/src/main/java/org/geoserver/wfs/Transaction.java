@@ -54,6 +54,15 @@ public class Transaction {
      */
     static Logger LOGGER = org.geotools.util.logging.Logging.getLogger("org.geoserver.wfs");
 
+    /**
+     * System property setting the maximum size of the batches of consecutive elements executed
+     * together by {@link BatchTransactionElementHandler}s (features for inserts, elements for
+     * updates). Set it to 1 or less to disable batching.
+     */
+    public static final String BATCH_SIZE = "org.geoserver.wfs.transactionBatchSize";
+
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
     /**
      * WFS configuration
      */
@@ -196,84 +205,7 @@ public class Transaction {
             Map.Entry entry = (Map.Entry) it.next();
             TransactionElement element = (TransactionElement) entry.getKey();
             TransactionElementHandler handler = (TransactionElementHandler) entry.getValue();
-            Map featureTypeInfos = new HashMap();
-
-            
-            QName[] typeNames = handler.getTypeNames(element);
-
-            for (int i = 0; i < typeNames.length; i++) {
-                final QName typeName = typeNames[i];
-                final String name = typeName.getLocalPart();
-                final String namespaceURI;
-
-                if (typeName.getNamespaceURI() != null) {
-                    namespaceURI = typeName.getNamespaceURI();
-                } else {
-                    namespaceURI = catalog.getDefaultNamespace().getURI();
-                }
-
-                LOGGER.fine("Locating FeatureSource uri:'" + namespaceURI + "' name:'" + name + "'");
-
-                final FeatureTypeInfo meta = catalog.getFeatureTypeByName(namespaceURI, name);
-
-                if (meta == null) {
-                    String msg = "Feature type '" + name + "' is not available: ";
-                    throw new WFSTransactionException(msg, (String) null, element.getHandle());
-                }
-
-                featureTypeInfos.put(typeName, meta);
-            }
-
-            // check element validity
-            handler.checkValidity(element, featureTypeInfos);
-
-            // go through all feature type infos data objects, and load feature
-            // stores
-            for (Iterator m = featureTypeInfos.values().iterator(); m.hasNext();) {
-                FeatureTypeInfo meta = (FeatureTypeInfo) m.next();
-                String typeRef = meta.getStore().getName() + ":" + meta.getName();
-
-                String URI = meta.getNamespace().getURI();
-                QName elementName = new QName(URI, meta.getName(),
-                        meta.getNamespace().getPrefix());
-                QName elementNameDefault = null;
-
-                if (catalog.getDefaultNamespace().getURI().equals(URI)) {
-                    elementNameDefault = new QName(meta.getName());
-                }
-
-                LOGGER.fine("located FeatureType w/ typeRef '" + typeRef + "' and elementName '"
-                    + elementName + "'");
-
-                if (stores.containsKey(elementName)) {
-                    // typeName already loaded
-                    continue;
-                }
-
-                try {
-                    FeatureSource<? extends FeatureType, ? extends Feature> source = meta.getFeatureSource(null,null);
-
-                    if (source instanceof FeatureStore) {
-                        FeatureStore<? extends FeatureType, ? extends Feature> store;
-                        store = (FeatureStore<? extends FeatureType, ? extends Feature>) source;
-                        store.setTransaction(transaction);
-                        stores.put(elementName, source);
-
-                        if (elementNameDefault != null) {
-                            stores.put(elementNameDefault, source);
-                        }
-
-                        stores2.put(typeRef, source);
-                    } else {
-                        String msg = elementName + " is read-only";
-                        throw new WFSTransactionException(msg, (String) null, element.getHandle());
-                    }
-                } catch (IOException ioException) {
-                    String msg = elementName + " is not available: "
-                        + ioException.getLocalizedMessage();
-                    throw new WFSTransactionException(msg, ioException, element.getHandle());
-                }
-            }
+            gatherFeatureStores(element, handler, stores, stores2);
         }
 
         // provide authorization for transaction
@@ -314,12 +246,56 @@ public class Transaction {
         Exception exception = null;
 
         try {
-            for (Iterator it = elementHandlers.entrySet().iterator(); it.hasNext();) {
-                Map.Entry entry = (Map.Entry) it.next();
-                TransactionElement element = (TransactionElement) entry.getKey();
-                TransactionElementHandler handler = (TransactionElementHandler) entry.getValue();
+            final int batchSize = Integer.getInteger(BATCH_SIZE, DEFAULT_BATCH_SIZE);
+            List<Map.Entry> entries = new ArrayList<Map.Entry>(elementHandlers.entrySet());
+            for (int i = 0; i < entries.size();) {
+                TransactionElement element = (TransactionElement) entries.get(i).getKey();
+                TransactionElementHandler handler = (TransactionElementHandler) entries.get(i).getValue();
+                i++;
+
+                // group the consecutive elements the handler can execute in one shot
+                List<TransactionElement> batch = null;
+                if (batchSize > 1 && handler instanceof BatchTransactionElementHandler) {
+                    BatchTransactionElementHandler batchHandler = (BatchTransactionElementHandler) handler;
+                    batch = new ArrayList<TransactionElement>();
+                    batch.add(element);
+                    while (i < entries.size() && entries.get(i).getValue() == handler
+                            && batchHandler.canBatch(batch,
+                                    (TransactionElement) entries.get(i).getKey(), batchSize)) {
+                        batch.add((TransactionElement) entries.get(i).getKey());
+                        i++;
+                    }
+                }
 
-                handler.execute(element, request, stores, result, multiplexer);
+                if (batch != null && batch.size() > 1) {
+                    ((BatchTransactionElementHandler) handler).execute(batch, request, stores,
+                            result, multiplexer);
+                } else {
+                    handler.execute(element, request, stores, result, multiplexer);
+                }
+            }
+
+            // elements parsed while the transaction executes, one at a time
+            Iterator<TransactionElement> streamed = request.getStreamedElements();
+            if (streamed != null) {
+                while (streamed.hasNext()) {
+                    TransactionElement streamedElement = streamed.next();
+                    for (TransactionElement element : fireBeforeTransaction(request,
+                            streamedElement)) {
+                        try {
+                            TransactionElementHandler handler = findElementHandler(element
+                                    .getClass());
+                            gatherFeatureStores(element, handler, stores, stores2);
+                            handler.execute(element, request, stores, result, multiplexer);
+                        } catch (WFSTransactionException e) {
+                            throw e;
+                        } catch (WFSException e) {
+                            // part of the transaction has already been executed, roll it back
+                            throw new WFSTransactionException(e.getMessage(), e, e.getCode(),
+                                    e.getLocator(), element.getHandle());
+                        }
+                    }
+                }
             }
         } catch (WFSTransactionException e) {
             LOGGER.log(Level.SEVERE, "Transaction failed", e);
@@ -461,6 +437,114 @@ public class Transaction {
         if (tx != null) tp.beforeTransaction(tx);
     }
 
+    /**
+     * Hands a streamed element to the plugins, which never see it in the request, wrapped in a
+     * transaction of its own carrying the request attributes. Returns the elements to execute, as
+     * left by the plugins
+     */
+    List<TransactionElement> fireBeforeTransaction(TransactionRequest request,
+            TransactionElement element) {
+        if (transactionPlugins.isEmpty()) {
+            return Collections.singletonList(element);
+        }
+        TransactionType tx = TransactionRequest.WFS11.unadapt(request, element);
+        for (Iterator it = transactionPlugins.iterator(); it.hasNext();) {
+            TransactionPlugin tp = (TransactionPlugin) it.next();
+            tp.beforeTransaction(tx);
+        }
+        if (request instanceof TransactionRequest.WFS11) {
+            return new TransactionRequest.WFS11(tx).getElements();
+        }
+        // as for whole requests, plugins cannot alter WFS 2.0 elements
+        return Collections.singletonList(element);
+    }
+
+    /**
+     * Validates the element and gathers the feature stores it requires, configured with the
+     * current transaction
+     */
+    void gatherFeatureStores(TransactionElement element, TransactionElementHandler handler,
+            Map stores, Map stores2) throws WFSTransactionException {
+        Map featureTypeInfos = new HashMap();
+
+        
+        QName[] typeNames = handler.getTypeNames(element);
+
+        for (int i = 0; i < typeNames.length; i++) {
+            final QName typeName = typeNames[i];
+            final String name = typeName.getLocalPart();
+            final String namespaceURI;
+
+            if (typeName.getNamespaceURI() != null) {
+                namespaceURI = typeName.getNamespaceURI();
+            } else {
+                namespaceURI = catalog.getDefaultNamespace().getURI();
+            }
+
+            LOGGER.fine("Locating FeatureSource uri:'" + namespaceURI + "' name:'" + name + "'");
+
+            final FeatureTypeInfo meta = catalog.getFeatureTypeByName(namespaceURI, name);
+
+            if (meta == null) {
+                String msg = "Feature type '" + name + "' is not available: ";
+                throw new WFSTransactionException(msg, (String) null, element.getHandle());
+            }
+
+            featureTypeInfos.put(typeName, meta);
+        }
+
+        // check element validity
+        handler.checkValidity(element, featureTypeInfos);
+
+        // go through all feature type infos data objects, and load feature
+        // stores
+        for (Iterator m = featureTypeInfos.values().iterator(); m.hasNext();) {
+            FeatureTypeInfo meta = (FeatureTypeInfo) m.next();
+            String typeRef = meta.getStore().getName() + ":" + meta.getName();
+
+            String URI = meta.getNamespace().getURI();
+            QName elementName = new QName(URI, meta.getName(),
+                    meta.getNamespace().getPrefix());
+            QName elementNameDefault = null;
+
+            if (catalog.getDefaultNamespace().getURI().equals(URI)) {
+                elementNameDefault = new QName(meta.getName());
+            }
+
+            LOGGER.fine("located FeatureType w/ typeRef '" + typeRef + "' and elementName '"
+                + elementName + "'");
+
+            if (stores.containsKey(elementName)) {
+                // typeName already loaded
+                continue;
+            }
+
+            try {
+                FeatureSource<? extends FeatureType, ? extends Feature> source = meta.getFeatureSource(null,null);
+
+                if (source instanceof FeatureStore) {
+                    FeatureStore<? extends FeatureType, ? extends Feature> store;
+                    store = (FeatureStore<? extends FeatureType, ? extends Feature>) source;
+                    store.setTransaction(transaction);
+                    stores.put(elementName, source);
+
+                    if (elementNameDefault != null) {
+                        stores.put(elementNameDefault, source);
+                    }
+
+                    stores2.put(typeRef, source);
+                } else {
+                    String msg = elementName + " is read-only";
+                    throw new WFSTransactionException(msg, (String) null, element.getHandle());
+                }
+            } catch (IOException ioException) {
+                String msg = elementName + " is not available: "
+                    + ioException.getLocalizedMessage();
+                throw new WFSTransactionException(msg, ioException, element.getHandle());
+            }
+        }
+    }
+
     /**
      * Looks up the element handlers to be used for each element
      *
@@ -37,6 +37,7 @@ public class TransactionEvent {
     private QName layerName;
     private Object source;
     private final TransactionRequest request;
+    private long executionTime = -1;
 
     public TransactionEvent(TransactionEventType type, TransactionRequest request, QName layerName,
             SimpleFeatureCollection affectedFeatures) {
@@ -97,6 +98,19 @@ public class TransactionEvent {
         return source;
     }
 
+    /**
+     * The time, in milliseconds, the store took to apply the change, or -1 if not known. Set on
+     * post insert and post update events. When consecutive elements are executed as a single batch
+     * the batch time is split among the elements proportionally to the features they affect.
+     */
+    public long getExecutionTime() {
+        return executionTime;
+    }
+
+    public void setExecutionTime(long executionTime) {
+        this.executionTime = executionTime;
+    }
+
     public TransactionType getRequest() {
         return TransactionRequest.WFS11.unadapt(request);
     }
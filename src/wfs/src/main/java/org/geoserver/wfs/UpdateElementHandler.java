@@ -7,6 +7,7 @@ package org.geoserver.wfs;
 
 import java.io.IOException;
 import java.math.BigInteger;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -38,6 +39,7 @@ import org.geotools.geometry.jts.GeometryCoordinateSequenceTransformer;
 import org.geotools.geometry.jts.JTS;
 import org.geotools.referencing.CRS;
 import org.geotools.referencing.operation.projection.PointOutsideEnvelopeException;
+import org.geotools.util.Utilities;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.type.AttributeDescriptor;
 import org.opengis.feature.type.FeatureType;
@@ -49,6 +51,7 @@ import org.opengis.filter.FilterFactory2;
 import org.opengis.filter.Id;
 import org.opengis.filter.expression.PropertyName;
 import org.opengis.filter.identity.FeatureId;
+import org.opengis.filter.identity.Identifier;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 import org.opengis.referencing.operation.MathTransform;
 
@@ -61,7 +64,8 @@ import com.vividsolutions.jts.geom.Geometry;
  * @author Andrea Aime - TOPP
  *
  */
-public class UpdateElementHandler extends AbstractTransactionElementHandler {
+public class UpdateElementHandler extends AbstractTransactionElementHandler implements
+        BatchTransactionElementHandler {
     /**
      * logger
      */
@@ -130,8 +134,53 @@ public class UpdateElementHandler extends AbstractTransactionElementHandler {
     public void execute(TransactionElement element, TransactionRequest request, 
        @SuppressWarnings("rawtypes") Map<QName, FeatureStore> featureStores,
        TransactionResponse response, TransactionListener listener) throws WFSTransactionException {
-        
+        execute(Collections.singletonList(element), request, featureStores, response, listener);
+    }
+
+    /**
+     * Batches consecutive updates of the same feature type setting the same non geometric values,
+     * and using feature id filters, which can be merged in a single update. The batch size is
+     * counted in elements.
+     */
+    public boolean canBatch(List<TransactionElement> batch, TransactionElement element,
+            int batchSize) {
+        if (batch.size() >= batchSize) {
+            return false;
+        }
+        Update first = (Update) batch.get(0);
         Update update = (Update) element;
+        if (!first.getTypeName().equals(update.getTypeName())
+                || !(first.getFilter() instanceof Id) || !(update.getFilter() instanceof Id)) {
+            return false;
+        }
+        List<Property> firstProperties = first.getUpdateProperties();
+        List<Property> properties = update.getUpdateProperties();
+        if (firstProperties.size() != properties.size()) {
+            return false;
+        }
+        for (int i = 0; i < properties.size(); i++) {
+            Property p1 = firstProperties.get(i);
+            Property p2 = properties.get(i);
+            // geometries might need a reprojection based on their own crs
+            if (p1.getValue() instanceof Geometry || !p1.getName().equals(p2.getName())
+                    || !Utilities.equals(p1.getValue(), p2.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Executes the updates with a single
+     * {@link SimpleFeatureStore#modifyFeatures(String[], Object[], Filter)} call. The elements
+     * must have been accepted by {@link #canBatch(List, TransactionElement, int)}, the pre and
+     * post update events are still fired once per element.
+     */
+    public void execute(List<TransactionElement> elements, TransactionRequest request, 
+       @SuppressWarnings("rawtypes") Map<QName, FeatureStore> featureStores,
+       TransactionResponse response, TransactionListener listener) throws WFSTransactionException {
+        
+        Update update = (Update) elements.get(0);
         final QName elementName = update.getTypeName();
         String handle = update.getHandle();
         
@@ -146,16 +195,28 @@ public class UpdateElementHandler extends AbstractTransactionElementHandler {
         LOGGER.finer("Transaction Update:" + update);
 
         try {
-            Filter filter = update.getFilter();
-
             // make sure all geometric elements in the filter have a crs, and that the filter
             // is reprojected to store's native crs as well
             CoordinateReferenceSystem declaredCRS = WFSReprojectionUtil.getDeclaredCrs(
                     store.getSchema(), request.getVersion());
-            if(filter != null) {
-                filter = WFSReprojectionUtil.normalizeFilterCRS(filter, store.getSchema(), declaredCRS);
-            } else {
-                filter = Filter.INCLUDE;
+            Filter[] elementFilters = new Filter[elements.size()];
+            for (int i = 0; i < elementFilters.length; i++) {
+                Filter filter = ((Update) elements.get(i)).getFilter();
+                if(filter != null) {
+                    filter = WFSReprojectionUtil.normalizeFilterCRS(filter, store.getSchema(), declaredCRS);
+                } else {
+                    filter = Filter.INCLUDE;
+                }
+                elementFilters[i] = filter;
+            }
+            Filter filter = elementFilters[0];
+            if (elementFilters.length > 1) {
+                // all id filters, merge them
+                Set<Identifier> ids = new HashSet<Identifier>();
+                for (Filter f : elementFilters) {
+                    ids.addAll(((Id) f).getIdentifiers());
+                }
+                filter = CommonFactoryFinder.getFilterFactory2(GeoTools.getDefaultHints()).id(ids);
             }
 
             List<Property> properties = update.getUpdateProperties();
@@ -225,11 +286,15 @@ public class UpdateElementHandler extends AbstractTransactionElementHandler {
             LOGGER.finer("Preprocess to remember modification as a set of fids");
             
             SimpleFeatureCollection features = store.getFeatures(filter);
-            TransactionEvent event = new TransactionEvent(TransactionEventType.PRE_UPDATE, request,
-                    elementName, features);
-            event.setSource(Update.WFS11.unadapt(update));
+            for (int i = 0; i < elementFilters.length; i++) {
+                SimpleFeatureCollection elementFeatures = elementFilters.length == 1 ? features
+                        : store.getFeatures(elementFilters[i]);
+                TransactionEvent event = new TransactionEvent(TransactionEventType.PRE_UPDATE, request,
+                        elementName, elementFeatures);
+                event.setSource(Update.WFS11.unadapt((Update) elements.get(i)));
             
-            listener.dataStoreChange( event );
+                listener.dataStoreChange( event );
+            }
 
             FeatureIterator preprocess = features.features();
 
@@ -244,6 +309,7 @@ public class UpdateElementHandler extends AbstractTransactionElementHandler {
                 preprocess.close();
             }
 
+            long start = System.currentTimeMillis();
             try {
                 store.modifyFeatures(names, values, filter);
             } catch( Exception e) {
@@ -263,6 +329,7 @@ public class UpdateElementHandler extends AbstractTransactionElementHandler {
                     locking.unLockFeatures(filter);
                 }
             }
+            long elapsed = System.currentTimeMillis() - start;
 
             // Post process - gather the same features after the update, and  
             if (!fids.isEmpty()) {
@@ -292,11 +359,38 @@ public class UpdateElementHandler extends AbstractTransactionElementHandler {
                 }finally{
                     iterator.close();
                 }
-                response.addUpdatedFeatures(handle, changedIds);
 
-                listener.dataStoreChange(new TransactionEvent(TransactionEventType.POST_UPDATE,
-                        request, elementName, changed, Update.WFS11.unadapt(update)));
-                
+                if (elements.size() == 1) {
+                    response.addUpdatedFeatures(handle, changedIds);
+
+                    TransactionEvent event = new TransactionEvent(TransactionEventType.POST_UPDATE,
+                            request, elementName, changed, Update.WFS11.unadapt(update));
+                    event.setExecutionTime(elapsed);
+                    listener.dataStoreChange(event);
+                } else {
+                    // split the changed features among the elements
+                    for (int i = 0; i < elements.size(); i++) {
+                        Update elementUpdate = (Update) elements.get(i);
+                        Set<Object> requested = ((Id) elementFilters[i]).getIDs();
+                        Set<FeatureId> elementIds = new HashSet<FeatureId>();
+                        for (FeatureId id : changedIds) {
+                            if (requested.contains(id.getID())) {
+                                elementIds.add(id);
+                            }
+                        }
+                        if (elementIds.isEmpty()) {
+                            continue;
+                        }
+                        response.addUpdatedFeatures(elementUpdate.getHandle(), elementIds);
+
+                        TransactionEvent event = new TransactionEvent(
+                                TransactionEventType.POST_UPDATE, request, elementName,
+                                store.getFeatures(ff.id(elementIds)),
+                                Update.WFS11.unadapt(elementUpdate));
+                        event.setExecutionTime(elapsed * elementIds.size() / changedIds.size());
+                        listener.dataStoreChange(event);
+                    }
+                }
             }
 
             // update the update counter
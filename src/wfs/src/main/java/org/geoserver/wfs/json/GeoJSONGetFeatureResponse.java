@@ -5,16 +5,16 @@
  */
 package org.geoserver.wfs.json;
 
-import java.io.BufferedWriter;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
 import java.math.BigInteger;
+import java.nio.charset.Charset;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -123,12 +123,12 @@ public class GeoJSONGetFeatureResponse extends WFSGetFeatureOutputFormat {
             id_option = JSONType.getIdPolicy( request.getKvp() );
         }
         // prepare to write out
-        OutputStreamWriter osw = null;
-        Writer outWriter = null;
         boolean hasGeom = false;
 
         // get feature count for request
         BigInteger featureCount = null;
+        // count still running, to be written after the features
+        Callable<BigInteger> deferredFeatureCount = null;
         // for WFS 1.0.0 and WFS 1.1.0 a request with the query must be executed
         if(describeFeatureType != null) {
             if (describeFeatureType.getParameters()[0] instanceof GetFeatureType) {
@@ -136,6 +136,7 @@ public class GeoJSONGetFeatureResponse extends WFSGetFeatureOutputFormat {
             }
             // for WFS 2.0.0 the total number of features is stored in the featureCollection
             else if (describeFeatureType.getParameters()[0] instanceof net.opengis.wfs20.GetFeatureType){
+                deferredFeatureCount = featureCollection.getDeferredTotalNumberOfFeatures();
                 BigInteger totalNumberOfFeatures = featureCollection.getTotalNumberOfFeatures();
                 featureCount = (totalNumberOfFeatures != null && totalNumberOfFeatures.longValue() < 0)
                         ? null : totalNumberOfFeatures;
@@ -143,19 +144,16 @@ public class GeoJSONGetFeatureResponse extends WFSGetFeatureOutputFormat {
         }
         
         try {
-            osw = new OutputStreamWriter(output, gs.getGlobal().getSettings().getCharset());
-            outWriter = new BufferedWriter(osw);
+            final GeoJSONStreamWriter jsonWriter = new GeoJSONStreamWriter(output,
+                    Charset.forName(gs.getGlobal().getSettings().getCharset()));
 
             if (jsonp) {
-                outWriter.write(getCallbackFunction() + "(");
+                jsonWriter.text(getCallbackFunction() + "(");
             }
 
-            final GeoJSONBuilder jsonWriter = new GeoJSONBuilder(outWriter);
             jsonWriter.object().key("type").value("FeatureCollection");
-            if(featureCount != null) {
-                jsonWriter.key("totalFeatures").value(featureCount);
-            } else {
-                jsonWriter.key("totalFeatures").value("unknown");
+            if (deferredFeatureCount == null) {
+                writeTotalFeatures(jsonWriter, featureCount);
             }
             jsonWriter.key("features");
             jsonWriter.array();
@@ -174,21 +172,23 @@ public class GeoJSONGetFeatureResponse extends WFSGetFeatureOutputFormat {
                 try {
                     SimpleFeatureType fType;
                     List<AttributeDescriptor> types;
+                    byte[][] keys;
 
                     while (iterator.hasNext()) {
                         SimpleFeature feature = (SimpleFeature) iterator.next();
                         jsonWriter.object();
-                        jsonWriter.key("type").value("Feature");
+                        jsonWriter.featureType();
 
                         fType = feature.getFeatureType();
                         types = fType.getAttributeDescriptors();
+                        keys = jsonWriter.getAttributeKeys(fType);
 
                         if( id_option == null ){
-                            jsonWriter.key("id").value(feature.getID());
+                            jsonWriter.key(GeoJSONStreamWriter.ID).value(feature.getID());
                         }
                         else if ( id_option.length() != 0){
                             Object value = feature.getAttribute(id_option);
-                            jsonWriter.key("id").value(value);
+                            jsonWriter.key(GeoJSONStreamWriter.ID).value(value);
                         }
                         
                         GeometryDescriptor defaultGeomType = fType.getGeometryDescriptor();
@@ -205,7 +205,7 @@ public class GeoJSONGetFeatureResponse extends WFSGetFeatureOutputFormat {
                             jsonWriter.setAxisOrder(CRS.AxisOrder.EAST_NORTH);
                         }
                         
-                        jsonWriter.key("geometry");
+                        jsonWriter.key(GeoJSONStreamWriter.GEOMETRY);
                         Geometry aGeom = (Geometry) feature.getDefaultGeometry();
 
                         if (aGeom == null) {
@@ -223,12 +223,13 @@ public class GeoJSONGetFeatureResponse extends WFSGetFeatureOutputFormat {
                             jsonWriter.writeGeom(aGeom);
                             hasGeom = true;
                         } else {
-                            jsonWriter.value(null);
+                            jsonWriter.value((Object) null);
                         }
                         if (defaultGeomType != null)
-                            jsonWriter.key("geometry_name").value(defaultGeomType.getLocalName());
+                            jsonWriter.key(GeoJSONStreamWriter.GEOMETRY_NAME).value(
+                                    defaultGeomType.getLocalName());
 
-                        jsonWriter.key("properties");
+                        jsonWriter.key(GeoJSONStreamWriter.PROPERTIES);
                         jsonWriter.object();
 
                         for (int j = 0; j < types.size(); j++) {
@@ -251,17 +252,17 @@ public class GeoJSONGetFeatureResponse extends WFSGetFeatureOutputFormat {
                                         // Do nothing, we wrote it above
                                         // jsonWriter.value("geometry_name");
                                     } else {
-                                        jsonWriter.key(ad.getLocalName());
+                                        jsonWriter.key(keys[j]);
                                         jsonWriter.writeGeom((Geometry) value);
                                     }
                                 } else {
-                                    jsonWriter.key(ad.getLocalName());
+                                    jsonWriter.key(keys[j]);
                                     jsonWriter.value(value);
                                 }
 
                             } else {
-                                jsonWriter.key(ad.getLocalName());
-                                jsonWriter.value(null);
+                                jsonWriter.key(keys[j]);
+                                jsonWriter.value((Object) null);
                             }
                         }
                         // Bounding box for feature in properties
@@ -279,6 +280,18 @@ public class GeoJSONGetFeatureResponse extends WFSGetFeatureOutputFormat {
             }
             jsonWriter.endArray(); // end features
 
+            if (deferredFeatureCount != null) {
+                try {
+                    featureCount = deferredFeatureCount.call();
+                } catch (Exception e) {
+                    LOGGER.log(Level.WARNING, "Failed to compute the total number of features", e);
+                }
+                if (featureCount != null && featureCount.longValue() < 0) {
+                    featureCount = null;
+                }
+                writeTotalFeatures(jsonWriter, featureCount);
+            }
+
             // Coordinate Referense System
             try {
                 if ("true".equals(GeoServerExtensions.getProperty("GEOSERVER_GEOJSON_LEGACY_CRS"))){
@@ -313,21 +326,35 @@ public class GeoJSONGetFeatureResponse extends WFSGetFeatureOutputFormat {
             jsonWriter.endObject(); // end featurecollection
 
             if (jsonp) {
-                outWriter.write(")");
+                jsonWriter.text(")");
             }
 
-            outWriter.flush();
+            jsonWriter.flush();
 
         } catch (JSONException jsonException) {
             ServiceException serviceException = new ServiceException("Error: "
                     + jsonException.getMessage());
             serviceException.initCause(jsonException);
             throw serviceException;
+        } finally {
+            // stop the counts still running if the encoding failed, a no-op otherwise
+            if (deferredFeatureCount instanceof Closeable) {
+                ((Closeable) deferredFeatureCount).close();
+            }
+        }
+    }
+
+    private void writeTotalFeatures(final GeoJSONStreamWriter jsonWriter, BigInteger featureCount)
+            throws IOException {
+        if(featureCount != null) {
+            jsonWriter.key("totalFeatures").value(featureCount);
+        } else {
+            jsonWriter.key("totalFeatures").value("unknown");
         }
     }
 
-    private void writeCrs(final GeoJSONBuilder jsonWriter,
-            CoordinateReferenceSystem crs) throws FactoryException {
+    private void writeCrs(final GeoJSONStreamWriter jsonWriter,
+            CoordinateReferenceSystem crs) throws FactoryException, IOException {
         if (crs != null) {
             String identifier = CRS.lookupIdentifier(crs, true);
             // If we get a plain EPSG code, generate a URI as the GeoJSON spec says to 
@@ -350,13 +377,13 @@ public class GeoJSONGetFeatureResponse extends WFSGetFeatureOutputFormat {
             jsonWriter.endObject(); // end crs
         } else {
             jsonWriter.key("crs");
-            jsonWriter.value(null);
+            jsonWriter.value((Object) null);
         }
     }
     
     // Doesn't follow spec, but GeoServer used to do this.
-    private void writeCrsLegacy(final GeoJSONBuilder jsonWriter,
-            CoordinateReferenceSystem crs) {
+    private void writeCrsLegacy(final GeoJSONStreamWriter jsonWriter,
+            CoordinateReferenceSystem crs) throws IOException {
         // Coordinate Referense System, currently only if the namespace is
         // EPSG
         if (crs != null) {
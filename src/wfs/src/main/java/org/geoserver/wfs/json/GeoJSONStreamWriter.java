@@ -0,0 +1,563 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs.json;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.util.Calendar;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.sf.json.util.JSONUtils;
+
+import org.apache.commons.io.output.WriterOutputStream;
+import org.geotools.geometry.jts.coordinatesequence.CoordinateSequences;
+import org.geotools.referencing.CRS;
+import org.geotools.util.Converters;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryCollection;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.geom.impl.CoordinateArraySequence;
+
+/**
+ * A streaming GeoJSON writer producing the same output as {@link GeoJSONBuilder}, but optimized
+ * for large feature collections.
+ * <p>
+ * The writer encodes directly into a reusable UTF-8 byte buffer that is flushed to the output
+ * stream in large chunks, the quoted attribute names are encoded once per feature type, and
+ * integral values, coordinates included, are written digit by digit without going through
+ * boxing and string conversions. Values the writer has no fast path for are converted using the
+ * same json-lib rules as {@link GeoJSONBuilder}.
+ * </p>
+ * <p>
+ * Differently from {@link GeoJSONBuilder} the writer does not validate the structure being
+ * written, it only takes care of adding the commas between the values.
+ * </p>
+ */
+public class GeoJSONStreamWriter {
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The room needed to write any number or pre-encoded key without further checks
+     */
+    static final int SAFETY_MARGIN = 64;
+
+    static final byte[] TYPE = key("type");
+
+    static final byte[] ID = key("id");
+
+    static final byte[] GEOMETRY = key("geometry");
+
+    static final byte[] GEOMETRY_NAME = key("geometry_name");
+
+    static final byte[] PROPERTIES = key("properties");
+
+    static final byte[] COORDINATES = key("coordinates");
+
+    static final byte[] GEOMETRIES = key("geometries");
+
+    static final byte[] BBOX = key("bbox");
+
+    static final byte[] NULL = ascii("null");
+
+    static final byte[] FEATURE = ascii("\"Feature\"");
+
+    static final byte[][] GEOMETRY_NAMES = new byte[8][];
+    static {
+        GEOMETRY_NAMES[GeoJSONBuilder.POINT] = ascii("\"Point\"");
+        GEOMETRY_NAMES[GeoJSONBuilder.LINESTRING] = ascii("\"LineString\"");
+        GEOMETRY_NAMES[GeoJSONBuilder.POLYGON] = ascii("\"Polygon\"");
+        GEOMETRY_NAMES[GeoJSONBuilder.MULTIPOINT] = ascii("\"MultiPoint\"");
+        GEOMETRY_NAMES[GeoJSONBuilder.MULTILINESTRING] = ascii("\"MultiLineString\"");
+        GEOMETRY_NAMES[GeoJSONBuilder.MULTIPOLYGON] = ascii("\"MultiPolygon\"");
+        GEOMETRY_NAMES[GeoJSONBuilder.MULTIGEOMETRY] = ascii("\"GeometryCollection\"");
+    }
+
+    OutputStream out;
+
+    byte[] buffer = new byte[BUFFER_SIZE];
+
+    int position;
+
+    /**
+     * For each nesting level, whether a comma is needed before the next member
+     */
+    boolean[] needsComma = new boolean[16];
+
+    int depth;
+
+    boolean afterKey;
+
+    CRS.AxisOrder axisOrder = CRS.AxisOrder.EAST_NORTH;
+
+    Map<SimpleFeatureType, byte[][]> attributeKeys = new IdentityHashMap<SimpleFeatureType, byte[][]>();
+
+    /**
+     * Builds a writer encoding in the specified charset. Charsets other than UTF-8 are supported
+     * by transcoding the output, which is slower.
+     */
+    public GeoJSONStreamWriter(OutputStream out, Charset charset) {
+        if (charset == null || UTF8.equals(charset)) {
+            this.out = out;
+        } else {
+            this.out = new WriterOutputStream(new OutputStreamWriter(out, charset), UTF8,
+                    BUFFER_SIZE, false);
+        }
+    }
+
+    static byte[] ascii(String s) {
+        return s.getBytes(UTF8);
+    }
+
+    static byte[] key(String name) {
+        return (JSONUtils.quote(name) + ":").getBytes(UTF8);
+    }
+
+    /**
+     * Set the axis order to assume all input will be provided in
+     */
+    public void setAxisOrder(CRS.AxisOrder axisOrder) {
+        this.axisOrder = axisOrder;
+    }
+
+    /**
+     * Returns the pre-encoded keys of the attributes of the specified feature type, in the same
+     * order as the attribute descriptors
+     */
+    public byte[][] getAttributeKeys(SimpleFeatureType featureType) {
+        byte[][] keys = attributeKeys.get(featureType);
+        if (keys == null) {
+            List<AttributeDescriptor> descriptors = featureType.getAttributeDescriptors();
+            keys = new byte[descriptors.size()][];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = key(descriptors.get(i).getLocalName());
+            }
+            attributeKeys.put(featureType, keys);
+        }
+        return keys;
+    }
+
+    public GeoJSONStreamWriter object() throws IOException {
+        beforeValue();
+        writeByte('{');
+        push();
+        return this;
+    }
+
+    public GeoJSONStreamWriter endObject() throws IOException {
+        depth--;
+        writeByte('}');
+        return this;
+    }
+
+    public GeoJSONStreamWriter array() throws IOException {
+        beforeValue();
+        writeByte('[');
+        push();
+        return this;
+    }
+
+    public GeoJSONStreamWriter endArray() throws IOException {
+        depth--;
+        writeByte(']');
+        return this;
+    }
+
+    public GeoJSONStreamWriter key(String name) throws IOException {
+        return key(key(name));
+    }
+
+    /**
+     * Writes a key already quoted and followed by the colon, as returned by
+     * {@link #getAttributeKeys(SimpleFeatureType)}
+     */
+    public GeoJSONStreamWriter key(byte[] key) throws IOException {
+        ensure(key.length + 1);
+        if (needsComma[depth]) {
+            buffer[position++] = ',';
+        }
+        needsComma[depth] = true;
+        System.arraycopy(key, 0, buffer, position, key.length);
+        position += key.length;
+        afterKey = true;
+        return this;
+    }
+
+    /**
+     * Writes a value using the same conversion rules as {@link GeoJSONBuilder#value(Object)}
+     */
+    public GeoJSONStreamWriter value(Object value) throws IOException {
+        if (value == null) {
+            writeRaw(NULL);
+        } else if (value instanceof String) {
+            value((String) value);
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short
+                || value instanceof Byte) {
+            value(((Number) value).longValue());
+        } else if (value instanceof Double) {
+            value(((Double) value).doubleValue());
+        } else if (value instanceof java.util.Date || value instanceof Calendar) {
+            value(Converters.convert(value, String.class));
+        } else {
+            writeRaw(JSONUtils.valueToString(value));
+        }
+        return this;
+    }
+
+    public GeoJSONStreamWriter value(String value) throws IOException {
+        if (value == null) {
+            writeRaw(NULL);
+        } else if (isPlain(value)) {
+            beforeValue();
+            ensure(value.length() * 3 + 2);
+            buffer[position++] = '"';
+            writeChars(value);
+            buffer[position++] = '"';
+        } else {
+            writeRaw(JSONUtils.quote(value));
+        }
+        return this;
+    }
+
+    public GeoJSONStreamWriter value(long value) throws IOException {
+        beforeValue();
+        ensure(SAFETY_MARGIN);
+        writeLong(value);
+        return this;
+    }
+
+    public GeoJSONStreamWriter value(double value) throws IOException {
+        beforeValue();
+        ensure(SAFETY_MARGIN);
+        writeDouble(value);
+        return this;
+    }
+
+    /**
+     * Writes a pre-encoded value
+     */
+    GeoJSONStreamWriter writeRaw(byte[] value) throws IOException {
+        beforeValue();
+        ensure(value.length);
+        System.arraycopy(value, 0, buffer, position, value.length);
+        position += value.length;
+        return this;
+    }
+
+    GeoJSONStreamWriter writeRaw(String value) throws IOException {
+        beforeValue();
+        ensure(value.length() * 3);
+        writeChars(value);
+        return this;
+    }
+
+    /**
+     * Writes text as is, outside of the JSON structure, e.g., the JSONP callback
+     */
+    public GeoJSONStreamWriter text(String text) throws IOException {
+        ensure(text.length() * 3);
+        writeChars(text);
+        return this;
+    }
+
+    /**
+     * Writes the "type":"Feature" member, the first one of every feature
+     */
+    public GeoJSONStreamWriter featureType() throws IOException {
+        key(TYPE);
+        return writeRaw(FEATURE);
+    }
+
+    /**
+     * Writes any geometry object, see {@link GeoJSONBuilder#writeGeom(Geometry)}
+     */
+    public GeoJSONStreamWriter writeGeom(Geometry geometry) throws IOException {
+        final int geometryType = GeoJSONBuilder.getGeometryType(geometry);
+        object();
+        key(TYPE);
+        writeRaw(GEOMETRY_NAMES[geometryType]);
+
+        if (geometryType != GeoJSONBuilder.MULTIGEOMETRY) {
+            key(COORDINATES);
+
+            switch (geometryType) {
+            case GeoJSONBuilder.POINT:
+                Coordinate c = ((Point) geometry).getCoordinate();
+                beforeValue();
+                writeCoordinate(c.x, c.y, c.z);
+                break;
+            case GeoJSONBuilder.LINESTRING:
+                writeCoordinates(((LineString) geometry).getCoordinateSequence());
+                break;
+            case GeoJSONBuilder.MULTIPOINT:
+                writeCoordinates(new CoordinateArraySequence(geometry.getCoordinates()));
+                break;
+            case GeoJSONBuilder.POLYGON:
+                writePolygon((Polygon) geometry);
+                break;
+            case GeoJSONBuilder.MULTILINESTRING:
+                array();
+                for (int i = 0, n = geometry.getNumGeometries(); i < n; i++) {
+                    writeCoordinates(((LineString) geometry.getGeometryN(i))
+                            .getCoordinateSequence());
+                }
+                endArray();
+                break;
+            case GeoJSONBuilder.MULTIPOLYGON:
+                array();
+                for (int i = 0, n = geometry.getNumGeometries(); i < n; i++) {
+                    writePolygon((Polygon) geometry.getGeometryN(i));
+                }
+                endArray();
+                break;
+            }
+        } else {
+            GeometryCollection collection = (GeometryCollection) geometry;
+            key(GEOMETRIES);
+            array();
+            for (int i = 0, n = collection.getNumGeometries(); i < n; i++) {
+                writeGeom(collection.getGeometryN(i));
+            }
+            endArray();
+        }
+
+        return endObject();
+    }
+
+    void writePolygon(Polygon polygon) throws IOException {
+        array();
+        writeCoordinates(polygon.getExteriorRing().getCoordinateSequence());
+        for (int i = 0, n = polygon.getNumInteriorRing(); i < n; i++) {
+            writeCoordinates(polygon.getInteriorRingN(i).getCoordinateSequence());
+        }
+        endArray();
+    }
+
+    void writeCoordinates(CoordinateSequence coords) throws IOException {
+        beforeValue();
+        writeByte('[');
+        final boolean threeDimensional = CoordinateSequences.coordinateDimension(coords) > 2;
+        final int size = coords.size();
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                writeByte(',');
+            }
+            writeCoordinate(coords.getX(i), coords.getY(i),
+                    threeDimensional ? coords.getOrdinate(i, 2) : Double.NaN);
+        }
+        writeByte(']');
+    }
+
+    /**
+     * Writes a coordinate array, the caller is responsible for the comma preceding it
+     */
+    void writeCoordinate(double x, double y, double z) throws IOException {
+        ensure(SAFETY_MARGIN * 3);
+        buffer[position++] = '[';
+        if (axisOrder == CRS.AxisOrder.NORTH_EAST) {
+            writeDouble(y);
+            buffer[position++] = ',';
+            writeDouble(x);
+        } else {
+            writeDouble(x);
+            buffer[position++] = ',';
+            writeDouble(y);
+        }
+        if (!Double.isNaN(z)) {
+            buffer[position++] = ',';
+            writeDouble(z);
+        }
+        buffer[position++] = ']';
+    }
+
+    /**
+     * Writes the bbox member, see {@link GeoJSONBuilder#writeBoundingBox(Envelope)}
+     */
+    public GeoJSONStreamWriter writeBoundingBox(Envelope env) throws IOException {
+        key(BBOX);
+        array();
+        if (axisOrder == CRS.AxisOrder.NORTH_EAST) {
+            value(env.getMinY());
+            value(env.getMinX());
+            value(env.getMaxY());
+            value(env.getMaxX());
+        } else {
+            value(env.getMinX());
+            value(env.getMinY());
+            value(env.getMaxX());
+            value(env.getMaxY());
+        }
+        return endArray();
+    }
+
+    /**
+     * Writes out the buffered contents and flushes the output stream
+     */
+    public void flush() throws IOException {
+        out.write(buffer, 0, position);
+        position = 0;
+        out.flush();
+    }
+
+    void beforeValue() throws IOException {
+        if (afterKey) {
+            afterKey = false;
+        } else {
+            if (needsComma[depth]) {
+                writeByte(',');
+            }
+            needsComma[depth] = true;
+        }
+    }
+
+    void push() {
+        depth++;
+        if (depth == needsComma.length) {
+            boolean[] expanded = new boolean[depth * 2];
+            System.arraycopy(needsComma, 0, expanded, 0, depth);
+            needsComma = expanded;
+        }
+        needsComma[depth] = false;
+    }
+
+    void writeByte(char c) throws IOException {
+        if (position == buffer.length) {
+            drain();
+        }
+        buffer[position++] = (byte) c;
+    }
+
+    /**
+     * Makes sure the buffer has room for the specified amount of bytes
+     */
+    void ensure(int length) throws IOException {
+        if (position + length > buffer.length) {
+            drain();
+            if (length > buffer.length) {
+                buffer = new byte[length];
+            }
+        }
+    }
+
+    void drain() throws IOException {
+        out.write(buffer, 0, position);
+        position = 0;
+    }
+
+    /**
+     * Writes a double the same way json-lib does, that is, as {@link Double#toString(double)}
+     * with the trailing zeroes and dot removed. The buffer must have room for it.
+     */
+    void writeDouble(double d) {
+        if (Double.isNaN(d) || Double.isInfinite(d)) {
+            // same as json-lib, this throws a JSONException
+            JSONUtils.testValidity(d);
+        }
+        // integral values below 10^7 are not written in scientific notation, and the
+        // negative zero must keep its sign
+        if (d == (long) d && Math.abs(d) < 1e7
+                && Double.doubleToRawLongBits(d) != Long.MIN_VALUE) {
+            writeLong((long) d);
+            return;
+        }
+        String s = Double.toString(d);
+        int length = s.length();
+        if (s.indexOf('E') < 0) {
+            while (s.charAt(length - 1) == '0') {
+                length--;
+            }
+            if (s.charAt(length - 1) == '.') {
+                length--;
+            }
+        }
+        for (int i = 0; i < length; i++) {
+            buffer[position++] = (byte) s.charAt(i);
+        }
+    }
+
+    /**
+     * Writes a long as decimal digits. The buffer must have room for it.
+     */
+    void writeLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            writeChars(Long.toString(value));
+            return;
+        }
+        if (value < 0) {
+            buffer[position++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        int end = position + digits;
+        for (int i = end - 1; i >= position; i--) {
+            buffer[i] = (byte) ('0' + (value % 10));
+            value /= 10;
+        }
+        position = end;
+    }
+
+    /**
+     * Encodes the chars in UTF-8. The buffer must have room for three bytes per char.
+     */
+    void writeChars(String s) {
+        final int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                buffer[position++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[position++] = (byte) (0xC0 | (c >> 6));
+                buffer[position++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buffer[position++] = (byte) (0xF0 | (cp >> 18));
+                buffer[position++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                buffer[position++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                buffer[position++] = (byte) (0x80 | (cp & 0x3F));
+            } else {
+                buffer[position++] = (byte) (0xE0 | (c >> 12));
+                buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    /**
+     * Returns true if the string can be written between quotes as is, that is, if json-lib would
+     * not escape any of its chars nor treat it as a function
+     */
+    static boolean isPlain(String s) {
+        if (s.startsWith("function")) {
+            return false;
+        }
+        for (int i = 0, n = s.length(); i < n; i++) {
+            char c = s.charAt(i);
+            if (c < ' ' || c == '"' || c == '\\' || c == '/') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -7,12 +7,16 @@ package org.geoserver.wfs.request;
 
 import java.math.BigInteger;
 import java.util.Calendar;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 import net.opengis.wfs.FeatureCollectionType;
 import net.opengis.wfs.WfsFactory;
 import net.opengis.wfs20.Wfs20Factory;
 
+import org.eclipse.emf.common.notify.Adapter;
+import org.eclipse.emf.common.notify.impl.AdapterImpl;
 import org.eclipse.emf.ecore.EObject;
 import org.geotools.feature.FeatureCollection;
 
@@ -59,6 +63,30 @@ public abstract class FeatureCollectionResponse extends RequestObject {
     public abstract BigInteger getTotalNumberOfFeatures();
     public abstract void setTotalNumberOfFeatures(BigInteger n);
 
+    /**
+     * Returns the computation of the total number of features, when it has been deferred to allow
+     * output formats writing it after the features to do so while the count is still running.
+     * When set, {@link #getTotalNumberOfFeatures()} is unknown.
+     */
+    public Callable<BigInteger> getDeferredTotalNumberOfFeatures() {
+        for (Adapter adapter : adaptee.eAdapters()) {
+            if (adapter instanceof DeferredTotal) {
+                return ((DeferredTotal) adapter).total;
+            }
+        }
+        return null;
+    }
+    public void setDeferredTotalNumberOfFeatures(Callable<BigInteger> total) {
+        for (Iterator<Adapter> it = adaptee.eAdapters().iterator(); it.hasNext();) {
+            if (it.next() instanceof DeferredTotal) {
+                it.remove();
+            }
+        }
+        if (total != null) {
+            adaptee.eAdapters().add(new DeferredTotal(total));
+        }
+    }
+
     public abstract void setPrevious(String previous);
     public abstract String getPrevious();
 
@@ -72,6 +100,17 @@ public abstract class FeatureCollectionResponse extends RequestObject {
         return getFeatures();
     }
 
+    /**
+     * Keeps the deferred total number of features along with the response object
+     */
+    static class DeferredTotal extends AdapterImpl {
+        Callable<BigInteger> total;
+
+        DeferredTotal(Callable<BigInteger> total) {
+            this.total = total;
+        }
+    }
+
     public static class WFS11 extends FeatureCollectionResponse {
         public WFS11(EObject adaptee) {
             super(adaptee);
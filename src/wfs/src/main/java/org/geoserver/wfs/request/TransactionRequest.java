@@ -24,6 +24,8 @@ import net.opengis.wfs20.ReplaceType;
 import net.opengis.wfs20.UpdateType;
 import net.opengis.wfs20.Wfs20Factory;
 
+import org.eclipse.emf.common.notify.Adapter;
+import org.eclipse.emf.common.notify.impl.AdapterImpl;
 import org.eclipse.emf.ecore.EObject;
 import org.geotools.data.Transaction;
 
@@ -78,9 +80,64 @@ public abstract class TransactionRequest extends RequestObject {
     public abstract void setReleaseActionAll();
     
     public abstract List<TransactionElement> getElements();
+
+    /**
+     * Adapts a transaction element of the underlying request model
+     */
+    protected abstract TransactionElement adaptElement(EObject element);
+
+    /**
+     * Returns the elements still to be parsed from the request body, or null if the request has
+     * been fully parsed up front. Streamed elements follow the ones returned by
+     * {@link #getElements()}, and are parsed one at a time while the transaction executes.
+     */
+    public Iterator<TransactionElement> getStreamedElements() {
+        for (Adapter adapter : adaptee.eAdapters()) {
+            if (adapter instanceof StreamedElements) {
+                final Iterator<? extends EObject> elements = ((StreamedElements) adapter).elements;
+                return new Iterator<TransactionElement>() {
+
+                    public boolean hasNext() {
+                        return elements.hasNext();
+                    }
+
+                    public TransactionElement next() {
+                        return adaptElement(elements.next());
+                    }
+
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        }
+        return null;
+    }
+
+    public void setStreamedElements(Iterator<? extends EObject> elements) {
+        for (Iterator<Adapter> it = adaptee.eAdapters().iterator(); it.hasNext();) {
+            if (it.next() instanceof StreamedElements) {
+                it.remove();
+            }
+        }
+        if (elements != null) {
+            adaptee.eAdapters().add(new StreamedElements(elements));
+        }
+    }
     
     public abstract TransactionResponse createResponse();
     
+    /**
+     * Keeps the streamed elements along with the request object
+     */
+    static class StreamedElements extends AdapterImpl {
+        Iterator<? extends EObject> elements;
+
+        StreamedElements(Iterator<? extends EObject> elements) {
+            this.elements = elements;
+        }
+    }
+
     public static class WFS11 extends TransactionRequest {
         public WFS11(EObject adaptee) {
             super(adaptee);
@@ -105,26 +162,30 @@ public abstract class TransactionRequest extends RequestObject {
         public List<TransactionElement> getElements() {
             List<TransactionElement> list = new ArrayList();
             for (Iterator it = ((TransactionType)adaptee).getGroup().valueListIterator(); it.hasNext(); ) {
-                EObject el = (EObject) it.next();
-                if (el instanceof DeleteElementType) {
-                    list.add(new Delete.WFS11(el));
-                }
-                else if (el instanceof InsertElementType) {
-                    list.add(new Insert.WFS11(el));
-                }
-                else if (el instanceof UpdateElementType) {
-                    list.add(new Update.WFS11(el));
-                }
-                else if (el instanceof NativeType) {
-                    list.add(new Native.WFS11(el));
-                }
-                else {
-                    throw new IllegalArgumentException("Unrecognized transaction element: " + el);
-                }
+                list.add(adaptElement((EObject) it.next()));
             }
             
             return list;
         }
+
+        @Override
+        protected TransactionElement adaptElement(EObject el) {
+            if (el instanceof DeleteElementType) {
+                return new Delete.WFS11(el);
+            }
+            else if (el instanceof InsertElementType) {
+                return new Insert.WFS11(el);
+            }
+            else if (el instanceof UpdateElementType) {
+                return new Update.WFS11(el);
+            }
+            else if (el instanceof NativeType) {
+                return new Native.WFS11(el);
+            }
+            else {
+                throw new IllegalArgumentException("Unrecognized transaction element: " + el);
+            }
+        }
         
         @Override
         public TransactionResponse createResponse() {
@@ -145,6 +206,25 @@ public abstract class TransactionRequest extends RequestObject {
                 return (TransactionType) request.getAdaptee();
             }
 
+            TransactionType tx = createTransaction(request);
+            for (TransactionElement te : request.getElements()) {
+                addElement(tx, te);
+            }
+            
+            return tx;
+        }
+
+        /**
+         * Returns a transaction with the same attributes as the request, holding only the
+         * specified element, used to hand streamed elements to the transaction plugins
+         */
+        public static TransactionType unadapt(TransactionRequest request, TransactionElement element) {
+            TransactionType tx = createTransaction(request);
+            addElement(tx, element);
+            return tx;
+        }
+
+        static TransactionType createTransaction(TransactionRequest request) {
             WfsFactory factory = (WfsFactory) WfsFactory.eINSTANCE;
             TransactionType tx = factory.createTransactionType();
             
@@ -155,24 +235,23 @@ public abstract class TransactionRequest extends RequestObject {
                 request.isReleaseActionAll() ? AllSomeType.ALL_LITERAL : AllSomeType.SOME_LITERAL);
             tx.setBaseUrl(request.getBaseUrl());
             tx.setExtendedProperties(request.getExtendedProperties());
-            
-            for (TransactionElement te : request.getElements()) {
-                if (te instanceof Delete) {
-                    tx.getDelete().add(Delete.WFS11.unadapt((Delete)te));
-                }
-                if (te instanceof Update) {
-                    tx.getUpdate().add(Update.WFS11.unadapt((Update)te));
-                }
-                if (te instanceof Insert) {
-                    tx.getInsert().add(Insert.WFS11.unadapt((Insert)te));
-                }
-                if (te instanceof Native) {
-                    tx.getNative().add(Native.WFS11.unadapt((Native)te));
-                }
-            }
-            
             return tx;
         }
+
+        static void addElement(TransactionType tx, TransactionElement te) {
+            if (te instanceof Delete) {
+                tx.getDelete().add(Delete.WFS11.unadapt((Delete)te));
+            }
+            if (te instanceof Update) {
+                tx.getUpdate().add(Update.WFS11.unadapt((Update)te));
+            }
+            if (te instanceof Insert) {
+                tx.getInsert().add(Insert.WFS11.unadapt((Insert)te));
+            }
+            if (te instanceof Native) {
+                tx.getNative().add(Native.WFS11.unadapt((Native)te));
+            }
+        }
     }
     
     public static class WFS20 extends TransactionRequest {
@@ -203,28 +282,32 @@ public abstract class TransactionRequest extends RequestObject {
             Iterator it = ((net.opengis.wfs20.TransactionType)adaptee)
                 .getAbstractTransactionAction().iterator();
             while(it.hasNext()) {
-                EObject el = (EObject) it.next();
-                if (el instanceof DeleteType) {
-                    list.add(new Delete.WFS20(el));
-                }
-                else if (el instanceof InsertType) {
-                    list.add(new Insert.WFS20(el));
-                }
-                else if (el instanceof UpdateType) {
-                    list.add(new Update.WFS20(el));
-                }
-                else if (el instanceof ReplaceType) {
-                    list.add(new Replace.WFS20(el));
-                }
-                else if (el instanceof net.opengis.wfs20.NativeType) {
-                    list.add(new Native.WFS20(el));
-                }
-                else {
-                    throw new IllegalArgumentException("Unrecognized transaction element: " + el);
-                }
+                list.add(adaptElement((EObject) it.next()));
             }
             return list;
         }
+
+        @Override
+        protected TransactionElement adaptElement(EObject el) {
+            if (el instanceof DeleteType) {
+                return new Delete.WFS20(el);
+            }
+            else if (el instanceof InsertType) {
+                return new Insert.WFS20(el);
+            }
+            else if (el instanceof UpdateType) {
+                return new Update.WFS20(el);
+            }
+            else if (el instanceof ReplaceType) {
+                return new Replace.WFS20(el);
+            }
+            else if (el instanceof net.opengis.wfs20.NativeType) {
+                return new Native.WFS20(el);
+            }
+            else {
+                throw new IllegalArgumentException("Unrecognized transaction element: " + el);
+            }
+        }
         
         @Override
         public TransactionResponse createResponse() {
@@ -0,0 +1,380 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs.response;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.text.FieldPosition;
+import java.text.NumberFormat;
+import java.util.Date;
+import java.util.Locale;
+
+import org.geotools.feature.type.DateUtil;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryCollection;
+import com.vividsolutions.jts.io.WKTWriter;
+
+/**
+ * Writes CSV records into a reusable char buffer that is flushed to the target writer in large
+ * chunks.
+ * <p>
+ * For simple features an encoder is picked once per column, based on the attribute binding, see
+ * {@link #getEncoders(SimpleFeatureType)}: integral values are written digit by digit, decimal
+ * ones are formatted straight into a reusable buffer, strings are escaped while being copied and
+ * geometries are encoded as WKT directly into the output. The output is the same as formatting
+ * each value as a string and then escaping it: numbers use a US locale without grouping and with
+ * at most the configured number of decimals, dates are in ISO format, geometries are in WKT and
+ * everything else goes through {@link Object#toString()}.
+ * </p>
+ */
+class CSVFeatureWriter extends Writer {
+
+    static final int BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * Encodes a non null value of a column
+     */
+    static abstract class ColumnEncoder {
+        abstract void encode(Object value, CSVFeatureWriter writer) throws IOException;
+    }
+
+    static final ColumnEncoder INTEGRAL = new ColumnEncoder() {
+        @Override
+        void encode(Object value, CSVFeatureWriter writer) throws IOException {
+            if (value instanceof Integer || value instanceof Long || value instanceof Short
+                    || value instanceof Byte) {
+                writer.writeLong(((Number) value).longValue());
+            } else {
+                writer.writeValue(value);
+            }
+        }
+    };
+
+    static final ColumnEncoder DECIMAL = new ColumnEncoder() {
+        @Override
+        void encode(Object value, CSVFeatureWriter writer) throws IOException {
+            if (value instanceof Double || value instanceof Float) {
+                writer.writeDouble(((Number) value).doubleValue());
+            } else {
+                writer.writeValue(value);
+            }
+        }
+    };
+
+    static final ColumnEncoder STRING = new ColumnEncoder() {
+        @Override
+        void encode(Object value, CSVFeatureWriter writer) throws IOException {
+            if (value instanceof String) {
+                writer.writeField((String) value);
+            } else {
+                writer.writeValue(value);
+            }
+        }
+    };
+
+    static final ColumnEncoder GEOMETRY = new ColumnEncoder() {
+        @Override
+        void encode(Object value, CSVFeatureWriter writer) throws IOException {
+            if (value instanceof Geometry) {
+                writer.writeGeometry((Geometry) value);
+            } else {
+                writer.writeValue(value);
+            }
+        }
+    };
+
+    static final ColumnEncoder GENERIC = new ColumnEncoder() {
+        @Override
+        void encode(Object value, CSVFeatureWriter writer) throws IOException {
+            writer.writeValue(value);
+        }
+    };
+
+    Writer out;
+
+    char[] buffer = new char[BUFFER_SIZE];
+
+    int count;
+
+    char[] digits = new char[20];
+
+    NumberFormat numberFormat;
+
+    StringBuffer numberBuffer = new StringBuffer();
+
+    FieldPosition fieldPosition = new FieldPosition(0);
+
+    WKTWriter wktWriter = new WKTWriter();
+
+    /**
+     * @param out the target writer
+     * @param numDecimals the maximum number of decimals used for numbers
+     */
+    public CSVFeatureWriter(Writer out, int numDecimals) {
+        this.out = out;
+        // don't allow scientific notation in the output, as OpenOffice won't
+        // recognize that as a number
+        numberFormat = NumberFormat.getInstance(Locale.US);
+        numberFormat.setMaximumFractionDigits(numDecimals);
+        numberFormat.setGroupingUsed(false);
+    }
+
+    /**
+     * Returns the encoders for the attributes of the feature type, in order
+     */
+    static ColumnEncoder[] getEncoders(SimpleFeatureType type) {
+        ColumnEncoder[] encoders = new ColumnEncoder[type.getAttributeCount()];
+        for (int i = 0; i < encoders.length; i++) {
+            encoders[i] = getEncoder(type.getDescriptor(i).getType().getBinding());
+        }
+        return encoders;
+    }
+
+    static ColumnEncoder getEncoder(Class<?> binding) {
+        if (Integer.class.equals(binding) || Long.class.equals(binding)
+                || Short.class.equals(binding) || Byte.class.equals(binding)) {
+            return INTEGRAL;
+        } else if (Double.class.equals(binding) || Float.class.equals(binding)) {
+            return DECIMAL;
+        } else if (String.class.equals(binding)) {
+            return STRING;
+        } else if (binding != null && Geometry.class.isAssignableFrom(binding)) {
+            return GEOMETRY;
+        }
+        return GENERIC;
+    }
+
+    /**
+     * Writes the feature id and the attributes of a simple feature as a record
+     *
+     * @param encoders the encoders returned by {@link #getEncoders(SimpleFeatureType)} for the
+     *        feature type
+     */
+    public void writeFeature(SimpleFeature f, ColumnEncoder[] encoders) throws IOException {
+        writeField(f.getIdentifier().getID());
+        write(',');
+        for (int i = 0; i < encoders.length; i++) {
+            Object value = f.getAttribute(i);
+            if (value != null) {
+                encoders[i].encode(value, this);
+            }
+            if (i < encoders.length - 1) {
+                write(',');
+            }
+        }
+        endRecord();
+    }
+
+    /**
+     * Ends the current record, by RFC each line is terminated by CRLF
+     */
+    public void endRecord() throws IOException {
+        write('\r');
+        write('\n');
+    }
+
+    /**
+     * Writes a value of any type, picking the encoding based on its class
+     */
+    public void writeValue(Object value) throws IOException {
+        if (value instanceof Number) {
+            writeNumber((Number) value);
+        } else if (value instanceof Date) {
+            writeDate((Date) value);
+        } else if (value instanceof Geometry) {
+            writeGeometry((Geometry) value);
+        } else {
+            // everything else we just "toString"
+            writeField(value.toString());
+        }
+    }
+
+    /*
+     * The CSV "spec" explains that fields with certain properties must be delimited by double
+     * quotes, and also that double quotes within fields must be escaped
+     */
+    public void writeField(String field) throws IOException {
+        int length = field.length();
+        int first = -1;
+        for (int i = 0; i < length && first < 0; i++) {
+            char c = field.charAt(i);
+            if (c == '"' || c == ',' || c == '\n' || c == '\r') {
+                first = i;
+            }
+        }
+        if (first < 0) {
+            write(field, 0, length);
+            return;
+        }
+
+        // enclose the field in double quotes, and represent the embedded double quotes by a
+        // pair of double quotes
+        write('"');
+        int start = 0;
+        for (int i = first; i < length; i++) {
+            if (field.charAt(i) == '"') {
+                write(field, start, i + 1 - start);
+                write('"');
+                start = i + 1;
+            }
+        }
+        write(field, start, length - start);
+        write('"');
+    }
+
+    void writeNumber(Number number) throws IOException {
+        if (number instanceof Integer || number instanceof Long || number instanceof Short
+                || number instanceof Byte) {
+            writeLong(number.longValue());
+        } else if (number instanceof Double || number instanceof Float) {
+            writeDouble(number.doubleValue());
+        } else {
+            numberBuffer.setLength(0);
+            numberFormat.format(number, numberBuffer, fieldPosition);
+            writeNumberBuffer();
+        }
+    }
+
+    void writeDouble(double d) throws IOException {
+        // integral values are written as longs, but the number format keeps the sign of -0
+        if (d == Math.rint(d) && Math.abs(d) < 1e15
+                && (d != 0 || Double.doubleToRawLongBits(d) == 0)) {
+            writeLong((long) d);
+        } else {
+            numberBuffer.setLength(0);
+            numberFormat.format(d, numberBuffer, fieldPosition);
+            writeNumberBuffer();
+        }
+    }
+
+    void writeNumberBuffer() throws IOException {
+        int length = numberBuffer.length();
+        ensure(length);
+        if (length > buffer.length) {
+            // never happens with reasonable numbers of decimals
+            write(numberBuffer.toString());
+        } else {
+            numberBuffer.getChars(0, length, buffer, count);
+            count += length;
+        }
+    }
+
+    void writeLong(long value) throws IOException {
+        // work on negative values, to handle Long.MIN_VALUE as well
+        boolean negative = value < 0;
+        if (!negative) {
+            value = -value;
+        }
+        int pos = digits.length;
+        do {
+            digits[--pos] = (char) ('0' - (value % 10));
+            value /= 10;
+        } while (value != 0);
+        if (negative) {
+            digits[--pos] = '-';
+        }
+        write(digits, pos, digits.length - pos);
+    }
+
+    void writeDate(Date date) throws IOException {
+        // serialize dates in ISO format, they never need escaping
+        String value;
+        if (date instanceof java.sql.Date) {
+            value = DateUtil.serializeSqlDate((java.sql.Date) date);
+        } else if (date instanceof java.sql.Time) {
+            value = DateUtil.serializeSqlTime((java.sql.Time) date);
+        } else {
+            value = DateUtil.serializeDateTime(date);
+        }
+        write(value, 0, value.length());
+    }
+
+    void writeGeometry(Geometry geometry) throws IOException {
+        // WKT contains no quotes or newlines, only the commas separating points and parts
+        boolean quote = containsSeparator(geometry);
+        if (quote) {
+            write('"');
+        }
+        wktWriter.write(geometry, this);
+        if (quote) {
+            write('"');
+        }
+    }
+
+    /**
+     * Returns true if the WKT representation of the geometry contains commas
+     */
+    static boolean containsSeparator(Geometry geometry) {
+        if (geometry.getNumPoints() > 1 || geometry.getNumGeometries() > 1) {
+            return true;
+        }
+        // a collection with a single member might contain a nested collection
+        return geometry instanceof GeometryCollection && geometry.getNumGeometries() == 1
+                && containsSeparator(geometry.getGeometryN(0));
+    }
+
+    /**
+     * Makes sure the buffer has room for the specified amount of chars, writing out its contents
+     * if necessary
+     */
+    void ensure(int length) throws IOException {
+        if (buffer.length - count < length) {
+            drain();
+        }
+    }
+
+    void drain() throws IOException {
+        if (count > 0) {
+            out.write(buffer, 0, count);
+            count = 0;
+        }
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        if (count == buffer.length) {
+            drain();
+        }
+        buffer[count++] = (char) c;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        ensure(len);
+        if (len > buffer.length) {
+            out.write(cbuf, off, len);
+        } else {
+            System.arraycopy(cbuf, off, buffer, count, len);
+            count += len;
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        ensure(len);
+        if (len > buffer.length) {
+            out.write(str, off, len);
+        } else {
+            str.getChars(off, off + len, buffer, count);
+            count += len;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        drain();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        drain();
+        out.close();
+    }
+}
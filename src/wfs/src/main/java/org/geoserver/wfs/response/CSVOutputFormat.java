@@ -5,16 +5,11 @@
  */
 package org.geoserver.wfs.response;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
-import java.text.NumberFormat;
 import java.util.Collection;
-import java.util.Date;
 import java.util.Iterator;
-import java.util.Locale;
-import java.util.regex.Pattern;
 
 import org.eclipse.xsd.XSDElementDeclaration;
 import org.eclipse.xsd.impl.XSDElementDeclarationImpl;
@@ -26,7 +21,6 @@ import org.geoserver.wfs.request.FeatureCollectionResponse;
 import org.geoserver.wfs.request.GetFeatureRequest;
 import org.geotools.feature.FeatureCollection;
 import org.geotools.feature.FeatureIterator;
-import org.geotools.feature.type.DateUtil;
 import org.opengis.feature.Feature;
 import org.opengis.feature.Property;
 import org.opengis.feature.simple.SimpleFeature;
@@ -45,8 +39,6 @@ import org.opengis.feature.type.PropertyDescriptor;
  */
 public class CSVOutputFormat extends WFSGetFeatureOutputFormat {
 
-    static final Pattern CSV_ESCAPES = Pattern.compile("[\"\n,\r]");
-
     public CSVOutputFormat(GeoServer gs) {
         //this is the name of your output format, it is the string
         // that will be used when requesting the format in a 
@@ -88,24 +80,29 @@ public class CSVOutputFormat extends WFSGetFeatureOutputFormat {
     	   //write out content here
         
         //create a writer
-        BufferedWriter w = new BufferedWriter( new OutputStreamWriter( output, gs.getGlobal().getSettings().getCharset() ) );
+        CSVFeatureWriter w = new CSVFeatureWriter(new OutputStreamWriter(output, gs.getGlobal()
+                .getSettings().getCharset()), getInfo().getGeoServer().getSettings()
+                .getNumDecimals());
                    
         //get the feature collection
         FeatureCollection<?, ?> fc = 
             featureCollection.getFeature().get(0);           
         
+        CSVFeatureWriter.ColumnEncoder[] encoders = null;
         if (fc.getSchema() instanceof SimpleFeatureType) {
             //write out the header
             SimpleFeatureType ft = (SimpleFeatureType) fc.getSchema();
             w.write("FID,");
             for ( int i = 0; i < ft.getAttributeCount(); i++ ) {
                 AttributeDescriptor ad = ft.getDescriptor( i );
-                w.write( prepCSVField(ad.getLocalName()) );
+                w.writeField(ad.getLocalName());
                    
                 if ( i < ft.getAttributeCount()-1 ) {
                    w.write( "," );
                 }
             }
+            // pick the value encoders once for the whole collection
+            encoders = CSVFeatureWriter.getEncoders(ft);
         } else {
             // complex features
             w.write("gml:id,");
@@ -125,40 +122,26 @@ public class CSVOutputFormat extends WFSGetFeatureOutputFormat {
                         XSDElementDeclarationImpl xsdEl = (XSDElementDeclarationImpl) xsd;
                         elName = xsdEl.getQName();
                     }
-                    w.write(prepCSVField(elName));
+                    w.writeField(elName);
                     i++;
                 }
             }
         }
         // by RFC each line is terminated by CRLF
-        w.write( "\r\n" );
+        w.endRecord();
         
-        // prepare the formatter for numbers
-        NumberFormat coordFormatter = NumberFormat.getInstance(Locale.US);
-        coordFormatter.setMaximumFractionDigits(getInfo().getGeoServer().getSettings().getNumDecimals());
-        coordFormatter.setGroupingUsed(false);
-           
         //write out the features
         FeatureIterator<?> i = fc.features();
         try {
             while( i.hasNext() ) {                
                 Feature f = i.next();
-                // dump fid
-                w.write(prepCSVField(f.getIdentifier().getID()));
-                w.write(",");
-                if (f instanceof SimpleFeature) {
-                    // dump attributes
-                    for ( int j = 0; j < ((SimpleFeature) f).getAttributeCount(); j++ ) {
-                        Object att = ((SimpleFeature) f).getAttribute( j );
-                        if ( att != null ) {
-                            String value = formatToString(att, coordFormatter);
-                            w.write( prepCSVField(value) );
-                        }
-                        if ( j < ((SimpleFeature) f).getAttributeCount()-1 ) {
-                            w.write(",");    
-                        }
-                    }
+                if (f instanceof SimpleFeature && encoders != null) {
+                    // dump fid and attributes
+                    w.writeFeature((SimpleFeature) f, encoders);
                 } else {
+                    // dump fid
+                    w.writeField(f.getIdentifier().getID());
+                    w.write(",");
                     // complex feature
                     Iterator<PropertyDescriptor> descriptors = fc.getSchema().getDescriptors().iterator();
                     
@@ -188,13 +171,12 @@ public class CSVOutputFormat extends WFSGetFeatureOutputFormat {
                         }
 
                         if (att != null) {
-                            String value = formatToString(att, coordFormatter);
-                            w.write(prepCSVField(value));
+                            w.writeValue(att);
                         }     
                     }
+                    // by RFC each line is terminated by CRLF
+                    w.endRecord();
                 }
-                // by RFC each line is terminated by CRLF
-                w.write("\r\n");
             }
         } finally {
             i.close();
@@ -203,48 +185,6 @@ public class CSVOutputFormat extends WFSGetFeatureOutputFormat {
         w.flush();
     }
     
-    private String formatToString(Object att, NumberFormat coordFormatter) {
-        String value = null;
-        if (att instanceof Number) {
-            // don't allow scientific notation in the output, as OpenOffice won't
-            // recognize that as a number
-            value = coordFormatter.format(att);
-        } else if (att instanceof Date) {
-            // serialize dates in ISO format
-            if (att instanceof java.sql.Date)
-                value = DateUtil.serializeSqlDate((java.sql.Date) att);
-            else if (att instanceof java.sql.Time)
-                value = DateUtil.serializeSqlTime((java.sql.Time) att);
-            else
-                value = DateUtil.serializeDateTime((Date) att);
-        } else {
-            // everything else we just "toString"
-            value = att.toString();
-        }
-        return value;
-    }
-
-    /*
-     * The CSV "spec" explains that fields with certain properties must be
-     * delimited by double quotes, and also that double quotes within fields
-     * must be escaped.  This method takes a field and returns one that
-     * obeys the CSV spec.
-     */    
-    private String prepCSVField(String field){
-    	// "embedded double-quote characters must be represented by a pair of double-quote characters."
-    	String mod = field.replaceAll("\"", "\"\"");
-    	
-    	/*
-    	 * Enclose string in double quotes if it contains double quotes, commas, or newlines
-    	 */
-        if (CSV_ESCAPES.matcher(mod).find()) {
-            mod = "\"" + mod + "\"";
-    	}
-    	
-		return mod;
-    	
-    }
-    
     @Override
     public String getCapabilitiesElementName() {
     	return "CSV";
@@ -12,6 +12,7 @@ import java.util.List;
 
 import javax.xml.transform.TransformerException;
 
+import org.geoserver.ows.CapabilitiesCache;
 import org.geoserver.ows.Response;
 import org.geoserver.platform.Operation;
 import org.geoserver.wfs.request.GetCapabilitiesRequest;
@@ -53,14 +54,18 @@ public class GetCapabilitiesResponse extends Response {
         return "application/xml";
     }
 
-    public void write(Object value, OutputStream output, Operation operation)
+    public void write(Object value, OutputStream output, final Operation operation)
         throws IOException {
-        TransformerBase tx = (TransformerBase) value;
+        final TransformerBase tx = (TransformerBase) value;
 
-        try {
-            tx.transform(operation.getParameters()[0], output);
-        } catch (TransformerException e) {
-            throw (IOException) new IOException().initCause(e);
-        }
+        CapabilitiesCache.write(output, new CapabilitiesCache.Encoder() {
+            public void encode(OutputStream output) throws IOException {
+                try {
+                    tx.transform(operation.getParameters()[0], output);
+                } catch (TransformerException e) {
+                    throw (IOException) new IOException().initCause(e);
+                }
+            }
+        });
     }
 }
@@ -32,12 +32,14 @@ import java.util.Set;
 import java.util.SimpleTimeZone;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.xml.namespace.QName;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.CloseShieldOutputStream;
 import org.geoserver.catalog.Catalog;
 import org.geoserver.catalog.CatalogBuilder;
 import org.geoserver.catalog.FeatureTypeInfo;
@@ -110,9 +112,31 @@ public class ShapeZipOutputFormat extends WFSGetFeatureOutputFormat implements A
     private static final Logger LOGGER = Logging.getLogger(ShapeZipOutputFormat.class);
     public static final String GS_SHAPEFILE_CHARSET = "GS-SHAPEFILE-CHARSET";
     public static final String SHAPE_ZIP_DEFAULT_PRJ_IS_ESRI = "SHAPE-ZIP_DEFAULT_PRJ_IS_ESRI";
+    /**
+     * WFS metadata key enabling the streaming mode by default, see
+     * {@link StreamingShapefileWriter}. Can be overridden with the STREAMING format option.
+     */
+    public static final String SHAPE_ZIP_STREAMING = "SHAPE-ZIP_STREAMING";
+
+    private static final String EMPTY_ZIP_WARNING_NAME = "README.TXT";
+
+    private static final String EMPTY_ZIP_WARNING = "The query result is empty, and the geometric type of the features is unknwon:" +
+            "an empty point shapefile has been created to fill the zip file";
     
     private static final Configuration templateConfig = new Configuration();
     
+    /**
+     * The files making up the output, when staged on disk
+     */
+    private static final FilenameFilter SHAPEFILE_FILTER = new FilenameFilter() {
+
+        public boolean accept(File dir, String name) {
+            return name.endsWith(".shp") || name.endsWith(".shx") || name.endsWith(".dbf")
+                   || name.endsWith(".prj") || name.endsWith(".cst") || name.endsWith(".txt")
+                   || name.equals(EMPTY_ZIP_WARNING_NAME);
+        }
+    };
+
     private ApplicationContext applicationContext;
     private Catalog catalog;
 	private GeoServerResourceLoader resourceLoader;
@@ -214,6 +238,11 @@ public class ShapeZipOutputFormat extends WFSGetFeatureOutputFormat implements A
      */
     public void write(List<SimpleFeatureCollection> collections, Charset charset, OutputStream output, 
         GetFeatureRequest request) throws IOException, ServiceException {
+        if (isStreaming(request)) {
+            writeStreaming(collections, charset, output, request);
+            return;
+        }
+
         //We might get multiple featurecollections in our response (multiple queries?) so we need to
         //write out multiple shapefile sets, one for each query response.
         File tempDir = IOUtils.createTempDirectory("shpziptemp");
@@ -255,15 +284,8 @@ public class ShapeZipOutputFormat extends WFSGetFeatureOutputFormat implements A
             createRequestDump(tempDir, request, collections.get(0));
             
             // zip all the files produced
-            final FilenameFilter filter = new FilenameFilter() {
-            
-                public boolean accept(File dir, String name) {
-                    return name.endsWith(".shp") || name.endsWith(".shx") || name.endsWith(".dbf")
-                           || name.endsWith(".prj") || name.endsWith(".cst") || name.endsWith(".txt");
-                }
-            };
             ZipOutputStream zipOut = new ZipOutputStream(output);
-            IOUtils.zipDirectory(tempDir, zipOut, filter);
+            IOUtils.zipDirectory(tempDir, zipOut, SHAPEFILE_FILTER);
             zipOut.finish();
 
             // This is an error, because this closes the output stream too... it's
@@ -279,6 +301,80 @@ public class ShapeZipOutputFormat extends WFSGetFeatureOutputFormat implements A
         }
     }
 
+    /**
+     * Streams the shapefiles directly into the zip output, see {@link StreamingShapefileWriter}.
+     * Collections with a generic geometry type are still staged in a temporary directory, as the
+     * shapefiles to be produced are discovered while scanning the features.
+     */
+    private void writeStreaming(List<SimpleFeatureCollection> collections, Charset charset,
+            OutputStream output, GetFeatureRequest request) throws IOException, ServiceException {
+        ZipOutputStream zipOut = new ZipOutputStream(output);
+        File tempDir = null;
+        // the zip cannot hold the same entry twice, keep track of the shapefile names used
+        Set<String> fileNames = new HashSet<String>();
+        try {
+            boolean shapefileCreated = false;
+            for (SimpleFeatureCollection curCollection : collections) {
+                if(curCollection.getSchema().getGeometryDescriptor() == null) {
+                    throw new WFSException(request, "Cannot write geometryless shapefiles, yet " 
+                            + curCollection.getSchema() + " has no geometry field");
+                } 
+                Class geomType = curCollection.getSchema().getGeometryDescriptor().getType().getBinding();
+                if(StreamingShapefileWriter.getShapeType(geomType) == null) {
+                    if (tempDir == null) {
+                        tempDir = IOUtils.createTempDirectory("shpziptemp");
+                    }
+                    shapefileCreated |= writeCollectionToShapefiles(curCollection, tempDir, charset, request);
+                } else {
+                    writeCollectionToZip(curCollection, zipOut, charset, request, fileNames);
+                    shapefileCreated = true;
+                }
+            }
+
+            // take care of the case the output is completely empty
+            if(!shapefileCreated) {
+                SimpleFeatureCollection fc;
+                fc = (SimpleFeatureCollection) collections.get(0);
+                fc = remapCollectionSchema(fc, Point.class);
+                writeCollectionToZip(fc, zipOut, charset, request, fileNames);
+                createEmptyZipWarning(zipOut);
+            }
+
+            // dump the request
+            createRequestDump(zipOut, request, collections.get(0));
+
+            if (tempDir != null) {
+                IOUtils.zipDirectory(tempDir, zipOut, SHAPEFILE_FILTER);
+            }
+            zipOut.finish();
+        } finally {
+            if (tempDir != null) {
+                try {
+                    FileUtils.deleteDirectory(tempDir);
+                } catch(IOException e) {
+                    LOGGER.warning("Could not delete temp directory: " + tempDir.getAbsolutePath() + " due to: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns true if the shapefiles should be streamed directly into the zip file, as
+     * requested by the STREAMING format option, or by the {@link #SHAPE_ZIP_STREAMING} WFS
+     * metadata entry
+     */
+    boolean isStreaming(GetFeatureRequest request) {
+        if (request != null && request.getFormatOptions() != null) {
+            Object streaming = request.getFormatOptions().get("STREAMING");
+            if (streaming != null) {
+                return Boolean.valueOf(String.valueOf(streaming));
+            }
+        }
+        WFSInfo bean = gs.getService(WFSInfo.class);
+        Boolean streaming = bean.getMetadata().get(SHAPE_ZIP_STREAMING, Boolean.class);
+        return streaming != null && streaming.booleanValue();
+    }
+
     /**
      * Dumps the request
      * @param simpleFeatureCollection
@@ -291,42 +387,16 @@ public class ShapeZipOutputFormat extends WFSGetFeatureOutputFormat implements A
         }
         
         // build the target file
-        FeatureTypeInfo ftInfo = getFeatureTypeInfo(fc);
-        String fileName = new FileNameSource(getClass()).getRequestDumpName(ftInfo) + ".txt";
-        File target = new File(tempDir, fileName);
+        File target = new File(tempDir, getRequestDumpName(fc));
         
         try {
-            if(request.isGet()) {
-                final HttpServletRequest httpRequest = request.getHttpRequest();
-                String baseUrl = ResponseUtils.baseURL(httpRequest);
-                String path = request.getPath();
-                //encode proxy url if existing
-                String mangledUrl = ResponseUtils.buildURL(baseUrl, path, null, URLType.SERVICE);
-                StringBuilder url = new StringBuilder();
-                String parameters = httpRequest.getQueryString();
-				url.append(mangledUrl).append("?").append(parameters);
-                FileUtils.writeStringToFile(target, url.toString());
-            } else {
-                org.geotools.xml.Configuration cfg = null;
-                QName elementName = null;
-                if(gft.getVersion().equals("1.1.0")) {
-                    cfg = new WFSConfiguration();
-                    elementName = WFS.GetFeature;
-                } else {
-                    cfg = new org.geotools.wfs.v1_0.WFSConfiguration();
-                    elementName = org.geotools.wfs.v1_0.WFS.GetFeature;
-                }
-                FileOutputStream fos = null;
-                try {
-                    fos = new FileOutputStream(target);
-                    Encoder encoder = new Encoder(cfg);
-                    encoder.setIndenting(true);
-                    encoder.setIndentSize(2);
-                    encoder.encode(gft, elementName, fos);
-                } finally {
-                    if(fos != null)
-                        fos.close();
-                }
+            FileOutputStream fos = null;
+            try {
+                fos = new FileOutputStream(target);
+                writeRequestDump(request, gft, fos);
+            } finally {
+                if(fos != null)
+                    fos.close();
             }
         } catch(IOException e) {
             throw new WFSException(gft, "Failed to dump the WFS request");
@@ -334,17 +404,78 @@ public class ShapeZipOutputFormat extends WFSGetFeatureOutputFormat implements A
         
     }
 
+    /**
+     * Dumps the request as a zip entry
+     */
+    private void createRequestDump(ZipOutputStream zipOut, GetFeatureRequest gft,
+            SimpleFeatureCollection fc) {
+        final Request request = Dispatcher.REQUEST.get();
+        if(request == null || gft == null) {
+            // we're probably running in a unit test
+            return;
+        }
+
+        try {
+            zipOut.putNextEntry(new ZipEntry(getRequestDumpName(fc)));
+            writeRequestDump(request, gft, new CloseShieldOutputStream(zipOut));
+            zipOut.closeEntry();
+        } catch(IOException e) {
+            throw new WFSException(gft, "Failed to dump the WFS request");
+        }
+    }
+
+    private String getRequestDumpName(SimpleFeatureCollection fc) {
+        FeatureTypeInfo ftInfo = getFeatureTypeInfo(fc);
+        return new FileNameSource(getClass()).getRequestDumpName(ftInfo) + ".txt";
+    }
+
+    private void writeRequestDump(Request request, GetFeatureRequest gft, OutputStream out)
+            throws IOException {
+        if(request.isGet()) {
+            final HttpServletRequest httpRequest = request.getHttpRequest();
+            String baseUrl = ResponseUtils.baseURL(httpRequest);
+            String path = request.getPath();
+            //encode proxy url if existing
+            String mangledUrl = ResponseUtils.buildURL(baseUrl, path, null, URLType.SERVICE);
+            StringBuilder url = new StringBuilder();
+            String parameters = httpRequest.getQueryString();
+            url.append(mangledUrl).append("?").append(parameters);
+            out.write(url.toString().getBytes());
+        } else {
+            org.geotools.xml.Configuration cfg = null;
+            QName elementName = null;
+            if(gft.getVersion().equals("1.1.0")) {
+                cfg = new WFSConfiguration();
+                elementName = WFS.GetFeature;
+            } else {
+                cfg = new org.geotools.wfs.v1_0.WFSConfiguration();
+                elementName = org.geotools.wfs.v1_0.WFS.GetFeature;
+            }
+            Encoder encoder = new Encoder(cfg);
+            encoder.setIndenting(true);
+            encoder.setIndentSize(2);
+            encoder.encode(gft, elementName, out);
+        }
+    }
+
     private void createEmptyZipWarning(File tempDir) throws IOException {
         PrintWriter pw = null;
         try {
-            pw = new PrintWriter(new File(tempDir, "README.TXT"));
-            pw.print("The query result is empty, and the geometric type of the features is unknwon:" +
-            		"an empty point shapefile has been created to fill the zip file");
+            pw = new PrintWriter(new File(tempDir, EMPTY_ZIP_WARNING_NAME));
+            pw.print(EMPTY_ZIP_WARNING);
         } finally {
             pw.close();
         }
     }   
 
+    private void createEmptyZipWarning(ZipOutputStream zipOut) throws IOException {
+        zipOut.putNextEntry(new ZipEntry(EMPTY_ZIP_WARNING_NAME));
+        PrintWriter pw = new PrintWriter(new CloseShieldOutputStream(zipOut));
+        pw.print(EMPTY_ZIP_WARNING);
+        pw.close();
+        zipOut.closeEntry();
+    }
+
     /**
      * Write one featurecollection to an appropriately named shapefile.
      * @param c the featurecollection to write
@@ -403,6 +534,54 @@ public class ShapeZipOutputFormat extends WFSGetFeatureOutputFormat implements A
         }
     }
 
+    /**
+     * Streams one featurecollection into an appropriately named shapefile inside the zip output
+     */
+    private void writeCollectionToZip(SimpleFeatureCollection c, ZipOutputStream zipOut,
+            Charset charset, GetFeatureRequest request, Set<String> fileNames) {
+        FeatureTypeInfo ftInfo = getFeatureTypeInfo(c);
+
+        c = remapCollectionSchema(c, null);
+
+        SimpleFeatureType schema = c.getSchema();
+        String fileName = getUniqueName(new FileNameSource(getClass()).getShapeName(ftInfo, null),
+                fileNames);
+        try {
+            // same name mappings as the staged case
+            Map<String,String> attributeMappings=createAttributeMappings(schema);
+            SimpleFeatureCollection remapped = new RemappingFeatureCollection(c,attributeMappings);
+            SimpleFeatureType remappedSchema=(SimpleFeatureType)remapped.getSchema();
+
+            String prj = null;
+            if (isEsriFormat(request)) {
+                prj = getEsriWKT(remappedSchema);
+            }
+            new StreamingShapefileWriter(zipOut, charset).write(remapped, fileName, prj);
+        } catch (FactoryException fe) {
+            LOGGER.log(Level.WARNING,
+                    "Error while getting EPSG code from FeatureType", fe);
+            throw new ServiceException(fe);
+        } catch (IOException ioe) {
+            LOGGER.log(Level.WARNING,
+                "Error while writing featuretype '" + schema.getTypeName() + "' to shapefile.", ioe);
+            throw new ServiceException(ioe);
+        }
+    }
+
+    /**
+     * Returns the name itself if not used yet, otherwise appends the first free numeric suffix
+     * to it. The staged writer would overwrite the shapefile of a previous query against the
+     * same feature type, in a zip stream the entries cannot be replaced, so each query gets its
+     * own shapefile instead
+     */
+    static String getUniqueName(String name, Set<String> names) {
+        String result = name;
+        for (int i = 1; !names.add(result.toLowerCase()); i++) {
+            result = name + "_" + i;
+        }
+        return result;
+    }
+
     /**
      * Either retrieves the corresponding FeatureTypeInfo from the catalog or fakes one
      * with the necessary information 
@@ -438,12 +617,17 @@ public class ShapeZipOutputFormat extends WFSGetFeatureOutputFormat implements A
     private void changeWKTFormatIfFileFormatIsESRI(File tempDir, GetFeatureRequest request,
             String fileName, SimpleFeatureType remappedSchema) throws FactoryException,
             IOException, FileNotFoundException {
-        
+        if (isEsriFormat(request)) {
+            replaceOGCPrjFileByESRIPrjFile(tempDir, fileName, remappedSchema);
+        }
+    }
+
+    private boolean isEsriFormat(GetFeatureRequest request) {
         boolean useEsriFormat = false;
         
         // if the request originates from the WPS we won't actually have any GetFeatureType request
         if(request == null) {
-            return;
+            return false;
         }
         
         Map<String, ?> formatOptions = request.getFormatOptions();
@@ -456,20 +640,37 @@ public class ShapeZipOutputFormat extends WFSGetFeatureOutputFormat implements A
         }else{
             useEsriFormat = "ESRI".equalsIgnoreCase(requestedPrjFileFormat);
         }
-        
-        if (useEsriFormat) {
-            replaceOGCPrjFileByESRIPrjFile(tempDir, fileName, remappedSchema);
-        }
+        return useEsriFormat;
     }
 
     private void replaceOGCPrjFileByESRIPrjFile(File tempDir, String fileName,
             SimpleFeatureType remappedSchema) throws FactoryException, IOException,
             FileNotFoundException {
+        String data = getEsriWKT(remappedSchema);
+        if (data != null) {
+            File prjShapeFile = new File(tempDir, fileName + ".prj");
+            prjShapeFile.delete();
+
+            BufferedWriter out = new BufferedWriter(new FileWriter(prjShapeFile));
+            try {
+                out.write(data);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Looks up the ESRI WKT of the schema CRS in user_projections/esri.properties, returns null
+     * if not found
+     */
+    private String getEsriWKT(SimpleFeatureType remappedSchema) throws FactoryException,
+            IOException {
         final Integer epsgCode = CRS.lookupEpsgCode(remappedSchema.getGeometryDescriptor()
                 .getCoordinateReferenceSystem(), true);
         if(epsgCode == null){
             LOGGER.info("Can't find the EPSG code for the shapefile CRS");
-            return;
+            return null;
         }
         File file = resourceLoader.find("user_projections", "esri.properties");
 
@@ -487,15 +688,7 @@ public class ShapeZipOutputFormat extends WFSGetFeatureOutputFormat implements A
             String data = (String) properties.get(epsgCode.toString());
 
             if (data != null) {
-                File prjShapeFile = new File(tempDir, fileName + ".prj");
-                prjShapeFile.delete();
-
-                BufferedWriter out = new BufferedWriter(new FileWriter(prjShapeFile));
-                try {
-                    out.write(data);
-                } finally {
-                    out.close();
-                }
+                return data;
             } else {
                 LOGGER.info("Requested shapefile with ESRI WKT .prj format but couldn't find an entry for ESPG code "
                         + epsgCode + " in esri.properties");
@@ -503,6 +696,7 @@ public class ShapeZipOutputFormat extends WFSGetFeatureOutputFormat implements A
         } else {
             LOGGER.info("Requested shapefile with ESRI WKT .prj format but the esri.properties file does not exist in the user_projections directory");
         }
+        return null;
     }
     
     /**
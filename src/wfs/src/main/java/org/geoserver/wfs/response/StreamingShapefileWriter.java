@@ -0,0 +1,406 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs.response;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.geotools.data.shapefile.dbf.DbaseFileHeader;
+import org.geotools.data.shapefile.dbf.DbaseFileWriter;
+import org.geotools.data.shapefile.shp.JTSUtilities;
+import org.geotools.data.shapefile.shp.ShapeHandler;
+import org.geotools.data.shapefile.shp.ShapeType;
+import org.geotools.data.shapefile.shp.ShapefileHeader;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.FeatureTypes;
+import org.geotools.referencing.wkt.Formattable;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.GeometryDescriptor;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.MultiLineString;
+import com.vividsolutions.jts.geom.MultiPoint;
+import com.vividsolutions.jts.geom.MultiPolygon;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+
+/**
+ * Writes a feature collection as a shapefile straight into a zip stream, without staging it in a
+ * temporary directory.
+ * <p>
+ * The shp and shx headers need the record count, the file length and the bounds before any record
+ * is written, and zip entries can only be written one after the other, so the collection is
+ * scanned three times: the first pass only collects the record lengths (kept in a compact int
+ * array, from which the whole shx file is generated), the bounds and the count, the second one
+ * writes the shp records, and the third one the dbf records. Reading the data three times is
+ * usually cheaper than writing and reading back the shapefile on disk, and the output starts
+ * flowing to the client right after the first pass.
+ * </p>
+ * <p>
+ * The collection schema must already be shapefile compatible, and its geometry type must map to a
+ * single shape type, see {@link #getShapeType(Class)}. As in the shapefile datastore, the
+ * coordinate dimension of the first geometry decides if the Z variant of the shape type is used.
+ * </p>
+ */
+class StreamingShapefileWriter {
+
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    static final int HEADER_SIZE = 100;
+
+    ZipOutputStream zip;
+
+    Charset charset;
+
+    ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    public StreamingShapefileWriter(ZipOutputStream zip, Charset charset) {
+        this.zip = zip;
+        this.charset = charset;
+    }
+
+    /**
+     * Returns the shape type the geometry binding maps to, or null if the binding does not
+     * determine a single shape type
+     */
+    static ShapeType getShapeType(Class<?> binding) {
+        if (Point.class.equals(binding)) {
+            return ShapeType.POINT;
+        } else if (MultiPoint.class.equals(binding)) {
+            return ShapeType.MULTIPOINT;
+        } else if (LineString.class.isAssignableFrom(binding)
+                || MultiLineString.class.equals(binding)) {
+            return ShapeType.ARC;
+        } else if (Polygon.class.equals(binding) || MultiPolygon.class.equals(binding)) {
+            return ShapeType.POLYGON;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the Z variant of the shape type if the coordinates have three dimensions, same as the
+     * shapefile datastore
+     */
+    static ShapeType getShapeType(ShapeType shapeType, int dimensions) {
+        if (dimensions < 3) {
+            return shapeType;
+        } else if (shapeType == ShapeType.POINT) {
+            return ShapeType.POINTZ;
+        } else if (shapeType == ShapeType.MULTIPOINT) {
+            return ShapeType.MULTIPOINTZ;
+        } else if (shapeType == ShapeType.ARC) {
+            return ShapeType.ARCZ;
+        } else if (shapeType == ShapeType.POLYGON) {
+            return ShapeType.POLYGONZ;
+        }
+        return shapeType;
+    }
+
+    /**
+     * Writes the shp, shx, dbf, prj and cst entries of the collection
+     *
+     * @param fileName the name of the entries, without extension
+     * @param prj the contents of the prj file, if null the OGC WKT of the collection CRS is used
+     */
+    public void write(SimpleFeatureCollection fc, String fileName, String prj) throws IOException {
+        SimpleFeatureType schema = fc.getSchema();
+        GeometryDescriptor gd = schema.getGeometryDescriptor();
+        ShapeType shapeType = getShapeType(gd.getType().getBinding());
+        if (shapeType == null) {
+            throw new IllegalArgumentException("Cannot stream out geometries of type "
+                    + gd.getType().getBinding());
+        }
+
+        RecordIndex index = scan(fc, shapeType);
+        writeIndex(fileName + ".shx", index.shapeType, index);
+        writeShapes(fc, fileName + ".shp", index.shapeType, index.handler, index);
+        writeAttributes(fc, fileName + ".dbf", index.count);
+
+        CoordinateReferenceSystem crs = gd.getCoordinateReferenceSystem();
+        if (prj == null && crs != null) {
+            prj = toSingleLineWKT(crs);
+        }
+        if (prj != null) {
+            writeText(fileName + ".prj", prj);
+        }
+        // not a standard extension, for debugging and control purposes
+        writeText(fileName + ".cst", charset.name());
+    }
+
+    /**
+     * First pass, collects the record lengths, the record count and the bounds, and picks the
+     * shape type out of the first geometry coordinate dimension
+     */
+    RecordIndex scan(SimpleFeatureCollection fc, ShapeType shapeType) throws IOException {
+        RecordIndex index = new RecordIndex();
+        SimpleFeatureIterator it = fc.features();
+        try {
+            while (it.hasNext()) {
+                Geometry g = getGeometry(it.next(), shapeType);
+                if (g != null && index.handler == null) {
+                    index.setShapeType(getShapeType(shapeType,
+                            JTSUtilities.guessCoorinateDims(g.getCoordinates())));
+                }
+                index.add(getLength(g, index.handler));
+                if (g != null) {
+                    index.bounds.expandToInclude(g.getEnvelopeInternal());
+                }
+            }
+        } finally {
+            it.close();
+        }
+        if (index.handler == null) {
+            // no geometries, or no features at all
+            index.setShapeType(shapeType);
+        }
+        if (index.getFileLength() > Integer.MAX_VALUE) {
+            throw new IOException("The shapefile would exceed the maximum size allowed");
+        }
+        return index;
+    }
+
+    void writeIndex(String name, ShapeType shapeType, RecordIndex index) throws IOException {
+        zip.putNextEntry(new ZipEntry(name));
+        writeHeader(shapeType, index.count, 50 + 4 * index.count, index.bounds);
+        int offset = 50;
+        for (int i = 0; i < index.count; i++) {
+            ensure(8);
+            buffer.order(ByteOrder.BIG_ENDIAN);
+            buffer.putInt(offset);
+            buffer.putInt(index.lengths[i]);
+            offset += index.lengths[i] + 4;
+        }
+        flush();
+        zip.closeEntry();
+    }
+
+    void writeShapes(SimpleFeatureCollection fc, String name, ShapeType shapeType,
+            ShapeHandler handler, RecordIndex index) throws IOException {
+        zip.putNextEntry(new ZipEntry(name));
+        writeHeader(shapeType, index.count, (int) index.getFileLength(), index.bounds);
+        SimpleFeatureIterator it = fc.features();
+        try {
+            int count = 0;
+            while (it.hasNext()) {
+                Geometry g = getGeometry(it.next(), shapeType);
+                int length = getLength(g, handler);
+                if (count >= index.count || length != index.lengths[count]) {
+                    throw new IOException("The features changed while being written out");
+                }
+                ensure(8 + length * 2);
+                buffer.order(ByteOrder.BIG_ENDIAN);
+                buffer.putInt(++count);
+                buffer.putInt(length);
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                if (g == null) {
+                    buffer.putInt(ShapeType.NULL.id);
+                } else {
+                    buffer.putInt(shapeType.id);
+                    handler.write(buffer, g);
+                }
+            }
+            if (count != index.count) {
+                throw new IOException("The features changed while being written out");
+            }
+        } finally {
+            it.close();
+        }
+        flush();
+        zip.closeEntry();
+    }
+
+    void writeAttributes(SimpleFeatureCollection fc, String name, int count) throws IOException {
+        SimpleFeatureType schema = fc.getSchema();
+        DbaseFileHeader header = createDbaseHeader(schema);
+        header.setNumRecords(count);
+
+        zip.putNextEntry(new ZipEntry(name));
+        // the dbf writer closes the channel, but the zip stream must stay open
+        DbaseFileWriter writer = new DbaseFileWriter(header, Channels
+                .newChannel(new CloseShieldOutputStream(zip)), charset);
+        Object[] values = new Object[header.getNumFields()];
+        SimpleFeatureIterator it = fc.features();
+        try {
+            int written = 0;
+            while (it.hasNext()) {
+                SimpleFeature f = it.next();
+                if (++written > count) {
+                    throw new IOException("The features changed while being written out");
+                }
+                int idx = 0;
+                for (int i = 0; i < schema.getAttributeCount(); i++) {
+                    AttributeDescriptor ad = schema.getDescriptor(i);
+                    if (!(ad instanceof GeometryDescriptor)) {
+                        values[idx++] = f.getAttribute(i);
+                    }
+                }
+                writer.write(values);
+            }
+            if (written != count) {
+                throw new IOException("The features changed while being written out");
+            }
+        } finally {
+            it.close();
+            writer.close();
+        }
+        zip.closeEntry();
+    }
+
+    /**
+     * Builds the dbf header the same way as the shapefile datastore does, so that the streamed dbf
+     * files have the same structure as the ones written by the datastore
+     */
+    static DbaseFileHeader createDbaseHeader(SimpleFeatureType schema) throws IOException {
+        DbaseFileHeader header = new DbaseFileHeader();
+        for (AttributeDescriptor ad : schema.getAttributeDescriptors()) {
+            Class<?> binding = ad.getType().getBinding();
+            String name = ad.getLocalName();
+            int fieldLength = FeatureTypes.getFieldLength(ad);
+            if (fieldLength <= 0) {
+                fieldLength = 255;
+            }
+            if (binding == Integer.class || binding == Short.class || binding == Byte.class) {
+                header.addColumn(name, 'N', Math.min(fieldLength, 9), 0);
+            } else if (binding == Long.class) {
+                header.addColumn(name, 'N', Math.min(fieldLength, 19), 0);
+            } else if (binding == BigInteger.class) {
+                header.addColumn(name, 'N', Math.min(fieldLength, 33), 0);
+            } else if (Number.class.isAssignableFrom(binding)) {
+                int length = Math.min(fieldLength, 33);
+                header.addColumn(name, 'N', length, Math.max(length - 2, 0));
+            } else if (java.util.Date.class.isAssignableFrom(binding)) {
+                header.addColumn(name, 'D', fieldLength, 0);
+            } else if (binding == Boolean.class) {
+                header.addColumn(name, 'L', 1, 0);
+            } else if (CharSequence.class.isAssignableFrom(binding)) {
+                header.addColumn(name, 'C', Math.min(254, fieldLength), 0);
+            } else if (Geometry.class.isAssignableFrom(binding)) {
+                continue;
+            } else {
+                throw new IOException("Unable to write column " + name + " of type "
+                        + binding.getName());
+            }
+        }
+        return header;
+    }
+
+    void writeText(String name, String contents) throws IOException {
+        zip.putNextEntry(new ZipEntry(name));
+        zip.write(contents.getBytes(charset));
+        zip.closeEntry();
+    }
+
+    void writeHeader(ShapeType shapeType, int count, int length, Envelope bounds)
+            throws IOException {
+        ensure(HEADER_SIZE);
+        if (bounds.isNull()) {
+            bounds = new Envelope(0, 0, 0, 0);
+        }
+        new ShapefileHeader().write(buffer, shapeType, count, length, bounds.getMinX(),
+                bounds.getMinY(), bounds.getMaxX(), bounds.getMaxY());
+    }
+
+    Geometry getGeometry(SimpleFeature f, ShapeType shapeType) {
+        Geometry g = (Geometry) f.getDefaultGeometry();
+        if (g == null) {
+            return null;
+        }
+        return JTSUtilities.convertToCollection(g, shapeType);
+    }
+
+    /**
+     * The record content length in 16 bit words, as stored in the record header and in the shx
+     */
+    int getLength(Geometry g, ShapeHandler handler) {
+        // the null shape is made of the shape type alone
+        return (g == null ? 4 : handler.getLength(g)) / 2;
+    }
+
+    /**
+     * Makes sure the buffer has room for the specified amount of bytes, writing out its contents
+     * if necessary
+     */
+    void ensure(int length) throws IOException {
+        if (buffer.remaining() < length) {
+            flush();
+            if (buffer.capacity() < length) {
+                buffer = ByteBuffer.allocate(length);
+            }
+        }
+    }
+
+    void flush() throws IOException {
+        zip.write(buffer.array(), 0, buffer.position());
+        buffer.clear();
+    }
+
+    /**
+     * Same as the shapefile datastore, a lenient single line WKT, works with polar stereographic
+     * projections too
+     */
+    static String toSingleLineWKT(CoordinateReferenceSystem crs) {
+        String wkt;
+        if (crs instanceof Formattable) {
+            wkt = ((Formattable) crs).toWKT(0, false);
+        } else {
+            wkt = crs.toWKT();
+        }
+        return wkt.replaceAll("\n", "").replaceAll("  ", "");
+    }
+
+    /**
+     * The data needed to write the shp and shx headers, and the shx contents
+     */
+    static class RecordIndex {
+        ShapeType shapeType;
+
+        ShapeHandler handler;
+
+        int count;
+
+        int[] lengths = new int[1024];
+
+        Envelope bounds = new Envelope();
+
+        void setShapeType(ShapeType shapeType) {
+            this.shapeType = shapeType;
+            this.handler = shapeType.getShapeHandler(new GeometryFactory());
+        }
+
+        void add(int length) {
+            if (count == lengths.length) {
+                lengths = Arrays.copyOf(lengths, lengths.length * 2);
+            }
+            lengths[count++] = length;
+        }
+
+        /**
+         * The shp length in 16 bit words
+         */
+        long getFileLength() {
+            long length = HEADER_SIZE / 2;
+            for (int i = 0; i < count; i++) {
+                length += lengths[i] + 4;
+            }
+            return length;
+        }
+    }
+}
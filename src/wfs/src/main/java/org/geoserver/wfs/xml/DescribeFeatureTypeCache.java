@@ -0,0 +1,266 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs.xml;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.geoserver.catalog.CoverageStoreInfo;
+import org.geoserver.catalog.DataStoreInfo;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.catalog.ResourcePool;
+import org.geoserver.catalog.WorkspaceInfo;
+import org.geoserver.catalog.event.CatalogAddEvent;
+import org.geoserver.catalog.event.CatalogListener;
+import org.geoserver.catalog.event.CatalogModifyEvent;
+import org.geoserver.catalog.event.CatalogPostModifyEvent;
+import org.geoserver.catalog.event.CatalogRemoveEvent;
+import org.geoserver.config.ConfigurationListenerAdapter;
+import org.geoserver.config.GeoServer;
+import org.geoserver.config.GeoServerInfo;
+import org.geoserver.config.ServiceInfo;
+import org.geoserver.config.SettingsInfo;
+import org.geoserver.ows.LocalWorkspace;
+import org.geotools.data.DataAccess;
+import org.opengis.coverage.grid.GridCoverageReader;
+import org.opengis.feature.type.FeatureType;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+/**
+ * Cache of the serialized DescribeFeatureType responses, so that clients describing the same
+ * types over and over do not pay for the schema building and encoding every time.
+ * <p>
+ * Responses are cached by encoder (hence version and output format), type set, base URL, virtual
+ * service and user, since security might restrict the visible attributes. The whole cache is
+ * cleared on any catalog change, on feature type and store disposal in the resource pool and on
+ * any global, settings or service configuration change.
+ * </p>
+ * <p>
+ * The built {@link org.eclipse.xsd.XSDSchema} objects are not cached, they are disposed at the
+ * end of each request (see {@link SchemaCleanerCallback}) to avoid leaking the EMF adapters
+ * attached to the shared GML schemas.
+ * </p>
+ */
+public class DescribeFeatureTypeCache {
+
+    /**
+     * System property setting the number of responses kept by the cache, zero disables caching
+     */
+    public static final String CACHE_SIZE = "org.geoserver.wfs.describeFeatureTypeCacheSize";
+
+    static final int DEFAULT_CACHE_SIZE = 100;
+
+    /**
+     * Responses larger than this are not cached
+     */
+    static final int MAX_RESPONSE_SIZE = 1024 * 1024;
+
+    final int maxEntries;
+
+    final Map<String, byte[]> cache;
+
+    /**
+     * Incremented on every invalidation, responses built across an invalidation are not cached
+     */
+    long generation;
+
+    AtomicLong hits = new AtomicLong();
+
+    AtomicLong misses = new AtomicLong();
+
+    public DescribeFeatureTypeCache(GeoServer gs) {
+        this(Integer.getInteger(CACHE_SIZE, DEFAULT_CACHE_SIZE));
+        register(gs);
+    }
+
+    DescribeFeatureTypeCache(final int maxEntries) {
+        this.maxEntries = maxEntries;
+        this.cache = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns false if caching has been disabled with the {@link #CACHE_SIZE} system property
+     */
+    public boolean isEnabled() {
+        return maxEntries > 0;
+    }
+
+    void register(GeoServer gs) {
+        gs.getCatalog().addListener(new CatalogListener() {
+
+            public void handleAddEvent(CatalogAddEvent event) {
+                clear();
+            }
+
+            public void handleRemoveEvent(CatalogRemoveEvent event) {
+                clear();
+            }
+
+            public void handleModifyEvent(CatalogModifyEvent event) {
+                clear();
+            }
+
+            public void handlePostModifyEvent(CatalogPostModifyEvent event) {
+                clear();
+            }
+
+            public void reloaded() {
+                clear();
+            }
+        });
+        gs.getCatalog().getResourcePool().addListener(new ResourcePool.Listener() {
+
+            public void disposed(FeatureTypeInfo featureType, FeatureType ft) {
+                clear();
+            }
+
+            public void disposed(CoverageStoreInfo coverageStore, GridCoverageReader gcr) {
+            }
+
+            public void disposed(DataStoreInfo dataStore, DataAccess da) {
+                clear();
+            }
+        });
+        gs.addListener(new ConfigurationListenerAdapter() {
+
+            public void handleGlobalChange(GeoServerInfo global, List<String> propertyNames,
+                    List<Object> oldValues, List<Object> newValues) {
+                clear();
+            }
+
+            public void handlePostGlobalChange(GeoServerInfo global) {
+                clear();
+            }
+
+            public void handleSettingsAdded(SettingsInfo settings) {
+                clear();
+            }
+
+            public void handleSettingsModified(SettingsInfo settings, List<String> propertyNames,
+                    List<Object> oldValues, List<Object> newValues) {
+                clear();
+            }
+
+            public void handleSettingsPostModified(SettingsInfo settings) {
+                clear();
+            }
+
+            public void handleSettingsRemoved(SettingsInfo settings) {
+                clear();
+            }
+
+            public void handleServiceChange(ServiceInfo service, List<String> propertyNames,
+                    List<Object> oldValues, List<Object> newValues) {
+                clear();
+            }
+
+            public void handlePostServiceChange(ServiceInfo service) {
+                clear();
+            }
+
+            public void handleServiceRemove(ServiceInfo service) {
+                clear();
+            }
+
+            public void reloaded() {
+                clear();
+            }
+        });
+    }
+
+    /**
+     * Returns the cache key for the types being described in the current request
+     *
+     * @param encoder identifies the encoder, and thus the version and output format
+     */
+    public String getKey(String encoder, FeatureTypeInfo[] featureTypeInfos, String baseUrl) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(encoder).append('|').append(baseUrl);
+        WorkspaceInfo workspace = LocalWorkspace.get();
+        sb.append('|').append(workspace != null ? workspace.getName() : null);
+        Authentication user = SecurityContextHolder.getContext().getAuthentication();
+        sb.append('|').append(user != null ? user.getName() : null);
+        for (FeatureTypeInfo info : featureTypeInfos) {
+            sb.append('|').append(info.getId()).append(':').append(info.getPrefixedName());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the cached response, or null if not available
+     */
+    public byte[] get(String key) {
+        byte[] response;
+        synchronized (cache) {
+            response = cache.get(key);
+        }
+        if (response != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return response;
+    }
+
+    /**
+     * Returns the current generation, to be passed to {@link #put(String, byte[], long)} once
+     * the response is built
+     */
+    public long getGeneration() {
+        synchronized (cache) {
+            return generation;
+        }
+    }
+
+    /**
+     * Caches a response, unless the cache has been cleared since the response building started
+     *
+     * @param generation the value returned by {@link #getGeneration()} before building the
+     *        response
+     */
+    public void put(String key, byte[] response, long generation) {
+        if (!isEnabled() || response.length > MAX_RESPONSE_SIZE) {
+            return;
+        }
+        synchronized (cache) {
+            if (this.generation == generation) {
+                cache.put(key, response);
+            }
+        }
+    }
+
+    /**
+     * Removes all the cached responses
+     */
+    public void clear() {
+        synchronized (cache) {
+            generation++;
+            cache.clear();
+        }
+    }
+
+    /**
+     * The number of responses served by the cache
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * The number of responses that had to be built
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+}
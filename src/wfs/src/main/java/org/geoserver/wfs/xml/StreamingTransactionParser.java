@@ -0,0 +1,332 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs.xml;
+
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.logging.Logger;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.eclipse.emf.ecore.EObject;
+import org.geoserver.ows.Dispatcher;
+import org.geoserver.ows.Request;
+import org.geoserver.wfs.Transaction;
+import org.geoserver.wfs.WFSTransactionException;
+import org.geoserver.wfs.request.TransactionElement;
+import org.geoserver.wfs.request.TransactionRequest;
+import org.geotools.util.logging.Logging;
+import org.geotools.xml.Parser;
+import org.xml.sax.InputSource;
+
+/**
+ * Parses a transaction request while it executes, keeping only a bounded part of the request
+ * body in memory.
+ * <p>
+ * The request body is scanned with a StAX reader, and each transaction element is cut out of it
+ * and parsed on its own with the same parser used for whole requests, wrapped in a copy of the
+ * root element so that namespaces and attributes are preserved. Insert elements are cut in chunks
+ * of at most {@link Transaction#BATCH_SIZE} features, each returned as a separate insert carrying
+ * the same attributes, while all the other elements are parsed as a whole.
+ * </p>
+ * <p>
+ * {@link #parse()} returns the transaction object with no elements, the elements are returned by
+ * this iterator, which is attached to the transaction object, see
+ * {@link TransactionRequest#getStreamedElements()}. Transaction plugins are handed each streamed
+ * element, or insert chunk, in a transaction of its own before it is executed, while the request
+ * they get before commit and after the transaction has no elements.
+ * </p>
+ * <p>
+ * Streaming is used only for request bodies larger than the {@link #THRESHOLD} system property,
+ * in bytes, with a default of 16MB. Set it to a negative value to disable streaming.
+ * </p>
+ */
+public abstract class StreamingTransactionParser implements Iterator<EObject> {
+
+    static final Logger LOGGER = Logging.getLogger(StreamingTransactionParser.class);
+
+    /**
+     * System property setting the minimum request size, in bytes, for transactions to be
+     * streamed
+     */
+    public static final String THRESHOLD = "org.geoserver.wfs.streamingTransactionThreshold";
+
+    static final int DEFAULT_THRESHOLD = 16 * 1024 * 1024;
+
+    static final String INSERT = "Insert";
+
+    XMLStreamReader xml;
+
+    XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+
+    int chunkSize;
+
+    StartTag root;
+
+    /**
+     * The start tag of the insert being chunked, if any
+     */
+    StartTag insert;
+
+    /**
+     * Number of chunks returned for the current insert
+     */
+    int chunks;
+
+    EObject next;
+
+    boolean finished;
+
+    /**
+     * Returns true if the request being dispatched is large enough to be streamed
+     */
+    public static boolean isStreamingEnabled() {
+        int threshold = Integer.getInteger(THRESHOLD, DEFAULT_THRESHOLD);
+        Request request = Dispatcher.REQUEST.get();
+        if (threshold < 0 || request == null || request.getHttpRequest() == null) {
+            return false;
+        }
+        // unknown lengths are not streamed
+        int length = request.getHttpRequest().getContentLength();
+        return length >= 0 && length >= threshold;
+    }
+
+    public StreamingTransactionParser(Reader reader) throws XMLStreamException {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        this.xml = factory.createXMLStreamReader(reader);
+
+        int batchSize = Integer.getInteger(Transaction.BATCH_SIZE, Transaction.DEFAULT_BATCH_SIZE);
+        this.chunkSize = batchSize > 1 ? batchSize : Transaction.DEFAULT_BATCH_SIZE;
+    }
+
+    /**
+     * Creates a parser for a request fragment, configured as the one used for whole requests
+     */
+    protected abstract Parser createParser() throws Exception;
+
+    /**
+     * Reads the root element and returns the transaction object, with the parser attached as
+     * the source of its elements
+     */
+    public Object parse() throws Exception {
+        xml.nextTag();
+        root = new StartTag(xml);
+
+        StringWriter sw = new StringWriter();
+        Object transaction = endFragment(startFragment(sw), sw);
+        TransactionRequest.adapt(transaction).setStreamedElements(this);
+        return transaction;
+    }
+
+    public boolean hasNext() {
+        if (next == null && !finished) {
+            try {
+                next = readNext();
+            } catch (WFSTransactionException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new WFSTransactionException("Request parsing failed", e,
+                        "OperationParsingFailed");
+            }
+            if (next == null) {
+                finished = true;
+                try {
+                    xml.close();
+                } catch (XMLStreamException e) {
+                    LOGGER.fine("Failed to close the request reader: " + e.getMessage());
+                }
+            }
+        }
+        return next != null;
+    }
+
+    public EObject next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        EObject result = next;
+        next = null;
+        return result;
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    EObject readNext() throws Exception {
+        while (true) {
+            if (insert == null) {
+                if (xml.nextTag() == XMLStreamConstants.END_ELEMENT) {
+                    // end of the transaction
+                    return null;
+                }
+                if (INSERT.equals(xml.getLocalName())
+                        && root.namespace.equals(xml.getNamespaceURI())) {
+                    insert = new StartTag(xml);
+                    chunks = 0;
+                } else {
+                    // not streamable, parse the element as a whole
+                    return parseElement();
+                }
+            }
+
+            EObject chunk = parseInsertChunk();
+            if (chunk != null) {
+                chunks++;
+                return chunk;
+            }
+        }
+    }
+
+    /**
+     * Cuts the current element out of the body and parses it
+     */
+    EObject parseElement() throws Exception {
+        StringWriter sw = new StringWriter();
+        XMLStreamWriter w = startFragment(sw);
+        copyElement(w);
+        return getElement(endFragment(w, sw));
+    }
+
+    /**
+     * Cuts the next chunk of features out of the current insert and parses it, returns null if the
+     * insert has no more features
+     */
+    EObject parseInsertChunk() throws Exception {
+        StringWriter sw = new StringWriter();
+        XMLStreamWriter w = startFragment(sw);
+        insert.write(w);
+        int count = 0;
+        while (count < chunkSize) {
+            if (xml.nextTag() == XMLStreamConstants.END_ELEMENT) {
+                // end of the insert
+                insert = null;
+                break;
+            }
+            copyElement(w);
+            count++;
+        }
+        if (count == 0 && chunks > 0) {
+            return null;
+        }
+        w.writeEndElement();
+        return getElement(endFragment(w, sw));
+    }
+
+    XMLStreamWriter startFragment(StringWriter sw) throws XMLStreamException {
+        XMLStreamWriter w = outputFactory.createXMLStreamWriter(sw);
+        root.write(w);
+        return w;
+    }
+
+    Object endFragment(XMLStreamWriter w, StringWriter sw) throws Exception {
+        w.writeEndElement();
+        w.close();
+        return createParser().parse(new InputSource(new StringReader(sw.toString())));
+    }
+
+    EObject getElement(Object transaction) {
+        List<TransactionElement> elements = TransactionRequest.adapt(transaction).getElements();
+        if (elements.size() != 1) {
+            throw new WFSTransactionException("Could not parse the transaction element",
+                    "OperationParsingFailed");
+        }
+        return elements.get(0).getAdaptee();
+    }
+
+    /**
+     * Copies the element the reader is positioned on, leaving the reader on its end tag
+     */
+    void copyElement(XMLStreamWriter w) throws XMLStreamException {
+        int depth = 0;
+        while (true) {
+            switch (xml.getEventType()) {
+            case XMLStreamConstants.START_ELEMENT:
+                new StartTag(xml).write(w);
+                depth++;
+                break;
+            case XMLStreamConstants.END_ELEMENT:
+                w.writeEndElement();
+                depth--;
+                break;
+            case XMLStreamConstants.CHARACTERS:
+            case XMLStreamConstants.SPACE:
+                w.writeCharacters(xml.getTextCharacters(), xml.getTextStart(),
+                        xml.getTextLength());
+                break;
+            case XMLStreamConstants.CDATA:
+                w.writeCData(xml.getText());
+                break;
+            default:
+                // comments and processing instructions are not relevant
+            }
+            if (depth == 0) {
+                return;
+            }
+            xml.next();
+        }
+    }
+
+    /**
+     * A start tag, with its namespace declarations and attributes
+     */
+    static class StartTag {
+        String prefix;
+
+        String namespace;
+
+        String localName;
+
+        List<String[]> namespaces = new ArrayList<String[]>();
+
+        List<String[]> attributes = new ArrayList<String[]>();
+
+        StartTag(XMLStreamReader xml) {
+            prefix = xml.getPrefix();
+            namespace = xml.getNamespaceURI() != null ? xml.getNamespaceURI() : "";
+            localName = xml.getLocalName();
+            for (int i = 0; i < xml.getNamespaceCount(); i++) {
+                namespaces.add(new String[] { xml.getNamespacePrefix(i), xml.getNamespaceURI(i) });
+            }
+            for (int i = 0; i < xml.getAttributeCount(); i++) {
+                attributes.add(new String[] { xml.getAttributePrefix(i),
+                        xml.getAttributeNamespace(i), xml.getAttributeLocalName(i),
+                        xml.getAttributeValue(i) });
+            }
+        }
+
+        void write(XMLStreamWriter w) throws XMLStreamException {
+            w.writeStartElement(prefix != null ? prefix : "", localName, namespace);
+            for (String[] ns : namespaces) {
+                if (ns[0] == null || ns[0].isEmpty()) {
+                    w.writeDefaultNamespace(ns[1]);
+                } else {
+                    w.writeNamespace(ns[0], ns[1]);
+                }
+            }
+            for (String[] att : attributes) {
+                if (att[1] == null || att[1].isEmpty()) {
+                    w.writeAttribute(att[2], att[3]);
+                } else {
+                    w.writeAttribute(att[0] != null ? att[0] : "", att[1], att[2], att[3]);
+                }
+            }
+        }
+    }
+}
@@ -25,12 +25,14 @@ import org.geoserver.catalog.FeatureTypeInfo;
 import org.geoserver.config.GeoServer;
 import org.geoserver.config.GeoServerInfo;
 import org.geoserver.ows.Dispatcher;
+import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.platform.GeoServerResourceLoader;
 import org.geoserver.platform.Operation;
 import org.geoserver.platform.ServiceException;
 import org.geoserver.wfs.WFSDescribeFeatureTypeOutputFormat;
 import org.geoserver.wfs.WFSInfo;
 import org.geoserver.wfs.request.DescribeFeatureTypeRequest;
+import org.geoserver.wfs.xml.DescribeFeatureTypeCache;
 import org.geoserver.wfs.xml.FeatureTypeSchemaBuilder;
 import org.geotools.xml.Schemas;
 
@@ -45,6 +47,9 @@ public class XmlSchemaEncoder extends WFSDescribeFeatureTypeOutputFormat {
     
     /** schema builder */
     FeatureTypeSchemaBuilder schemaBuilder;
+    
+    /** cache of the encoded responses, shared by all encoders */
+    DescribeFeatureTypeCache cache;
 
     public XmlSchemaEncoder(String mimeType, GeoServer gs, FeatureTypeSchemaBuilder schemaBuilder) {
         super(gs, mimeType);
@@ -104,12 +109,43 @@ public class XmlSchemaEncoder extends WFSDescribeFeatureTypeOutputFormat {
         Object request = describeFeatureType.getParameters()[0];
         DescribeFeatureTypeRequest req = DescribeFeatureTypeRequest.adapt(request);
         
+        // look for a cached response first
+        DescribeFeatureTypeCache cache = getCache();
+        String key = null;
+        long generation = 0;
+        if (cache != null) {
+            key = cache.getKey(getClass().getName(), featureTypeInfos, req.getBaseURL());
+            byte[] cached = cache.get(key);
+            if (cached != null) {
+                output.write(cached);
+                return;
+            }
+            generation = cache.getGeneration();
+        }
+        
         XSDSchema schema = schemaBuilder.build(featureTypeInfos, req.getBaseURL());
 
         //serialize
         schema.updateElement();
         final String encoding = gs.getSettings().getCharset();
-        XSDResourceImpl.serialize(output, schema.getElement(), encoding);
+        if (cache == null) {
+            XSDResourceImpl.serialize(output, schema.getElement(), encoding);
+        } else {
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            XSDResourceImpl.serialize(bout, schema.getElement(), encoding);
+            cache.put(key, bout.toByteArray(), generation);
+            bout.writeTo(output);
+        }
+    }
+    
+    /**
+     * Returns the response cache, or null if not available or disabled
+     */
+    DescribeFeatureTypeCache getCache() {
+        if (cache == null) {
+            cache = GeoServerExtensions.bean(DescribeFeatureTypeCache.class);
+        }
+        return cache != null && cache.isEnabled() ? cache : null;
     }
     
     public static class V20 extends XmlSchemaEncoder {
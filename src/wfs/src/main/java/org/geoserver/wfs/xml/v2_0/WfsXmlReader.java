@@ -17,6 +17,7 @@ import org.geoserver.util.EntityResolverProvider;
 import org.geoserver.wfs.WFSException;
 import org.geoserver.wfs.WFSInfo;
 import org.geoserver.wfs.xml.FeatureTypeSchemaBuilder;
+import org.geoserver.wfs.xml.StreamingTransactionParser;
 import org.geoserver.wfs.xml.WFSURIHandler;
 import org.geoserver.wfs.xml.WFSXmlUtils;
 import org.geotools.util.Version;
@@ -41,18 +42,25 @@ public class WfsXmlReader extends XmlRequestReader {
     }  
     
     @Override
-    public Object read(Object request, Reader reader, Map kvp) throws Exception {
-        WFSConfiguration config = new WFSConfiguration();
+    public Object read(Object request, Reader reader, final Map kvp) throws Exception {
+        final WFSConfiguration config = new WFSConfiguration();
         WFSXmlUtils.initWfsConfiguration(config, gs, new FeatureTypeSchemaBuilder.GML32(gs));
         
-        Parser parser = new Parser(config);
-        parser.setEntityResolver(entityResolverProvider.getEntityResolver());
+        Parser parser = createParser(config, kvp);
         
         WFSInfo wfs = wfs();
         
-        WFSXmlUtils.initRequestParser(parser, wfs, gs, kvp);
         Object parsed = null;
         try {
+            if ("Transaction".equals(getElement().getLocalPart())
+                    && StreamingTransactionParser.isStreamingEnabled()) {
+                // the configuration is shared by all the fragments of the request
+                return new StreamingTransactionParser(reader) {
+                    protected Parser createParser() {
+                        return WfsXmlReader.this.createParser(config, kvp);
+                    }
+                }.parse();
+            }
             parsed = WFSXmlUtils.parseRequest(parser, reader, wfs);    
         }
         catch(Exception e) {
@@ -68,6 +76,14 @@ public class WfsXmlReader extends XmlRequestReader {
         return parsed;
     }
 
+    Parser createParser(WFSConfiguration config, Map kvp) {
+        Parser parser = new Parser(config);
+        parser.setEntityResolver(entityResolverProvider.getEntityResolver());
+        
+        WFSXmlUtils.initRequestParser(parser, wfs(), gs, kvp);
+        return parser;
+    }
+
     WFSInfo wfs() {
         return gs.getService(WFSInfo.class);
     }
@@ -8,10 +8,17 @@ package org.geoserver.wfs;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.IOException;
 import java.util.Collections;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.xml.namespace.QName;
 
@@ -20,11 +27,17 @@ import org.custommonkey.xmlunit.XMLUnit;
 import org.custommonkey.xmlunit.XpathEngine;
 import org.geoserver.catalog.Catalog;
 import org.geoserver.catalog.ResourceInfo;
+import org.geoserver.catalog.WorkspaceInfo;
 import org.geoserver.config.GeoServer;
 import org.geoserver.data.test.MockData;
 import org.geoserver.data.test.SystemTestData;
+import org.geoserver.ows.LocalWorkspace;
+import org.geotools.data.FeatureSource;
+import org.geotools.data.Query;
 import org.junit.Before;
 import org.junit.Test;
+import org.opengis.feature.Feature;
+import org.opengis.feature.type.FeatureType;
 import org.w3c.dom.Document;
 import org.w3c.dom.NodeList;
 
@@ -340,4 +353,59 @@ public class GetFeatureTest extends WFSTestSupport {
         XMLAssert.assertXpathEvaluatesTo("typeName", "//ogc:ServiceException/@locator", doc);
     }
 
+    @Test
+    public void testPlanningOnFullQueue() throws Exception {
+        // a pool whose only thread is busy and whose queue is full
+        final CountDownLatch latch = new CountDownLatch(1);
+        Runnable blocker = new Runnable() {
+            public void run() {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(1), new ThreadPoolExecutor.AbortPolicy());
+        WorkspaceInfo workspace = getCatalog().getDefaultWorkspace();
+        LocalWorkspace.set(workspace);
+        try {
+            executor.execute(blocker);
+            executor.execute(blocker);
+
+            final Thread caller = Thread.currentThread();
+            Object[] result = GetFeature.submitPlanning(executor, new Callable<Object[]>() {
+                public Object[] call() throws Exception {
+                    return new Object[] { Thread.currentThread(), LocalWorkspace.get() };
+                }
+            }).get();
+            assertSame(caller, result[0]);
+            assertSame(workspace, result[1]);
+            // the request thread locals are still in place
+            assertSame(workspace, LocalWorkspace.get());
+        } finally {
+            LocalWorkspace.remove();
+            latch.countDown();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testHasMoreFeatures() throws Exception {
+        FeatureSource<? extends FeatureType, ? extends Feature> source = getCatalog()
+                .getFeatureTypeByName(getLayerId(MockData.FIFTEEN)).getFeatureSource(null, null);
+        GetFeature getFeature = new GetFeature(getWFS(), getCatalog());
+
+        Query query = new Query(MockData.FIFTEEN.getLocalPart());
+        query.setMaxFeatures(5);
+        assertTrue(getFeature.hasMoreFeatures(source, query, 5));
+
+        // an exactly full last page
+        query.setStartIndex(10);
+        assertFalse(getFeature.hasMoreFeatures(source, query, 5));
+
+        query.setStartIndex(5);
+        assertTrue(getFeature.hasMoreFeatures(source, query, 5));
+    }
 }
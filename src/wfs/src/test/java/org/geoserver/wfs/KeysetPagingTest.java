@@ -0,0 +1,158 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.Date;
+
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.catalog.MetadataMap;
+import org.geotools.data.DataUtilities;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.junit.Test;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.filter.Filter;
+import org.opengis.filter.PropertyIsGreaterThan;
+import org.opengis.filter.expression.Literal;
+
+public class KeysetPagingTest {
+
+    @Test
+    public void testTimestampKeyPrecision() throws Exception {
+        SimpleFeatureType type = DataUtilities.createType("Events", "t:java.sql.Timestamp,name");
+        KeysetPaging paging = KeysetPaging.create(featureType("t"), type, null);
+        assertNotNull(paging);
+
+        Timestamp first = new Timestamp(1000000000123L);
+        first.setNanos(123456789);
+        Timestamp last = new Timestamp(1000000001123L);
+        last.setNanos(123456789);
+        ListFeatureCollection features = new ListFeatureCollection(type);
+        features.add(SimpleFeatureBuilder.build(type, new Object[] { first, "a" }, null));
+        features.add(SimpleFeatureBuilder.build(type, new Object[] { last, "b" }, null));
+
+        String id = KeysetPaging.newId();
+        String cursor = paging.getCursor(id, 2, 2);
+        // nothing recorded until the page has been read
+        assertNull(paging.getCursorFilter(cursor, 2));
+
+        readAll(paging.record(features, id));
+        Filter filter = paging.getCursorFilter(cursor, 2);
+        assertTrue(filter instanceof PropertyIsGreaterThan);
+        Object value = ((Literal) ((PropertyIsGreaterThan) filter).getExpression2()).getValue();
+        assertEquals(last, value);
+        assertEquals(123456789, ((Timestamp) value).getNanos());
+
+        // only valid for the start index it has been generated for
+        assertNull(paging.getCursorFilter(cursor, 3));
+    }
+
+    @Test
+    public void testEvictedCursor() throws Exception {
+        SimpleFeatureType type = DataUtilities.createType("Numbers", "num:int");
+        KeysetPaging paging = KeysetPaging.create(featureType("num"), type, null);
+        ListFeatureCollection features = new ListFeatureCollection(type);
+        features.add(SimpleFeatureBuilder.build(type, new Object[] { 1 }, null));
+
+        String id = KeysetPaging.newId();
+        readAll(paging.record(features, id));
+        String cursor = paging.getCursor(id, 1, 1);
+        assertNotNull(paging.getCursorFilter(cursor, 1));
+
+        for (int i = 0; i < KeysetPaging.MAX_CURSORS; i++) {
+            readAll(paging.record(features, KeysetPaging.newId()));
+        }
+        // falls back on offset paging
+        assertNull(paging.getCursorFilter(cursor, 1));
+    }
+
+    @Test
+    public void testCursorNotRecorded() throws Exception {
+        SimpleFeatureType type = DataUtilities.createType("Events", "t:java.sql.Timestamp,name");
+        Timestamp first = new Timestamp(1000000000123L);
+        first.setNanos(123456789);
+        ListFeatureCollection page = new ListFeatureCollection(type);
+        page.add(SimpleFeatureBuilder.build(type, new Object[] { first, "a" }, null));
+
+        // first page, read from the start
+        KeysetPaging paging = KeysetPaging.create(featureType("t"), type, null);
+        assertNull(paging.getCursorFilter(null, 0));
+        String id = KeysetPaging.newId();
+        readAll(paging.record(page, id));
+        String cursor = paging.getCursor(id, 1, 1);
+
+        // second page, seeks after the recorded values
+        paging = KeysetPaging.create(featureType("t"), type, null);
+        assertNotNull(paging.getCursorFilter(cursor, 1));
+        assertEquals(0, paging.getSkip());
+        id = KeysetPaging.newId();
+        cursor = paging.getCursor(id, 2, 1);
+
+        // the second page values were never recorded here, e.g. the request reached another
+        // node, seek after the first page ones and skip the second page
+        paging = KeysetPaging.create(featureType("t"), type, null);
+        Filter filter = paging.getCursorFilter(cursor, 2);
+        assertTrue(filter instanceof PropertyIsGreaterThan);
+        Object value = ((Literal) ((PropertyIsGreaterThan) filter).getExpression2()).getValue();
+        assertEquals(first, value);
+        assertEquals(123456789, ((Timestamp) value).getNanos());
+        assertEquals(1, paging.getSkip());
+
+        // and keep on seeking after them until recorded values are found again
+        cursor = paging.getCursor(KeysetPaging.newId(), 3, 1);
+        paging = KeysetPaging.create(featureType("t"), type, null);
+        assertNotNull(paging.getCursorFilter(cursor, 3));
+        assertEquals(2, paging.getSkip());
+    }
+
+    @Test
+    public void testEncodeValues() throws Exception {
+        KeysetPaging paging = new KeysetPaging();
+        for (String name : new String[] { "s", "i", "l", "d", "b", "u" }) {
+            paging.names.add(name);
+        }
+        Object[] values = { "a|b", 1, 2L, 0.1, new BigDecimal("1.10"), new Date(1234L) };
+        String encoded = KeysetPaging.encode(values);
+        String[] parts = ("0|sig|id|5" + encoded).split("\\|", -1);
+        assertArrayEquals(values, paging.decode(parts));
+
+        // values of other types cannot be carried by the cursor
+        assertNull(KeysetPaging.encode(new Object[] { new Object() }));
+    }
+
+    FeatureTypeInfo featureType(String key) {
+        MetadataMap metadata = new MetadataMap();
+        metadata.put(KeysetPaging.KEY_ATTRIBUTE, key);
+        FeatureTypeInfo info = createMock(FeatureTypeInfo.class);
+        expect(info.getMetadata()).andReturn(metadata).anyTimes();
+        replay(info);
+        return info;
+    }
+
+    void readAll(SimpleFeatureCollection features) {
+        SimpleFeatureIterator it = features.features();
+        try {
+            while (it.hasNext()) {
+                it.next();
+            }
+        } finally {
+            it.close();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+
+import org.geoserver.wfs.xml.StreamingTransactionParser;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+public class TransactionPluginTest extends WFSTestSupport {
+
+    TransactionPluginTester plugin;
+
+    @Override
+    protected void setUpSpring(List<String> springContextLocations) {
+        super.setUpSpring(springContextLocations);
+        springContextLocations.add("classpath:/org/geoserver/wfs/TransactionPluginTestContext.xml");
+    }
+
+    @Before
+    public void clearState() throws Exception {
+        plugin = (TransactionPluginTester) applicationContext.getBean("transactionPluginTester");
+        plugin.clear();
+    }
+
+    @Test
+    public void testStreamedInsert() throws Exception {
+        StringBuilder xml = new StringBuilder("<wfs:Transaction service=\"WFS\" version=\"1.1.0\" "
+            + " xmlns:wfs=\"http://www.opengis.net/wfs\" "
+            + " xmlns:gml=\"http://www.opengis.net/gml\" "
+            + " xmlns:cite=\"http://www.opengis.net/cite\">"
+            + "<wfs:Insert handle=\"insert\">");
+        for (int i = 0; i < 5; i++) {
+            xml.append(" <cite:RoadSegments>"
+                + "  <cite:the_geom>"
+                + "<gml:MultiLineString srsName=\"EPSG:4326\">"
+                + " <gml:lineStringMember>"
+                + "   <gml:LineString>"
+                + "     <gml:posList>4.2582 52.0643 4.2584 52.0648</gml:posList>"
+                + "   </gml:LineString>"
+                + " </gml:lineStringMember>"
+                + "</gml:MultiLineString>"
+                + "  </cite:the_geom>"
+                + "  <cite:FID>plugin" + i + "</cite:FID>"
+                + "  <cite:NAME>plugin</cite:NAME>"
+                + " </cite:RoadSegments>");
+        }
+        xml.append("</wfs:Insert></wfs:Transaction>");
+
+        // stream whatever the size, and cut the insert in chunks of two features
+        System.setProperty(StreamingTransactionParser.THRESHOLD, "0");
+        System.setProperty(Transaction.BATCH_SIZE, "2");
+        Document dom;
+        try {
+            dom = postAsDOM("wfs", xml.toString());
+        } finally {
+            System.clearProperty(StreamingTransactionParser.THRESHOLD);
+            System.clearProperty(Transaction.BATCH_SIZE);
+        }
+        assertEquals("5", getFirstElementByTagName(dom, "wfs:totalInserted").getFirstChild()
+                .getNodeValue());
+
+        // the whole request, with no elements, then one request per chunk
+        assertEquals(4, plugin.requests.size());
+        assertEquals(0, plugin.requests.get(0).getInsert().size());
+        assertEquals(5, plugin.inserted.size());
+    }
+}
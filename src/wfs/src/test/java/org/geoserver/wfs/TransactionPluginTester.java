@@ -0,0 +1,45 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.opengis.wfs.InsertElementType;
+import net.opengis.wfs.TransactionResponseType;
+import net.opengis.wfs.TransactionType;
+
+public class TransactionPluginTester implements TransactionPlugin {
+    List<TransactionType> requests = new ArrayList<TransactionType>();
+    List inserted = new ArrayList();
+
+    public void clear() {
+        requests.clear();
+        inserted.clear();
+    }
+
+    public TransactionType beforeTransaction(TransactionType request) throws WFSException {
+        requests.add(request);
+        for (Object insert : request.getInsert()) {
+            inserted.addAll(((InsertElementType) insert).getFeature());
+        }
+        return request;
+    }
+
+    public void beforeCommit(TransactionType request) throws WFSException {
+    }
+
+    public void afterTransaction(TransactionType request, TransactionResponseType result,
+            boolean committed) {
+    }
+
+    public void dataStoreChange(TransactionEvent event) throws WFSException {
+    }
+
+    public int getPriority() {
+        return 0;
+    }
+}
@@ -0,0 +1,145 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs.json;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import org.geotools.referencing.CRS;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.io.WKTReader;
+
+/**
+ * Checks the stream writer output is the same as the one of {@link GeoJSONBuilder}
+ */
+public class GeoJSONStreamWriterTest {
+
+    StringWriter writer;
+
+    GeoJSONBuilder builder;
+
+    ByteArrayOutputStream bytes;
+
+    GeoJSONStreamWriter stream;
+
+    @Before
+    public void setUp() {
+        writer = new StringWriter();
+        builder = new GeoJSONBuilder(writer);
+        bytes = new ByteArrayOutputStream();
+        stream = new GeoJSONStreamWriter(bytes, GeoJSONStreamWriter.UTF8);
+    }
+
+    String streamOutput() throws Exception {
+        stream.flush();
+        return new String(bytes.toByteArray(), "UTF-8");
+    }
+
+    void assertSameGeometry(String wkt) throws Exception {
+        builder.writeGeom(new WKTReader().read(wkt));
+        stream.writeGeom(new WKTReader().read(wkt));
+        assertEquals(writer.toString(), streamOutput());
+    }
+
+    @Test
+    public void testPoint() throws Exception {
+        assertSameGeometry("POINT(1 2)");
+    }
+
+    @Test
+    public void testPoint3D() throws Exception {
+        assertSameGeometry("POINT(1.5 -2.25 3)");
+    }
+
+    @Test
+    public void testLineString() throws Exception {
+        assertSameGeometry("LINESTRING(0 0, 1.1 1.01, 1234567.891 -0.000123, 12345678 1E-10)");
+    }
+
+    @Test
+    public void testLineString3D() throws Exception {
+        assertSameGeometry("LINESTRING(0 0 1, 1 1 2)");
+    }
+
+    @Test
+    public void testPolygonWithHole() throws Exception {
+        assertSameGeometry("POLYGON((0 0, 10 0, 10 10, 0 10, 0 0), (1 1, 2 1, 2 2, 1 1))");
+    }
+
+    @Test
+    public void testMultiGeometries() throws Exception {
+        assertSameGeometry("MULTIPOINT((0 0), (1 1))");
+        setUp();
+        assertSameGeometry("MULTILINESTRING((0 0, 1 1), (2 2, 3 3))");
+        setUp();
+        assertSameGeometry("MULTIPOLYGON(((0 0, 1 0, 1 1, 0 0)), ((2 2, 3 2, 3 3, 2 2)))");
+        setUp();
+        assertSameGeometry("GEOMETRYCOLLECTION(POINT(1 2), LINESTRING(0 0, 1 1))");
+    }
+
+    @Test
+    public void testNorthEast() throws Exception {
+        builder.setAxisOrder(CRS.AxisOrder.NORTH_EAST);
+        stream.setAxisOrder(CRS.AxisOrder.NORTH_EAST);
+        assertSameGeometry("LINESTRING(10 45, 11 46)");
+    }
+
+    @Test
+    public void testValues() throws Exception {
+        Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("GMT"));
+        cal.clear();
+        cal.set(2011, 9, 25);
+        java.sql.Date date = new java.sql.Date(cal.getTimeInMillis());
+        Object[] values = { null, "plain", "quote \" and / slash", "tab\tnew\nline", "àèì €",
+                "function(){}", 0, -1, Long.MAX_VALUE, Long.MIN_VALUE, 3.0, -0.0, 0.1, 1e7,
+                1.5e-5, 2.5f, Boolean.TRUE, date };
+
+        builder.object();
+        stream.object();
+        for (int i = 0; i < values.length; i++) {
+            builder.key("v" + i).value(values[i]);
+            stream.key("v" + i).value(values[i]);
+        }
+        builder.key("array").array().value(1).value("a").endArray();
+        stream.key("array").array().value(1).value("a").endArray();
+        builder.writeBoundingBox(new Envelope(-1.5, 2, -3, 4.25));
+        stream.writeBoundingBox(new Envelope(-1.5, 2, -3, 4.25));
+        builder.endObject();
+        stream.endObject();
+
+        assertEquals(writer.toString(), streamOutput());
+    }
+
+    @Test
+    public void testLargeOutput() throws Exception {
+        // goes over the buffer size a few times
+        StringBuilder wkt = new StringBuilder("LINESTRING(");
+        for (int i = 0; i < 20000; i++) {
+            if (i > 0) {
+                wkt.append(", ");
+            }
+            wkt.append(i * 1.001).append(" ").append(-i * 0.5);
+        }
+        wkt.append(")");
+        assertSameGeometry(wkt.toString());
+    }
+
+    @Test
+    public void testOtherCharset() throws Exception {
+        stream = new GeoJSONStreamWriter(bytes, Charset.forName("ISO-8859-1"));
+        stream.object().key("name").value("àèì").endObject();
+        stream.flush();
+        assertEquals("{\"name\":\"àèì\"}", new String(bytes.toByteArray(), "ISO-8859-1"));
+    }
+}
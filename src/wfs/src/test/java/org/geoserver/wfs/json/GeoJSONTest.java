@@ -364,6 +364,16 @@ public class GeoJSONTest extends WFSTestSupport {
         
     }
  
+    @Test
+    public void testGetFeatureCountWfs20Paged() throws Exception {
+        // the count runs while the features are written, and gets written after them
+        String out = getAsString("wfs?request=GetFeature&version=2.0.0&typename=sf:PrimitiveGeoFeature&count=2&outputformat="+JSONType.json);
+        JSONObject rootObject = JSONObject.fromObject( out );
+        assertEquals(2, rootObject.getJSONArray("features").size());
+        assertEquals(rootObject.get("totalFeatures"),5);
+        assertTrue(out.indexOf("\"totalFeatures\"") > out.indexOf("\"features\""));
+    }
+
     @Test
     public void testGetFeatureLine3D() throws Exception {
         JSONObject collection = (JSONObject) getAsJSON("wfs?request=GetFeature&version=1.0.0&typename=" + getLayerId(LINE3D)
@@ -0,0 +1,214 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs.response;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.text.NumberFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.regex.Pattern;
+
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.feature.type.DateUtil;
+import org.junit.Before;
+import org.junit.Test;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.io.WKTReader;
+
+/**
+ * Checks the typed encoders of {@link CSVFeatureWriter} produce the same output as formatting the
+ * values as strings and escaping them
+ */
+public class CSVFeatureWriterTest {
+
+    static final int NUM_DECIMALS = 8;
+
+    static final Pattern CSV_ESCAPES = Pattern.compile("[\"\n,\r]");
+
+    StringWriter writer;
+
+    CSVFeatureWriter csv;
+
+    NumberFormat format;
+
+    @Before
+    public void setUp() {
+        writer = new StringWriter();
+        csv = new CSVFeatureWriter(writer, NUM_DECIMALS);
+        format = NumberFormat.getInstance(Locale.US);
+        format.setMaximumFractionDigits(NUM_DECIMALS);
+        format.setGroupingUsed(false);
+    }
+
+    String output() throws Exception {
+        csv.flush();
+        return writer.toString();
+    }
+
+    /**
+     * The string based formatting the writer replaces
+     */
+    String expected(Object value) {
+        String result;
+        if (value instanceof Number) {
+            result = format.format(value);
+        } else if (value instanceof java.sql.Date) {
+            result = DateUtil.serializeSqlDate((java.sql.Date) value);
+        } else if (value instanceof java.sql.Time) {
+            result = DateUtil.serializeSqlTime((java.sql.Time) value);
+        } else if (value instanceof Date) {
+            result = DateUtil.serializeDateTime((Date) value);
+        } else {
+            result = value.toString();
+        }
+        result = result.replaceAll("\"", "\"\"");
+        if (CSV_ESCAPES.matcher(result).find()) {
+            result = "\"" + result + "\"";
+        }
+        return result;
+    }
+
+    void assertSameEncoding(CSVFeatureWriter.ColumnEncoder encoder, Object value)
+            throws Exception {
+        setUp();
+        encoder.encode(value, csv);
+        assertEquals(expected(value), output());
+        setUp();
+        csv.writeValue(value);
+        assertEquals(expected(value), output());
+    }
+
+    @Test
+    public void testIntegral() throws Exception {
+        Object[] values = { 0, 1, -1, 123456789, Integer.MIN_VALUE, Long.MAX_VALUE,
+                Long.MIN_VALUE, (short) -12, (byte) 7 };
+        for (Object value : values) {
+            assertSameEncoding(CSVFeatureWriter.INTEGRAL, value);
+        }
+    }
+
+    @Test
+    public void testDecimal() throws Exception {
+        Object[] values = { 0.0, -0.0, 3.0, -3.0, 0.1, 1e7, 1e14, 1e15, 1e20, 1.5e-5,
+                1.23456789012, -98765.4321, 2.5f, 0.1f, Double.MAX_VALUE, Double.MIN_VALUE,
+                Double.NaN, Double.POSITIVE_INFINITY };
+        for (Object value : values) {
+            assertSameEncoding(CSVFeatureWriter.DECIMAL, value);
+        }
+    }
+
+    @Test
+    public void testOtherNumbers() throws Exception {
+        Object[] values = { new BigDecimal("12345678901234567890.123456789"),
+                new BigInteger("-123456789012345678901234567890") };
+        for (Object value : values) {
+            assertSameEncoding(CSVFeatureWriter.GENERIC, value);
+        }
+    }
+
+    @Test
+    public void testStrings() throws Exception {
+        Object[] values = { "", "plain", "comma, separated", "\"quoted\"", "a \"b\" c",
+                "new\nline", "windows\r\nline", "àèì €" };
+        for (Object value : values) {
+            assertSameEncoding(CSVFeatureWriter.STRING, value);
+        }
+    }
+
+    @Test
+    public void testDates() throws Exception {
+        Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("GMT"));
+        cal.clear();
+        cal.set(2011, 9, 25, 10, 30, 15);
+        Object[] values = { new Date(cal.getTimeInMillis()),
+                new java.sql.Date(cal.getTimeInMillis()), new java.sql.Time(cal.getTimeInMillis()),
+                new java.sql.Timestamp(cal.getTimeInMillis()) };
+        for (Object value : values) {
+            assertSameEncoding(CSVFeatureWriter.GENERIC, value);
+        }
+    }
+
+    @Test
+    public void testGeometries() throws Exception {
+        String[] wkts = { "POINT(1 2)", "POINT(1.5 -2.25)", "POINT EMPTY",
+                "LINESTRING(0 0, 1.1 1.01, 1234567.891 -0.000123)",
+                "POLYGON((0 0, 10 0, 10 10, 0 10, 0 0), (1 1, 2 1, 2 2, 1 1))",
+                "MULTIPOINT((0 0))", "MULTIPOINT((0 0), (1 1))",
+                "MULTIPOLYGON(((0 0, 1 0, 1 1, 0 0)), ((2 2, 3 2, 3 3, 2 2)))",
+                "GEOMETRYCOLLECTION(POINT(1 2))",
+                "GEOMETRYCOLLECTION(GEOMETRYCOLLECTION(POINT(1 2), POINT(3 4)))",
+                "GEOMETRYCOLLECTION(POINT(1 2), LINESTRING(0 0, 1 1))" };
+        for (String wkt : wkts) {
+            assertSameEncoding(CSVFeatureWriter.GEOMETRY, new WKTReader().read(wkt));
+        }
+    }
+
+    @Test
+    public void testEncoderSelection() throws Exception {
+        assertSame(CSVFeatureWriter.INTEGRAL, CSVFeatureWriter.getEncoder(Long.class));
+        assertSame(CSVFeatureWriter.DECIMAL, CSVFeatureWriter.getEncoder(Float.class));
+        assertSame(CSVFeatureWriter.STRING, CSVFeatureWriter.getEncoder(String.class));
+        assertSame(CSVFeatureWriter.GEOMETRY, CSVFeatureWriter.getEncoder(LineString.class));
+        assertSame(CSVFeatureWriter.GENERIC, CSVFeatureWriter.getEncoder(Date.class));
+        assertSame(CSVFeatureWriter.GENERIC, CSVFeatureWriter.getEncoder(Object.class));
+    }
+
+    @Test
+    public void testMismatchedBinding() throws Exception {
+        // values not matching the binding fall back on the generic encoding
+        assertSameEncoding(CSVFeatureWriter.INTEGRAL, 1.5);
+        assertSameEncoding(CSVFeatureWriter.DECIMAL, "a, b");
+        assertSameEncoding(CSVFeatureWriter.STRING, 12);
+        assertSameEncoding(CSVFeatureWriter.GEOMETRY, "POINT(1 2)");
+    }
+
+    @Test
+    public void testFeature() throws Exception {
+        SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
+        builder.setName("mixed");
+        builder.add("geom", Geometry.class);
+        builder.add("name", String.class);
+        builder.add("count", Integer.class);
+        builder.add("value", Double.class);
+        SimpleFeatureType type = builder.buildFeatureType();
+        SimpleFeature f = SimpleFeatureBuilder.build(type, new Object[] {
+                new WKTReader().read("LINESTRING(0 0, 1 1)"), "a \"name\"", null, 2.5 },
+                "mixed.1");
+
+        csv.writeFeature(f, CSVFeatureWriter.getEncoders(type));
+        assertEquals("mixed.1,\"LINESTRING (0 0, 1 1)\",\"a \"\"name\"\"\",,2.5\r\n", output());
+    }
+
+    @Test
+    public void testLargeOutput() throws Exception {
+        // goes over the buffer size a few times
+        StringBuilder expected = new StringBuilder();
+        StringBuilder label = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            label.append("label, ");
+        }
+        for (int i = 0; i < 100; i++) {
+            csv.writeField(label.toString());
+            csv.write(',');
+            csv.writeLong(i);
+            csv.endRecord();
+            expected.append(expected(label.toString())).append(',').append(i).append("\r\n");
+        }
+        assertEquals(expected.toString(), output());
+    }
+}
@@ -43,12 +43,15 @@ import org.geoserver.test.TestSetupFrequency;
 import org.geoserver.wfs.WFSInfo;
 import org.geoserver.wfs.WFSTestSupport;
 import org.geoserver.wfs.request.FeatureCollectionResponse;
+import org.geotools.data.DataUtilities;
 import org.geotools.data.FeatureSource;
 import org.geotools.data.shapefile.ShapefileDataStore;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.collection.ListFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureSource;
 import org.geotools.feature.FeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.junit.Before;
 import org.junit.Test;
 import org.opengis.feature.Feature;
@@ -59,6 +62,7 @@ import org.opengis.filter.Filter;
 import com.mockrunner.mock.web.MockHttpServletResponse;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.MultiPolygon;
+import com.vividsolutions.jts.io.WKTReader;
 
 @SuppressWarnings({ "rawtypes", "unchecked" })
 public class ShapeZipTest extends WFSTestSupport {
@@ -267,6 +271,116 @@ public class ShapeZipTest extends WFSTestSupport {
         while ((entry = zis.getNextEntry()) != null) {
             foundReadme |= entry.getName().equals("README.TXT");
         }
+        zis.close();
+        assertTrue(foundReadme);
+    }
+
+    @Test
+    public void testStreaming() throws Exception {
+        byte[] zip = writeOutStreaming(getFeatureSource(SystemTestData.BASIC_POLYGONS).getFeatures());
+
+        checkShapefileIntegrity(new String[] { "BasicPolygons" }, new ByteArrayInputStream(zip));
+        checkFieldsAreNotEmpty(new ByteArrayInputStream(zip));
+    }
+
+    @Test
+    public void testStreamingLongNames() throws Exception {
+        byte[] zip = writeOutStreaming(getFeatureSource(LONGNAMES).getFeatures());
+
+        SimpleFeatureType schema = checkFieldsAreNotEmpty(new ByteArrayInputStream(zip));
+        checkLongNamesSchema(schema);
+    }
+
+    @Test
+    public void testStreamingMultiType() throws Exception {
+        // generic geometries are still staged on disk, but end up in the same zip
+        byte[] zip = writeOutStreaming(getFeatureSource(ALL_TYPES).getFeatures());
+
+        final String[] expectedTypes = new String[] { "AllTypesPoint", "AllTypesMPoint",
+                "AllTypesPolygon", "AllTypesLine" };
+        checkShapefileIntegrity(expectedTypes, new ByteArrayInputStream(zip));
+        checkFieldsAreNotEmpty(new ByteArrayInputStream(zip));
+    }
+
+    @Test
+    public void testStreamingEmptyResult() throws Exception {
+        byte[] zip = writeOutStreaming(getFeatureSource(SystemTestData.BASIC_POLYGONS).getFeatures(
+                Filter.EXCLUDE));
+
+        checkShapefileIntegrity(new String[] { "BasicPolygons" }, new ByteArrayInputStream(zip));
+        checkFieldsAreNotEmpty(new ByteArrayInputStream(zip));
+    }
+
+    @Test
+    public void testStreamingEmptyResultMultiGeom() throws Exception {
+        byte[] zip = writeOutStreaming(getFeatureSource(ALL_DOTS).getFeatures(Filter.EXCLUDE));
+
+        final String[] expectedTypes = new String[] { "All_Types_Dots" };
+        checkShapefileIntegrity(expectedTypes, new ByteArrayInputStream(zip));
+
+        // same warning as the staged output
+        boolean foundReadme = false;
+        ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(zip));
+        ZipEntry entry;
+        while ((entry = zis.getNextEntry()) != null) {
+            foundReadme |= entry.getName().equals("README.TXT");
+        }
+        zis.close();
+        assertTrue(foundReadme);
+    }
+
+    @Test
+    public void testStreamingSameTypeTwice() throws Exception {
+        FeatureCollection fc = getFeatureSource(SystemTestData.BASIC_POLYGONS).getFeatures();
+        byte[] zip = writeOutStreaming(fc, fc);
+
+        // the second query gets its own shapefile instead of a duplicate zip entry
+        checkShapefileIntegrity(new String[] { "BasicPolygons", "BasicPolygons_1" },
+                new ByteArrayInputStream(zip));
+    }
+
+    @Test
+    public void testUniqueName() {
+        Set<String> names = new HashSet<String>();
+        assertEquals("BasicPolygons", ShapeZipOutputFormat.getUniqueName("BasicPolygons", names));
+        assertEquals("BasicPolygons_1", ShapeZipOutputFormat.getUniqueName("BasicPolygons", names));
+        assertEquals("BasicPolygons_2", ShapeZipOutputFormat.getUniqueName("basicpolygons", names));
+    }
+
+    @Test
+    public void testStreaming3D() throws Exception {
+        SimpleFeatureType type = DataUtilities.createType("Points3D",
+                "geom:Point:srid=4326,name:String");
+        WKTReader reader = new WKTReader();
+        ListFeatureCollection fc = new ListFeatureCollection(type);
+        fc.add(SimpleFeatureBuilder.build(type,
+                new Object[] { reader.read("POINT(1 2 3)"), "first" }, "Points3D.1"));
+        fc.add(SimpleFeatureBuilder.build(type,
+                new Object[] { reader.read("POINT(4 5 6)"), "second" }, "Points3D.2"));
+        byte[] zip = writeOutStreaming(fc);
+
+        // the z values must survive, as they do with the shapefile datastore
+        File tempFolder = createTempFolder("shp_");
+        ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(zip));
+        ZipEntry entry;
+        while ((entry = zis.getNextEntry()) != null) {
+            FileOutputStream outFile = new FileOutputStream(new File(tempFolder, entry.getName()));
+            copyStream(zis, outFile);
+            outFile.close();
+        }
+        zis.close();
+        ShapefileDataStore ds = new ShapefileDataStore(
+                new File(tempFolder, "Points3D.shp").toURI().toURL());
+        SimpleFeatureIterator it = ds.getFeatureSource().getFeatures().features();
+        try {
+            Geometry first = (Geometry) it.next().getDefaultGeometry();
+            assertEquals(3, first.getCoordinate().z, 0d);
+            Geometry second = (Geometry) it.next().getDefaultGeometry();
+            assertEquals(6, second.getCoordinate().z, 0d);
+        } finally {
+            it.close();
+            ds.dispose();
+        }
     }
 
     @Test
@@ -479,16 +593,28 @@ public class ShapeZipTest extends WFSTestSupport {
     /**
      * Saves the feature source contents into a zipped shapefile, returns the output as a byte array
      */
-    byte[] writeOut(FeatureCollection fc) throws IOException {
+    byte[] writeOut(FeatureCollection... fcs) throws IOException {
         ShapeZipOutputFormat zip = new ShapeZipOutputFormat();
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
         FeatureCollectionResponse fct = 
             FeatureCollectionResponse.adapt(WfsFactory.eINSTANCE.createFeatureCollectionType());
-        fct.getFeature().add(fc);
+        for (FeatureCollection fc : fcs) {
+            fct.getFeature().add(fc);
+        }
         zip.write(fct, bos, op);
         return bos.toByteArray();
     }
 
+    /**
+     * Same as {@link #writeOut(FeatureCollection...)}, but streaming the shapefiles in the zip
+     */
+    byte[] writeOutStreaming(FeatureCollection... fcs) throws IOException {
+        Map options = new HashMap();
+        options.put("STREAMING", "true");
+        gft.setFormatOptions(options);
+        return writeOut(fcs);
+    }
+
     private File createTempFolder(String prefix) throws IOException {
         File temp = File.createTempFile(prefix, null);
 
@@ -594,8 +720,8 @@ public class ShapeZipTest extends WFSTestSupport {
         }
         while ((entry = zis.getNextEntry()) != null) {
             final String name = entry.getName();
-            if(name.endsWith(".txt")) {
-                // not part of the shapefile, it's the request dump
+            if(name.endsWith(".txt") || name.equals("README.TXT")) {
+                // not part of the shapefile, it's the request dump or the empty result warning
                 continue;
             }
             assertTrue("Missing " + name, names.contains(name));
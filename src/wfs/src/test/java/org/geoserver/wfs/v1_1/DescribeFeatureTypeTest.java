@@ -21,9 +21,11 @@ import org.geoserver.config.GeoServer;
 import org.geoserver.data.test.CiteTestData;
 import org.geoserver.data.test.SystemTestData;
 import org.geoserver.data.util.IOUtils;
+import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.wfs.GMLInfo;
 import org.geoserver.wfs.WFSInfo;
 import org.geoserver.wfs.WFSTestSupport;
+import org.geoserver.wfs.xml.DescribeFeatureTypeCache;
 import org.junit.Test;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -279,6 +281,31 @@ public class DescribeFeatureTypeTest extends WFSTestSupport {
         XMLAssert.assertXpathNotExists("//xsd:element[@name = 'dataTime']", dom);
     }
     
+    @Test
+    public void testCachedResponse() throws Exception {
+        DescribeFeatureTypeCache cache = GeoServerExtensions.bean(DescribeFeatureTypeCache.class);
+        String request = "ows?service=WFS&version=1.1.0&request=DescribeFeatureType&typename="
+                + getLayerId(CiteTestData.PRIMITIVEGEOFEATURE);
+        cache.clear();
+        String first = getAsString(request);
+        long hits = cache.getHits();
+        long misses = cache.getMisses();
+        
+        // same response, from the cache
+        assertEquals(first, getAsString(request));
+        assertEquals(hits + 1, cache.getHits());
+        assertEquals(misses, cache.getMisses());
+        
+        // a catalog change invalidates the cache
+        FeatureTypeInfo ft = getCatalog().getFeatureTypeByName(
+                getLayerId(CiteTestData.PRIMITIVEGEOFEATURE));
+        ft.setTitle("Modified title");
+        getCatalog().save(ft);
+        assertEquals(first, getAsString(request));
+        assertEquals(hits + 1, cache.getHits());
+        assertEquals(misses + 1, cache.getMisses());
+    }
+    
 //    OUR CURRENT TEST HARNESS DOES NOT SUPPORT CONCURRENT TESTING...
 //    public void testConcurrentDescribe() throws Exception {
 //        ExecutorService es = Executors.newFixedThreadPool(8);
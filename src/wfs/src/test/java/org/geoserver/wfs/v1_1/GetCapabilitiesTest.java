@@ -24,6 +24,7 @@ import org.geoserver.data.test.CiteTestData;
 import org.geoserver.data.test.MockData;
 import org.geoserver.data.test.MockTestData;
 import org.geoserver.data.test.SystemTestData;
+import org.geoserver.ows.CapabilitiesCache;
 import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.wfs.WFSGetFeatureOutputFormat;
 import org.geoserver.wfs.WFSInfo;
@@ -64,6 +65,40 @@ public class GetCapabilitiesTest extends WFSTestSupport {
         assertFalse(docText, docText.contains("xmlns:xml="));
     }
     
+    @Test
+    public void testCachedCapabilities() throws Exception {
+        CapabilitiesCache cache = GeoServerExtensions.bean(CapabilitiesCache.class);
+        System.setProperty(CapabilitiesCache.TIME_TO_LIVE, "60");
+        try {
+            String request = "wfs?service=WFS&request=GetCapabilities&version=1.1.0";
+            String first = getAsString(request);
+            long hits = cache.getHits();
+            long misses = cache.getMisses();
+
+            // same document, from the cache
+            assertEquals(first, getAsString(request));
+            assertEquals(hits + 1, cache.getHits());
+            assertEquals(misses, cache.getMisses());
+
+            // a different filter is a different document
+            getAsString(request + "&namespace=sf");
+            assertEquals(misses + 1, cache.getMisses());
+
+            // a catalog change bumps the update sequence and invalidates the cache
+            FeatureTypeInfo ft = getCatalog().getFeatureTypeByName(
+                    getLayerId(MockData.MPOLYGONS));
+            ft.setTitle("Cached polygons");
+            getCatalog().save(ft);
+            String modified = getAsString(request);
+            assertEquals(misses + 2, cache.getMisses());
+            assertTrue(modified.contains("Cached polygons"));
+            assertFalse(first.contains("Cached polygons"));
+        } finally {
+            System.clearProperty(CapabilitiesCache.TIME_TO_LIVE);
+            cache.clear();
+        }
+    }
+
     @Test
     public void testNamespaceFilter() throws Exception {
         // filter on an existing namespace
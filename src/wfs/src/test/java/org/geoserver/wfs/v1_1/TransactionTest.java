@@ -22,6 +22,7 @@ import org.geoserver.catalog.FeatureTypeInfo;
 import org.geoserver.data.test.CiteTestData;
 import org.geoserver.data.test.SystemTestData;
 import org.geoserver.wfs.WFSTestSupport;
+import org.geoserver.wfs.xml.StreamingTransactionParser;
 import org.geotools.data.DataStore;
 import org.geotools.data.FeatureSource;
 import org.geotools.data.simple.SimpleFeatureStore;
@@ -494,6 +495,140 @@ public class TransactionTest extends WFSTestSupport {
         assertEquals( 52.0648, Double.parseDouble( pos[3] ), 1E-4 );
     }
     
+    @Test
+    public void testBatchedInserts() throws Exception {
+        StringBuilder xml = new StringBuilder("<wfs:Transaction service=\"WFS\" version=\"1.1.0\" "
+            + " xmlns:wfs=\"http://www.opengis.net/wfs\" "
+            + " xmlns:gml=\"http://www.opengis.net/gml\" "
+            + " xmlns:cite=\"http://www.opengis.net/cite\">");
+        for (int i = 0; i < 3; i++) {
+            xml.append("<wfs:Insert handle=\"insert" + i + "\">"
+                + " <cite:RoadSegments>"
+                + "  <cite:the_geom>"
+                + "<gml:MultiLineString srsName=\"EPSG:4326\">"
+                + " <gml:lineStringMember>"
+                + "   <gml:LineString>"
+                + "     <gml:posList>4.2582 52.0643 4.2584 52.0648</gml:posList>"
+                + "   </gml:LineString>"
+                + " </gml:lineStringMember>"
+                + "</gml:MultiLineString>"
+                + "  </cite:the_geom>"
+                + "  <cite:FID>batch" + i + "</cite:FID>"
+                + "  <cite:NAME>bar</cite:NAME>"
+                + " </cite:RoadSegments>"
+                + "</wfs:Insert>");
+        }
+        xml.append("</wfs:Transaction>");
+
+        Document dom = postAsDOM("wfs", xml.toString());
+        assertEquals("wfs:TransactionResponse", dom.getDocumentElement().getNodeName());
+        assertEquals("3", getFirstElementByTagName(dom, "wfs:totalInserted").getFirstChild()
+                .getNodeValue());
+        // one result per insert element, in order
+        NodeList results = dom.getElementsByTagName("wfs:Feature");
+        assertEquals(3, results.getLength());
+        for (int i = 0; i < 3; i++) {
+            assertEquals("insert" + i, ((Element) results.item(i)).getAttribute("handle"));
+        }
+
+        dom = getAsDOM("wfs?version=1.1.0&request=getfeature&typename=cite:RoadSegments&"
+                + "cql_filter=NAME%3D'bar'");
+        assertEquals(3, dom.getElementsByTagName("cite:RoadSegments").getLength());
+    }
+
+    @Test
+    public void testBatchedUpdates() throws Exception {
+        StringBuilder xml = new StringBuilder("<wfs:Transaction service=\"WFS\" version=\"1.1.0\""
+            + " xmlns:cite=\"http://www.opengis.net/cite\""
+            + " xmlns:ogc=\"http://www.opengis.net/ogc\""
+            + " xmlns:wfs=\"http://www.opengis.net/wfs\">");
+        for (String fid : new String[] { "RoadSegments.1107532045090", "RoadSegments.1107532045091" }) {
+            xml.append(" <wfs:Update typeName=\"cite:RoadSegments\">"
+                + "   <wfs:Property>"
+                + "     <wfs:Name>cite:NAME</wfs:Name>"
+                + "     <wfs:Value>batched</wfs:Value>"
+                + "   </wfs:Property>"
+                + "   <ogc:Filter>"
+                + "     <ogc:GmlObjectId gml:id=\"" + fid + "\" xmlns:gml=\"http://www.opengis.net/gml\"/>"
+                + "   </ogc:Filter>"
+                + " </wfs:Update>");
+        }
+        xml.append("</wfs:Transaction>");
+
+        Document dom = postAsDOM("wfs", xml.toString());
+        assertEquals("wfs:TransactionResponse", dom.getDocumentElement().getNodeName());
+        assertEquals("2", getFirstElementByTagName(dom, "wfs:totalUpdated").getFirstChild()
+                .getNodeValue());
+
+        dom = getAsDOM("wfs?version=1.1.0&request=getfeature&typename=cite:RoadSegments&"
+                + "cql_filter=NAME%3D'batched'");
+        assertEquals(2, dom.getElementsByTagName("cite:RoadSegments").getLength());
+    }
+
+    @Test
+    public void testStreamedTransaction() throws Exception {
+        StringBuilder xml = new StringBuilder("<wfs:Transaction service=\"WFS\" version=\"1.1.0\" "
+            + " xmlns:wfs=\"http://www.opengis.net/wfs\" "
+            + " xmlns:ogc=\"http://www.opengis.net/ogc\" "
+            + " xmlns:gml=\"http://www.opengis.net/gml\" "
+            + " xmlns:cite=\"http://www.opengis.net/cite\">"
+            + "<wfs:Insert handle=\"insert\">");
+        for (int i = 0; i < 5; i++) {
+            xml.append(" <cite:RoadSegments>"
+                + "  <cite:the_geom>"
+                + "<gml:MultiLineString srsName=\"EPSG:4326\">"
+                + " <gml:lineStringMember>"
+                + "   <gml:LineString>"
+                + "     <gml:posList>4.2582 52.0643 4.2584 52.0648</gml:posList>"
+                + "   </gml:LineString>"
+                + " </gml:lineStringMember>"
+                + "</gml:MultiLineString>"
+                + "  </cite:the_geom>"
+                + "  <cite:FID>streamed" + i + "</cite:FID>"
+                + "  <!-- a comment -->"
+                + "  <cite:NAME><![CDATA[streamed & chunked]]></cite:NAME>"
+                + " </cite:RoadSegments>");
+        }
+        xml.append("</wfs:Insert>"
+            + " <wfs:Update typeName=\"cite:RoadSegments\">"
+            + "   <wfs:Property>"
+            + "     <wfs:Name>cite:NAME</wfs:Name>"
+            + "     <wfs:Value>updated</wfs:Value>"
+            + "   </wfs:Property>"
+            + "   <ogc:Filter>"
+            + "     <ogc:PropertyIsEqualTo>"
+            + "       <ogc:PropertyName>FID</ogc:PropertyName>"
+            + "       <ogc:Literal>streamed0</ogc:Literal>"
+            + "     </ogc:PropertyIsEqualTo>"
+            + "   </ogc:Filter>"
+            + " </wfs:Update>"
+            + "</wfs:Transaction>");
+
+        // stream whatever the size, and cut the insert in chunks of two features
+        System.setProperty(StreamingTransactionParser.THRESHOLD, "0");
+        System.setProperty(org.geoserver.wfs.Transaction.BATCH_SIZE, "2");
+        Document dom;
+        try {
+            dom = postAsDOM("wfs", xml.toString());
+        } finally {
+            System.clearProperty(StreamingTransactionParser.THRESHOLD);
+            System.clearProperty(org.geoserver.wfs.Transaction.BATCH_SIZE);
+        }
+        assertEquals("wfs:TransactionResponse", dom.getDocumentElement().getNodeName());
+        assertEquals("5", getFirstElementByTagName(dom, "wfs:totalInserted").getFirstChild()
+                .getNodeValue());
+        assertEquals("1", getFirstElementByTagName(dom, "wfs:totalUpdated").getFirstChild()
+                .getNodeValue());
+        assertEquals(5, dom.getElementsByTagName("ogc:FeatureId").getLength());
+
+        dom = getAsDOM("wfs?version=1.1.0&request=getfeature&typename=cite:RoadSegments&"
+                + "cql_filter=NAME%3D'streamed%20%26%20chunked'");
+        assertEquals(4, dom.getElementsByTagName("cite:RoadSegments").getLength());
+        dom = getAsDOM("wfs?version=1.1.0&request=getfeature&typename=cite:RoadSegments&"
+                + "cql_filter=NAME%3D'updated'");
+        assertEquals(1, dom.getElementsByTagName("cite:RoadSegments").getLength());
+    }
+
     @Test
     public void testUpdateForcedSRS() throws Exception {
         testUpdate("srsName=\"EPSG:4326\"");
@@ -21,6 +21,9 @@ import org.geoserver.catalog.DataStoreInfo;
 import org.geoserver.catalog.FeatureTypeInfo;
 import org.geoserver.data.test.SystemTestData;
 import org.geoserver.ows.util.KvpMap;
+import org.geoserver.wfs.CountCache;
+import org.geoserver.wfs.GetFeature;
+import org.geoserver.wfs.KeysetPaging;
 import org.geotools.data.DataStore;
 import org.geotools.data.FeatureSource;
 import org.geotools.data.FeatureStore;
@@ -218,6 +221,59 @@ public class GetFeaturePagingTest extends WFS20TestSupport {
         XMLAssert.assertXpathEvaluatesTo("0", "count(//" + seven + ")", doc);
     }
     
+    @Test
+    public void testStartIndexMultipleTypesParallel() throws Exception {
+        System.setProperty(GetFeature.PARALLEL_QUERIES, "true");
+        try {
+            doTestStartIndexMultipleTypes("gs:Fifteen", "gs:Seven");
+            doTestStartIndexMultipleTypes("cdf:Fifteen", "cdf:Seven");
+            doTestStartIndexMultipleTypesPOST("gs:Fifteen", "gs:Seven");
+            doTestStartIndexMultipleTypesPOST("cdf:Fifteen", "cdf:Seven");
+
+            // the second query is cut by the max features limit
+            Document doc = getAsDOM("/wfs?request=GetFeature&version=2.0.0&service=wfs&"
+                    + "typename=gs:Fifteen,gs:Seven&count=18");
+            XMLAssert.assertXpathEvaluatesTo("15", "count(//gs:Fifteen)", doc);
+            XMLAssert.assertXpathEvaluatesTo("3", "count(//gs:Seven)", doc);
+            XMLAssert.assertXpathEvaluatesTo("22", "//wfs:FeatureCollection/@numberMatched", doc);
+        } finally {
+            System.clearProperty(GetFeature.PARALLEL_QUERIES);
+        }
+    }
+    
+    @Test
+    public void testParallelWindowCountCache() throws Exception {
+        Catalog cat = getCatalog();
+        for (String name : new String[] { "Fifteen", "Seven" }) {
+            FeatureTypeInfo ft = cat.getFeatureTypeByName("gs", name);
+            ft.getMetadata().put(CountCache.TIME_TO_LIVE, 60);
+            cat.save(ft);
+        }
+        CountCache.get().clear();
+        System.setProperty(GetFeature.PARALLEL_QUERIES, "true");
+        try {
+            // the window counts are capped at 5, they must not be used as the full counts
+            for (int i = 0; i < 2; i++) {
+                Document doc = getAsDOM("/wfs?request=GetFeature&version=2.0.0&service=wfs&"
+                        + "typename=gs:Fifteen,gs:Seven&count=5");
+                XMLAssert.assertXpathEvaluatesTo("5", "count(//gs:Fifteen)", doc);
+                XMLAssert.assertXpathEvaluatesTo("22", "//wfs:FeatureCollection/@numberMatched",
+                        doc);
+            }
+            Document doc = getAsDOM("/wfs?request=GetFeature&version=2.0.0&service=wfs&"
+                    + "typename=gs:Fifteen&count=5");
+            XMLAssert.assertXpathEvaluatesTo("15", "//wfs:FeatureCollection/@numberMatched", doc);
+        } finally {
+            System.clearProperty(GetFeature.PARALLEL_QUERIES);
+            for (String name : new String[] { "Fifteen", "Seven" }) {
+                FeatureTypeInfo ft = cat.getFeatureTypeByName("gs", name);
+                ft.getMetadata().remove(CountCache.TIME_TO_LIVE);
+                cat.save(ft);
+            }
+            CountCache.get().clear();
+        }
+    }
+
     @Test
     public void testStartIndexMultipleTypesPOST() throws Exception {
         doTestStartIndexMultipleTypesPOST("gs:Fifteen", "gs:Seven");
@@ -563,4 +619,105 @@ public class GetFeaturePagingTest extends WFS20TestSupport {
         XMLAssert.assertXpathEvaluatesTo("0", "/wfs:FeatureCollection/@numberReturned", doc);
     }
 
+    @Test
+    public void testNumberMatchedCache() throws Exception {
+        Catalog cat = getCatalog();
+        FeatureTypeInfo ft = cat.getFeatureTypeByName("gs", "Fifteen");
+        ft.getMetadata().put(CountCache.TIME_TO_LIVE, 60);
+        cat.save(ft);
+        CountCache.get().clear();
+        try {
+            long hits = CountCache.get().getHits();
+            for (int i = 0; i < 2; i++) {
+                Document doc = getAsDOM("/wfs?request=GetFeature&version=2.0.0&service=wfs&"
+                        + "typename=gs:Fifteen&count=5");
+                XMLAssert.assertXpathEvaluatesTo("15", "/wfs:FeatureCollection/@numberMatched",
+                        doc);
+                XMLAssert.assertXpathEvaluatesTo("5", "/wfs:FeatureCollection/@numberReturned",
+                        doc);
+            }
+            // the second count came from the cache
+            assertEquals(hits + 1, CountCache.get().getHits());
+        } finally {
+            ft = cat.getFeatureTypeByName("gs", "Fifteen");
+            ft.getMetadata().remove(CountCache.TIME_TO_LIVE);
+            cat.save(ft);
+            CountCache.get().clear();
+        }
+    }
+
+    @Test
+    public void testNumberMatchedCachePerUser() throws Exception {
+        Catalog cat = getCatalog();
+        FeatureTypeInfo ft = cat.getFeatureTypeByName("gs", "Fifteen");
+        ft.getMetadata().put(CountCache.TIME_TO_LIVE, 60);
+        cat.save(ft);
+        CountCache.get().clear();
+        try {
+            long hits = CountCache.get().getHits();
+            long misses = CountCache.get().getMisses();
+            String request = "/wfs?request=GetFeature&version=2.0.0&service=wfs&"
+                    + "typename=gs:Fifteen&count=5";
+            login("admin", "geoserver", "ROLE_ADMINISTRATOR");
+            try {
+                getAsDOM(request);
+            } finally {
+                logout();
+            }
+            // the counts run in background, but are still cached per user
+            getAsDOM(request);
+            assertEquals(hits, CountCache.get().getHits());
+            assertEquals(misses + 2, CountCache.get().getMisses());
+        } finally {
+            ft = cat.getFeatureTypeByName("gs", "Fifteen");
+            ft.getMetadata().remove(CountCache.TIME_TO_LIVE);
+            cat.save(ft);
+            CountCache.get().clear();
+        }
+    }
+
+    @Test
+    public void testKeysetPaging() throws Exception {
+        Catalog cat = getCatalog();
+        FeatureTypeInfo ft = cat.getFeatureTypeByName("gs", "Fifteen");
+        ft.getMetadata().put(KeysetPaging.KEY_ATTRIBUTE, "num");
+        cat.save(ft);
+        try {
+            Document doc = getAsDOM("/wfs?request=GetFeature&version=2.0.0&service=wfs&"
+                    + "typename=gs:Fifteen&startIndex=0&count=5");
+            assertNums(doc, 0, 5);
+            String next = doc.getDocumentElement().getAttribute("next");
+            assertTrue(next.toUpperCase().contains("CURSOR="));
+
+            // follow the next links
+            doc = getAsDOM("wfs?" + next.split("\\?")[1]);
+            assertNums(doc, 5, 5);
+            assertStartIndexCount(doc, "previous", 0, 5);
+            assertFalse(doc.getDocumentElement().getAttribute("previous").toUpperCase()
+                    .contains("CURSOR="));
+            String cursorLink = doc.getDocumentElement().getAttribute("next");
+            doc = getAsDOM("wfs?" + cursorLink.split("\\?")[1]);
+            assertNums(doc, 10, 5);
+            assertFalse(doc.getDocumentElement().hasAttribute("next"));
+
+            // a cursor used with a different start index is ignored
+            doc = getAsDOM("wfs?" + cursorLink.split("\\?")[1].replaceAll("(?i)startIndex=10",
+                    "startIndex=7"));
+            assertNums(doc, 7, 5);
+        } finally {
+            ft = cat.getFeatureTypeByName("gs", "Fifteen");
+            ft.getMetadata().remove(KeysetPaging.KEY_ATTRIBUTE);
+            cat.save(ft);
+        }
+    }
+
+    void assertNums(Document doc, int first, int count) throws Exception {
+        XMLAssert.assertXpathEvaluatesTo(String.valueOf(count),
+                "/wfs:FeatureCollection/@numberReturned", doc);
+        for (int i = 0; i < count; i++) {
+            XMLAssert.assertXpathEvaluatesTo(String.valueOf(first + i),
+                    "//wfs:member[" + (i + 1) + "]/gs:Fifteen/gs:num", doc);
+        }
+    }
+
 }
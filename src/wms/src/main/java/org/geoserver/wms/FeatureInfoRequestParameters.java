@@ -152,6 +152,37 @@ public class FeatureInfoRequestParameters {
     void nextLayer() {
         currentLayer++;
     }
+
+    /**
+     * Returns a copy of these parameters positioned on the specified layer, allowing layers to be
+     * identified concurrently
+     */
+    FeatureInfoRequestParameters forLayer(int layer) {
+        FeatureInfoRequestParameters copy = new FeatureInfoRequestParameters(this);
+        copy.currentLayer = layer;
+        return copy;
+    }
+
+    private FeatureInfoRequestParameters(FeatureInfoRequestParameters other) {
+        this.x = other.x;
+        this.y = other.y;
+        this.buffer = other.buffer;
+        this.viewParams = other.viewParams;
+        this.getMapReq = other.getMapReq;
+        this.requestedCRS = other.requestedCRS;
+        this.width = other.width;
+        this.height = other.height;
+        this.bbox = other.bbox;
+        this.scaleDenominator = other.scaleDenominator;
+        this.filters = other.filters;
+        this.layers = other.layers;
+        this.styles = other.styles;
+        this.elevations = other.elevations;
+        this.times = other.times;
+        this.ff = other.ff;
+        this.propertyNames = other.propertyNames;
+        this.maxFeatures = other.maxFeatures;
+    }
     
     
     /**
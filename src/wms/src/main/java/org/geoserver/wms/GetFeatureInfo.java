@@ -9,13 +9,22 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import net.opengis.wfs.FeatureCollectionType;
 import net.opengis.wfs.WfsFactory;
 
+import org.geoserver.ows.Dispatcher;
+import org.geoserver.ows.EnviromentInjectionCallback;
+import org.geoserver.ows.Request;
 import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.platform.ServiceException;
+import org.geoserver.threadlocals.ThreadLocalsTransfer;
 import org.geoserver.wms.featureinfo.FeatureCollectionDecorator;
 import org.geoserver.wms.featureinfo.LayerIdentifier;
 import org.geotools.data.DataUtilities;
@@ -23,11 +32,14 @@ import org.geotools.data.Query;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.feature.FeatureCollection;
 import org.geotools.feature.NameImpl;
+import org.geotools.filter.function.EnvFunction;
 import org.geotools.util.logging.Logging;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.feature.type.Name;
 import org.opengis.filter.Filter;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 /**
  * WMS GetFeatureInfo operation
  * 
@@ -37,6 +49,17 @@ public class GetFeatureInfo {
 
     private static final Logger LOGGER = Logging.getLogger(GetFeatureInfo.class);
 
+    /**
+     * System property enabling the concurrent identification of the query layers, for requests
+     * hitting more than one layer
+     */
+    public static final String PARALLEL_LAYERS = "org.geoserver.wms.featureinfo.parallelLayers";
+
+    /**
+     * The threads identifying the query layers, shared by all requests
+     */
+    static ExecutorService identifierExecutor;
+
     @SuppressWarnings({ "unchecked", "rawtypes" })
     public FeatureCollectionType run(final GetFeatureInfoRequest request) throws ServiceException {
         List<FeatureCollection> results;
@@ -67,10 +90,14 @@ public class GetFeatureInfo {
         final List<MapLayerInfo> requestedLayers = request.getQueryLayers();
         FeatureInfoRequestParameters requestParams = new FeatureInfoRequestParameters(request);
 
+        List<LayerIdentifier> identifiers = GeoServerExtensions.extensions(LayerIdentifier.class);
+        if (requestedLayers.size() > 1 && Boolean.getBoolean(PARALLEL_LAYERS)) {
+            return executeParallel(request, requestParams, identifiers);
+        }
+
         List<FeatureCollection> results = new ArrayList<FeatureCollection>(requestedLayers.size());
 
         int maxFeatures = request.getFeatureCount();
-        List<LayerIdentifier> identifiers = GeoServerExtensions.extensions(LayerIdentifier.class);
         for (int i = 0; i < requestedLayers.size(); i++) {
             final MapLayerInfo layer = requestedLayers.get(i);
 
@@ -94,6 +121,110 @@ public class GetFeatureInfo {
         return results;
     }
 
+    /**
+     * Identifies all the query layers concurrently, then collects the results in request order,
+     * trimming them to the requested feature count
+     */
+    @SuppressWarnings("rawtypes")
+    private List<FeatureCollection> executeParallel(GetFeatureInfoRequest request,
+            FeatureInfoRequestParameters requestParams, List<LayerIdentifier> identifiers)
+            throws Exception {
+        final List<MapLayerInfo> requestedLayers = request.getQueryLayers();
+        final int featureCount = request.getFeatureCount();
+        List<Future<List<FeatureCollection>>> futures = new ArrayList<>();
+        try {
+            ExecutorService executor = getIdentifierExecutor();
+            for (int i = 0; i < requestedLayers.size(); i++) {
+                final LayerIdentifier identifier = getLayerIdentifier(requestedLayers.get(i),
+                        identifiers);
+                final FeatureInfoRequestParameters layerParams = requestParams.forLayer(i);
+                final ThreadLocalsTransfer threadLocals = new ThreadLocalsTransfer();
+                futures.add(executor.submit(new Callable<List<FeatureCollection>>() {
+
+                    @Override
+                    public List<FeatureCollection> call() throws Exception {
+                        threadLocals.apply();
+                        // styles might use the request environment variables
+                        Request owsRequest = Dispatcher.REQUEST.get();
+                        if (owsRequest != null && owsRequest.getKvp() != null) {
+                            new EnviromentInjectionCallback().init(owsRequest);
+                        }
+                        try {
+                            return identifier.identify(layerParams, featureCount);
+                        } finally {
+                            EnvFunction.clearLocalValues();
+                            threadLocals.cleanup();
+                        }
+                    }
+                }));
+            }
+
+            List<FeatureCollection> results = new ArrayList<FeatureCollection>(
+                    requestedLayers.size());
+            int maxFeatures = featureCount;
+            for (int i = 0; i < requestedLayers.size() && maxFeatures > 0; i++) {
+                List<FeatureCollection> identifiedCollections = getResult(futures.get(i));
+                if (identifiedCollections == null) {
+                    continue;
+                }
+                FeatureInfoRequestParameters layerParams = requestParams.forLayer(i);
+                for (FeatureCollection identifierCollection : identifiedCollections) {
+                    if (maxFeatures <= 0) {
+                        break;
+                    }
+                    FeatureCollection fc = selectProperties(layerParams, identifierCollection);
+                    fc = limit(fc, maxFeatures);
+                    maxFeatures = addToResults(fc, results, requestedLayers.get(i), request,
+                            maxFeatures);
+                }
+            }
+            return results;
+        } finally {
+            // stop the identifiers whose results are not needed anymore
+            for (Future<List<FeatureCollection>> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    private List<FeatureCollection> getResult(Future<List<FeatureCollection>> future)
+            throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw new ServiceException("Failed to identify the layer features", cause);
+        }
+    }
+
+    /**
+     * Each layer has been identified against the full feature count, limits the simple feature
+     * collections to the features still missing
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private FeatureCollection limit(FeatureCollection collection, int maxFeatures)
+            throws IOException {
+        if (collection instanceof SimpleFeatureCollection && collection.size() > maxFeatures) {
+            Query q = new Query(collection.getSchema().getName().getLocalPart());
+            q.setMaxFeatures(maxFeatures);
+            return DataUtilities.source(collection).getFeatures(q);
+        }
+        return collection;
+    }
+
+    static synchronized ExecutorService getIdentifierExecutor() {
+        if (identifierExecutor == null) {
+            identifierExecutor = Executors.newFixedThreadPool(Runtime.getRuntime()
+                    .availableProcessors(), new ThreadFactoryBuilder().setDaemon(true)
+                    .setNameFormat("GetFeatureInfo-%d").build());
+        }
+        return identifierExecutor;
+    }
+
     private LayerIdentifier getLayerIdentifier(MapLayerInfo layer, List<LayerIdentifier> identifiers) {
         for (LayerIdentifier identifier : identifiers) {
             if (identifier.canHandle(layer)) {
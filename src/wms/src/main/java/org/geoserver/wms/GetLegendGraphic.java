@@ -6,8 +6,10 @@
 package org.geoserver.wms;
 
 import org.geoserver.ows.Response;
+import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.platform.ServiceException;
 import org.geoserver.wms.legendgraphic.BufferedImageLegendGraphic;
+import org.geoserver.wms.legendgraphic.LegendGraphicCache;
 import org.geotools.filter.function.EnvFunction;
 
 /**
@@ -46,6 +48,10 @@ public class GetLegendGraphic {
             throw new ServiceException("There is no support for creating legends in "
                     + outputFormat + " format", "InvalidFormat");
         }
+        LegendGraphicCache cache = GeoServerExtensions.bean(LegendGraphicCache.class);
+        if (cache != null) {
+            return cache.getLegendGraphic(request, format);
+        }
         Object legend = format.produceLegendGraphic(request);
         return legend;
     }
@@ -46,6 +46,8 @@ import org.geoserver.wms.WMSInfo.WMSInterpolation;
 import org.geoserver.wms.WatermarkInfo.Position;
 import org.geoserver.wms.dimension.DimensionDefaultValueSelectionStrategy;
 import org.geoserver.wms.dimension.DimensionDefaultValueSelectionStrategyFactory;
+import org.geoserver.wms.dimension.DimensionDomainCache;
+import org.geoserver.wms.dimension.DimensionDomainCache.Domain;
 import org.geoserver.wms.dimension.DimensionFilterBuilder;
 import org.geoserver.wms.featureinfo.GetFeatureInfoOutputFormat;
 import org.geoserver.wms.map.RenderedImageMapResponse;
@@ -111,6 +113,10 @@ public class WMS implements ApplicationContextAware {
     
     public static final String MAX_RENDERING_SIZE = "maxRenderingSize";
     
+    public static final String MAX_PARALLEL_FRAMES = "maxParallelFrames";
+
+    public static final int MAX_PARALLEL_FRAMES_DEFAULT = 4;
+    
     public static final String FRAMES_DELAY = "framesDelay";
 
     public static final int FRAMES_DELAY_DEFAULT = 1000;
@@ -483,6 +489,13 @@ public class WMS implements ApplicationContextAware {
     public Long getMaxRenderingSize() {
         return getMetadataValue( MAX_RENDERING_SIZE, null, Long.class);
     }
+    
+    /**
+     * The maximum number of frames of a single animation rendered at the same time
+     */
+    public int getMaxParallelFrames() {
+        return getMetadataValue(MAX_PARALLEL_FRAMES, MAX_PARALLEL_FRAMES_DEFAULT, Integer.class);
+    }
 
     public Integer getFramesDelay() {
         return getMetadataValue(FRAMES_DELAY, FRAMES_DELAY_DEFAULT, Integer.class);
@@ -1042,10 +1055,24 @@ public class WMS implements ApplicationContextAware {
                     + " does not have time support enabled");
         }
 
-        FeatureCollection collection = getDimensionCollection(typeInfo, time);
-
         TreeSet<Date> result = new TreeSet<Date>();
-        if (time.getPresentation() == DimensionPresentation.LIST) {
+        boolean list = time.getPresentation() == DimensionPresentation.LIST;
+        DimensionDomainCache cache = getDimensionDomainCache();
+        if (cache != null && cache.isEnabled()) {
+            Domain domain = cache.getDomain(typeInfo, ResourceInfo.TIME, time, list);
+            if (list) {
+                for (Object value : domain.getValues()) {
+                    result.add((Date) value);
+                }
+            } else if (!domain.isEmpty()) {
+                result.add((Date) domain.getMin());
+                result.add((Date) domain.getMax());
+            }
+            return result;
+        }
+
+        FeatureCollection collection = getDimensionCollection(typeInfo, time);
+        if (list) {
             final UniqueVisitor visitor = new UniqueVisitor(time.getAttribute());
             collection.accepts(visitor, null);
 
@@ -1091,12 +1118,26 @@ public class WMS implements ApplicationContextAware {
                     + " does not have elevation support enabled");
         }
 
-        FeatureCollection collection = getDimensionCollection(typeInfo, elevation);
-
         TreeSet<Double> result = new TreeSet<Double>();
-        if (elevation.getPresentation() == DimensionPresentation.LIST
+        boolean list = elevation.getPresentation() == DimensionPresentation.LIST
                 || (elevation.getPresentation() == DimensionPresentation.DISCRETE_INTERVAL && elevation
-                        .getResolution() == null)) {
+                        .getResolution() == null);
+        DimensionDomainCache cache = getDimensionDomainCache();
+        if (cache != null && cache.isEnabled()) {
+            Domain domain = cache.getDomain(typeInfo, ResourceInfo.ELEVATION, elevation, list);
+            if (list) {
+                for (Object value : domain.getValues()) {
+                    result.add((Double) value);
+                }
+            } else if (!domain.isEmpty()) {
+                result.add((Double) domain.getMin());
+                result.add((Double) domain.getMax());
+            }
+            return result;
+        }
+
+        FeatureCollection collection = getDimensionCollection(typeInfo, elevation);
+        if (list) {
             final UniqueVisitor visitor = new UniqueVisitor(elevation.getAttribute());
             collection.accepts(visitor, null);
 
@@ -1202,6 +1243,13 @@ public class WMS implements ApplicationContextAware {
          }
     }
 
+    /**
+     * Returns the cache of the vector dimension domains, if available
+     */
+    DimensionDomainCache getDimensionDomainCache() {
+        return GeoServerExtensions.bean(DimensionDomainCache.class, applicationContext);
+    }
+
     /**
      * Returns the collection of all values of the dimension attribute, eventually sorted if the
      * native capabilities allow for it
@@ -16,8 +16,10 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
-import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.media.jai.RenderedImageList;
 
@@ -25,6 +27,7 @@ import org.apache.commons.beanutils.BeanUtils;
 import org.geoserver.ows.Dispatcher;
 import org.geoserver.ows.util.CaseInsensitiveMap;
 import org.geoserver.ows.util.KvpUtils;
+import org.geoserver.threadlocals.ThreadLocalsTransfer;
 import org.geoserver.wms.DefaultWebMapService;
 import org.geoserver.wms.GetMapRequest;
 import org.geoserver.wms.MapProducerCapabilities;
@@ -36,8 +39,15 @@ import org.geoserver.wms.map.RenderedImageMapResponse;
 
 /**
  * The Frame Visitor contains the logic to produce frame images.<br/>
- * The "visit" method initializes the runnables and the animatorExecutor service, while
- * the "produce" method runs the tasks and generated the frames images.
+ * The "visit" method collects the frame loaders, while the "produce" method runs them on the
+ * animator executor service and collects the frames images.
+ * <p>
+ * Frames are rendered concurrently, but at most {@link WMS#getMaxParallelFrames()} frames of the
+ * same animation are submitted at any time, so that a single long animation cannot fill the shared
+ * executor queue and starve the other requests. Frames are collected in order, as soon as each
+ * one is ready, and the rendering stops when {@link WMS#getMaxAnimatorRenderingTime()} or
+ * {@link WMS#getMaxRenderingSize()} are exceeded.
+ * </p>
  * @author Alessio Fabiani, GeoSolutions S.A.S., alessio.fabiani@geo-solutions.it
  * @author Andrea Aime, GeoSolutions S.A.S., andrea.aime@geo-solutions.it
  */
@@ -49,12 +59,17 @@ public class FrameCatalogVisitor {
     int framesNumber;
 
     /**
-     * the list of runnables to be executed
+     * the list of frame loaders to be executed
      */
-    List<Future<RenderedImage>> tasks;
+    List<FrameLoader> loaders;
 
     /**
-     * Adds a new visitor to the runnables list and initializes the animatorExecutor service is not yet initialied. 
+     * the frames being rendered, in order
+     */
+    LinkedList<Future<RenderedImage>> tasks;
+
+    /**
+     * Adds a new frame loader to the list of frames to be rendered.
      * @param request
      * @param wms
      * @param wmsConfiguration
@@ -62,19 +77,12 @@ public class FrameCatalogVisitor {
      * @param avalue
      */
     public void visit(final GetMapRequest request, WebMapService wms, WMS wmsConfiguration, String aparam, String avalue) {
-        if (this.tasks == null) {
-            this.tasks = new LinkedList<Future<RenderedImage>>();
+        if (this.loaders == null) {
+            this.loaders = new ArrayList<FrameLoader>();
         }
 
-        FrameLoader loader = new FrameLoader(request, wms, wmsConfiguration, aparam, avalue);
-        
-        
-        final FutureTask<RenderedImage> task = new FutureTask<RenderedImage>(loader);
-        this.tasks.add(task);
+        this.loaders.add(new FrameLoader(request, wms, wmsConfiguration, aparam, avalue));
         this.framesNumber++;
-
-        // run the loading in this thread
-        wmsConfiguration.getAnimatorExecutorService().execute(task);
     }
 
     /**
@@ -84,43 +92,65 @@ public class FrameCatalogVisitor {
      * @throws IOException
      */
     public RenderedImageList produce(WMS wmsConfiguration) throws IOException {
-        List<RenderedImage> images = new ArrayList<RenderedImage>();
+        if (loaders == null || loaders.isEmpty()) {
+            dispose();
+            throw new IOException("Empty list of frames.");
+        }
 
+        ExecutorService executor = wmsConfiguration.getAnimatorExecutorService();
+        int maxParallelFrames = Math.max(1, wmsConfiguration.getMaxParallelFrames());
+        Long maxRenderingTime = wmsConfiguration.getMaxAnimatorRenderingTime();
+        long deadline = maxRenderingTime != null && maxRenderingTime > 0 ? System
+                .currentTimeMillis() + maxRenderingTime : Long.MAX_VALUE;
+        Long maxRenderingSize = wmsConfiguration.getMaxRenderingSize();
+
+        List<RenderedImage> images = new ArrayList<RenderedImage>();
+        tasks = new LinkedList<Future<RenderedImage>>();
+        Iterator<FrameLoader> pending = loaders.iterator();
         long gifAnimatedSize = 0;
+        try {
+            while (pending.hasNext() || !tasks.isEmpty()) {
+                // keep up to maxParallelFrames frames in flight
+                while (pending.hasNext() && tasks.size() < maxParallelFrames) {
+                    tasks.add(executor.submit(pending.next()));
+                }
 
-        for (Future<RenderedImage> future : tasks) {
-            RenderedImage image = null;
-            try {
-                image = future.get();
-            } catch (InterruptedException e) {
-                dispose();
-                throw new IOException(e);
-            } catch (ExecutionException e) {
-                dispose();
-                throw new IOException(e);
-            }
+                // collect the next frame in order
+                Future<RenderedImage> future = tasks.removeFirst();
+                RenderedImage image;
+                if (deadline == Long.MAX_VALUE) {
+                    image = future.get();
+                } else {
+                    image = future.get(Math.max(0, deadline - System.currentTimeMillis()),
+                            TimeUnit.MILLISECONDS);
+                }
 
-            if (image == null) {
-                continue;
-            }
+                if (image == null) {
+                    continue;
+                }
 
-            // collect the images
-            gifAnimatedSize += getImageSizeInBytes(image);
-            if (wmsConfiguration.getMaxRenderingSize() != null
-                    && gifAnimatedSize >= wmsConfiguration.getMaxRenderingSize()) {
-                dispose();
-                throw new IOException("Max rendering size exceed!");
-            }
+                // collect the images
+                gifAnimatedSize += getImageSizeInBytes(image);
+                if (maxRenderingSize != null && gifAnimatedSize >= maxRenderingSize) {
+                    throw new IOException("Max rendering size exceed!");
+                }
 
-            images.add(image);
+                images.add(image);
+            }
+        } catch (TimeoutException e) {
+            throw new IOException("Max rendering time exceeded!", e);
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new IOException(e);
+        } finally {
+            dispose();
         }
 
-        if (images == null || images.size() == 0) {
-            dispose();
+        if (images.size() == 0) {
             throw new IOException("Empty list of frames.");
         }
 
-        dispose();
         return new RenderedImageList(images);
     }
 
@@ -134,15 +164,20 @@ public class FrameCatalogVisitor {
     }
 
     /**
-     * Suddenly stops the Executor service and clear instantiated visitors.
+     * Cancels the frames still being rendered and clears the instantiated loaders.
      */
     private void dispose() {
         this.framesNumber = 0;
 
-        if (this.tasks != null)
+        if (this.tasks != null) {
+            for (Future<RenderedImage> task : tasks) {
+                task.cancel(true);
+            }
             this.tasks.clear();
+        }
         
         this.tasks = null;
+        this.loaders = null;
     }
 
 }
@@ -170,6 +205,11 @@ class FrameLoader implements Callable<RenderedImage> {
 
     private String avalue;
 
+    /**
+     * The request thread locals, to be made available to the thread rendering the frame
+     */
+    private ThreadLocalsTransfer threadLocalsTransfer;
+
     /**
      * Default constructor.
      * 
@@ -185,10 +225,20 @@ class FrameLoader implements Callable<RenderedImage> {
         this.wmsConfiguration = wmsConfiguration;
         this.aparam = aparam;
         this.avalue = avalue.replaceAll("\\\\,", ",");
+        this.threadLocalsTransfer = new ThreadLocalsTransfer();
     }
 
     @Override
     public RenderedImage call() throws Exception {
+        threadLocalsTransfer.apply();
+        try {
+            return loadFrame();
+        } finally {
+            threadLocalsTransfer.cleanup();
+        }
+    }
+
+    private RenderedImage loadFrame() throws Exception {
         org.geoserver.wms.WebMap wmsResponse;
 
         // Making a shallow copy of the original request and replacing param's values
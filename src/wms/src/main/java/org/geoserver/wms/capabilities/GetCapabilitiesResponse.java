@@ -25,6 +25,7 @@ import javax.xml.transform.sax.SAXSource;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
 
+import org.geoserver.ows.CapabilitiesCache;
 import org.geoserver.ows.Response;
 import org.geoserver.platform.Operation;
 import org.geoserver.platform.ServiceException;
@@ -106,6 +107,16 @@ public class GetCapabilitiesResponse extends BaseCapabilitiesResponse {
         final GetCapabilitiesTransformer transformer = (GetCapabilitiesTransformer) value;
         final GetCapabilitiesRequest request = (GetCapabilitiesRequest) operation.getParameters()[0];
 
+        CapabilitiesCache.write(output, new CapabilitiesCache.Encoder() {
+            public void encode(OutputStream output) throws IOException {
+                encodeCapabilities(transformer, request, output);
+            }
+        });
+    }
+
+    void encodeCapabilities(final GetCapabilitiesTransformer transformer,
+            final GetCapabilitiesRequest request, final OutputStream output) throws IOException,
+            ServiceException {
         final String internalDTDDeclaration = getInternalDTDDeclaration(request);
 
         if (internalDTDDeclaration == null) {
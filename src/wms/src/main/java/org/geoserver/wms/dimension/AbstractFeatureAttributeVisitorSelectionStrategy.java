@@ -12,6 +12,8 @@ import java.util.logging.Logger;
 
 import org.geoserver.catalog.DimensionInfo;
 import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.catalog.ResourceInfo;
+import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.platform.ServiceException;
 import org.geotools.data.FeatureSource;
 import org.geotools.data.Query;
@@ -61,6 +63,33 @@ public abstract class AbstractFeatureAttributeVisitorSelectionStrategy extends A
         return retval;
     }
 
+    /**
+     * Returns the cached domain of the time or elevation dimension, or null if the domain is not
+     * cached, in which case the dimension collection has to be visited
+     * 
+     * @param typeInfo
+     * @param dimensionName
+     * @param dimension
+     * @return
+     */
+    protected DimensionDomainCache.Domain getCachedDomain(FeatureTypeInfo typeInfo,
+            String dimensionName, DimensionInfo dimension) {
+        if (!ResourceInfo.TIME.equals(dimensionName)
+                && !ResourceInfo.ELEVATION.equals(dimensionName)) {
+            return null;
+        }
+        DimensionDomainCache cache = GeoServerExtensions.bean(DimensionDomainCache.class);
+        if (cache == null || !cache.isEnabled()) {
+            return null;
+        }
+        try {
+            return cache.getDomain(typeInfo, dimensionName, dimension, false);
+        } catch (IOException e) {
+            LOGGER.log(Level.FINER, e.getMessage(), e);
+            return null;
+        }
+    }
+
     private FeatureCollection<?, ?> getDimensionCollection(FeatureTypeInfo typeInfo,
             DimensionInfo dimension) throws IOException {
         // grab the feature source
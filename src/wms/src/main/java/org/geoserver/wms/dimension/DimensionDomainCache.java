@@ -0,0 +1,613 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2014 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.dimension;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.namespace.QName;
+
+import net.opengis.wfs.InsertElementType;
+import net.opengis.wfs.TransactionResponseType;
+import net.opengis.wfs.TransactionType;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.CoverageStoreInfo;
+import org.geoserver.catalog.DataStoreInfo;
+import org.geoserver.catalog.DimensionInfo;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.catalog.ResourceInfo;
+import org.geoserver.catalog.ResourcePool;
+import org.geoserver.catalog.event.CatalogAddEvent;
+import org.geoserver.catalog.event.CatalogListener;
+import org.geoserver.catalog.event.CatalogModifyEvent;
+import org.geoserver.catalog.event.CatalogPostModifyEvent;
+import org.geoserver.catalog.event.CatalogRemoveEvent;
+import org.geoserver.config.GeoServer;
+import org.geoserver.config.impl.GeoServerLifecycleHandler;
+import org.geoserver.security.AccessLimits;
+import org.geoserver.security.VectorAccessLimits;
+import org.geoserver.security.decorators.DecoratingFeatureTypeInfo;
+import org.geoserver.security.decorators.SecuredFeatureTypeInfo;
+import org.geoserver.wfs.TransactionEvent;
+import org.geoserver.wfs.TransactionEventType;
+import org.geoserver.wfs.TransactionPlugin;
+import org.geoserver.wfs.WFSException;
+import org.geotools.data.DataAccess;
+import org.geotools.data.FeatureSource;
+import org.geotools.data.Query;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.factory.GeoTools;
+import org.geotools.feature.FeatureCollection;
+import org.geotools.feature.visitor.CalcResult;
+import org.geotools.feature.visitor.MaxVisitor;
+import org.geotools.feature.visitor.MinVisitor;
+import org.geotools.feature.visitor.UniqueVisitor;
+import org.geotools.util.logging.Logging;
+import org.opengis.coverage.grid.GridCoverageReader;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.type.FeatureType;
+import org.opengis.filter.Filter;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Keeps the domains of the time and elevation dimensions of vector layers, so that capabilities
+ * documents and default value lookups do not scan the dimension attribute of the whole layer on
+ * every request.
+ * <p>
+ * A domain holds the minimum and maximum value of the dimension attribute, and the sorted unique
+ * values when the dimension is presented as a list. The first lookup scans the layer, later ones
+ * are served from memory. Domains older than the {@link #TIME_TO_LIVE} system property, in
+ * seconds, are rebuilt in a background thread while the old domain keeps being served, as they
+ * cannot track changes made to the data outside of GeoServer.
+ * </p>
+ * <p>
+ * WFS-T changes are tracked as a transaction plugin: the dimension values of inserted features are
+ * added to the domains once the transaction commits, while updates and deletes, which might remove
+ * values from the domain, drop the domains of the affected layers. Transactions whose outcome is
+ * not reported to plugins (WFS 2.0 ones) drop the domains as soon as they change the layer.
+ * Changes to the layer configuration drop all the domains.
+ * </p>
+ * <p>
+ * Domains are shared among users, so they are only cached for layers the user can read with no
+ * data security limits, the others are scanned on every lookup.
+ * </p>
+ * <p>
+ * The cache is disabled by default, as it's only useful for large layers, and enabled by setting
+ * {@link #TIME_TO_LIVE} to a positive value.
+ * </p>
+ */
+public class DimensionDomainCache implements TransactionPlugin, GeoServerLifecycleHandler {
+
+    static final Logger LOGGER = Logging.getLogger(DimensionDomainCache.class);
+
+    /**
+     * System property setting how long, in seconds, a domain is used before being rebuilt, zero
+     * or negative values disable the cache
+     */
+    public static final String TIME_TO_LIVE = "org.geoserver.wms.dimensionDomainTTL";
+
+    static final String DIMENSION_DOMAIN_CHANGES = "DIMENSION_DOMAIN_CHANGES";
+
+    static final String[] DIMENSIONS = { ResourceInfo.TIME, ResourceInfo.ELEVATION };
+
+    final Catalog catalog;
+
+    final long timeToLive;
+
+    final Map<String, Domain> domains = new ConcurrentHashMap<String, Domain>();
+
+    final ExecutorService refresher = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+            .setDaemon(true).setNameFormat("DimensionDomainRefresher-%d").build());
+
+    /**
+     * Incremented on every invalidation, domains built across an invalidation are not cached
+     */
+    final AtomicLong generation = new AtomicLong();
+
+    final AtomicLong hits = new AtomicLong();
+
+    final AtomicLong misses = new AtomicLong();
+
+    public DimensionDomainCache(GeoServer geoServer) {
+        this(geoServer.getCatalog(), Integer.getInteger(TIME_TO_LIVE, 0) * 1000l);
+        register(catalog);
+    }
+
+    /**
+     * For testing only
+     */
+    DimensionDomainCache(Catalog catalog, long timeToLive) {
+        this.catalog = catalog;
+        this.timeToLive = timeToLive;
+    }
+
+    void register(Catalog catalog) {
+        catalog.addListener(new CatalogListener() {
+
+            public void handleAddEvent(CatalogAddEvent event) {
+                // new layers have no domain yet
+            }
+
+            public void handleRemoveEvent(CatalogRemoveEvent event) {
+                clear();
+            }
+
+            public void handleModifyEvent(CatalogModifyEvent event) {
+                clear();
+            }
+
+            public void handlePostModifyEvent(CatalogPostModifyEvent event) {
+                clear();
+            }
+
+            public void reloaded() {
+                clear();
+            }
+        });
+        catalog.getResourcePool().addListener(new ResourcePool.Listener() {
+
+            public void disposed(FeatureTypeInfo featureType, FeatureType ft) {
+                clear();
+            }
+
+            public void disposed(CoverageStoreInfo coverageStore, GridCoverageReader gcr) {
+            }
+
+            public void disposed(DataStoreInfo dataStore, DataAccess da) {
+                clear();
+            }
+        });
+    }
+
+    /**
+     * Returns false if the cache has been disabled with the {@link #TIME_TO_LIVE} system property
+     */
+    public boolean isEnabled() {
+        return timeToLive > 0;
+    }
+
+    /**
+     * Returns the domain of the specified dimension, scanning the layer if the domain is not
+     * available yet
+     *
+     * @param dimensionName the dimension name, {@link ResourceInfo#TIME} or
+     *        {@link ResourceInfo#ELEVATION}
+     * @param unique if true the domain will also contain the sorted unique values
+     */
+    public Domain getDomain(final FeatureTypeInfo typeInfo, final String dimensionName,
+            final DimensionInfo dimension, final boolean unique) throws IOException {
+        if (!isShareable(typeInfo)) {
+            // the domain is limited by the user data security rules
+            misses.incrementAndGet();
+            return build(null, typeInfo, dimension, unique);
+        }
+        // build from the catalog object, the request one might carry the user security wrappers
+        final FeatureTypeInfo sharedInfo = unwrap(typeInfo);
+        final String key = getKey(sharedInfo, dimensionName);
+        Domain domain = domains.get(key);
+        if (domain != null && domain.matches(dimension, unique)) {
+            hits.incrementAndGet();
+            if (domain.isExpired() && domain.startRefresh()) {
+                final Domain stale = domain;
+                try {
+                    refresher.execute(new Runnable() {
+                        public void run() {
+                            try {
+                                build(key, sharedInfo, dimension, unique);
+                            } catch (Exception e) {
+                                LOGGER.log(Level.WARNING, "Failed to refresh the " + dimensionName
+                                        + " domain of " + sharedInfo.prefixedName(), e);
+                            } finally {
+                                // allow another attempt if the domain has not been replaced
+                                stale.refreshing = false;
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    // shutting down
+                    stale.refreshing = false;
+                }
+            }
+            return domain;
+        }
+
+        misses.incrementAndGet();
+        return build(key, sharedInfo, dimension, unique);
+    }
+
+    /**
+     * Returns true if the domain read through the feature type is the same for all users, that
+     * is, the user can read all the features and attributes
+     */
+    boolean isShareable(FeatureTypeInfo typeInfo) {
+        if (typeInfo instanceof SecuredFeatureTypeInfo) {
+            AccessLimits limits = ((SecuredFeatureTypeInfo) typeInfo).getWrapperPolicy()
+                    .getLimits();
+            if (limits == null) {
+                return true;
+            } else if (!(limits instanceof VectorAccessLimits)) {
+                return false;
+            }
+            VectorAccessLimits vl = (VectorAccessLimits) limits;
+            return (vl.getReadFilter() == null || vl.getReadFilter() == Filter.INCLUDE)
+                    && vl.getReadAttributes() == null;
+        }
+        // some other security decorator
+        return !(typeInfo instanceof DecoratingFeatureTypeInfo);
+    }
+
+    FeatureTypeInfo unwrap(FeatureTypeInfo typeInfo) {
+        if (typeInfo instanceof SecuredFeatureTypeInfo) {
+            return ((SecuredFeatureTypeInfo) typeInfo).unwrap(FeatureTypeInfo.class);
+        }
+        return typeInfo;
+    }
+
+    /**
+     * Scans the layer and builds the domain, caching it under the specified key, if not null
+     */
+    Domain build(String key, FeatureTypeInfo typeInfo, DimensionInfo dimension, boolean unique)
+            throws IOException {
+        long startGeneration = generation.get();
+        Domain domain = new Domain(dimension.getAttribute(), unique, System.currentTimeMillis()
+                + timeToLive);
+        FeatureCollection collection = getDimensionCollection(typeInfo, dimension);
+        if (unique) {
+            UniqueVisitor visitor = new UniqueVisitor(dimension.getAttribute());
+            collection.accepts(visitor, null);
+            for (Object value : visitor.getUnique()) {
+                domain.add(value);
+            }
+        } else {
+            MinVisitor min = new MinVisitor(dimension.getAttribute());
+            collection.accepts(min, null);
+            // check calcresult first to avoid potential IllegalStateException if no features are
+            // in collection
+            if (min.getResult() != CalcResult.NULL_RESULT) {
+                domain.add(min.getMin());
+                MaxVisitor max = new MaxVisitor(dimension.getAttribute());
+                collection.accepts(max, null);
+                domain.add(max.getMax());
+            }
+        }
+
+        if (key != null) {
+            synchronized (domains) {
+                if (generation.get() == startGeneration) {
+                    domains.put(key, domain);
+                }
+            }
+        }
+        return domain;
+    }
+
+    FeatureCollection getDimensionCollection(FeatureTypeInfo typeInfo, DimensionInfo dimension)
+            throws IOException {
+        FeatureSource source = typeInfo.getFeatureSource(null, GeoTools.getDefaultHints());
+        // build query to grab the dimension values
+        final Query dimQuery = new Query(source.getSchema().getName().getLocalPart());
+        dimQuery.setPropertyNames(Arrays.asList(dimension.getAttribute()));
+        return source.getFeatures(dimQuery);
+    }
+
+    String getKey(FeatureTypeInfo typeInfo, String dimensionName) {
+        return typeInfo.getId() + ":" + dimensionName;
+    }
+
+    /**
+     * Removes all the domains
+     */
+    public void clear() {
+        synchronized (domains) {
+            generation.incrementAndGet();
+            domains.clear();
+        }
+    }
+
+    /**
+     * Removes the domains of the specified layer
+     */
+    void clear(FeatureTypeInfo typeInfo) {
+        synchronized (domains) {
+            generation.incrementAndGet();
+            for (String dimensionName : DIMENSIONS) {
+                domains.remove(getKey(typeInfo, dimensionName));
+            }
+        }
+    }
+
+    /**
+     * The number of lookups served by a cached domain
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * The number of lookups that required scanning the layer
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public void dataStoreChange(TransactionEvent event) throws WFSException {
+        if (!isEnabled()) {
+            return;
+        }
+        try {
+            dataStoreChangeInternal(event);
+        } catch (RuntimeException e) {
+            // never make the transaction fail, just drop the domains
+            LOGGER.log(Level.WARNING, "Failed to track the dimension changes of a transaction", e);
+            clear();
+        }
+    }
+
+    void dataStoreChangeInternal(TransactionEvent event) {
+        FeatureTypeInfo typeInfo = getFeatureType(event.getLayerName());
+        if (typeInfo == null) {
+            return;
+        }
+        TransactionType transaction = event.getRequest();
+        if (transaction == null) {
+            // we won't be told if and when the transaction commits
+            clear(typeInfo);
+            return;
+        }
+
+        TransactionEventType type = event.getType();
+        if (TransactionEventType.POST_INSERT.equals(type)) {
+            // the values are the same as in the pre insert event
+            return;
+        }
+        LayerChanges changes = getChanges(transaction, typeInfo);
+        if (TransactionEventType.PRE_INSERT.equals(type)
+                && event.getSource() instanceof InsertElementType) {
+            if (!changes.invalidated) {
+                collectValues(event.getAffectedFeatures(), changes);
+            }
+        } else {
+            // updates and deletes might remove values from the domain
+            changes.invalidated = true;
+            changes.values.clear();
+        }
+    }
+
+    FeatureTypeInfo getFeatureType(QName name) {
+        if (name == null) {
+            return null;
+        }
+        return catalog.getFeatureTypeByName(name.getNamespaceURI(), name.getLocalPart());
+    }
+
+    @SuppressWarnings("unchecked")
+    LayerChanges getChanges(TransactionType transaction, FeatureTypeInfo typeInfo) {
+        Map<Object, Object> properties = transaction.getExtendedProperties();
+        Map<String, LayerChanges> changes = (Map<String, LayerChanges>) properties
+                .get(DIMENSION_DOMAIN_CHANGES);
+        if (changes == null) {
+            changes = new HashMap<String, LayerChanges>();
+            properties.put(DIMENSION_DOMAIN_CHANGES, changes);
+        }
+        LayerChanges layerChanges = changes.get(typeInfo.getId());
+        if (layerChanges == null) {
+            layerChanges = new LayerChanges(typeInfo);
+            changes.put(typeInfo.getId(), layerChanges);
+        }
+        return layerChanges;
+    }
+
+    void collectValues(SimpleFeatureCollection features, LayerChanges changes) {
+        List<String> attributes = new ArrayList<String>();
+        for (String dimensionName : DIMENSIONS) {
+            DimensionInfo dimension = changes.typeInfo.getMetadata().get(dimensionName,
+                    DimensionInfo.class);
+            if (dimension != null && dimension.isEnabled()) {
+                attributes.add(dimension.getAttribute());
+            }
+        }
+        if (attributes.isEmpty()) {
+            return;
+        }
+
+        SimpleFeatureIterator it = features.features();
+        try {
+            while (it.hasNext()) {
+                SimpleFeature f = it.next();
+                for (String attribute : attributes) {
+                    Object value = f.getAttribute(attribute);
+                    if (value != null) {
+                        Set<Object> values = changes.values.get(attribute);
+                        if (values == null) {
+                            values = new HashSet<Object>();
+                            changes.values.put(attribute, values);
+                        }
+                        values.add(value);
+                    }
+                }
+            }
+        } finally {
+            it.close();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public void afterTransaction(TransactionType request, TransactionResponseType result,
+            boolean committed) {
+        Map<String, LayerChanges> changes = (Map<String, LayerChanges>) request
+                .getExtendedProperties().remove(DIMENSION_DOMAIN_CHANGES);
+        if (!committed || changes == null || changes.isEmpty()) {
+            return;
+        }
+        // domains being built right now might have missed the changes
+        generation.incrementAndGet();
+        for (LayerChanges layerChanges : changes.values()) {
+            if (layerChanges.invalidated) {
+                clear(layerChanges.typeInfo);
+                continue;
+            }
+            for (String dimensionName : DIMENSIONS) {
+                Domain domain = domains.get(getKey(layerChanges.typeInfo, dimensionName));
+                if (domain == null) {
+                    continue;
+                }
+                Set<Object> values = layerChanges.values.get(domain.attribute);
+                if (values != null) {
+                    for (Object value : values) {
+                        domain.add(value);
+                    }
+                }
+            }
+        }
+    }
+
+    public TransactionType beforeTransaction(TransactionType request) throws WFSException {
+        return request;
+    }
+
+    public void beforeCommit(TransactionType request) throws WFSException {
+        // nothing to do
+    }
+
+    public int getPriority() {
+        return 0;
+    }
+
+    public void onReset() {
+        // data might have changed in the meantime
+        clear();
+    }
+
+    public void onDispose() {
+        refresher.shutdownNow();
+        clear();
+    }
+
+    public void beforeReload() {
+        // nothing to do
+    }
+
+    public void onReload() {
+        clear();
+    }
+
+    /**
+     * The dimension values inserted in a layer by a transaction, or a flag telling the layer
+     * domains have to be rebuilt
+     */
+    static class LayerChanges {
+        final FeatureTypeInfo typeInfo;
+
+        final Map<String, Set<Object>> values = new HashMap<String, Set<Object>>();
+
+        boolean invalidated;
+
+        LayerChanges(FeatureTypeInfo typeInfo) {
+            this.typeInfo = typeInfo;
+        }
+    }
+
+    /**
+     * The domain of a dimension: the min and max values, and optionally the sorted unique values.
+     * Numeric values are stored as doubles.
+     */
+    public static class Domain {
+        final String attribute;
+
+        final TreeSet<Object> values;
+
+        final long expires;
+
+        Object min;
+
+        Object max;
+
+        volatile boolean refreshing;
+
+        Domain(String attribute, boolean unique, long expires) {
+            this.attribute = attribute;
+            this.values = unique ? new TreeSet<Object>() : null;
+            this.expires = expires;
+        }
+
+        boolean matches(DimensionInfo dimension, boolean unique) {
+            // domains with the unique values can be used for min and max lookups too
+            return attribute.equals(dimension.getAttribute()) && (!unique || values != null);
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis() > expires;
+        }
+
+        /**
+         * Returns true if the caller is the one that has to refresh the domain
+         */
+        synchronized boolean startRefresh() {
+            if (refreshing) {
+                return false;
+            }
+            refreshing = true;
+            return true;
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized void add(Object value) {
+            if (value == null) {
+                return;
+            }
+            if (value instanceof Number) {
+                value = ((Number) value).doubleValue();
+            }
+            Comparable<Object> comparable = (Comparable<Object>) value;
+            if (min == null || comparable.compareTo(min) < 0) {
+                min = value;
+            }
+            if (max == null || comparable.compareTo(max) > 0) {
+                max = value;
+            }
+            if (values != null) {
+                values.add(value);
+            }
+        }
+
+        /**
+         * Returns a copy of the sorted unique values, or null if the domain only tracks the min
+         * and max values
+         */
+        public synchronized TreeSet<Object> getValues() {
+            return values != null ? new TreeSet<Object>(values) : null;
+        }
+
+        public synchronized Object getMin() {
+            return min;
+        }
+
+        public synchronized Object getMax() {
+            return max;
+        }
+
+        public synchronized boolean isEmpty() {
+            return min == null;
+        }
+    }
+}
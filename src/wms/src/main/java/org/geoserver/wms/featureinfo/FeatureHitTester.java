@@ -0,0 +1,383 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.featureinfo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.geotools.feature.FeatureCollection;
+import org.geotools.feature.FeatureIterator;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.geometry.jts.JTS;
+import org.geotools.styling.Displacement;
+import org.geotools.styling.FeatureTypeStyle;
+import org.geotools.styling.Fill;
+import org.geotools.styling.Graphic;
+import org.geotools.styling.LineSymbolizer;
+import org.geotools.styling.Mark;
+import org.geotools.styling.PointSymbolizer;
+import org.geotools.styling.PolygonSymbolizer;
+import org.geotools.styling.Rule;
+import org.geotools.styling.Stroke;
+import org.geotools.styling.Style;
+import org.geotools.styling.Symbolizer;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.GeometryDescriptor;
+import org.opengis.filter.Filter;
+import org.opengis.filter.expression.Expression;
+import org.opengis.filter.expression.Literal;
+import org.opengis.filter.expression.PropertyName;
+import org.opengis.referencing.operation.MathTransform;
+import org.opengis.referencing.operation.TransformException;
+import org.opengis.style.GraphicalSymbol;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.MultiPoint;
+import com.vividsolutions.jts.geom.MultiPolygon;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+
+/**
+ * Finds the features hit by a GetFeatureInfo request with plain geometric tests, instead of
+ * painting them: each feature geometry is moved to screen space and checked against the hit area
+ * using the symbol sizes and stroke widths evaluated by a {@link DynamicBufferEstimator}.
+ * <p>
+ * Only styles whose painted area can be told from the geometry and the symbolizer sizes are
+ * supported, see {@link #isSupported(Style, List, SimpleFeatureType)}, the others have to be
+ * rendered.
+ * </p>
+ */
+class FeatureHitTester {
+
+    /**
+     * Size of marks not specifying one, same as the renderer
+     */
+    static final double DEFAULT_MARK_SIZE = 16;
+
+    List<List<Rule>> rules;
+
+    MathTransform toScreen;
+
+    Envelope hitArea;
+
+    Polygon hitPolygon;
+
+    int maxFeatures;
+
+    String[] propertyNames;
+
+    SimpleFeatureBuilder retypeBuilder;
+
+    /**
+     * @param rules the active rules of each feature type style, already rescaled to pixels
+     * @param toScreen transforms from the feature native coordinates to screen coordinates
+     * @param hitArea the hit area, in screen coordinates
+     * @param maxFeatures the max number of features to collect
+     * @param propertyNames the properties to be returned, or null for all of them
+     */
+    FeatureHitTester(List<List<Rule>> rules, MathTransform toScreen, Envelope hitArea,
+            int maxFeatures, String[] propertyNames) {
+        this.rules = rules;
+        this.toScreen = toScreen;
+        this.hitArea = hitArea;
+        this.hitPolygon = JTS.toGeometry(hitArea);
+        this.maxFeatures = maxFeatures;
+        this.propertyNames = propertyNames;
+    }
+
+    /**
+     * Checks if the hits of the style can be computed geometrically. Rendering transformations,
+     * offsets, displacements, rotations, graphic strokes and external graphics are not supported,
+     * and neither are marks other than squares and circles, or symbolizers working against a
+     * geometry other than the default one.
+     */
+    static boolean isSupported(Style style, List<List<Rule>> rules, SimpleFeatureType schema) {
+        for (FeatureTypeStyle fts : style.featureTypeStyles()) {
+            if (fts.getTransformation() != null) {
+                return false;
+            }
+        }
+        GeometryDescriptor gd = schema.getGeometryDescriptor();
+        if (gd == null) {
+            return false;
+        }
+        Class<?> binding = gd.getType().getBinding();
+        for (List<Rule> ftsRules : rules) {
+            for (Rule rule : ftsRules) {
+                if (!isSupported(rule, gd, binding)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean isSupported(Rule rule, GeometryDescriptor gd, Class<?> binding) {
+        for (Symbolizer symbolizer : rule.symbolizers()) {
+            if (!isDefaultGeometry(symbolizer.getGeometry(), gd)) {
+                return false;
+            }
+            if (symbolizer instanceof PointSymbolizer) {
+                // points are painted at the centroid of lines and polygons
+                if (!Point.class.equals(binding) && !MultiPoint.class.equals(binding)) {
+                    return false;
+                }
+                if (!isSupported(((PointSymbolizer) symbolizer).getGraphic())) {
+                    return false;
+                }
+            } else if (symbolizer instanceof LineSymbolizer) {
+                LineSymbolizer ls = (LineSymbolizer) symbolizer;
+                if (!isZero(ls.getPerpendicularOffset()) || !isSupported(ls.getStroke())) {
+                    return false;
+                }
+            } else if (symbolizer instanceof PolygonSymbolizer) {
+                PolygonSymbolizer ps = (PolygonSymbolizer) symbolizer;
+                if (!isZero(ps.getDisplacement()) || !isZero(ps.getPerpendicularOffset())
+                        || !isSupported(ps.getStroke())) {
+                    return false;
+                }
+            } else {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isDefaultGeometry(Expression geometry, GeometryDescriptor gd) {
+        if (geometry == null) {
+            return true;
+        }
+        if (!(geometry instanceof PropertyName)) {
+            return false;
+        }
+        String name = ((PropertyName) geometry).getPropertyName();
+        return "".equals(name) || gd.getLocalName().equals(name);
+    }
+
+    private static boolean isSupported(Stroke stroke) {
+        return stroke == null
+                || (stroke.getGraphicStroke() == null && stroke.getGraphicFill() == null);
+    }
+
+    private static boolean isSupported(Graphic graphic) {
+        if (graphic == null || !isZero(graphic.getDisplacement())
+                || !isZero(graphic.getRotation())) {
+            return false;
+        }
+        if (graphic.getAnchorPoint() != null) {
+            Double x = evaluateLiteral(graphic.getAnchorPoint().getAnchorPointX());
+            Double y = evaluateLiteral(graphic.getAnchorPoint().getAnchorPointY());
+            if (x == null || x != 0.5 || y == null || y != 0.5) {
+                return false;
+            }
+        }
+        List<GraphicalSymbol> symbols = graphic.graphicalSymbols();
+        if (symbols == null || symbols.isEmpty()) {
+            return false;
+        }
+        for (GraphicalSymbol symbol : symbols) {
+            if (!(symbol instanceof Mark) || getShape((Mark) symbol) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns "square" or "circle", or null if the mark has some other shape
+     */
+    private static String getShape(Mark mark) {
+        Expression name = mark.getWellKnownName();
+        if (name == null) {
+            return "square";
+        }
+        if (!(name instanceof Literal)) {
+            return null;
+        }
+        String shape = name.evaluate(null, String.class);
+        if ("square".equalsIgnoreCase(shape)) {
+            return "square";
+        } else if ("circle".equalsIgnoreCase(shape)) {
+            return "circle";
+        }
+        return null;
+    }
+
+    private static boolean isZero(Expression expression) {
+        if (expression == null) {
+            return true;
+        }
+        Double value = evaluateLiteral(expression);
+        return value != null && value == 0;
+    }
+
+    private static boolean isZero(Displacement displacement) {
+        return displacement == null
+                || (isZero(displacement.getDisplacementX()) && isZero(displacement.getDisplacementY()));
+    }
+
+    private static Double evaluateLiteral(Expression expression) {
+        if (!(expression instanceof Literal)) {
+            return null;
+        }
+        return expression.evaluate(null, Double.class);
+    }
+
+    /**
+     * Collects the features hit by the rules, stopping at max features
+     */
+    List<SimpleFeature> collect(FeatureCollection<?, ?> features) throws TransformException {
+        List<SimpleFeature> result = new ArrayList<SimpleFeature>();
+        FeatureIterator<?> fi = features.features();
+        try {
+            while (fi.hasNext() && result.size() < maxFeatures) {
+                SimpleFeature feature = (SimpleFeature) fi.next();
+                if (hits(feature)) {
+                    result.add(retype(feature));
+                }
+            }
+        } finally {
+            fi.close();
+        }
+        return result;
+    }
+
+    /**
+     * Checks if the feature would paint any pixel of the hit area. The else rules of each feature
+     * type style apply to the features not matched by the other rules of the same feature type
+     * style, as in the renderer
+     */
+    boolean hits(SimpleFeature feature) throws TransformException {
+        Geometry geometry = (Geometry) feature.getDefaultGeometry();
+        if (geometry == null || geometry.isEmpty()) {
+            return false;
+        }
+        Geometry screen = null;
+        for (List<Rule> ftsRules : rules) {
+            boolean matched = false;
+            for (Rule rule : ftsRules) {
+                if (rule.isElseFilter()) {
+                    continue;
+                }
+                Filter filter = rule.getFilter();
+                if (filter == null || filter.evaluate(feature)) {
+                    matched = true;
+                    if (screen == null) {
+                        screen = JTS.transform(geometry, toScreen);
+                    }
+                    if (hits(rule, feature, screen)) {
+                        return true;
+                    }
+                }
+            }
+            if (!matched) {
+                for (Rule rule : ftsRules) {
+                    if (rule.isElseFilter()) {
+                        if (screen == null) {
+                            screen = JTS.transform(geometry, toScreen);
+                        }
+                        if (hits(rule, feature, screen)) {
+                            return true;
+                        }
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean hits(Rule rule, SimpleFeature feature, Geometry screen) {
+        for (Symbolizer symbolizer : rule.symbolizers()) {
+            if (symbolizer instanceof PointSymbolizer) {
+                if (hits((PointSymbolizer) symbolizer, feature, screen)) {
+                    return true;
+                }
+            } else if (symbolizer instanceof LineSymbolizer) {
+                // lines are painted at least one pixel wide
+                double width = Math.max(getWidth(((LineSymbolizer) symbolizer).getStroke(),
+                        feature), 1);
+                if (getOutline(screen).distance(hitPolygon) <= width / 2) {
+                    return true;
+                }
+            } else if (symbolizer instanceof PolygonSymbolizer) {
+                PolygonSymbolizer ps = (PolygonSymbolizer) symbolizer;
+                Stroke stroke = ps.getStroke();
+                if (isFilled(ps.getFill())) {
+                    if (screen.distance(hitPolygon) <= getWidth(stroke, feature) / 2) {
+                        return true;
+                    }
+                } else if (stroke != null) {
+                    // without a fill only the outline is painted, like a line
+                    double width = Math.max(getWidth(stroke, feature), 1);
+                    if (getOutline(screen).distance(hitPolygon) <= width / 2) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private static Geometry getOutline(Geometry screen) {
+        if (screen instanceof Polygon || screen instanceof MultiPolygon) {
+            return screen.getBoundary();
+        }
+        return screen;
+    }
+
+    private static boolean isFilled(Fill fill) {
+        return fill != null && (fill.getOpacity() == null || !isZero(fill.getOpacity()));
+    }
+
+    private boolean hits(PointSymbolizer symbolizer, SimpleFeature feature, Geometry screen) {
+        Graphic graphic = symbolizer.getGraphic();
+        DynamicBufferEstimator estimator = new DynamicBufferEstimator();
+        estimator.setFeature(feature);
+        graphic.accept(estimator);
+        double size = estimator.buffer > 0 ? estimator.buffer : DEFAULT_MARK_SIZE;
+
+        // the first mark is the one being painted
+        Mark mark = (Mark) graphic.graphicalSymbols().get(0);
+        double radius = (size + getWidth(mark.getStroke(), feature)) / 2;
+        boolean circle = "circle".equals(getShape(mark));
+        for (Coordinate c : screen.getCoordinates()) {
+            double dx = Math.max(Math.max(hitArea.getMinX() - c.x, c.x - hitArea.getMaxX()), 0);
+            double dy = Math.max(Math.max(hitArea.getMinY() - c.y, c.y - hitArea.getMaxY()), 0);
+            if (circle ? dx * dx + dy * dy <= radius * radius : dx <= radius && dy <= radius) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private double getWidth(Stroke stroke, SimpleFeature feature) {
+        if (stroke == null) {
+            return 0;
+        } else if (stroke.getWidth() == null) {
+            return 1;
+        }
+        DynamicBufferEstimator estimator = new DynamicBufferEstimator();
+        estimator.setFeature(feature);
+        stroke.accept(estimator);
+        return estimator.buffer;
+    }
+
+    private SimpleFeature retype(SimpleFeature feature) {
+        if (propertyNames == null) {
+            return feature;
+        }
+        if (retypeBuilder == null) {
+            SimpleFeatureType targetType = SimpleFeatureTypeBuilder.retype(
+                    feature.getFeatureType(), propertyNames);
+            retypeBuilder = new SimpleFeatureBuilder(targetType);
+        }
+        return SimpleFeatureBuilder.retype(feature, retypeBuilder);
+    }
+}
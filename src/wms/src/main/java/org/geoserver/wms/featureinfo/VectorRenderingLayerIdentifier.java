@@ -22,8 +22,10 @@ import java.awt.image.RenderedImage;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
@@ -56,12 +58,15 @@ import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
 import org.geotools.geometry.jts.JTS;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.map.FeatureLayer;
+import org.geotools.referencing.CRS;
 import org.geotools.referencing.operation.transform.AffineTransform2D;
+import org.geotools.referencing.operation.transform.ConcatenatedTransform;
 import org.geotools.renderer.RenderListener;
 import org.geotools.renderer.lite.GraphicsAwareDpiRescaleStyleVisitor;
 import org.geotools.renderer.lite.MetaBufferEstimator;
 import org.geotools.renderer.lite.RendererUtilities;
 import org.geotools.renderer.lite.StreamingRenderer;
+import org.geotools.styling.FeatureTypeStyle;
 import org.geotools.styling.Rule;
 import org.geotools.styling.Style;
 import org.geotools.styling.StyleAttributeExtractor;
@@ -77,6 +82,8 @@ import org.opengis.filter.Filter;
 import org.opengis.filter.FilterFactory2;
 import org.opengis.filter.spatial.BBOX;
 import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.MathTransform;
 import org.opengis.referencing.operation.TransformException;
 
 import com.vividsolutions.jts.geom.Envelope;
@@ -95,6 +102,12 @@ public class VectorRenderingLayerIdentifier extends AbstractVectorLayerIdentifie
     private static final String FEAUTURE_INFO_RENDERING_ENABLED_KEY = "org.geoserver.wms.featureinfo.render.enabled";
     protected static final int MIN_BUFFER_SIZE = Integer.getInteger("org.geoserver.wms.featureinfo.render.minBuffer", 3);
     protected static boolean RENDERING_FEATUREINFO_ENABLED;
+    /**
+     * When enabled, styles whose painted area can be computed geometrically (see
+     * {@link FeatureHitTester}) are checked without rendering them
+     */
+    static boolean HIT_TESTING_ENABLED = Boolean
+            .getBoolean("org.geoserver.wms.featureinfo.hitTest.enabled");
     
     private WMS wms;
     private VectorBasicLayerIdentifier fallback;
@@ -143,6 +156,8 @@ public class VectorRenderingLayerIdentifier extends AbstractVectorLayerIdentifie
         if (rules.size() == 0) {
             return null;
         }
+        // the rescaling below replaces the rules, remember which feature type style they are from
+        final List<Integer> ruleCounts = getActiveRuleCounts(style, rules);
         GetMapRequest getMap = params.getGetMapRequest();
         WMSMapContent mc = new WMSMapContent(getMap);
         try {
@@ -153,6 +168,8 @@ public class VectorRenderingLayerIdentifier extends AbstractVectorLayerIdentifie
             mc.setMapWidth(getMap.getWidth());
             mc.setMapHeight(getMap.getHeight());
             FeatureLayer layer = getLayer(params, style);
+            // the search radius estimation modifies the layer query
+            Query hitTestQuery = new Query(layer.getQuery());
             mc.addLayer(layer);
             // setup the env variables just like in the original GetMap
             RenderingVariables.setupEnvironmentVariables(mc);
@@ -174,6 +191,16 @@ public class VectorRenderingLayerIdentifier extends AbstractVectorLayerIdentifie
                     params.getY() - radius, params.getY() + radius);
             Envelope targetModelSpace = JTS.transform(targetRasterSpace, new AffineTransform2D(screenToWorld));
             
+            // no need to paint if the hits can be computed geometrically
+            List<List<Rule>> ftsRules = groupRules(rules, ruleCounts);
+            if (HIT_TESTING_ENABLED
+                    && FeatureHitTester.isSupported(style, ftsRules, (SimpleFeatureType) layer
+                            .getFeatureSource().getSchema())) {
+                List<SimpleFeature> features = hitTest(params, ftsRules, layer, hitTestQuery,
+                        targetModelSpace, worldToScreen, buffer, maxFeatures);
+                return aggregateByFeatureType(features);
+            }
+
             // prepare the image we are going to check rendering against
             int paintAreaSize = radius * 2 + 1;
             final BufferedImage image = ImageTypeSpecifier.createFromBufferedImageType(
@@ -236,6 +263,80 @@ public class VectorRenderingLayerIdentifier extends AbstractVectorLayerIdentifie
         }
     }
 
+    /**
+     * Returns the number of active rules in each feature type style of the style
+     */
+    private List<Integer> getActiveRuleCounts(Style style, List<Rule> rules) {
+        Set<Rule> active = Collections.newSetFromMap(new IdentityHashMap<Rule, Boolean>());
+        active.addAll(rules);
+        List<Integer> counts = new ArrayList<Integer>();
+        for (FeatureTypeStyle fts : style.featureTypeStyles()) {
+            int count = 0;
+            for (Rule rule : fts.rules()) {
+                if (active.contains(rule)) {
+                    count++;
+                }
+            }
+            counts.add(count);
+        }
+        return counts;
+    }
+
+    /**
+     * Splits the active rules by feature type style, given the number of rules of each
+     */
+    private List<List<Rule>> groupRules(List<Rule> rules, List<Integer> counts) {
+        List<List<Rule>> result = new ArrayList<List<Rule>>();
+        int start = 0;
+        for (int count : counts) {
+            result.add(rules.subList(start, start + count));
+            start += count;
+        }
+        return result;
+    }
+
+    private List<SimpleFeature> hitTest(FeatureInfoRequestParameters params, List<List<Rule>> rules,
+            FeatureLayer layer, Query query, Envelope targetModelSpace,
+            AffineTransform worldToScreen, int buffer, int maxFeatures) throws Exception {
+        FeatureSource<?, ?> fs = layer.getFeatureSource();
+        SimpleFeatureType schema = (SimpleFeatureType) fs.getSchema();
+        CoordinateReferenceSystem nativeCrs = schema.getCoordinateReferenceSystem();
+        CoordinateReferenceSystem mapCrs = params.getGetMapRequest().getCrs();
+
+        // build the native to screen transformation and the area to be searched
+        ReferencedEnvelope searchArea = new ReferencedEnvelope(targetModelSpace, mapCrs);
+        MathTransform toScreen = new AffineTransform2D(worldToScreen);
+        if (nativeCrs != null && mapCrs != null && !CRS.equalsIgnoreMetadata(nativeCrs, mapCrs)) {
+            searchArea = searchArea.transform(nativeCrs, true);
+            toScreen = ConcatenatedTransform.create(
+                    CRS.findMathTransform(nativeCrs, mapCrs, true), toScreen);
+        }
+
+        // only load the features in the search area, and the attributes the rules need
+        BBOX bbox = FF.bbox(FF.property(""), searchArea);
+        if (query.getFilter() == null || query.getFilter() == Filter.INCLUDE) {
+            query.setFilter(bbox);
+        } else {
+            query.setFilter(FF.and(query.getFilter(), bbox));
+        }
+        StyleAttributeExtractor extractor = new StyleAttributeExtractor();
+        for (List<Rule> ftsRules : rules) {
+            for (Rule rule : ftsRules) {
+                rule.accept(extractor);
+            }
+        }
+        Set<String> names = new LinkedHashSet<String>(Arrays.asList(extractor.getAttributeNames()));
+        names.add(schema.getGeometryDescriptor().getLocalName());
+        query.setPropertyNames(names.toArray(new String[names.size()]));
+
+        // same pixels as the hit area checked by the rendering listener
+        Envelope hitArea = new Envelope(params.getX() - buffer, params.getX() + buffer + 1,
+                params.getY() - buffer, params.getY() + buffer + 1);
+        FeatureHitTester tester = new FeatureHitTester(rules, toScreen, hitArea, maxFeatures,
+                params.getPropertyNames());
+        return tester.collect(fs.getFeatures(query));
+    }
+
     private void rescaleRules(List<Rule> rules, FeatureInfoRequestParameters params) {
         Map<Object, Object> rendererParams = new HashMap<Object, Object>();
         Integer requestedDpi = ((Integer) params.getGetMapRequest().getFormatOptions().get("dpi"));
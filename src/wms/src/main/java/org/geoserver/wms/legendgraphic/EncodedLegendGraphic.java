@@ -0,0 +1,41 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.legendgraphic;
+
+/**
+ * An already encoded legend graphic, as served by the {@link LegendGraphicCache}
+ * 
+ * @see EncodedLegendGraphicResponse
+ */
+public class EncodedLegendGraphic {
+
+    private byte[] legend;
+
+    private String mimeType;
+
+    private String etag;
+
+    public EncodedLegendGraphic(byte[] legend, String mimeType, String etag) {
+        this.legend = legend;
+        this.mimeType = mimeType;
+        this.etag = etag;
+    }
+
+    public byte[] getLegend() {
+        return legend;
+    }
+
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    /**
+     * The entity tag identifying the legend contents
+     */
+    public String getEtag() {
+        return etag;
+    }
+}
@@ -0,0 +1,50 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.legendgraphic;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.geoserver.ows.Response;
+import org.geoserver.ows.util.OwsUtils;
+import org.geoserver.platform.Operation;
+import org.geoserver.platform.ServiceException;
+import org.geoserver.wms.GetLegendGraphicRequest;
+import org.springframework.util.Assert;
+
+/**
+ * OWS {@link Response} writing out an {@link EncodedLegendGraphic}, along with its ETag
+ */
+public class EncodedLegendGraphicResponse extends Response {
+
+    public EncodedLegendGraphicResponse() {
+        super(EncodedLegendGraphic.class);
+    }
+
+    @Override
+    public boolean canHandle(Operation operation) {
+        return OwsUtils.parameter(operation.getParameters(), GetLegendGraphicRequest.class) != null;
+    }
+
+    @Override
+    public String getMimeType(Object value, Operation operation) throws ServiceException {
+        Assert.isInstanceOf(EncodedLegendGraphic.class, value);
+        return ((EncodedLegendGraphic) value).getMimeType();
+    }
+
+    @Override
+    public String[][] getHeaders(Object value, Operation operation) throws ServiceException {
+        Assert.isInstanceOf(EncodedLegendGraphic.class, value);
+        return new String[][] { { "ETag", ((EncodedLegendGraphic) value).getEtag() } };
+    }
+
+    @Override
+    public void write(Object value, OutputStream output, Operation operation) throws IOException,
+            ServiceException {
+        Assert.isInstanceOf(EncodedLegendGraphic.class, value);
+        output.write(((EncodedLegendGraphic) value).getLegend());
+    }
+}
@@ -0,0 +1,334 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.legendgraphic;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.CatalogInfo;
+import org.geoserver.catalog.LayerGroupInfo;
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.ResourceInfo;
+import org.geoserver.catalog.StyleInfo;
+import org.geoserver.catalog.WorkspaceInfo;
+import org.geoserver.catalog.event.CatalogAddEvent;
+import org.geoserver.catalog.event.CatalogEvent;
+import org.geoserver.catalog.event.CatalogListener;
+import org.geoserver.catalog.event.CatalogModifyEvent;
+import org.geoserver.catalog.event.CatalogPostModifyEvent;
+import org.geoserver.catalog.event.CatalogRemoveEvent;
+import org.geoserver.ows.Dispatcher;
+import org.geoserver.ows.HttpErrorCodeException;
+import org.geoserver.ows.LocalLayer;
+import org.geoserver.ows.LocalWorkspace;
+import org.geoserver.ows.Request;
+import org.geoserver.ows.Response;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.platform.Operation;
+import org.geoserver.platform.ServiceException;
+import org.geoserver.wms.GetLegendGraphicOutputFormat;
+import org.geoserver.wms.GetLegendGraphicRequest;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+/**
+ * Cache of the encoded legend graphics, so that clients asking for the legends on every map
+ * refresh do not pay for the style rescaling, sample drawing and text rendering every time.
+ * <p>
+ * Legends are cached by request parameters (layer, style, rule, size, format, scale, legend
+ * options, and so on), virtual service, user and roles. Requests referencing a remote SLD are not
+ * cached. The whole cache is cleared whenever a style, or a layer, layer group, resource or
+ * workspace legends could be built from, is added, modified or removed in the catalog.
+ * </p>
+ * <p>
+ * Cached legends are served with an ETag, and requests carrying a matching If-None-Match header
+ * get back a 304 with no content.
+ * </p>
+ */
+public class LegendGraphicCache {
+
+    /**
+     * System property setting the number of legends kept by the cache, zero disables caching
+     */
+    public static final String CACHE_SIZE = "org.geoserver.wms.legendGraphicCacheSize";
+
+    static final int DEFAULT_CACHE_SIZE = 100;
+
+    /**
+     * Legends larger than this are not cached
+     */
+    static final int MAX_LEGEND_SIZE = 1024 * 1024;
+
+    final int maxEntries;
+
+    final Map<String, CacheEntry> cache;
+
+    /**
+     * Incremented on every invalidation, legends built across an invalidation are not cached
+     */
+    long generation;
+
+    AtomicLong hits = new AtomicLong();
+
+    AtomicLong misses = new AtomicLong();
+
+    public LegendGraphicCache(Catalog catalog) {
+        this(Integer.getInteger(CACHE_SIZE, DEFAULT_CACHE_SIZE));
+        catalog.addListener(new CatalogListener() {
+
+            public void handleAddEvent(CatalogAddEvent event) {
+                clear(event);
+            }
+
+            public void handleRemoveEvent(CatalogRemoveEvent event) {
+                clear(event);
+            }
+
+            public void handleModifyEvent(CatalogModifyEvent event) {
+                clear(event);
+            }
+
+            public void handlePostModifyEvent(CatalogPostModifyEvent event) {
+                clear(event);
+            }
+
+            public void reloaded() {
+                clear();
+            }
+        });
+    }
+
+    LegendGraphicCache(final int maxEntries) {
+        this.maxEntries = maxEntries;
+        this.cache = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns false if caching has been disabled with the {@link #CACHE_SIZE} system property
+     */
+    public boolean isEnabled() {
+        return maxEntries > 0;
+    }
+
+    /**
+     * Returns the legend graphic for the current request, as an {@link EncodedLegendGraphic} if it
+     * could be cached, or as built by the output format otherwise
+     *
+     * @throws HttpErrorCodeException with a 304 code if the client already has the legend
+     */
+    public Object getLegendGraphic(GetLegendGraphicRequest request,
+            GetLegendGraphicOutputFormat format) throws ServiceException {
+        Request owsRequest = Dispatcher.REQUEST.get();
+        String key = isEnabled() ? getKey(owsRequest) : null;
+        if (key == null) {
+            return format.produceLegendGraphic(request);
+        }
+
+        CacheEntry entry;
+        synchronized (cache) {
+            entry = cache.get(key);
+        }
+        if (entry != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+            long generation = getGeneration();
+            Object legend = format.produceLegendGraphic(request);
+            Operation operation = owsRequest.getOperation();
+            Response response = getResponse(legend, operation);
+            if (response == null) {
+                return legend;
+            }
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                response.write(legend, bytes, operation);
+                entry = new CacheEntry(bytes.toByteArray(), response.getMimeType(legend,
+                        operation));
+            } catch (IOException e) {
+                throw new ServiceException("Failed to encode the legend graphic", e);
+            }
+            put(key, entry, generation);
+        }
+
+        if (matches(owsRequest.getHttpRequest().getHeader("If-None-Match"), entry.etag)) {
+            if (owsRequest.getHttpResponse() != null) {
+                owsRequest.getHttpResponse().setHeader("ETag", entry.etag);
+            }
+            throw new HttpErrorCodeException(HttpServletResponse.SC_NOT_MODIFIED);
+        }
+        return new EncodedLegendGraphic(entry.legend, entry.mimeType, entry.etag);
+    }
+
+    boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Looks up the response encoding the legend, only legend images are cached
+     */
+    Response getResponse(Object legend, Operation operation) {
+        if (!(legend instanceof BufferedImageLegendGraphic) || operation == null) {
+            return null;
+        }
+        for (Response response : GeoServerExtensions.extensions(Response.class)) {
+            if (response.getBinding().isInstance(legend) && response.canHandle(operation)) {
+                return response;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the cache key for the request, or null if the request cannot be cached
+     */
+    String getKey(Request request) {
+        if (request == null || !request.isGet() || request.getHttpRequest() == null
+                || request.getRawKvp() == null
+                || !"GetLegendGraphic".equalsIgnoreCase(request.getRequest())) {
+            return null;
+        }
+        // parameters, sorted so that equivalent requests share the same key
+        Map<String, String> kvp = new TreeMap<String, String>();
+        for (Object o : request.getRawKvp().entrySet()) {
+            Map.Entry e = (Map.Entry) o;
+            Object value = e.getValue();
+            kvp.put(String.valueOf(e.getKey()).toUpperCase(),
+                    value instanceof Object[] ? Arrays.toString((Object[]) value) : String
+                            .valueOf(value));
+        }
+        // remote styles can change behind our back
+        if (kvp.containsKey("SLD")) {
+            return null;
+        }
+
+        HttpServletRequest http = request.getHttpRequest();
+        StringBuilder sb = new StringBuilder();
+        sb.append(http.getRequestURL()).append('|').append(kvp);
+        WorkspaceInfo workspace = LocalWorkspace.get();
+        sb.append('|').append(workspace != null ? workspace.getName() : null);
+        LayerInfo layer = LocalLayer.get();
+        sb.append('|').append(layer != null ? layer.getName() : null);
+
+        Authentication user = SecurityContextHolder.getContext().getAuthentication();
+        if (user != null) {
+            sb.append('|').append(user.getName());
+            List<String> roles = new ArrayList<String>();
+            for (GrantedAuthority authority : user.getAuthorities()) {
+                roles.add(authority.getAuthority());
+            }
+            Collections.sort(roles);
+            sb.append('|').append(roles);
+        }
+        return sb.toString();
+    }
+
+    long getGeneration() {
+        synchronized (cache) {
+            return generation;
+        }
+    }
+
+    void put(String key, CacheEntry entry, long generation) {
+        if (entry.legend.length > MAX_LEGEND_SIZE) {
+            return;
+        }
+        synchronized (cache) {
+            if (this.generation == generation) {
+                cache.put(key, entry);
+            }
+        }
+    }
+
+    void clear(CatalogEvent event) {
+        CatalogInfo source = event.getSource();
+        if (source instanceof StyleInfo || source instanceof LayerInfo
+                || source instanceof LayerGroupInfo || source instanceof ResourceInfo
+                || source instanceof WorkspaceInfo) {
+            clear();
+        }
+    }
+
+    /**
+     * Removes all the cached legends
+     */
+    public void clear() {
+        synchronized (cache) {
+            generation++;
+            cache.clear();
+        }
+    }
+
+    /**
+     * The number of legends served by the cache
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * The number of legends that had to be built
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    static class CacheEntry {
+        byte[] legend;
+
+        String mimeType;
+
+        String etag;
+
+        CacheEntry(byte[] legend, String mimeType) {
+            this.legend = legend;
+            this.mimeType = mimeType;
+            this.etag = computeEtag(legend);
+        }
+
+        static String computeEtag(byte[] legend) {
+            try {
+                byte[] hash = MessageDigest.getInstance("MD5").digest(legend);
+                StringBuilder sb = new StringBuilder("\"");
+                for (byte b : hash) {
+                    sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+                    sb.append(Character.forDigit(b & 0xF, 16));
+                }
+                return sb.append('"').toString();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("MD5 is not available", e);
+            }
+        }
+    }
+}
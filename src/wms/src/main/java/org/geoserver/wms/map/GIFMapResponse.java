@@ -34,6 +34,7 @@ import org.geoserver.wms.RasterCleaner;
 import org.geoserver.wms.WMS;
 import org.geoserver.wms.WMSMapContent;
 import org.geotools.image.ImageWorker;
+import org.geotools.image.palette.InverseColorMapOp;
 import org.geotools.resources.image.ImageUtilities;
 import org.geotools.util.logging.Logging;
 
@@ -59,6 +60,8 @@ public final class GIFMapResponse extends RenderedImageMapResponse {
 
     private static final String GIF_LOOP_CONTINUOUSLY = "gif_loop_continuously";
 
+    private static final String GIF_SHARED_PALETTE = "gif_shared_palette";
+
     private final static Logger LOGGER = Logging.getLogger(GIFMapResponse.class);
 
     public static final String IMAGE_GIF_SUBTYPE_ANIMATED = "image/gif;subtype=animated";
@@ -198,6 +201,15 @@ public final class GIFMapResponse extends RenderedImageMapResponse {
             if (delay <= 0)
                 throw new ServiceException("Animate GIF delay invalid: " + delay);
 
+            // on request, and unless the user provided a palette, all frames use the palette
+            // computed for the first one, which saves quantizing every frame and keeps the colors
+            // stable, but loses the colors that only show up in later frames
+            Object sharedPaletteString = request.getFormatOptions().get(GIF_SHARED_PALETTE);
+            final boolean sharePalette = mapContent.getPalette() == null
+                    && sharedPaletteString != null
+                    && Boolean.valueOf((String) sharedPaletteString);
+            InverseColorMapOp sharedPalette = null;
+
             //
             // Getting input files
             //
@@ -207,7 +219,15 @@ public final class GIFMapResponse extends RenderedImageMapResponse {
                 // get the image
                 RenderedImage ri = (RenderedImage) ril.get(i);
                 // convert it to gif compatible
-                ri = applyPalette(ri, mapContent, MIME_TYPE, false);
+                if (sharedPalette != null && !(ri.getColorModel() instanceof IndexColorModel)) {
+                    ri = forceIndexed8Bitmask(ri, sharedPalette);
+                } else {
+                    ri = applyPalette(ri, mapContent, MIME_TYPE, false);
+                    if (sharePalette && sharedPalette == null && ri != null
+                            && ri.getColorModel() instanceof IndexColorModel) {
+                        sharedPalette = new InverseColorMapOp((IndexColorModel) ri.getColorModel());
+                    }
+                }
                 if (ri != null) {
                     // prepare metadata and write param
                     final IIOMetadata imageMetadata = gifWriter.getDefaultImageMetadata(
@@ -0,0 +1,232 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.map;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.awt.image.RenderedImage;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Queue;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of the images used as drawing surfaces by {@link RenderedImageMapOutputFormat}, allows to
+ * reuse the large buffers backing the images across requests instead of allocating new ones for
+ * each GetMap.
+ * <p>
+ * Images are handed out by {@link #acquire(int, int, IndexColorModel, boolean)} and go back in the
+ * pool only when explicitly released with {@link #release(RenderedImage)}, which should be called
+ * only once the image has been fully encoded and is not referenced anymore. Images that are not
+ * released (e.g., because they got split into meta tiles, or kept around by the animator) are
+ * simply garbage collected.
+ * </p>
+ * <p>
+ * The total memory of the pooled images is capped by the
+ * {@code org.geoserver.wms.imageBufferPool.maxMemory} system property (in bytes), setting it to
+ * zero disables the pool.
+ * </p>
+ */
+public class ImageBufferPool {
+
+    /**
+     * System property setting the max memory, in bytes, of the pooled images
+     */
+    public static final String MAX_MEMORY = "org.geoserver.wms.imageBufferPool.maxMemory";
+
+    static final long DEFAULT_MAX_MEMORY = 64 * 1024 * 1024;
+
+    static final ImageBufferPool INSTANCE = new ImageBufferPool(Long.getLong(MAX_MEMORY,
+            DEFAULT_MAX_MEMORY));
+
+    /**
+     * Returns the pool shared by all the rendering requests
+     */
+    public static ImageBufferPool get() {
+        return INSTANCE;
+    }
+
+    long maxMemory;
+
+    ConcurrentHashMap<ImageKey, Queue<BufferedImage>> pool = new ConcurrentHashMap<ImageKey, Queue<BufferedImage>>();
+
+    /**
+     * The images handed out and not yet released
+     */
+    Map<BufferedImage, ImageKey> acquired = Collections
+            .synchronizedMap(new WeakHashMap<BufferedImage, ImageKey>());
+
+    AtomicLong memory = new AtomicLong();
+
+    AtomicLong hits = new AtomicLong();
+
+    AtomicLong misses = new AtomicLong();
+
+    ImageBufferPool(long maxMemory) {
+        this.maxMemory = maxMemory;
+    }
+
+    /**
+     * Returns an image with the same structure as the one created by
+     * {@link ImageUtils#createImage(int, int, IndexColorModel, boolean)}, reusing a pooled one if
+     * available. Reused images are cleared before being returned.
+     */
+    public BufferedImage acquire(int width, int height, IndexColorModel palette,
+            boolean transparent) {
+        if (maxMemory <= 0) {
+            return ImageUtils.createImage(width, height, palette, transparent);
+        }
+
+        ImageKey key = new ImageKey(width, height, palette, transparent);
+        BufferedImage image = null;
+        Queue<BufferedImage> images = pool.get(key);
+        if (images != null) {
+            image = images.poll();
+        }
+        if (image != null) {
+            memory.addAndGet(-key.getMemory());
+            hits.incrementAndGet();
+            clear(image);
+        } else {
+            misses.incrementAndGet();
+            image = ImageUtils.createImage(width, height, palette, transparent);
+        }
+        acquired.put(image, key);
+        return image;
+    }
+
+    /**
+     * Gives back an image to the pool. Images that were not handed out by this pool are ignored.
+     *
+     * @return true if the image was returned to the pool, false otherwise
+     */
+    public boolean release(RenderedImage image) {
+        if (!(image instanceof BufferedImage)) {
+            return false;
+        }
+        ImageKey key = acquired.remove(image);
+        if (key == null) {
+            return false;
+        }
+
+        long size = key.getMemory();
+        if (memory.addAndGet(size) > maxMemory) {
+            memory.addAndGet(-size);
+            return false;
+        }
+        Queue<BufferedImage> images = pool.get(key);
+        if (images == null) {
+            images = new ConcurrentLinkedQueue<BufferedImage>();
+            Queue<BufferedImage> existing = pool.putIfAbsent(key, images);
+            if (existing != null) {
+                images = existing;
+            }
+        }
+        images.offer((BufferedImage) image);
+        return true;
+    }
+
+    void clear(BufferedImage image) {
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        if (buffer instanceof DataBufferByte) {
+            for (byte[] bank : ((DataBufferByte) buffer).getBankData()) {
+                Arrays.fill(bank, (byte) 0);
+            }
+        } else {
+            for (int b = 0; b < buffer.getNumBanks(); b++) {
+                for (int i = 0; i < buffer.getSize(); i++) {
+                    buffer.setElem(b, i, 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes all the pooled images
+     */
+    public void clear() {
+        for (Map.Entry<ImageKey, Queue<BufferedImage>> entry : pool.entrySet()) {
+            Queue<BufferedImage> images = entry.getValue();
+            while (images.poll() != null) {
+                memory.addAndGet(-entry.getKey().getMemory());
+            }
+        }
+    }
+
+    /**
+     * The number of images reused from the pool
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * The number of images that had to be allocated because the pool did not have a suitable one
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * The memory used by the pooled images, in bytes
+     */
+    public long getMemory() {
+        return memory.get();
+    }
+
+    /**
+     * The structure of a pooled image. Palettes are compared by identity since the palettes used
+     * for rendering are shared, and {@link IndexColorModel} does not compare the color entries in
+     * its equals method
+     */
+    static class ImageKey {
+        int width;
+
+        int height;
+
+        IndexColorModel palette;
+
+        boolean transparent;
+
+        ImageKey(int width, int height, IndexColorModel palette, boolean transparent) {
+            this.width = width;
+            this.height = height;
+            this.palette = palette;
+            this.transparent = transparent;
+        }
+
+        long getMemory() {
+            return ImageUtils.getDrawingSurfaceMemoryUse(width, height, palette, transparent);
+        }
+
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + height;
+            result = prime * result + System.identityHashCode(palette);
+            result = prime * result + (transparent ? 1231 : 1237);
+            result = prime * result + width;
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof ImageKey)) {
+                return false;
+            }
+            ImageKey other = (ImageKey) obj;
+            return width == other.width && height == other.height
+                    && palette == other.palette && transparent == other.transparent;
+        }
+    }
+}
@@ -15,6 +15,7 @@ import java.io.File;
 import java.io.IOException;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -120,25 +121,21 @@ public final class MetatileMapOutputFormat implements GetMapOutputFormat {
      * 
      * @see org.geoserver.wms.GetMapOutputFormat#produceMap(org.geoserver.wms.WMSMapContent)
      */
-    public WebMap produceMap(WMSMapContent mapContent) throws ServiceException, IOException {
+    public WebMap produceMap(final WMSMapContent mapContent) throws ServiceException,
+            IOException {
         // get the key that identifies the meta tile. The cache will make sure
-        // two threads asking
-        // for the same tile will get the same key, and thus will synchronize
-        // with each other
-        // (the first eventually builds the meta-tile, the second finds it ready
-        // to be used)
-        QuickTileCache.MetaTileKey key = tileCache.getMetaTileKey(request);
-
-        synchronized (key) {
-            RenderedImage tile = tileCache.getTile(key, request);
-            List<GridCoverage2D> renderedCoverages = null;
-
-            if (LOGGER.isLoggable(Level.FINER)) {
-                LOGGER.finer("Looked for meta tile " + key.metaTileCoords.x + ", "
-                        + key.metaTileCoords.y + "in cache: " + ((tile != null) ? "hit!" : "miss"));
-            }
+        // two threads asking for the same meta tile will not render it twice
+        // (the first eventually builds the meta-tile, the second waits for it
+        // or finds it ready to be used), while different meta tiles are
+        // rendered in parallel
+        final QuickTileCache.MetaTileKey key = tileCache.getMetaTileKey(request);
+        final List<GridCoverage2D>[] renderedCoverages = new List[1];
+        final boolean[] rendered = new boolean[1];
+
+        RenderedImage[] tiles = tileCache.getTiles(key, new Callable<RenderedImage[]>() {
 
-            if (tile == null) {
+            @Override
+            public RenderedImage[] call() throws Exception {
                 // compute the meta-tile
                 if (LOGGER.isLoggable(Level.FINER)) {
                     LOGGER.finer("Building meta tile " + key.metaTileCoords.x + ", "
@@ -164,15 +161,21 @@ public final class MetatileMapOutputFormat implements GetMapOutputFormat {
                 RenderedImageMap metaTileMap = delegate.produceMap(mapContent);
 
                 RenderedImage metaTile = metaTileMap.getImage();
-                RenderedImage[] tiles = split(key, metaTile, mapContent);
-                tileCache.storeTiles(key, tiles);
-                tile = tileCache.getTile(key, request, tiles);
-                renderedCoverages = metaTileMap.getRenderedCoverages();
+                renderedCoverages[0] = metaTileMap.getRenderedCoverages();
+                rendered[0] = true;
+                return split(key, metaTile, mapContent);
             }
-            RenderedImageMap tileMap = new RenderedImageMap(mapContent, tile, getMimeType());
-            tileMap.setRenderedCoverages(renderedCoverages);
-            return tileMap;
+        });
+
+        if (LOGGER.isLoggable(Level.FINER)) {
+            LOGGER.finer("Got meta tile " + key.metaTileCoords.x + ", " + key.metaTileCoords.y
+                    + (rendered[0] ? " by rendering it" : " from cache"));
         }
+
+        RenderedImage tile = tileCache.getTile(key, request, tiles);
+        RenderedImageMap tileMap = new RenderedImageMap(mapContent, tile, getMimeType());
+        tileMap.setRenderedCoverages(renderedCoverages[0]);
+        return tileMap;
     }
 
     /**
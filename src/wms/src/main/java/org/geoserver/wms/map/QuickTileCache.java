@@ -7,14 +7,22 @@ package org.geoserver.wms.map;
 
 import java.awt.Point;
 import java.awt.geom.Point2D;
+import java.awt.image.DataBuffer;
 import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.io.IOException;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
-import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.lang.builder.EqualsBuilder;
 import org.apache.commons.lang.builder.HashCodeBuilder;
@@ -31,7 +39,6 @@ import org.geoserver.wms.GetMapRequest;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.referencing.CRS;
 import org.geotools.referencing.CRS.AxisOrder;
-import org.geotools.util.CanonicalSet;
 
 import com.vividsolutions.jts.geom.Envelope;
 
@@ -55,26 +62,55 @@ public class QuickTileCache implements TransactionListener, GeoServerLifecycleHa
     }
 
     /**
-     * Canonicalizer used to return the same object when two threads ask for the same meta-tile
+     * System property setting the max amount of memory, in bytes, used by the cached tiles
      */
-    private CanonicalSet<MetaTileKey> metaTileKeys = CanonicalSet.newInstance(MetaTileKey.class);
+    public static final String MAX_MEMORY = "org.geoserver.wms.metaTileCache.maxMemory";
 
-    private WeakHashMap tileCache = new WeakHashMap();
+    static final long DEFAULT_MAX_MEMORY = 32 * 1024 * 1024;
+
+    /**
+     * The cached meta tiles, in access order, guarded by synchronizing on the map itself
+     */
+    private LinkedHashMap<MetaTileKey, CacheElement> tileCache = new LinkedHashMap<MetaTileKey, CacheElement>(
+            16, 0.75f, true);
+
+    /**
+     * The meta tiles being rendered. Requests for a meta tile that is already being rendered wait
+     * for that rendering to complete instead of starting a new one
+     */
+    private ConcurrentHashMap<MetaTileKey, FutureTask<RenderedImage[]>> inFlight = new ConcurrentHashMap<MetaTileKey, FutureTask<RenderedImage[]>>();
+
+    /**
+     * Incremented on each clear, used to avoid caching tiles rendered before the clear
+     */
+    private long generation;
+
+    private long maxMemory = Long.getLong(MAX_MEMORY, DEFAULT_MAX_MEMORY);
+
+    private long memory;
+
+    private AtomicLong hits = new AtomicLong();
+
+    private AtomicLong misses = new AtomicLong();
+
+    private AtomicLong coalesced = new AtomicLong();
+
+    private AtomicLong evictions = new AtomicLong();
 
     public QuickTileCache(GeoServer geoServer) {
         geoServer.addListener(new ConfigurationListenerAdapter() {
             public void handleGlobalChange(GeoServerInfo global, List<String> propertyNames,
                     List<Object> oldValues, List<Object> newValues) {
-                tileCache.clear();
+                clear();
             }
 
             public void handleServiceChange(ServiceInfo service, List<String> propertyNames,
                     List<Object> oldValues, List<Object> newValues) {
-                tileCache.clear();
+                clear();
             }
 
             public void reloaded() {
-                tileCache.clear();
+                clear();
             }
         });
     }
@@ -85,10 +121,16 @@ public class QuickTileCache implements TransactionListener, GeoServerLifecycleHa
     QuickTileCache() {
     }
 
+    /**
+     * For testing only
+     */
+    QuickTileCache(long maxMemory) {
+        this.maxMemory = maxMemory;
+    }
+
     /**
      * Given a tiled request, builds a key that can be used to access the cache looking for a
-     * specific meta-tile, and also as a synchronization tool to avoid multiple requests to trigger
-     * parallel computation of the same meta-tile
+     * specific meta-tile
      * 
      * @param request
      * @return
@@ -111,12 +153,7 @@ public class QuickTileCache implements TransactionListener, GeoServerLifecycleHa
         Point tileCoords = getTileCoordinates(bbox, origin);
         Point metaTileCoords = getMetaTileCoordinates(tileCoords);
         ReferencedEnvelope metaTileEnvelope = getMetaTileEnvelope(bbox, tileCoords, metaTileCoords);
-        MetaTileKey key = new MetaTileKey(mapKey, metaTileCoords, metaTileEnvelope);
-
-        // since this will be used for thread synchronization, we have to make
-        // sure two thread asking for the same meta tile will get the same key
-        // object
-        return metaTileKeys.unique(key);
+        return new MetaTileKey(mapKey, metaTileCoords, metaTileEnvelope);
     }
 
     private ReferencedEnvelope getMetaTileEnvelope(ReferencedEnvelope bbox, Point tileCoords, Point metaTileCoords) {
@@ -335,16 +372,79 @@ public class QuickTileCache implements TransactionListener, GeoServerLifecycleHa
      * @param request
      * @return
      */
-    public synchronized RenderedImage getTile(MetaTileKey key, GetMapRequest request) {
-        CacheElement ce = (CacheElement) tileCache.get(key);
+    public RenderedImage getTile(MetaTileKey key, GetMapRequest request) {
+        CacheElement ce;
+        synchronized (tileCache) {
+            ce = tileCache.get(key);
+        }
 
         if (ce == null) {
             return null;
         }
 
+        hits.incrementAndGet();
         return getTile(key, request, ce.tiles);
     }
 
+    /**
+     * Returns the tiles of the specified meta tile, either from the cache or by calling the
+     * renderer and caching its result. If another request is already rendering the same meta tile
+     * the call waits for that rendering to complete and returns its tiles, while requests for
+     * other meta tiles proceed in parallel.
+     * 
+     * @param key
+     * @param renderer
+     * @return
+     */
+    public RenderedImage[] getTiles(MetaTileKey key, Callable<RenderedImage[]> renderer)
+            throws IOException {
+        CacheElement ce;
+        synchronized (tileCache) {
+            ce = tileCache.get(key);
+        }
+        if (ce != null) {
+            hits.incrementAndGet();
+            return ce.tiles;
+        }
+
+        FutureTask<RenderedImage[]> task = new FutureTask<RenderedImage[]>(renderer);
+        FutureTask<RenderedImage[]> running = inFlight.putIfAbsent(key, task);
+        if (running == null) {
+            misses.incrementAndGet();
+            long startGeneration = getGeneration();
+            try {
+                task.run();
+                RenderedImage[] tiles = getResult(task);
+                storeTiles(key, tiles, startGeneration);
+                return tiles;
+            } finally {
+                inFlight.remove(key, task);
+            }
+        } else {
+            coalesced.incrementAndGet();
+            return getResult(running);
+        }
+    }
+
+    private RenderedImage[] getResult(FutureTask<RenderedImage[]> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ServiceException("Interrupted while waiting for the meta tile rendering", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new ServiceException("Failed to render the meta tile", cause);
+        }
+    }
+
     /**
      * 
      * @param key
@@ -364,22 +464,120 @@ public class QuickTileCache implements TransactionListener, GeoServerLifecycleHa
     }
 
     /**
-     * Puts the specified tile array in the cache, and returns the tile the request was looking for
+     * Puts the specified tile array in the cache, evicting the least recently used meta tiles if
+     * the cache goes beyond its max memory
      * 
      * @param key
-     * @param request
      * @param tiles
-     * @return
      */
-    public synchronized void storeTiles(MetaTileKey key, RenderedImage[] tiles) {
-        tileCache.put(key, new CacheElement(tiles));
+    public void storeTiles(MetaTileKey key, RenderedImage[] tiles) {
+        storeTiles(key, tiles, getGeneration());
+    }
+
+    void storeTiles(MetaTileKey key, RenderedImage[] tiles, long startGeneration) {
+        CacheElement ce = new CacheElement(tiles);
+        synchronized (tileCache) {
+            if (startGeneration != generation || ce.memory > maxMemory) {
+                // the cache was cleared while rendering, or the tiles cannot be cached at all
+                return;
+            }
+
+            CacheElement old = tileCache.put(key, ce);
+            if (old != null) {
+                memory -= old.memory;
+            }
+            memory += ce.memory;
+
+            Iterator<CacheElement> it = tileCache.values().iterator();
+            while (memory > maxMemory && it.hasNext()) {
+                CacheElement eldest = it.next();
+                it.remove();
+                memory -= eldest.memory;
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    private long getGeneration() {
+        synchronized (tileCache) {
+            return generation;
+        }
+    }
+
+    /**
+     * Removes all the cached tiles
+     */
+    public void clear() {
+        synchronized (tileCache) {
+            tileCache.clear();
+            memory = 0;
+            generation++;
+        }
+    }
+
+    /**
+     * The number of requests served by a cached meta tile
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * The number of meta tiles rendered through {@link #getTiles(MetaTileKey, Callable)}
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * The number of requests that waited for the rendering of the same meta tile by another
+     * request, instead of rendering it again
+     */
+    public long getCoalesced() {
+        return coalesced.get();
     }
 
-    class CacheElement {
+    /**
+     * The number of meta tiles evicted to keep the cache within its max memory
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * The estimated memory used by the cached tiles, in bytes
+     */
+    public long getMemory() {
+        synchronized (tileCache) {
+            return memory;
+        }
+    }
+
+    static class CacheElement {
         RenderedImage[] tiles;
 
+        long memory;
+
         public CacheElement(RenderedImage[] tiles) {
             this.tiles = tiles;
+            for (RenderedImage tile : tiles) {
+                memory += getMemory(tile);
+            }
+        }
+
+        static long getMemory(RenderedImage image) {
+            if (image == null) {
+                return 0;
+            }
+            SampleModel sm = image.getSampleModel();
+            long pixelBits = 0;
+            for (int size : sm.getSampleSize()) {
+                pixelBits += size;
+            }
+            if (pixelBits == 0) {
+                pixelBits = sm.getNumBands() * DataBuffer.getDataTypeSize(sm.getDataType());
+            }
+            return (long) image.getWidth() * image.getHeight() * pixelBits / 8;
         }
     }
 
@@ -388,18 +586,18 @@ public class QuickTileCache implements TransactionListener, GeoServerLifecycleHa
         // contains a string with part of the map request where the layer
         // name is included, but we would have to parse it and consider
         // also that the namespace may be missing in the getmap request
-        tileCache.clear();
+        clear();
     }
 
     @Override
     public void onReset() {
         // data might have changed in the meantime
-        tileCache.clear();        
+        clear();
     }
 
     @Override
     public void onDispose() {
-        tileCache.clear();
+        clear();
     }
 
     public void beforeReload() {
@@ -408,6 +606,6 @@ public class QuickTileCache implements TransactionListener, GeoServerLifecycleHa
 
     @Override
     public void onReload() {
-        tileCache.clear();
+        clear();
     }
 }
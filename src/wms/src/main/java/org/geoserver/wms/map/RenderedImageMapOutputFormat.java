@@ -669,7 +669,7 @@ public class RenderedImageMapOutputFormat extends AbstractMapOutputFormat {
      */
     protected RenderedImage prepareImage(int width, int height, IndexColorModel palette,
             boolean transparent) {
-        return ImageUtils.createImage(width, height, isPaletteSupported() ? palette : null,
+        return ImageBufferPool.get().acquire(width, height, isPaletteSupported() ? palette : null,
                 transparent && isTransparencySupported());
     }
 
@@ -127,7 +127,10 @@ public abstract class RenderedImageMapResponse extends AbstractMapResponse {
                 for (GridCoverage2D coverage : renderedCoverages) {
                     RasterCleaner.addCoverage(coverage);
                 }
-                RasterCleaner.addImage(image);
+                // the image is fully encoded, its buffer can be reused by other requests
+                if (!ImageBufferPool.get().release(image)) {
+                    RasterCleaner.addImage(image);
+                }
             }
         } finally {
             imageMap.dispose();
@@ -6,15 +6,16 @@
 package org.geoserver.wms.map;
 
 import java.awt.Graphics;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
 
+import org.geoserver.util.TimeoutScheduler;
 import org.geotools.renderer.GTRenderer;
 
 /**
  * An utility class that can be used to set a strict timeout on rendering operations:
  * if the timeout elapses, the renderer will be asked to stop rendering and the graphics
  * will be disposed of to make extra sure the renderer cannot keep going on.
+ * The timeouts of all requests are run by the shared {@link TimeoutScheduler}.
  * @author Andrea Aime - OpenGeo
  */
 public class RenderingTimeoutEnforcer {
@@ -22,8 +23,8 @@ public class RenderingTimeoutEnforcer {
     long timeout;
     GTRenderer renderer;
     Graphics graphics;
-    Timer timer;
-    boolean timedOut = false;
+    TimeoutScheduler.Timeout handle;
+    volatile boolean timedOut = false;
 
     public RenderingTimeoutEnforcer(long timeout, GTRenderer renderer, Graphics graphics) {
         this.timeout = timeout;
@@ -35,13 +36,13 @@ public class RenderingTimeoutEnforcer {
      * Starts checking the rendering timeout (if timeout is positive, does nothing otherwise)
      */
     public void start() {
-        if(timer != null)
+        if(handle != null)
             throw new IllegalStateException("The timeout enforcer has already been started");
         
         if(timeout > 0) {
             timedOut = false;
-            timer = new Timer();
-            timer.schedule(new StopRenderingTask(), timeout);
+            handle = TimeoutScheduler.get().schedule(new StopRenderingTask(), timeout,
+                    TimeUnit.MILLISECONDS);
         }
     }
     
@@ -49,11 +50,9 @@ public class RenderingTimeoutEnforcer {
      * Stops the timeout check
      */
     public void stop() {
-        if(timer != null) {
-            timer.cancel();
-            timer.purge();
-            // timer.getTheHellOutOfDodge();
-            timer = null;
+        if(handle != null) {
+            handle.cancel();
+            handle = null;
         }
     }
     
@@ -64,7 +63,7 @@ public class RenderingTimeoutEnforcer {
         return timedOut;
     }
     
-    class StopRenderingTask extends TimerTask {
+    class StopRenderingTask implements Runnable {
 
         @Override
         public void run() {
@@ -36,6 +36,19 @@ public class PNGJWriter {
             WMSMapContent mapContent) {
         // what kind of scaline filtering are we going to use?
         FilterType filterType = getFilterType(mapContent);
+
+        // large images are filtered and compressed in parallel
+        if (ParallelPNGEncoder.isParallelEncodingEnabled(image)) {
+            int filter = filterType == FilterType.FILTER_SUB ? ParallelPNGEncoder.FILTER_SUB
+                    : ParallelPNGEncoder.FILTER_NONE;
+            try {
+                new ParallelPNGEncoder().encode(image, outStream, quality, filter);
+            } catch (Exception e) {
+                LOGGER.log(Level.SEVERE, "Failed to encode the PNG", e);
+                throw new ServiceException(e);
+            }
+            return image;
+        }
         // Creation of a new PNGWriter object
         PNGWriter writer = new PNGWriter();
         // Check if a Scanline is supported by the writer
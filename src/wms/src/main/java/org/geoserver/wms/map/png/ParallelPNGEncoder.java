@@ -0,0 +1,401 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.map.png;
+
+import java.awt.Rectangle;
+import java.awt.color.ColorSpace;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * PNG encoder splitting the image in bands of rows that are filtered and deflated in parallel.
+ * <p>
+ * Each band is compressed by its own {@link Deflater}, the bands but the last are terminated with
+ * a sync flush so that the raw deflate streams can be concatenated into a single zlib stream, whose
+ * checksum is computed by combining the checksums of the bands. This trades a little compression
+ * (matches cannot span bands) for encoding time on large images, such as meta tiles and print
+ * maps.
+ * </p>
+ * <p>
+ * The scanline filter is chosen by the caller, the same way as for the serial PNGJ encoder, which
+ * only ever picks NONE or SUB: the filters looking at the previous row are not implemented, so
+ * that the bands can be filtered without reading the last row of the previous one.
+ * </p>
+ * <p>
+ * Only 8 bit images are supported, either paletted or gray/RGB with optional, non premultiplied,
+ * alpha, see {@link #isSupported(RenderedImage)}.
+ * </p>
+ */
+class ParallelPNGEncoder {
+
+    /**
+     * System property setting the min number of pixels of an image for parallel encoding to kick
+     * in
+     */
+    static final String MIN_PIXELS = "org.geoserver.wms.png.parallelMinPixels";
+
+    /**
+     * System property setting the number of threads used to encode PNG images in parallel
+     */
+    static final String THREADS = "org.geoserver.wms.png.encoderThreads";
+
+    static final int MIN_BAND_ROWS = 32;
+
+    static final byte[] SIGNATURE = { (byte) 137, 80, 78, 71, 13, 10, 26, 10 };
+
+    static final int FILTER_NONE = 0;
+
+    static final int FILTER_SUB = 1;
+
+    static final int THREAD_COUNT = Integer.getInteger(THREADS, Runtime.getRuntime()
+            .availableProcessors());
+
+    static final long MIN_PIXELS_COUNT = Long.getLong(MIN_PIXELS, 1024 * 1024);
+
+    static ExecutorService EXECUTOR;
+
+    static synchronized ExecutorService getExecutor() {
+        if (EXECUTOR == null) {
+            EXECUTOR = Executors.newFixedThreadPool(THREAD_COUNT, new ThreadFactory() {
+                AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "PNGEncoder-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return EXECUTOR;
+    }
+
+    /**
+     * Returns true if the image is large enough to benefit from parallel encoding, and its
+     * structure is supported
+     */
+    static boolean isParallelEncodingEnabled(RenderedImage image) {
+        return THREAD_COUNT > 1
+                && (long) image.getWidth() * image.getHeight() >= MIN_PIXELS_COUNT
+                && image.getHeight() >= MIN_BAND_ROWS * 2 && isSupported(image);
+    }
+
+    /**
+     * Returns true if the image has 8 bit samples, and is either paletted with a single band, or
+     * gray/RGB with an optional alpha band. Premultiplied alpha is left to the serial encoder,
+     * which takes care of dividing it out
+     */
+    static boolean isSupported(RenderedImage image) {
+        SampleModel sm = image.getSampleModel();
+        if (sm.getDataType() != DataBuffer.TYPE_BYTE) {
+            return false;
+        }
+        for (int size : sm.getSampleSize()) {
+            if (size != 8) {
+                return false;
+            }
+        }
+
+        ColorModel cm = image.getColorModel();
+        int bands = sm.getNumBands();
+        if (cm.isAlphaPremultiplied()) {
+            return false;
+        } else if (cm instanceof IndexColorModel) {
+            return bands == 1;
+        } else if (cm instanceof ComponentColorModel) {
+            int type = cm.getColorSpace().getType();
+            if (type == ColorSpace.TYPE_GRAY) {
+                return bands == (cm.hasAlpha() ? 2 : 1);
+            } else if (type == ColorSpace.TYPE_RGB) {
+                return bands == (cm.hasAlpha() ? 4 : 3);
+            }
+        }
+        return false;
+    }
+
+    ExecutorService executor;
+
+    int bands;
+
+    ParallelPNGEncoder() {
+        this(getExecutor(), THREAD_COUNT);
+    }
+
+    ParallelPNGEncoder(ExecutorService executor, int bands) {
+        this.executor = executor;
+        this.bands = bands;
+    }
+
+    /**
+     * Encodes the image
+     *
+     * @param image The image, must be supported
+     * @param out The destination stream
+     * @param quality The quality, between 0 (max compression) and 1 (no compression)
+     * @param filter The scanline filter type, either {@link #FILTER_NONE} or {@link #FILTER_SUB}
+     */
+    public void encode(RenderedImage image, OutputStream out, float quality, final int filter)
+            throws IOException {
+        final int level = Math.max(0, Math.min(9, Math.round(9 * (1 - quality))));
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final int bpp = image.getSampleModel().getNumBands();
+        final ColorModel cm = image.getColorModel();
+
+        DataOutputStream dos = new DataOutputStream(out);
+        dos.write(SIGNATURE);
+        writeHeader(dos, width, height, cm);
+        if (cm instanceof IndexColorModel) {
+            writePalette(dos, (IndexColorModel) cm);
+        }
+
+        // split in bands and encode them in parallel
+        int bandCount = Math.max(1, Math.min(bands, height / MIN_BAND_ROWS));
+        int rowsPerBand = (height + bandCount - 1) / bandCount;
+        List<Future<EncodedBand>> futures = new ArrayList<Future<EncodedBand>>();
+        for (int y = 0; y < height; y += rowsPerBand) {
+            final int startRow = y;
+            final int endRow = Math.min(height, y + rowsPerBand);
+            final RenderedImage source = image;
+            futures.add(executor.submit(new Callable<EncodedBand>() {
+
+                public EncodedBand call() throws Exception {
+                    return encodeBand(source, startRow, endRow, bpp, filter, level,
+                            endRow == height);
+                }
+            }));
+        }
+
+        // zlib header
+        int flevel = level < 2 ? 0 : level < 6 ? 1 : level == 6 ? 2 : 3;
+        int cmf = 0x78;
+        int flg = flevel << 6;
+        flg += 31 - ((cmf << 8) + flg) % 31;
+        byte[] zlibHeader = new byte[] { (byte) cmf, (byte) flg };
+
+        // write out the bands in order, combining their checksums
+        long adler = 1;
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                EncodedBand band = futures.get(i).get();
+                adler = combineAdler32(adler, band.adler, band.length);
+                byte[] data = band.data.toByteArray();
+                if (i == 0) {
+                    writeChunk(dos, "IDAT", zlibHeader, data);
+                } else {
+                    writeChunk(dos, "IDAT", data);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while encoding the PNG image", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to encode the PNG image", e.getCause());
+        } finally {
+            for (Future<EncodedBand> future : futures) {
+                future.cancel(true);
+            }
+        }
+        writeChunk(dos, "IDAT", new byte[] { (byte) (adler >>> 24), (byte) (adler >>> 16),
+                (byte) (adler >>> 8), (byte) adler });
+        writeChunk(dos, "IEND");
+        dos.flush();
+    }
+
+    static class EncodedBand {
+        ByteArrayOutputStream data;
+
+        long adler;
+
+        long length;
+    }
+
+    EncodedBand encodeBand(RenderedImage image, int startRow, int endRow, int bpp, int filter,
+            int level, boolean last) {
+        int rowLength = image.getWidth() * bpp;
+        // the supported filters only look at the current row, the bands need no overlap
+        Raster raster = image.getData(new Rectangle(image.getMinX(), image.getMinY() + startRow,
+                image.getWidth(), endRow - startRow));
+
+        byte[] curr = new byte[rowLength];
+        byte[] filtered = new byte[rowLength + 1];
+
+        EncodedBand band = new EncodedBand();
+        band.data = new ByteArrayOutputStream(rowLength * (endRow - startRow) / 4 + 64);
+        Adler32 adler = new Adler32();
+        Deflater deflater = new Deflater(level, true);
+        byte[] buffer = new byte[32 * 1024];
+        try {
+            for (int y = startRow; y < endRow; y++) {
+                getRow(raster, image, y, curr);
+                filterRow(filter, curr, bpp, filtered);
+                adler.update(filtered);
+                deflater.setInput(filtered);
+                while (!deflater.needsInput()) {
+                    int count = deflater.deflate(buffer, 0, buffer.length, Deflater.NO_FLUSH);
+                    band.data.write(buffer, 0, count);
+                }
+            }
+
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int count = deflater.deflate(buffer);
+                    band.data.write(buffer, 0, count);
+                }
+            } else {
+                // sync flush ends the band on a byte boundary, so that it can be concatenated
+                int count;
+                do {
+                    count = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    band.data.write(buffer, 0, count);
+                } while (count == buffer.length);
+            }
+        } finally {
+            deflater.end();
+        }
+        band.adler = adler.getValue();
+        band.length = (long) (rowLength + 1) * (endRow - startRow);
+        return band;
+    }
+
+    void getRow(Raster raster, RenderedImage image, int row, byte[] target) {
+        raster.getDataElements(image.getMinX(), image.getMinY() + row, image.getWidth(), 1,
+                target);
+    }
+
+    /**
+     * Filters a row, the filter type is written in the first byte of the output
+     */
+    static void filterRow(int filter, byte[] curr, int bpp, byte[] out) {
+        out[0] = (byte) filter;
+        int length = curr.length;
+        switch (filter) {
+        case FILTER_NONE:
+            System.arraycopy(curr, 0, out, 1, length);
+            break;
+        case FILTER_SUB:
+            for (int i = 0; i < length; i++) {
+                int a = i >= bpp ? curr[i - bpp] & 0xFF : 0;
+                out[i + 1] = (byte) (curr[i] - a);
+            }
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown filter type " + filter);
+        }
+    }
+
+    /**
+     * Combines the Adler-32 checksums of two consecutive blocks of data, same as zlib
+     * adler32_combine
+     */
+    static long combineAdler32(long adler1, long adler2, long length2) {
+        final long base = 65521;
+        long rem = length2 % base;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = (rem * sum1) % base;
+        sum1 += (adler2 & 0xffff) + base - 1;
+        sum2 += ((adler1 >> 16) & 0xffff) + ((adler2 >> 16) & 0xffff) + base - rem;
+        if (sum1 >= base) {
+            sum1 -= base;
+        }
+        if (sum1 >= base) {
+            sum1 -= base;
+        }
+        if (sum2 >= (base << 1)) {
+            sum2 -= (base << 1);
+        }
+        if (sum2 >= base) {
+            sum2 -= base;
+        }
+        return sum1 | (sum2 << 16);
+    }
+
+    void writeHeader(DataOutputStream out, int width, int height, ColorModel cm)
+            throws IOException {
+        int colorType;
+        if (cm instanceof IndexColorModel) {
+            colorType = 3;
+        } else if (cm.getColorSpace().getType() == ColorSpace.TYPE_GRAY) {
+            colorType = cm.hasAlpha() ? 4 : 0;
+        } else {
+            colorType = cm.hasAlpha() ? 6 : 2;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(13);
+        DataOutputStream header = new DataOutputStream(bytes);
+        header.writeInt(width);
+        header.writeInt(height);
+        header.writeByte(8); // bit depth
+        header.writeByte(colorType);
+        header.writeByte(0); // compression
+        header.writeByte(0); // filter
+        header.writeByte(0); // interlace
+        writeChunk(out, "IHDR", bytes.toByteArray());
+    }
+
+    void writePalette(DataOutputStream out, IndexColorModel icm) throws IOException {
+        int size = icm.getMapSize();
+        byte[] palette = new byte[size * 3];
+        byte[] alpha = new byte[size];
+        int alphaLength = 0;
+        for (int i = 0; i < size; i++) {
+            palette[i * 3] = (byte) icm.getRed(i);
+            palette[i * 3 + 1] = (byte) icm.getGreen(i);
+            palette[i * 3 + 2] = (byte) icm.getBlue(i);
+            alpha[i] = (byte) icm.getAlpha(i);
+            if (icm.getAlpha(i) != 255) {
+                alphaLength = i + 1;
+            }
+        }
+        writeChunk(out, "PLTE", palette);
+        if (alphaLength > 0) {
+            byte[] trns = new byte[alphaLength];
+            System.arraycopy(alpha, 0, trns, 0, alphaLength);
+            writeChunk(out, "tRNS", trns);
+        }
+    }
+
+    void writeChunk(DataOutputStream out, String type, byte[]... data) throws IOException {
+        int length = 0;
+        for (byte[] d : data) {
+            length += d.length;
+        }
+        byte[] typeBytes = type.getBytes("US-ASCII");
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        out.writeInt(length);
+        out.write(typeBytes);
+        for (byte[] d : data) {
+            crc.update(d);
+            out.write(d);
+        }
+        out.writeInt((int) crc.getValue());
+    }
+}
@@ -26,8 +26,11 @@ import javax.xml.namespace.QName;
 
 import org.geoserver.catalog.Catalog;
 import org.geoserver.catalog.LayerGroupInfo;
+import org.geoserver.config.GeoServer;
 import org.geoserver.data.test.MockData;
 import org.geoserver.wms.GetMapRequest;
+import org.geoserver.wms.WMS;
+import org.geoserver.wms.WMSInfo;
 import org.geoserver.wms.WMSTestSupport;
 import org.geoserver.wms.WebMapService;
 import org.geoserver.wms.map.RenderedImageMap;
@@ -118,6 +121,40 @@ public class AnimatorTest extends WMSTestSupport {
     	assertEquals(4, frames.size());
     }
     
+    /**
+     * Frames are all produced, in order, also when rendered one at a time
+     */
+    @org.junit.Test
+    public void testFrameVisitorSingleFrameInFlight() throws Exception {
+        final WebMapService wms = (WebMapService) applicationContext.getBean("wmsService2");
+        final String layerName = MockData.BASIC_POLYGONS.getPrefix() + ":" +
+            MockData.BASIC_POLYGONS.getLocalPart();
+
+        GetMapRequest getMapRequest = createGetMapRequest(new QName(layerName));
+        getMapRequest.getRawKvp().put("aparam", "fake_param");
+        getMapRequest.getRawKvp().put("avalues", "val0,val1,val2,val3,val4,val5");
+        getMapRequest.getRawKvp().put("format", GIF_ANIMATED_FORMAT);
+        getMapRequest.getRawKvp().put("LAYERS", layerName);
+
+        GeoServer gs = getGeoServer();
+        WMSInfo info = gs.getService(WMSInfo.class);
+        info.getMetadata().put(WMS.MAX_PARALLEL_FRAMES, 1);
+        gs.save(info);
+        try {
+            FrameCatalog catalog = new FrameCatalog(getMapRequest, wms, getWMS());
+            FrameCatalogVisitor visitor = new FrameCatalogVisitor();
+            catalog.getFrames(visitor);
+            assertEquals(6, visitor.framesNumber);
+
+            List<RenderedImageMap> frames = visitor.produce(getWMS());
+            assertEquals(6, frames.size());
+        } finally {
+            info = gs.getService(WMSInfo.class);
+            info.getMetadata().remove(WMS.MAX_PARALLEL_FRAMES);
+            gs.save(info);
+        }
+    }
+
     /**
      * Produce animated gif through the WMS request.
      */
@@ -0,0 +1,135 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2014 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.dimension;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Date;
+import java.util.TreeSet;
+
+import org.geoserver.catalog.DimensionInfo;
+import org.geoserver.catalog.DimensionPresentation;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.catalog.ResourceInfo;
+import org.geoserver.security.CatalogMode;
+import org.geoserver.security.VectorAccessLimits;
+import org.geoserver.security.WrapperPolicy;
+import org.geoserver.security.decorators.SecuredFeatureTypeInfo;
+import org.geoserver.wms.WMSDimensionsTestSupport;
+import org.geoserver.wms.dimension.DimensionDomainCache.Domain;
+import org.geotools.factory.CommonFactoryFinder;
+import org.junit.Before;
+import org.junit.Test;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory;
+
+public class DimensionDomainCacheTest extends WMSDimensionsTestSupport {
+
+    DimensionDomainCache cache;
+
+    FeatureTypeInfo typeInfo;
+
+    @Before
+    public void setupCache() {
+        setupVectorDimension(ResourceInfo.TIME, "time", DimensionPresentation.LIST, null, null,
+                null);
+        setupVectorDimension(ResourceInfo.ELEVATION, "elevation",
+                DimensionPresentation.CONTINUOUS_INTERVAL, null, UNITS, UNIT_SYMBOL);
+        typeInfo = getCatalog().getFeatureTypeByName(V_TIME_ELEVATION.getLocalPart());
+        cache = new DimensionDomainCache(getCatalog(), 60000);
+    }
+
+    DimensionInfo getDimension(String name) {
+        return typeInfo.getMetadata().get(name, DimensionInfo.class);
+    }
+
+    @Test
+    public void testUniqueValues() throws Exception {
+        DimensionInfo time = getDimension(ResourceInfo.TIME);
+        Domain domain = cache.getDomain(typeInfo, ResourceInfo.TIME, time, true);
+        TreeSet<Object> values = domain.getValues();
+        assertEquals(4, values.size());
+        assertEquals(values.first(), domain.getMin());
+        assertEquals(values.last(), domain.getMax());
+        assertEquals(0, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        // served from memory, also when only the min and max are needed
+        assertSame(domain, cache.getDomain(typeInfo, ResourceInfo.TIME, time, true));
+        assertSame(domain, cache.getDomain(typeInfo, ResourceInfo.TIME, time, false));
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testMinMax() throws Exception {
+        DimensionInfo elevation = getDimension(ResourceInfo.ELEVATION);
+        Domain domain = cache.getDomain(typeInfo, ResourceInfo.ELEVATION, elevation, false);
+        assertNull(domain.getValues());
+        assertEquals(0d, domain.getMin());
+        assertEquals(3d, domain.getMax());
+
+        // the unique values have to be collected
+        Domain unique = cache.getDomain(typeInfo, ResourceInfo.ELEVATION, elevation, true);
+        assertEquals(4, unique.getValues().size());
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void testIncrementalUpdate() throws Exception {
+        DimensionInfo time = getDimension(ResourceInfo.TIME);
+        Domain domain = cache.getDomain(typeInfo, ResourceInfo.TIME, time, true);
+        Date max = (Date) domain.getMax();
+        Date later = new Date(max.getTime() + 86400000);
+        domain.add(later);
+        assertEquals(later, domain.getMax());
+        assertEquals(5, domain.getValues().size());
+
+        DimensionInfo elevation = getDimension(ResourceInfo.ELEVATION);
+        domain = cache.getDomain(typeInfo, ResourceInfo.ELEVATION, elevation, false);
+        // numbers are stored as doubles
+        domain.add(-5);
+        assertEquals(-5d, domain.getMin());
+    }
+
+    @Test
+    public void testClear() throws Exception {
+        DimensionInfo time = getDimension(ResourceInfo.TIME);
+        Domain domain = cache.getDomain(typeInfo, ResourceInfo.TIME, time, true);
+        cache.clear(typeInfo);
+        Domain rebuilt = cache.getDomain(typeInfo, ResourceInfo.TIME, time, true);
+        assertEquals(domain.getValues(), rebuilt.getValues());
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void testDataSecurity() throws Exception {
+        DimensionInfo time = getDimension(ResourceInfo.TIME);
+        FilterFactory ff = CommonFactoryFinder.getFilterFactory(null);
+        Filter readFilter = ff.equals(ff.property("elevation"), ff.literal(0));
+        FeatureTypeInfo restricted = new SecuredFeatureTypeInfo(typeInfo,
+                WrapperPolicy.readOnlyHide(new VectorAccessLimits(CatalogMode.HIDE, null,
+                        readFilter, null, null)));
+
+        // the restricted domain is built for the user only
+        Domain domain = cache.getDomain(restricted, ResourceInfo.TIME, time, true);
+        assertEquals(1, domain.getValues().size());
+        assertEquals(4, cache.getDomain(typeInfo, ResourceInfo.TIME, time, true).getValues()
+                .size());
+        assertEquals(1, cache.getDomain(restricted, ResourceInfo.TIME, time, true).getValues()
+                .size());
+        assertEquals(3, cache.getMisses());
+
+        // read only access with no limits shares the domain
+        FeatureTypeInfo readOnly = new SecuredFeatureTypeInfo(typeInfo,
+                WrapperPolicy.readOnlyHide(null));
+        assertEquals(4, cache.getDomain(readOnly, ResourceInfo.TIME, time, true).getValues()
+                .size());
+        assertEquals(1, cache.getHits());
+    }
+}
@@ -3,15 +3,19 @@ package org.geoserver.wms.featureinfo;
 import static org.junit.Assert.assertEquals;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 
 import javax.xml.namespace.QName;
 
+import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
 
 import org.apache.commons.io.FileUtils;
 import org.geoserver.data.test.MockData;
 import org.geoserver.data.test.SystemTestData;
+import org.geoserver.wms.GetFeatureInfo;
 import org.geoserver.wms.WMSTestSupport;
 import org.junit.After;
 import org.junit.Test;
@@ -50,11 +54,15 @@ public class RenderingBasedFeatureInfoTest extends WMSTestSupport {
         testData.addStyle("polydash", "polydash.sld", this.getClass(), getCatalog());
         testData.addStyle("doublepoly", "doublepoly.sld", this.getClass(), getCatalog());
         testData.addStyle("pureLabel", "purelabel.sld", this.getClass(), getCatalog());
+        testData.addStyle("outline", "outline.sld", this.getClass(), getCatalog());
+        testData.addStyle("else-fts", "else-fts.sld", this.getClass(), getCatalog());
     }
     
     @After 
     public void cleanup() {
         VectorRenderingLayerIdentifier.RENDERING_FEATUREINFO_ENABLED = true;
+        VectorRenderingLayerIdentifier.HIT_TESTING_ENABLED = false;
+        System.clearProperty(GetFeatureInfo.PARALLEL_LAYERS);
     }
     
     @Test
@@ -253,4 +261,83 @@ public class RenderingBasedFeatureInfoTest extends WMSTestSupport {
         // print(result);
         assertEquals(1, result.getJSONArray("features").size());
     }
+
+    @Test
+    public void testHitTestingMatchesRendering() throws Exception {
+        String bridges = "wms?REQUEST=GetFeatureInfo"
+                + "&BBOX=0.000196%2C0.000696%2C0.000204%2C0.000704&SERVICE=WMS"
+                + "&INFO_FORMAT=application/json&QUERY_LAYERS=cite%3ABridges&FEATURE_COUNT=50"
+                + "&Layers=cite%3ABridges&WIDTH=100&HEIGHT=100&format=image%2Fpng"
+                + "&srs=EPSG%3A4326&version=1.1.1";
+        String forests = getLayerId(MockData.FORESTS);
+        String grid = getLayerId(GRID);
+        List<String> requests = new ArrayList<String>();
+        // the box offset one is not supported, and falls back on rendering
+        requests.add("wms?REQUEST=GetFeatureInfo&BBOX=1.9E-4,6.9E-4,2.1E-4,7.1E-4&SERVICE=WMS"
+                + "&INFO_FORMAT=application/json&QUERY_LAYERS=cite%3ABridges&Layers=cite%3ABridges"
+                + "&WIDTH=100&HEIGHT=100&format=image%2Fpng&styles=box-offset&srs=EPSG%3A4326"
+                + "&version=1.1.1&x=50&y=63&feature_count=50");
+        requests.add(bridges + "&styles=ranged&x=49&y=65");
+        requests.add(bridges + "&styles=dynamic&x=49&y=60");
+        requests.add(bridges + "&styles=symbol-uom&x=49&y=60");
+        for (String style : new String[] { "two-rules", "two-fts", "polydash", "pureLabel" }) {
+            requests.add("wms?version=1.1.1&bbox=-0.002,-0.002,0.002,0.002&format=jpeg"
+                    + "&request=GetFeatureInfo&layers=" + forests + "&query_layers=" + forests
+                    + "&styles=" + style + "&width=20&height=20&x=10&y=10"
+                    + "&info_format=application/json&feature_count=50");
+        }
+        requests.add("wms?REQUEST=GetFeatureInfo&&BBOX=0,0,3,3&SERVICE=WMS"
+                + "&INFO_FORMAT=application/json&FEATURE_COUNT=50&QUERY_LAYERS=" + grid
+                + "&Layers=" + grid + "&WIDTH=90&HEIGHT=90&format=image%2Fpng"
+                + "&styles=doublepoly&srs=EPSG%3A4326&version=1.1.1&x=34&y=34");
+        // clicking inside a polygon painted only with its outline, and one painted by the else
+        // rule of the second feature type style while a rule of the first one matches it
+        for (String style : new String[] { "outline", "else-fts" }) {
+            requests.add("wms?REQUEST=GetFeatureInfo&&BBOX=0,0,3,3&SERVICE=WMS"
+                    + "&INFO_FORMAT=application/json&FEATURE_COUNT=50&QUERY_LAYERS=" + grid
+                    + "&Layers=" + grid + "&WIDTH=90&HEIGHT=90&format=image%2Fpng"
+                    + "&styles=" + style + "&srs=EPSG%3A4326&version=1.1.1&x=45&y=45");
+        }
+
+        for (String request : requests) {
+            VectorRenderingLayerIdentifier.HIT_TESTING_ENABLED = false;
+            long start = System.nanoTime();
+            List<String> rendered = getFeatureIds(request);
+            long renderingTime = System.nanoTime() - start;
+
+            VectorRenderingLayerIdentifier.HIT_TESTING_ENABLED = true;
+            start = System.nanoTime();
+            List<String> hit = getFeatureIds(request);
+            long hitTestingTime = System.nanoTime() - start;
+
+            LOGGER.fine("Rendering: " + renderingTime / 1000 + "us, hit testing: "
+                    + hitTestingTime / 1000 + "us, " + request);
+            assertEquals(request, rendered, hit);
+        }
+    }
+
+    @Test
+    public void testParallelLayers() throws Exception {
+        String grid = getLayerId(GRID);
+        String request = "wms?REQUEST=GetFeatureInfo&&BBOX=0,0,3,3&SERVICE=WMS"
+                + "&INFO_FORMAT=application/json&QUERY_LAYERS=" + grid + "," + grid
+                + "&Layers=" + grid + "&WIDTH=90&HEIGHT=90&format=image%2Fpng"
+                + "&styles=doublepoly&srs=EPSG%3A4326&version=1.1.1&x=34&y=34";
+        List<String> serial = getFeatureIds(request + "&FEATURE_COUNT=50");
+        assertEquals(2, serial.size());
+
+        System.setProperty(GetFeatureInfo.PARALLEL_LAYERS, "true");
+        assertEquals(serial, getFeatureIds(request + "&FEATURE_COUNT=50"));
+        // results are cut to the feature count, in layer order
+        assertEquals(serial.subList(0, 1), getFeatureIds(request + "&FEATURE_COUNT=1"));
+    }
+
+    List<String> getFeatureIds(String request) throws Exception {
+        JSONArray features = ((JSONObject) getAsJSON(request)).getJSONArray("features");
+        List<String> ids = new ArrayList<String>();
+        for (int i = 0; i < features.size(); i++) {
+            ids.add(features.getJSONObject(i).getString("id"));
+        }
+        return ids;
+    }
 }
@@ -0,0 +1,100 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.legendgraphic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.StyleInfo;
+import org.geoserver.data.test.MockData;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.wms.WMSTestSupport;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.mockrunner.mock.web.MockHttpServletRequest;
+import com.mockrunner.mock.web.MockHttpServletResponse;
+
+public class LegendGraphicCacheTest extends WMSTestSupport {
+
+    LegendGraphicCache cache;
+
+    String request;
+
+    @Before
+    public void setupCache() {
+        cache = GeoServerExtensions.bean(LegendGraphicCache.class);
+        cache.clear();
+        request = "wms?service=WMS&version=1.1.1&request=GetLegendGraphic&layer="
+                + getLayerId(MockData.LAKES) + "&style=Lakes&format=image/png&width=20&height=20";
+    }
+
+    @Test
+    public void testCached() throws Exception {
+        long hits = cache.getHits();
+        long misses = cache.getMisses();
+        MockHttpServletResponse first = getAsServletResponse(request);
+        assertEquals("image/png", first.getContentType());
+        String etag = first.getHeader("ETag");
+        assertNotNull(etag);
+        assertEquals(misses + 1, cache.getMisses());
+
+        // same legend, parameters in a different order
+        MockHttpServletResponse second = getAsServletResponse(request.replace(
+                "&width=20&height=20", "&height=20&width=20"));
+        assertEquals("image/png", second.getContentType());
+        assertEquals(etag, second.getHeader("ETag"));
+        assertEquals(first.getOutputStreamContent(), second.getOutputStreamContent());
+        assertEquals(hits + 1, cache.getHits());
+
+        // a different size is a different legend
+        getAsServletResponse(request.replace("&width=20", "&width=30"));
+        assertEquals(misses + 2, cache.getMisses());
+    }
+
+    @Test
+    public void testNotModified() throws Exception {
+        String etag = getAsServletResponse(request).getHeader("ETag");
+
+        MockHttpServletRequest httpRequest = createRequest(request);
+        httpRequest.setMethod("GET");
+        httpRequest.setHeader("If-None-Match", etag);
+        MockHttpServletResponse response = dispatch(httpRequest);
+        assertEquals(HttpServletResponse.SC_NOT_MODIFIED, response.getErrorCode());
+
+        httpRequest = createRequest(request);
+        httpRequest.setMethod("GET");
+        httpRequest.setHeader("If-None-Match", "\"abc\"");
+        response = dispatch(httpRequest);
+        assertEquals("image/png", response.getContentType());
+        assertEquals(etag, response.getHeader("ETag"));
+    }
+
+    @Test
+    public void testStyleChange() throws Exception {
+        getAsServletResponse(request);
+        long misses = cache.getMisses();
+
+        Catalog catalog = getCatalog();
+        StyleInfo style = catalog.getStyleByName("Lakes");
+        catalog.save(style);
+
+        getAsServletResponse(request);
+        assertEquals(misses + 1, cache.getMisses());
+    }
+
+    @Test
+    public void testRemoteStyleNotCached() throws Exception {
+        long misses = cache.getMisses();
+        long hits = cache.getHits();
+        getAsServletResponse(request + "&sld=http://localhost/nowhere.sld");
+        assertEquals(misses, cache.getMisses());
+        assertEquals(hits, cache.getHits());
+    }
+}
@@ -0,0 +1,64 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+
+import org.junit.Test;
+
+public class ImageBufferPoolTest {
+
+    @Test
+    public void testReuseReleased() {
+        ImageBufferPool pool = new ImageBufferPool(1024 * 1024);
+        BufferedImage image = pool.acquire(256, 256, null, true);
+        assertEquals(BufferedImage.TYPE_4BYTE_ABGR, image.getType());
+        image.setRGB(0, 0, 0xFFFF0000);
+
+        assertTrue(pool.release(image));
+        assertEquals(256 * 256 * 4, pool.getMemory());
+        // not acquired anymore
+        assertFalse(pool.release(image));
+
+        // different structure, not reused
+        BufferedImage opaque = pool.acquire(256, 256, null, false);
+        assertNotSame(image, opaque);
+        assertEquals(BufferedImage.TYPE_3BYTE_BGR, opaque.getType());
+
+        BufferedImage reused = pool.acquire(256, 256, null, true);
+        assertSame(image, reused);
+        assertEquals(0, reused.getRGB(0, 0));
+        assertEquals(0, pool.getMemory());
+        assertEquals(1, pool.getHits());
+        assertEquals(2, pool.getMisses());
+    }
+
+    @Test
+    public void testMaxMemory() {
+        ImageBufferPool pool = new ImageBufferPool(256 * 256 * 4);
+        BufferedImage first = pool.acquire(256, 256, null, true);
+        BufferedImage second = pool.acquire(256, 256, null, true);
+        assertTrue(pool.release(first));
+        assertFalse(pool.release(second));
+        assertEquals(256 * 256 * 4, pool.getMemory());
+
+        pool.clear();
+        assertEquals(0, pool.getMemory());
+    }
+
+    @Test
+    public void testIgnoreForeignImages() {
+        ImageBufferPool pool = new ImageBufferPool(1024 * 1024);
+        assertFalse(pool.release(new BufferedImage(256, 256, BufferedImage.TYPE_4BYTE_ABGR)));
+        assertEquals(0, pool.getMemory());
+    }
+}
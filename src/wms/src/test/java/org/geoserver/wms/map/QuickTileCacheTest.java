@@ -6,10 +6,23 @@
 package org.geoserver.wms.map;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 
 import java.awt.Point;
 import java.awt.geom.Point2D;
-
+import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.geoserver.wms.map.QuickTileCache.MapKey;
+import org.geoserver.wms.map.QuickTileCache.MetaTileKey;
+import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.junit.Test;
 
 import com.vividsolutions.jts.geom.Envelope;
@@ -67,4 +80,90 @@ public class QuickTileCacheTest {
         assertEquals(new Point(0, 2), cache.getTileOffsetsInMeta(box1, meta));
         assertEquals(new Point(1, 2), cache.getTileOffsetsInMeta(box2, meta));
     }
+
+    @Test
+    public void testCoalesceSameMetaTile() throws Exception {
+        final MetaTileKey key = metaTileKey(0, 0);
+        final CountDownLatch rendering = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger renders = new AtomicInteger();
+        final Callable<RenderedImage[]> renderer = new Callable<RenderedImage[]>() {
+            public RenderedImage[] call() throws Exception {
+                renders.incrementAndGet();
+                rendering.countDown();
+                release.await();
+                return tiles();
+            }
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<RenderedImage[]> first = executor.submit(new Callable<RenderedImage[]>() {
+                public RenderedImage[] call() throws Exception {
+                    return cache.getTiles(key, renderer);
+                }
+            });
+            rendering.await();
+            Future<RenderedImage[]> second = executor.submit(new Callable<RenderedImage[]>() {
+                public RenderedImage[] call() throws Exception {
+                    return cache.getTiles(metaTileKey(0, 0), renderer);
+                }
+            });
+            // a different meta tile does not wait for the one being rendered
+            RenderedImage[] other = cache.getTiles(metaTileKey(3, 0), new Callable<RenderedImage[]>() {
+                public RenderedImage[] call() throws Exception {
+                    return tiles();
+                }
+            });
+            assertNotNull(other);
+            while (cache.getCoalesced() == 0) {
+                Thread.sleep(10);
+            }
+            release.countDown();
+
+            assertSame(first.get(), second.get());
+            assertEquals(1, renders.get());
+            assertEquals(2, cache.getMisses());
+            assertEquals(1, cache.getCoalesced());
+
+            assertSame(first.get(), cache.getTiles(key, renderer));
+            assertEquals(1, cache.getHits());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testEvictLeastRecentlyUsed() throws Exception {
+        long metaTileMemory = new QuickTileCache.CacheElement(tiles()).memory;
+        QuickTileCache cache = new QuickTileCache(metaTileMemory * 2);
+        cache.storeTiles(metaTileKey(0, 0), tiles());
+        cache.storeTiles(metaTileKey(3, 0), tiles());
+        assertEquals(metaTileMemory * 2, cache.getMemory());
+
+        // touch the first one, the second becomes the least recently used
+        assertNotNull(cache.getTiles(metaTileKey(0, 0), null));
+        cache.storeTiles(metaTileKey(6, 0), tiles());
+        assertEquals(1, cache.getEvictions());
+        assertEquals(metaTileMemory * 2, cache.getMemory());
+        assertNotNull(cache.getTiles(metaTileKey(0, 0), null));
+        assertNotNull(cache.getTiles(metaTileKey(6, 0), null));
+
+        cache.clear();
+        assertEquals(0, cache.getMemory());
+    }
+
+    MetaTileKey metaTileKey(int x, int y) {
+        MapKey mapKey = new MapKey("LAYERS=topp:states", 1, new Point2D.Double(0, 0));
+        ReferencedEnvelope envelope = new ReferencedEnvelope(x, x + 3, y, y + 3, null);
+        return new MetaTileKey(mapKey, new Point(x, y), envelope);
+    }
+
+    RenderedImage[] tiles() {
+        RenderedImage[] tiles = new RenderedImage[9];
+        for (int i = 0; i < tiles.length; i++) {
+            tiles[i] = new BufferedImage(256, 256, BufferedImage.TYPE_4BYTE_ABGR);
+        }
+        return tiles;
+    }
 }
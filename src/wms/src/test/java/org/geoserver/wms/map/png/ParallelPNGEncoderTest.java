@@ -0,0 +1,152 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.map.png;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Adler32;
+
+import javax.imageio.ImageIO;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ParallelPNGEncoderTest {
+
+    ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void testRGBA() throws Exception {
+        BufferedImage image = new BufferedImage(300, 200, BufferedImage.TYPE_4BYTE_ABGR);
+        Graphics2D g = image.createGraphics();
+        g.setColor(new Color(255, 0, 0, 128));
+        g.fillOval(20, 20, 200, 150);
+        g.setColor(Color.BLUE);
+        g.drawLine(0, 0, 299, 199);
+        g.dispose();
+
+        assertRoundTrip(image);
+    }
+
+    @Test
+    public void testRGBGradient() throws Exception {
+        BufferedImage image = new BufferedImage(256, 256, BufferedImage.TYPE_3BYTE_BGR);
+        for (int y = 0; y < 256; y++) {
+            for (int x = 0; x < 256; x++) {
+                image.setRGB(x, y, new Color(x, y, (x + y) / 2).getRGB());
+            }
+        }
+        // every supported filter type must decode back to the same pixels
+        assertRoundTrip(image, ParallelPNGEncoder.FILTER_NONE);
+        assertRoundTrip(image, ParallelPNGEncoder.FILTER_SUB);
+    }
+
+    @Test
+    public void testVectorMap() throws Exception {
+        BufferedImage image = new BufferedImage(512, 512, BufferedImage.TYPE_4BYTE_ABGR);
+        Graphics2D g = image.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        Random random = new Random(1);
+        for (int i = 0; i < 150; i++) {
+            g.setColor(new Color(random.nextInt(255), random.nextInt(255), random.nextInt(255)));
+            g.drawLine(random.nextInt(512), random.nextInt(512), random.nextInt(512),
+                    random.nextInt(512));
+            g.fillOval(random.nextInt(512), random.nextInt(512), 30, 30);
+        }
+        g.dispose();
+
+        assertRoundTrip(image);
+        assertRoundTrip(image, ParallelPNGEncoder.FILTER_SUB);
+    }
+
+    @Test
+    public void testPaletted() throws Exception {
+        byte[] r = new byte[] { 0, (byte) 255, 0 };
+        byte[] g = new byte[] { 0, 0, (byte) 255 };
+        byte[] b = new byte[] { 0, 0, 0 };
+        byte[] a = new byte[] { 0, (byte) 255, (byte) 255 };
+        IndexColorModel icm = new IndexColorModel(8, 3, r, g, b, a);
+        BufferedImage image = new BufferedImage(100, 100, BufferedImage.TYPE_BYTE_INDEXED, icm);
+        for (int y = 0; y < 100; y++) {
+            for (int x = 0; x < 100; x++) {
+                image.getRaster().setSample(x, y, 0, (x + y) % 3);
+            }
+        }
+
+        assertRoundTrip(image);
+    }
+
+    @Test
+    public void testUnsupported() {
+        assertFalse(ParallelPNGEncoder.isSupported(new BufferedImage(10, 10,
+                BufferedImage.TYPE_INT_ARGB)));
+        assertFalse(ParallelPNGEncoder.isSupported(new BufferedImage(10, 10,
+                BufferedImage.TYPE_BYTE_BINARY)));
+        assertTrue(ParallelPNGEncoder.isSupported(new BufferedImage(10, 10,
+                BufferedImage.TYPE_4BYTE_ABGR)));
+        // premultiplied alpha is left to the serial encoder
+        assertFalse(ParallelPNGEncoder.isSupported(new BufferedImage(10, 10,
+                BufferedImage.TYPE_4BYTE_ABGR_PRE)));
+    }
+
+    @Test
+    public void testCombineAdler32() {
+        byte[] data = new byte[10000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 31);
+        }
+        Adler32 all = new Adler32();
+        all.update(data);
+        Adler32 first = new Adler32();
+        first.update(data, 0, 3000);
+        Adler32 second = new Adler32();
+        second.update(data, 3000, 7000);
+
+        assertEquals(all.getValue(),
+                ParallelPNGEncoder.combineAdler32(first.getValue(), second.getValue(), 7000));
+    }
+
+    void assertRoundTrip(BufferedImage image) throws Exception {
+        assertRoundTrip(image, ParallelPNGEncoder.FILTER_NONE);
+    }
+
+    void assertRoundTrip(BufferedImage image, int filter) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        new ParallelPNGEncoder(executor, 4).encode(image, bos, 0.75f, filter);
+        BufferedImage read = ImageIO.read(new ByteArrayInputStream(bos.toByteArray()));
+
+        assertEquals(image.getWidth(), read.getWidth());
+        assertEquals(image.getHeight(), read.getHeight());
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                assertEquals("Pixel " + x + "," + y, image.getRGB(x, y), read.getRGB(x, y));
+            }
+        }
+    }
+}